@@ -0,0 +1,193 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.core.state.ItemState;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.core.state.PropertyState;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.NameFactory;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures how <code>FedoraPersistenceManager</code> copes with large
+ * imports whose items arrive children first, as they do from
+ * <code>importXML</code>. Every imported object is a folder holding one
+ * file, i.e. five items: the folder, the nt:file and nt:resource nodes
+ * and the jcr:mimeType and jcr:data properties.</p>
+ *
+ * <p>The first save holds every item but the root, so all of them are
+ * left pending. Each pending node is then loaded once, and a second
+ * save of the root resolves and flushes them. Each invocation imports
+ * <code>objects</code> new objects into a fresh in-memory connector
+ * without latency, so the numbers only reflect the bookkeeping of the
+ * persistence manager.</p>
+ *
+ * @author Xin Xiang
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImportBenchmark {
+
+	/** UUID of root node in Jackrabbit */
+	private static final String ROOT_ID =
+		"cafebabe-cafe-babe-cafe-babecafebabe";
+
+	/** name factory */
+	private static final NameFactory factory = NameFactoryImpl.getInstance();
+
+	private static final Name UNSTRUCTURED =
+		factory.create("{http://www.jcp.org/jcr/nt/1.0}unstructured");
+	private static final Name FILE =
+		factory.create("{http://www.jcp.org/jcr/nt/1.0}file");
+	private static final Name RESOURCE =
+		factory.create("{http://www.jcp.org/jcr/nt/1.0}resource");
+	private static final Name CONTENT =
+		factory.create("{http://www.jcp.org/jcr/1.0}content");
+	private static final Name MIME_TYPE =
+		factory.create("{http://www.jcp.org/jcr/1.0}mimeType");
+	private static final Name DATA =
+		factory.create("{http://www.jcp.org/jcr/1.0}data");
+
+	/** number of objects imported */
+	@Param({"500", "8000"})
+	public int objects;
+
+	/** the persistence manager */
+	private FedoraPersistenceManager pm;
+
+	/** the first save, every item but the root */
+	private ChangeLog changeLog;
+
+	/** the root with the imported objects as children */
+	private NodeState root;
+
+	/** nodes loaded while they are pending */
+	private List<NodeId> pending;
+
+	/** 
+	 * number of the import, so that the pids of each import are new to
+	 * the static state of the persistence manager
+	 */
+	private static int run;
+
+	@Setup(Level.Invocation)
+	public void setUp() throws Exception
+	{
+		NodeId rootID = new NodeId(ROOT_ID);
+
+		pm = new FedoraPersistenceManager(new FedoraConnectorMemory(0, 0));
+		pm.init(null);
+
+		++run;
+		changeLog = new ChangeLog();
+		pending = new ArrayList<NodeId>();
+		root = new NodeState(rootID, factory.create("{internal}root"), null,
+							 ItemState.STATUS_EXISTING, false);
+
+		for (int i = 0; i < objects; ++i) {
+			NodeId doID = new NodeId();
+			NodeId dsID = new NodeId();
+			NodeId contentID = new NodeId();
+			String name = FedoraPersistenceManager.escapePID("import" + run +
+															 ":" + i);
+			NodeState state;
+			PropertyState property;
+
+			property = new PropertyState(new PropertyId(contentID, MIME_TYPE),
+										 ItemState.STATUS_NEW, false);
+			property.setType(1);
+			property.setValues(new InternalValue [] {
+					InternalValue.create("text/plain")});
+			changeLog.added(property);
+
+			property = new PropertyState(new PropertyId(contentID, DATA),
+										 ItemState.STATUS_NEW, false);
+			property.setType(2);
+			property.setValues(new InternalValue [] {
+					InternalValue.create(("object " + i).getBytes())});
+			changeLog.added(property);
+
+			state = new NodeState(contentID, RESOURCE, dsID,
+								  ItemState.STATUS_NEW, false);
+			changeLog.added(state);
+
+			state = new NodeState(dsID, FILE, doID,
+								  ItemState.STATUS_NEW, false);
+			state.addChildNodeEntry(CONTENT, contentID);
+			changeLog.added(state);
+
+			state = new NodeState(doID, UNSTRUCTURED, rootID,
+								  ItemState.STATUS_NEW, false);
+			state.addChildNodeEntry(factory.create("{}data.txt"), dsID);
+			changeLog.added(state);
+
+			root.addChildNodeEntry(factory.create("{}" + name), doID);
+
+			pending.add(contentID);
+			pending.add(dsID);
+			pending.add(doID);
+		}
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDown() throws Exception
+	{
+		pm.close();
+	}
+
+	@Benchmark
+	public void importObjects() throws Exception
+	{
+		ChangeLog flush;
+
+		pm.store(changeLog);
+
+		for (NodeId id : pending) {
+			pm.load(id);
+		}
+
+		flush = new ChangeLog();
+		flush.modified(root);
+		pm.store(flush);
+	}
+}
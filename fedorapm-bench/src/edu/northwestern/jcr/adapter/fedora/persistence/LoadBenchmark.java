@@ -0,0 +1,177 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.state.ChildNodeEntry;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.core.state.PropertyState;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Measures the throughput of node and property loads through
+ * <code>FedoraPersistenceManager</code> as the number of reader threads
+ * grows. Each invocation loads an object node and its Dublin Core
+ * title, taking the <code>objects</code> top-level objects in
+ * turn.</p>
+ *
+ * <p>The in-memory connector answers each call after
+ * <code>latency</code> milliseconds, so the numbers show how well loads
+ * overlap rather than the speed of a particular server. The nested
+ * classes run the same benchmark with 1, 2, 4, 8 and 16 threads; with
+ * loads that do not wait for each other the throughput grows with the
+ * number of threads.</p>
+ *
+ * @author Xin Xiang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class LoadBenchmark {
+
+	/** UUID of root node in Jackrabbit */
+	private static final String ROOT_ID =
+		"cafebabe-cafe-babe-cafe-babecafebabe";
+
+	/** prefix of the UUIDs of the Jackrabbit system nodes */
+	private static final String SYSTEM_PREFIX = "deadbeef";
+
+	/** prefix of the pids of the objects */
+	private static final String PID_PREFIX = "bench:";
+
+	/** Dublin Core title */
+	private static final Name TITLE = NameFactoryImpl.getInstance().create(
+		"{http://purl.org/dc/elements/1.1}title");
+
+	/** number of top-level objects */
+	@Param({"1000"})
+	public int objects;
+
+	/** latency of each call to the connector in milliseconds */
+	@Param({"5"})
+	public long latency;
+
+	/** the persistence manager */
+	private FedoraPersistenceManager pm;
+
+	/** node IDs of the objects */
+	private NodeId [] children;
+
+	/** index of the next object */
+	private final AtomicInteger next = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		FedoraConnectorMemory fc = new FedoraConnectorMemory(0, 0);
+		List<NodeId> ids = new ArrayList<NodeId>();
+		NodeState root;
+		String pid;
+
+		for (int i = 0; i < objects; ++i) {
+			pid = PID_PREFIX + i;
+			fc.createObject(pid);
+			fc.modifyDCField(pid, "title", "Object " + i);
+		}
+
+		pm = new FedoraPersistenceManager(fc);
+		pm.init(null);
+
+		// register the top-level objects
+		root = pm.load(new NodeId(ROOT_ID));
+		for (Iterator iter = root.getChildNodeEntries().iterator();
+			 iter.hasNext();) {
+			ChildNodeEntry entry = (ChildNodeEntry) iter.next();
+			if (! entry.getId().toString().startsWith(SYSTEM_PREFIX)) {
+				ids.add(entry.getId());
+			}
+		}
+		children = ids.toArray(new NodeId[ids.size()]);
+
+		// populated without latency
+		fc.setLatency(latency);
+	}
+
+	@Benchmark
+	public PropertyState load() throws Exception
+	{
+		NodeId id = children[(next.getAndIncrement() & 0x7fffffff) %
+							 children.length];
+
+		pm.load(id);
+		return pm.load(new PropertyId(id, TITLE));
+	}
+
+	/**
+	 * One reader thread.
+	 */
+	@Threads(1)
+	public static class Threads1 extends LoadBenchmark {
+	}
+
+	/**
+	 * Two reader threads.
+	 */
+	@Threads(2)
+	public static class Threads2 extends LoadBenchmark {
+	}
+
+	/**
+	 * Four reader threads.
+	 */
+	@Threads(4)
+	public static class Threads4 extends LoadBenchmark {
+	}
+
+	/**
+	 * Eight reader threads.
+	 */
+	@Threads(8)
+	public static class Threads8 extends LoadBenchmark {
+	}
+
+	/**
+	 * Sixteen reader threads.
+	 */
+	@Threads(16)
+	public static class Threads16 extends LoadBenchmark {
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.state.ChildNodeEntry;
+import org.apache.jackrabbit.core.state.ItemState;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.core.state.PropertyState;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.NameFactory;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>Benchmarks the node and property loads and stores of
+ * <code>FedoraPersistenceManager</code> over an in-memory connector
+ * without latency. <code>exists</code> measures the resolution of a
+ * node ID to its pid, and the load of the parent that of the names of
+ * all its children to their node IDs.</p>
+ *
+ * <p>The tree is a chain of <code>depth</code> digital objects below the
+ * root, the last of which has <code>width</code> children with a Dublin
+ * Core title. Each invocation works on a child picked in turn, so that
+ * all of them are visited; node stores cycle through at most
+ * {@value #STORED_STATES} children spread over the others.
+ * {@link Single} runs the benchmarks with one thread and
+ * {@link Contended} with eight threads sharing the persistence
+ * manager.</p>
+ *
+ * @author Xin Xiang
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class PersistenceBenchmark {
+
+	/** UUID of root node in Jackrabbit */
+	private static final String ROOT_ID =
+		"cafebabe-cafe-babe-cafe-babecafebabe";
+
+	/** prefix of the pids of the objects */
+	private static final String PID_PREFIX = "bench:";
+
+	/** name factory */
+	private static final NameFactory factory = NameFactoryImpl.getInstance();
+
+	/** Dublin Core title */
+	private static final Name TITLE =
+		factory.create("{http://purl.org/dc/elements/1.1}title");
+
+	/** maximum number of node states kept for the store benchmark */
+	private static final int STORED_STATES = 1024;
+
+	/** property written by the store benchmark */
+	private static final Name VALUE = factory.create("{}benchValue");
+
+	/** number of children of the parent object */
+	@Param({"10", "1000", "100000"})
+	public int width;
+
+	/** number of objects from the root to the parent object */
+	@Param({"1", "8"})
+	public int depth;
+
+	/** the persistence manager */
+	private FedoraPersistenceManager pm;
+
+	/** node IDs of the children */
+	private NodeId [] children;
+
+	/** node ID of the parent */
+	private NodeId parentID;
+
+	/** node states of children spread over all of them */
+	private NodeState [] states;
+
+	/** index of the next child */
+	private final AtomicInteger next = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		FedoraConnectorMemory fc = new FedoraConnectorMemory(0, 0);
+		String parent = null;
+		String pid;
+		NodeState state;
+		Map<String, NodeId> childMap;
+		String name;
+
+		for (int i = 0; i < depth; ++i) {
+			pid = PID_PREFIX + "level" + i;
+			fc.createObject(pid);
+			if (parent != null) {
+				fc.addMember(parent, pid);
+			}
+			parent = pid;
+		}
+
+		for (int i = 0; i < width; ++i) {
+			pid = PID_PREFIX + i;
+			fc.createObject(pid);
+			fc.modifyDCField(pid, "title", "Object " + i);
+			fc.addMember(parent, pid);
+		}
+
+		pm = new FedoraPersistenceManager(fc);
+		pm.init(null);
+
+		// register the objects down to the parent
+		state = pm.load(new NodeId(ROOT_ID));
+		for (int i = 0; i < depth; ++i) {
+			pid = PID_PREFIX + "level" + i;
+			state = pm.load(getChildMap(state).get(
+								FedoraPersistenceManager.escapePID(pid)));
+		}
+		parentID = state.getNodeId();
+
+		childMap = getChildMap(state);
+		children = new NodeId[width];
+		for (int i = 0; i < width; ++i) {
+			name = FedoraPersistenceManager.escapePID(PID_PREFIX + i);
+			children[i] = childMap.get(name);
+		}
+
+		states = new NodeState[Math.min(width, STORED_STATES)];
+		for (int i = 0; i < states.length; ++i) {
+			states[i] = pm.load(children[(int) ((long) i * width / states.length)]);
+		}
+	}
+
+	/**
+	 * Maps the names of the child nodes of an object to their node IDs.
+	 */
+	private static Map<String, NodeId> getChildMap(NodeState state)
+	{
+		Map<String, NodeId> map = new HashMap<String, NodeId>();
+
+		for (Iterator iter = state.getChildNodeEntries().iterator();
+			 iter.hasNext();) {
+			ChildNodeEntry entry = (ChildNodeEntry) iter.next();
+			map.put(entry.getName().getLocalName(), entry.getId());
+		}
+
+		return map;
+	}
+
+	/**
+	 * Gets the index of the child to work on.
+	 */
+	private int nextIndex()
+	{
+		return (next.getAndIncrement() & 0x7fffffff) % width;
+	}
+
+	/**
+	 * Gets the index of the stored node state to work on.
+	 */
+	private int nextState()
+	{
+		return (next.getAndIncrement() & 0x7fffffff) % states.length;
+	}
+
+	@Benchmark
+	public NodeState loadNode() throws Exception
+	{
+		return pm.load(children[nextIndex()]);
+	}
+
+	@Benchmark
+	public PropertyState loadProperty() throws Exception
+	{
+		return pm.load(new PropertyId(children[nextIndex()], TITLE));
+	}
+
+	@Benchmark
+	public void storeNode() throws Exception
+	{
+		pm.store(states[nextState()]);
+	}
+
+	@Benchmark
+	public void storeProperty() throws Exception
+	{
+		PropertyState state;
+		int i = nextIndex();
+
+		state = new PropertyState(new PropertyId(children[i], VALUE),
+								  ItemState.STATUS_EXISTING, false);
+		state.setType(1);
+		state.setValues(new InternalValue [] {
+				InternalValue.create("value " + i)});
+
+		pm.store(state);
+	}
+
+	@Benchmark
+	public boolean exists() throws Exception
+	{
+		return pm.exists(children[nextIndex()]);
+	}
+
+	@Benchmark
+	public NodeState loadParent() throws Exception
+	{
+		return pm.load(parentID);
+	}
+
+	/**
+	 * The benchmarks run by a single thread.
+	 */
+	@Threads(1)
+	public static class Single extends PersistenceBenchmark {
+	}
+
+	/**
+	 * The benchmarks run by eight threads at once.
+	 */
+	@Threads(8)
+	public static class Contended extends PersistenceBenchmark {
+	}
+}
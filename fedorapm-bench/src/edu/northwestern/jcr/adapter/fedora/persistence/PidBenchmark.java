@@ -0,0 +1,76 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the conversions between Fedora pids and JCR names, for
+ * native Fedora objects and for objects created through Sling.
+ *
+ * @author Xin Xiang
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PidBenchmark {
+
+	/** pid converted */
+	@Param({"demo:1234", "my_collection:item_42", "sling3:-1794%57untitled__folder_2"})
+	public String pid;
+
+	/** the JCR name of the pid */
+	private String name;
+
+	@Setup
+	public void setUp()
+	{
+		name = FedoraPersistenceManager.escapePID(pid);
+	}
+
+	@Benchmark
+	public String escapePID()
+	{
+		return FedoraPersistenceManager.escapePID(pid);
+	}
+
+	@Benchmark
+	public String unescapePID()
+	{
+		return FedoraPersistenceManager.unescapePID(name);
+	}
+
+	@Benchmark
+	public String unescapePIDSling()
+	{
+		return FedoraPersistenceManager.unescapePIDSling(name);
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <code>BufferPool</code> hands out fixed-size byte buffers used to copy
+ * data stream content, so that streaming a large data stream does not
+ * allocate a new buffer for every request.
+ *
+ * @author Xin Xiang
+ */
+class BufferPool {
+
+	/** size of each buffer */
+	public final static int BUFFER_SIZE = 64 * 1024;
+
+	/** maximum number of idle buffers kept in the pool */
+	private final static int MAX_IDLE = 32;
+
+	/** idle buffers */
+	private final static Queue<byte []> pool =
+		new ConcurrentLinkedQueue<byte []>();
+
+	/** number of idle buffers */
+	private final static AtomicInteger idle = new AtomicInteger();
+
+	/**
+	 * Takes a buffer from the pool, allocating one if the pool is empty.
+	 *
+	 * @return buffer of <code>BUFFER_SIZE</code> bytes
+	 */
+	public static byte [] acquire()
+	{
+		byte [] buffer = pool.poll();
+
+		if (buffer == null) {
+			return new byte[BUFFER_SIZE];
+		}
+
+		idle.decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool.
+	 *
+	 * @param buffer buffer obtained from {@link #acquire}
+	 */
+	public static void release(byte [] buffer)
+	{
+		if (buffer == null || buffer.length != BUFFER_SIZE) {
+			return;
+		}
+
+		if (idle.incrementAndGet() > MAX_IDLE) {
+			idle.decrementAndGet();
+			return;
+		}
+
+		pool.offer(buffer);
+	}
+
+	/**
+	 * Copies an input stream to an output stream using a pooled buffer.
+	 * Neither stream is closed.
+	 *
+	 * @param in source stream
+	 * @param out destination stream
+	 * @return number of bytes copied
+	 */
+	public static long copy(InputStream in, OutputStream out)
+		throws IOException
+	{
+		byte [] buffer = acquire();
+		long count = 0;
+		int n;
+
+		try {
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+				count += n;
+			}
+		} finally {
+			release(buffer);
+		}
+
+		return count;
+	}
+}
@@ -15,8 +15,8 @@
  */
 package edu.northwestern.jcr.adapter.fedora.persistence;
 
-import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * <code>DataStream</code> stores definition of a datastream and
@@ -38,8 +38,8 @@ class DataStream {
 	public String mimeType;
 
 	/** maps the UUID to the DataStream object */
-	private final static Map<String, DataStream> dsMap = 
-		new HashMap<String, DataStream>();
+	private final static ConcurrentMap<String, DataStream> dsMap = 
+		new ConcurrentHashMap<String, DataStream>();
 
 	/**
 	 * Creates a new <code>DataStream</code> instance.
@@ -80,9 +80,7 @@ class DataStream {
 	 */
 	public void setUUID(String uuid)
 	{
-		if (dsMap.get(uuid) == null) {
-			dsMap.put(uuid, this);
-		}
+		dsMap.putIfAbsent(uuid, this);
 	}
 
 	/**
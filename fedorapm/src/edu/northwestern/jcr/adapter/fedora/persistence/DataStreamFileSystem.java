@@ -0,0 +1,197 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.jackrabbit.core.fs.FileSystem;
+import org.apache.jackrabbit.core.fs.FileSystemException;
+import org.apache.jackrabbit.core.fs.FileSystemResource;
+
+/**
+ * <p><code>DataStreamFileSystem</code> exposes the content of Fedora data
+ * streams as a read-only Jackrabbit <code>FileSystem</code>, where the
+ * file <code>/pid/dsID</code> is the content of data stream dsID of
+ * object pid.</p>
+ *
+ * <p>A binary value created on a resource of this file system is lazy:
+ * the content is only requested from Fedora, and streamed without
+ * buffering, when the value's stream is opened. The resource carries
+ * the size of the content, so that the value need not ask for it.</p>
+ *
+ * @author Xin Xiang
+ */
+class DataStreamFileSystem implements FileSystem {
+
+	/** fedora connector used to open the data streams */
+	private FedoraConnector fc;
+
+	/**
+	 * Creates a new <code>DataStreamFileSystem</code> instance.
+	 *
+	 * @param fc connector to the Fedora repository
+	 */
+	public DataStreamFileSystem(FedoraConnector fc)
+	{
+		this.fc = fc;
+	}
+
+	/**
+	 * Returns the resource of a data stream in this file system, whose
+	 * size is already known.
+	 *
+	 * @param pid pid of the object
+	 * @param dsID id of the data stream
+	 * @param size size of the content in bytes
+	 * @return resource of the data stream
+	 */
+	public FileSystemResource getResource(String pid, String dsID, long size)
+	{
+		return new DataStreamResource(this, SEPARATOR + pid + SEPARATOR + 
+									  dsID, size);
+	}
+
+	/**
+	 * Splits a path into the pid and the data stream ID.
+	 */
+	private String [] parsePath(String path) throws FileSystemException
+	{
+		int index = path.lastIndexOf(SEPARATOR_CHAR);
+
+		if (index <= 0 || index == path.length() - 1) {
+			throw new FileSystemException("not a data stream: " + path);
+		}
+
+		return new String [] {path.substring(1, index),
+							  path.substring(index + 1)};
+	}
+
+	public void init() throws FileSystemException
+	{
+	}
+
+	public void close() throws FileSystemException
+	{
+	}
+
+	public InputStream getInputStream(String filePath)
+		throws FileSystemException
+	{
+		String [] parts = parsePath(filePath);
+		InputStream in;
+
+		in = fc.openDataStream(parts[0], parts[1]);
+		if (in == null) {
+			throw new FileSystemException("failed to open data stream: " +
+										  filePath);
+		}
+
+		return in;
+	}
+
+	public OutputStream getOutputStream(String filePath)
+		throws FileSystemException
+	{
+		throw new FileSystemException("read-only file system");
+	}
+
+	public void createFolder(String folderPath) throws FileSystemException
+	{
+		throw new FileSystemException("read-only file system");
+	}
+
+	/**
+	 * Data streams are assumed to exist; a missing one fails when its
+	 * content is opened.
+	 */
+	public boolean exists(String path) throws FileSystemException
+	{
+		return true;
+	}
+
+	public boolean isFile(String path) throws FileSystemException
+	{
+		return path.lastIndexOf(SEPARATOR_CHAR) > 0;
+	}
+
+	public boolean isFolder(String path) throws FileSystemException
+	{
+		return ! isFile(path);
+	}
+
+	public boolean hasChildren(String path) throws FileSystemException
+	{
+		return false;
+	}
+
+	public long length(String filePath) throws FileSystemException
+	{
+		String [] parts = parsePath(filePath);
+
+		return fc.getDataStreamSize(parts[0], parts[1]);
+	}
+
+	public long lastModified(String path) throws FileSystemException
+	{
+		return 0;
+	}
+
+	public String [] list(String folderPath) throws FileSystemException
+	{
+		return new String[0];
+	}
+
+	public String [] listFiles(String folderPath) throws FileSystemException
+	{
+		return new String[0];
+	}
+
+	public String [] listFolders(String folderPath)
+		throws FileSystemException
+	{
+		return new String[0];
+	}
+
+	public void deleteFile(String filePath) throws FileSystemException
+	{
+		// the content belongs to Fedora, disposing a value keeps it
+	}
+
+	public void deleteFolder(String folderPath) throws FileSystemException
+	{
+		// nothing to prune
+	}
+
+	/**
+	 * Resource of a data stream of known size.
+	 */
+	private static class DataStreamResource extends FileSystemResource {
+		/** size of the content in bytes */
+		private final long size;
+
+		DataStreamResource(FileSystem fs, String path, long size)
+		{
+			super(fs, path);
+			this.size = size;
+		}
+
+		public long length()
+		{
+			return size;
+		}
+	}
+}
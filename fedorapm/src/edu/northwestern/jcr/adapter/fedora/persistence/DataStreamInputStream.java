@@ -0,0 +1,129 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * <p><code>DataStreamInputStream</code> is the content of a data stream
+ * as returned by {@link FedoraConnector#openDataStream}, together with
+ * its length when the server announced it, so that the caller need not
+ * ask for the size separately.</p>
+ *
+ * <p>If the content is read over HTTP, closing the stream before the end
+ * of the content aborts the connection rather than draining it, so a
+ * caller may stop reading a large data stream at no cost.</p>
+ *
+ * @author Xin Xiang
+ */
+public class DataStreamInputStream extends FilterInputStream {
+
+	/** the request the content is read from, or null */
+	private HttpMethod method;
+
+	/** length of the content in bytes, or -1 if unknown */
+	private final long length;
+
+	/** whether the end of the content has been reached */
+	private boolean done;
+
+	/**
+	 * Creates a new <code>DataStreamInputStream</code> instance over
+	 * content that is not read over HTTP.
+	 *
+	 * @param in the content
+	 * @param length length of the content in bytes, or -1 if unknown
+	 */
+	public DataStreamInputStream(InputStream in, long length)
+	{
+		this(in, null, length);
+	}
+
+	/**
+	 * Creates a new <code>DataStreamInputStream</code> instance over the
+	 * response to an executed request.
+	 *
+	 * @param in the body of the response
+	 * @param method the request, released when the stream is closed
+	 * @param length length of the content in bytes, or -1 if unknown
+	 */
+	public DataStreamInputStream(InputStream in, HttpMethod method,
+								 long length)
+	{
+		super(in);
+		this.method = method;
+		this.length = length;
+	}
+
+	/**
+	 * @return length of the content in bytes, or -1 if unknown.
+	 */
+	public long getLength()
+	{
+		return length;
+	}
+
+	public int read() throws IOException
+	{
+		int c = super.read();
+
+		if (c < 0) {
+			done = true;
+		}
+
+		return c;
+	}
+
+	public int read(byte [] b, int off, int len) throws IOException
+	{
+		int n = super.read(b, off, len);
+
+		if (n < 0) {
+			done = true;
+		}
+
+		return n;
+	}
+
+	/**
+	 * Releases the connection. If the content has not been read to the
+	 * end, the connection is aborted rather than drained. Closing more
+	 * than once has no effect.
+	 */
+	public void close() throws IOException
+	{
+		if (method == null) {
+			super.close();
+			return;
+		}
+
+		try {
+			if (! done) {
+				method.abort();
+			}
+			else {
+				super.close();
+			}
+		} finally {
+			method.releaseConnection();
+			method = null;
+		}
+	}
+}
@@ -15,20 +15,41 @@
  */
 package edu.northwestern.jcr.adapter.fedora.persistence;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.StringReader;
+import java.io.InputStream;
+
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.Queue;
-import java.util.LinkedList;
 import java.util.Properties;
+import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.net.URLEncoder;
 import java.net.MalformedURLException;
@@ -42,6 +63,7 @@ import fedora.common.Constants;
 import fedora.common.PID;
 
 import static org.apache.commons.httpclient.HttpStatus.SC_OK;
+import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 
 import org.slf4j.Logger;
@@ -54,7 +76,8 @@ import org.slf4j.LoggerFactory;
  * <p>It is designed as the abstract class for Fedora access.
  * {@link FedoraConnectorAPIX} and {@link FedoraConnectorREST}
  * inherit this class and implement the abstract methods defined
- * here in either API-A/API-M or REST.</p>
+ * here in either API-A/API-M or REST, while
+ * {@link FedoraConnectorMemory} keeps everything in memory.</p>
  *
  * <p>Some methods are implemented here since they use resource index
  * directly or the operations are only implemented in API-M, for example,
@@ -93,6 +116,37 @@ public abstract class FedoraConnector {
 	static final String FOXMLPART1 = 
 		"<?xml version=\"1.0\" encoding=\"UTF-8\"?><foxml:digitalObject VERSION=\"1.1\" PID=\"";
 
+	/** default number of threads running asynchronous calls. */
+	private static final int DEFAULT_ASYNC_THREADS = 16;
+
+	/** maximum number of asynchronous calls waiting for a thread. */
+	private static final int ASYNC_QUEUE_SIZE = 1024;
+
+	/** maximum number of values tested by one set-membership query. */
+	private static final int MEMBERSHIP_BATCH_SIZE = 256;
+
+	/** maximum number of threads running hedged requests. */
+	private static final int MAX_HEDGE_THREADS = 64;
+
+	/** number of threads running asynchronous calls. */
+	private static int asyncThreads = DEFAULT_ASYNC_THREADS;
+
+	/** pool running asynchronous calls, shared by all connectors. */
+	private static ExecutorService asyncExecutor;
+
+	/** read requests in flight, shared by concurrent identical requests. */
+	private final RequestCoalescer coalescer = new RequestCoalescer();
+
+	/** pool running hedged requests, shared by all connectors. */
+	private static ExecutorService hedgeExecutor;
+
+	/** latencies, timeouts and hedging of each class of operations. */
+	LatencyTracker latencyTracker;
+
+	/** requests of the hedged read running on the current thread. */
+	private static final ThreadLocal<Attempt> currentAttempt = 
+		new ThreadLocal<Attempt>();
+
 	/** second part of the FOXML template. */
 	static final String FOXMLPART2 = 
 		"\" xsi:schemaLocation=\"info:fedora/fedora-system:def/foxml# http://www.fedora.info/definitions/1/0/foxml1-1.xsd\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xmlns:foxml=\"info:fedora/fedora-system:def/foxml#\"><foxml:objectProperties><foxml:property NAME=\"info:fedora/fedora-system:def/model#state\" VALUE=\"Active\"/><foxml:property NAME=\"info:fedora/fedora-system:def/model#ownerId\" VALUE=\"fedoraAdmin\"/></foxml:objectProperties></foxml:digitalObject>";
@@ -118,6 +172,7 @@ public abstract class FedoraConnector {
 			props.load(new FileInputStream("fedora.properties"));
 		} catch(IOException e) {
 			e.printStackTrace();
+			props = null;
 
 			// set default
 			host = "connectdev.at.northwestern.edu";
@@ -153,8 +208,19 @@ public abstract class FedoraConnector {
 			if (s != null && ! s.equals("")) {
 				gsearchFields = s.split(",");
 			}			
+
+			s = props.getProperty("asyncthreads");
+			if (s != null && ! s.equals("")) {
+				try {
+					asyncThreads = Integer.parseInt(s);
+				} catch (NumberFormatException e) {
+					log.error("invalid number of async threads, using default");
+				}
+			}
 		}
 
+		latencyTracker = new LatencyTracker(props);
+
 		baseURL = protocol + "://" + host + ":" + port + "/" + context;
 		gsearchURL = protocol + "://" + host + ":" + port + "/" + gsearchContext;
 
@@ -190,6 +256,25 @@ public abstract class FedoraConnector {
 	 */
 	public abstract String [] listObjects(String pattern) throws Exception;
 
+	/**
+	 * Iterates over the objects in Fedora repository. Connectors that
+	 * can page through the results override this to avoid holding all
+	 * the pids at once.
+	 *
+	 * @param pattern the pattern of pid
+	 * @return iterator over the pids that satisfy the pattern
+	 */
+	public Iterator<String> iterateObjects(String pattern) throws Exception
+	{
+		String [] list = listObjects(pattern);
+
+		if (list == null) {
+			throw new RepositoryException("failed to list objects");
+		}
+
+		return Arrays.asList(list).iterator();
+	}
+
 	/**
 	 * Tests if a given digital object already exists in the Fedora 
 	 * repository.
@@ -200,21 +285,84 @@ public abstract class FedoraConnector {
 	public abstract boolean existsObject(String pid);
 
 	/**
-	 * Lists the data streams of a Fedora object.
+	 * Lists the data streams of a Fedora object. Concurrent identical
+	 * requests share one call.
+	 *
+	 * @param pid pid of the object
+	 * @return list of the <code>DataStream</code> objects
+	 */
+	public DataStream [] listDataStreams(final String pid)
+	{
+		return coalesce(pid, "listDataStreams",
+			hedged(LatencyTracker.DATASTREAM, new Callable<DataStream []>() {
+				public DataStream [] call() {
+					return fetchDataStreams(pid);
+				}
+			}));
+	}
+
+	/**
+	 * Lists the data streams of a Fedora object, as requested by
+	 * {@link #listDataStreams}.
 	 *
 	 * @param pid pid of the object
 	 * @return list of the <code>DataStream</code> objects
 	 */
-	public abstract DataStream [] listDataStreams(String pid);
+	protected abstract DataStream [] fetchDataStreams(String pid);
+
+	/**
+	 * Returns the data stream content. The read is hedged if it is
+	 * slower than usual.
+	 *
+	 * @param pid pid of the object
+	 * @param dsID id of the datastream
+	 * @return byte content of the data stream
+	 */
+	public byte[] getDataStream(final String pid, final String dsID)
+	{
+		try {
+			return callHedged(LatencyTracker.DATASTREAM, 
+				new Callable<byte []>() {
+					public byte [] call() {
+						return fetchDataStream(pid, dsID);
+					}
+				});
+		} catch (Exception e) {
+			log.error("failed to get data stream!", e);
+			return null;
+		}
+	}
 
 	/**
-	 * Returns the data stream content.
+	 * Reads the data stream content, as requested by
+	 * {@link #getDataStream}.
 	 *
 	 * @param pid pid of the object
 	 * @param dsID id of the datastream
 	 * @return byte content of the data stream
 	 */
-	public abstract byte[] getDataStream(String pid, String dsID);
+	protected abstract byte[] fetchDataStream(String pid, String dsID);
+
+	/**
+	 * Opens the data stream content for reading without buffering it.
+	 * The caller must close the stream to release the connection.
+	 *
+	 * @param pid pid of the object
+	 * @param dsID id of the datastream
+	 * @return stream of the data stream content, with its length if it
+	 * is known, or null if it cannot be retrieved
+	 */
+	public abstract DataStreamInputStream openDataStream(String pid, 
+														 String dsID);
+
+	/**
+	 * Returns the size of the data stream content without retrieving it.
+	 *
+	 * @param pid pid of the object
+	 * @param dsID id of the datastream
+	 * @return size in bytes, or -1 if it cannot be determined
+	 */
+	public abstract long getDataStreamSize(String pid, String dsID);
 
 	/**
 	 * Tests if a given data stream alrady exists in the Fedora repository.
@@ -241,6 +389,21 @@ public abstract class FedoraConnector {
 	public abstract void addDataStream(String pid, String dsID, 
 									   String mimeType, String fileName);
 
+	/**
+	 * Adds a data stream, reading its content from a stream. The stream
+	 * is not closed.
+	 *
+	 * @param pid pid of the object
+	 * @param dsID id of the data stream
+	 * @param mimeType MIME type of the data stream content
+	 * @param in content of the data stream
+	 * @param length length of the content in bytes, or -1 if unknown
+	 * @throws IOException if the data stream could not be added
+	 */
+	public abstract void addDataStream(String pid, String dsID, 
+									   String mimeType, InputStream in,
+									   long length) throws IOException;
+
 	/**
 	 * Deletes a data stream.
 	 * 
@@ -249,6 +412,446 @@ public abstract class FedoraConnector {
 	 */
 	public abstract void deleteDataStream(String pid, String dsID);
 
+	/**
+	 * Runs a read request, or joins the identical request already in
+	 * flight and shares its result.
+	 *
+	 * @param pid pid of the object read, or null for a request over all
+	 * objects
+	 * @param request name and arguments of the request
+	 * @param call the call to Fedora
+	 * @return result of the call, or null if it failed
+	 */
+	protected <T> T coalesce(String pid, String request, Callable<T> call)
+	{
+		try {
+			return coalescer.call(pid, request, call);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			log.error("call to Fedora failed", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Called once an object has been modified, so that later reads of
+	 * the object do not join calls that were in flight before.
+	 *
+	 * @param pid pid of the modified object
+	 */
+	protected void forgetInFlight(String pid)
+	{
+		coalescer.forget(pid);
+	}
+
+	/**
+	 * Gets the read requests made through this connector and how many
+	 * of them shared the call of an identical request.
+	 *
+	 * @return number of requests and number of shared requests
+	 */
+	public long [] getCoalescingStatistics()
+	{
+		return new long [] {coalescer.getRequestCount(), 
+							coalescer.getSharedCount()};
+	}
+
+	/**
+	 * Gets the pool running hedged requests, creating it on first use.
+	 * It is separate from the pool of asynchronous calls, since those
+	 * wait for hedged requests. Once all its threads are busy a request
+	 * runs on the calling thread, which then waits for it as if it were
+	 * not hedged.
+	 *
+	 * @return the shared executor
+	 */
+	private static synchronized ExecutorService getHedgeExecutor()
+	{
+		if (hedgeExecutor == null) {
+			hedgeExecutor = new ThreadPoolExecutor(0, MAX_HEDGE_THREADS, 
+				60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "fedora-hedge-" + 
+											  count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				},
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+
+		return hedgeExecutor;
+	}
+
+	/**
+	 * Wraps an idempotent read so that it is timed, and hedged if it
+	 * takes longer than usual for its class of operations.
+	 *
+	 * @param operation class of the operation, as in
+	 * {@link LatencyTracker}
+	 * @param call the read
+	 * @return the timed read
+	 */
+	protected <T> Callable<T> hedged(final String operation, 
+									 final Callable<T> call)
+	{
+		return new Callable<T>() {
+			public T call() throws Exception {
+				return callHedged(operation, call);
+			}
+		};
+	}
+
+	/**
+	 * Runs an idempotent read. A read that may be hedged runs on the
+	 * hedge pool; if it has not completed once the hedge delay of its
+	 * class has passed, a duplicate is sent and the first successful
+	 * result is used. Such a read still running after the timeout of its
+	 * class is abandoned and the HTTP requests of its runs are aborted.
+	 * A read that is not to be hedged runs on the calling thread, bounded
+	 * by the socket timeout its requests get from {@link #prepareRead}.
+	 *
+	 * @param operation class of the operation
+	 * @param call the read, returning null if it failed
+	 * @return result of the read, or null if it failed or timed out
+	 */
+	private <T> T callHedged(String operation, Callable<T> call)
+		throws Exception
+	{
+		CompletionService<T> service;
+		List<Future<T>> futures;
+		List<Attempt> attempts;
+		Future<T> done = null;
+		long start = System.currentTimeMillis();
+		long delay = latencyTracker.getHedgeDelay(operation);
+		long deadline, remaining;
+		int pending;
+		T result;
+
+		if (delay < 0) {
+			result = call.call();
+			latencyTracker.record(operation, System.currentTimeMillis() - start);
+			return result;
+		}
+
+		deadline = start + latencyTracker.getTimeout(operation);
+		service = new ExecutorCompletionService<T>(getHedgeExecutor());
+		futures = new ArrayList<Future<T>>(2);
+		attempts = new ArrayList<Attempt>(2);
+
+		submit(service, call, futures, attempts);
+		pending = 1;
+
+		try {
+			done = service.poll(delay, TimeUnit.MILLISECONDS);
+			if (done == null) {
+				log.debug("hedging " + operation + " request after " + 
+						  delay + " ms");
+				latencyTracker.hedged(operation);
+				submit(service, call, futures, attempts);
+				pending = 2;
+			}
+
+			while (pending > 0) {
+				if (done == null) {
+					remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						break;
+					}
+					done = service.poll(remaining, TimeUnit.MILLISECONDS);
+					if (done == null) {
+						break;
+					}
+				}
+				pending--;
+
+				try {
+					result = done.get();
+				} catch (ExecutionException e) {
+					if (pending == 0 && e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					result = null;
+				}
+
+				if (result != null || pending == 0) {
+					latencyTracker.record(operation, 
+								   System.currentTimeMillis() - start);
+					return result;
+				}
+
+				// failed, wait for the other request
+				done = null;
+			}
+		} finally {
+			// an interrupt does not stop a blocked read, an abort does
+			for (Attempt attempt : attempts) {
+				attempt.abort();
+			}
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+
+		latencyTracker.record(operation, System.currentTimeMillis() - start);
+		log.warn(operation + " request timed out after " + 
+				 (System.currentTimeMillis() - start) + " ms");
+
+		return null;
+	}
+
+	/**
+	 * Submits one run of a read, recording the HTTP requests it makes.
+	 *
+	 * @param service service running the read
+	 * @param call the read
+	 * @param futures list receiving the pending result
+	 * @param attempts list receiving the requests of the run
+	 */
+	private <T> void submit(CompletionService<T> service, 
+							final Callable<T> call,
+							List<Future<T>> futures, List<Attempt> attempts)
+	{
+		final Attempt attempt = new Attempt();
+
+		attempts.add(attempt);
+		futures.add(service.submit(new Callable<T>() {
+				public T call() throws Exception {
+					currentAttempt.set(attempt);
+					try {
+						return call.call();
+					} finally {
+						currentAttempt.remove();
+						attempt.finish();
+					}
+				}
+			}));
+	}
+
+	/**
+	 * Sets up an HTTP request of a read, with the timeout of its class
+	 * of operations as socket timeout. A request made by a read running
+	 * under {@link #callHedged} is recorded, so that it is aborted if
+	 * the read is abandoned.
+	 *
+	 * @param method the request
+	 * @param operation class of the operation, as in
+	 * {@link LatencyTracker}
+	 */
+	protected void prepareRead(HttpMethod method, String operation)
+	{
+		Attempt attempt = currentAttempt.get();
+
+		method.setDoAuthentication(true);
+		method.getParams().setParameter("Connection", "Keep-Alive");
+		method.getParams().setSoTimeout((int) 
+										latencyTracker.getTimeout(operation));
+
+		if (attempt != null) {
+			attempt.add(method);
+		}
+	}
+
+	/**
+	 * HTTP requests made by one run of a read. They are aborted if the
+	 * run is abandoned before it finishes.
+	 */
+	private static class Attempt {
+		/** requests made so far */
+		private final List<HttpMethod> methods = new ArrayList<HttpMethod>(1);
+
+		/** whether the run finished or was abandoned */
+		private boolean closed;
+
+		/**
+		 * Records a request, aborting it if the run was abandoned.
+		 */
+		synchronized void add(HttpMethod method)
+		{
+			if (closed) {
+				method.abort();
+			} else {
+				methods.add(method);
+			}
+		}
+
+		/**
+		 * Marks the run as finished. Its requests are released by the
+		 * run itself.
+		 */
+		synchronized void finish()
+		{
+			closed = true;
+			methods.clear();
+		}
+
+		/**
+		 * Aborts the requests of the run unless it has finished.
+		 */
+		synchronized void abort()
+		{
+			if (! closed) {
+				for (HttpMethod method : methods) {
+					method.abort();
+				}
+			}
+			closed = true;
+			methods.clear();
+		}
+	}
+
+	/**
+	 * Gets the pool running asynchronous calls, creating it on first use.
+	 * The pool has a fixed number of threads and a bounded queue; when
+	 * the queue is full the call runs on the calling thread instead.
+	 *
+	 * @return the shared executor
+	 */
+	private static synchronized ExecutorService getAsyncExecutor()
+	{
+		if (asyncExecutor == null) {
+			int n = Math.max(1, asyncThreads);
+
+			asyncExecutor = new ThreadPoolExecutor(n, n, 
+				60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(ASYNC_QUEUE_SIZE),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "fedora-async-" + 
+											  count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				},
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+
+		return asyncExecutor;
+	}
+
+	/**
+	 * Runs a call to Fedora asynchronously on the shared pool, so that
+	 * independent calls can be issued together.
+	 *
+	 * @param call the call
+	 * @return future holding the result of the call
+	 */
+	public <T> Future<T> async(Callable<T> call)
+	{
+		return getAsyncExecutor().submit(call);
+	}
+
+	/**
+	 * Asynchronous version of {@link #listDataStreams}.
+	 *
+	 * @param pid pid of the object
+	 * @return future holding the data streams, or null on failure
+	 */
+	public Future<DataStream []> listDataStreamsAsync(final String pid)
+	{
+		return async(new Callable<DataStream []>() {
+				public DataStream [] call() {
+					return listDataStreams(pid);
+				}
+			});
+	}
+
+	/**
+	 * Asynchronous version of {@link #listChildren}.
+	 *
+	 * @param pid pid of the parent object, or null for the top level
+	 * @return future holding the members, or null on failure
+	 */
+	public Future<Member []> listChildrenAsync(final String pid)
+	{
+		return async(new Callable<Member []>() {
+				public Member [] call() {
+					return listChildren(pid);
+				}
+			});
+	}
+
+	/**
+	 * Waits for the result of an asynchronous call. Failures are logged
+	 * and reported as null, like those of the blocking calls.
+	 *
+	 * @param future future returned by an asynchronous call
+	 * @return result of the call, or null if it failed
+	 */
+	public static <T> T getResult(Future<T> future)
+	{
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.cancel(true);
+			log.error("interrupted while waiting for Fedora");
+		} catch (ExecutionException e) {
+			log.error("asynchronous call to Fedora failed", e.getCause());
+		}
+
+		return null;
+	}
+
+	/**
+	 * Copies a stream into a new temporary file, for the APIs that can
+	 * only take the content of a data stream from a file. Each call
+	 * gets its own file, which the caller must delete. Content already
+	 * in a file is moved with <code>FileChannel.transferTo</code>.
+	 *
+	 * @param in content to copy
+	 * @return the temporary file
+	 */
+	File spoolToTempFile(InputStream in) throws IOException
+	{
+		File file;
+		FileOutputStream out;
+		FileChannel channel;
+		ReadableByteChannel source;
+		long position = 0;
+		long n;
+
+		file = File.createTempFile("fedora-upload-", null);
+		out = new FileOutputStream(file);
+		channel = out.getChannel();
+
+		try {
+			if (in instanceof FileInputStream) {
+				FileChannel inChannel = ((FileInputStream) in).getChannel();
+				long size = inChannel.size();
+
+				position = inChannel.position();
+				while (position < size) {
+					position += inChannel.transferTo(position, 
+													 size - position,
+													 channel);
+				}
+			}
+			else {
+				source = Channels.newChannel(in);
+				while ((n = channel.transferFrom(source, position, 
+												 BufferPool.BUFFER_SIZE)) > 0) {
+					position += n;
+				}
+			}
+		} catch (IOException e) {
+			out.close();
+			file.delete();
+			throw e;
+		}
+
+		out.close();
+
+		return file;
+	}
+
 	/**
 	 * Sends an HTTP POST request and returns the response body as
 	 * a string.
@@ -260,13 +863,35 @@ public abstract class FedoraConnector {
 	{
 		PostMethod postMethod;
 
+		postMethod = executePost(url, LatencyTracker.SEARCH);
+		try {
+			return postMethod.getResponseBodyAsString();
+		} finally {
+			postMethod.releaseConnection();
+		}
+	}
+
+	/**
+	 * Sends an HTTP POST request and returns the method with the
+	 * response unread. The caller must release the connection.
+	 *
+	 * @param url URL of the resource
+	 * @param operation class of the operation, giving the time the
+	 * server may stay silent
+	 * @return the executed method
+	 */
+	private PostMethod executePost(String url, String operation)
+		throws Exception
+	{
+		PostMethod postMethod;
+
 		postMethod = new PostMethod(url);
-		postMethod.setDoAuthentication(true);
-		postMethod.getParams().setParameter("Connection", "Keep-Alive");
+		prepareRead(postMethod, operation);
 		postMethod.setContentChunked(true);
 		try {
 			fc.getHttpClient().executeMethod(postMethod);
 		} catch (Exception e) {
+			postMethod.releaseConnection();
 			String msg = "error connecting to the Fedora server";
             log.error(msg);
             throw new RepositoryException(msg, null);
@@ -276,7 +901,46 @@ public abstract class FedoraConnector {
 			log.warn("status code: " + postMethod.getStatusCode());
 		}
 
-		return postMethod.getResponseBodyAsString();
+		return postMethod;
+	}
+
+	/**
+	 * Executes the SparQL/iTQL expression against the resource index and
+	 * returns an iterator over the resulting tuples, read as they arrive.
+	 * The iterator must be closed unless it is read to the end.
+	 *
+	 * @param query the query string
+	 * @param language "sparql" or "itql"
+	 * @return iterator over the tuples, without the header
+	 */
+	public TupleIterator searchTuples(String query, String language)
+		throws Exception
+	{
+		return searchTuples(query, language, LatencyTracker.SEARCH);
+	}
+
+	/**
+	 * Executes a resource index query with the timeout of a class of
+	 * operations. All resource index searches go through this method,
+	 * so that a connector not backed by a Fedora server can answer them
+	 * itself.
+	 *
+	 * @param query the query string
+	 * @param language "sparql" or "itql"
+	 * @param operation class of the operation
+	 * @return iterator over the tuples, without the header
+	 */
+	protected TupleIterator searchTuples(String query, String language,
+										 String operation)
+		throws Exception
+	{
+		String url;
+
+		url = baseURL + "/risearch?type=tuples&flush=true&lang=" + 
+			language + "&format=CSV&query=" + 
+			URLEncoder.encode(query, "UTF-8");
+
+		return new TupleIterator(executePost(url, operation));
 	}
 
 	/**
@@ -286,6 +950,12 @@ public abstract class FedoraConnector {
 	 * The result is in CSV format as if it is generated directly
 	 * from resouce index.
 	 *
+	 * The tree is walked one level at a time: the members of all the
+	 * objects of a level are listed together by {@link #listLevel}, so
+	 * the number of queries grows with the depth of the tree rather than
+	 * with the number of objects. Since it uses {@link #searchIn}, this
+	 * method must not be called from the pool of asynchronous calls.
+	 *
 	 * @param pid pid of the object
 	 * @param filter filter condition applied - null if there is no filter
 	 * @return list of pid of the descendants that satisfy the filter condition
@@ -293,74 +963,142 @@ public abstract class FedoraConnector {
 	public String [] listDescendantsRI(String pid, String filter) throws Exception
 	{
 		String [] members;
-		Map<String, String> pathMap;
-		Queue<String> queue;
+		List<String> frontier;
+		List<String> paths;
+		List<String> nextFrontier;
+		List<String> nextPaths;
 		List<String> resultList;
-		String nextPID;
-		String parentPath;
+		Map<String, Map<String, Boolean>> level;
+		Map<String, Boolean> children;
+		String path;
 
-		pathMap = new HashMap<String, String>();
-		queue = new LinkedList<String>();
+		frontier = new ArrayList<String>();
+		paths = new ArrayList<String>();
 		resultList = new ArrayList<String>();
 
 		if (pid == null) {
-			try {
-				members = listObjectsRI(null);
-			} catch (Exception e) {
-				throw e;
-			}			
+			members = listObjectsRI(null);
+
+			for (String member : members) {
+				frontier.add(member);
+				paths.add(member);
+			}
+
+			if (filter != null) {
+				members = listObjectsRI(filter);
+			}
+
+			// add only those satisfying the filter to the result list
+			for (String member : members) {
+				resultList.add(member);
+			}
 		}
 		else {
-			// to be implemented
-			members = listMembers(pid, null);
+			// the paths do not include the object itself
+			frontier.add(pid);
+			paths.add(null);
 		}
 
-		for (String member : members) {
-			queue.add(member);
-			pathMap.put(member, member);
-		}
+		while (! frontier.isEmpty()) {
+			level = listLevel(frontier, filter);
+			nextFrontier = new ArrayList<String>();
+			nextPaths = new ArrayList<String>();
+
+			// in the order of the frontier, as a breadth-first walk
+			for (int i = 0; i < frontier.size(); ++i) {
+				children = level.get(frontier.get(i));
+				if (children == null) {
+					continue;
+				}
+
+				for (Map.Entry<String, Boolean> child : children.entrySet()) {
+					if (paths.get(i) == null) {
+						path = child.getKey();
+					}
+					else if (("," + paths.get(i) + ",").indexOf(
+								 "," + child.getKey() + ",") >= 0) {
+						log.warn("cycle of members at " + child.getKey());
+						continue;
+					}
+					else {
+						path = paths.get(i) + "," + child.getKey();
+					}
+
+					nextFrontier.add(child.getKey());
+					nextPaths.add(path);
 
-		if (filter != null) {
-			if (pid == null) {
-				try {
-					members = listObjectsRI(filter);
-				} catch (Exception e) {
-					throw e;
+					// add only those satisfying the filter to the result list
+					if (child.getValue().booleanValue()) {
+						resultList.add(path);
+					}
 				}
 			}
-			else {
-				// to be implemented
-				members = listMembers(pid, filter);
-			}
-		}
 
-		// add only those satisfying the filter to the result list
-		for (String member : members) {
-			resultList.add(member);
+			frontier = nextFrontier;
+			paths = nextPaths;
 		}
+		
+		return (String []) resultList.toArray(new String [0]);
+	}
 
-		while (! queue.isEmpty()) {
-			nextPID = queue.remove();
-			parentPath = pathMap.get(nextPID);
-
-			members = listMembers(nextPID, null);
+	/**
+	 * Lists the members of a set of objects, one level of the walk of
+	 * {@link #listDescendantsRI}. All the members are listed, so that the
+	 * walk can go on below them. With a filter, the members satisfying
+	 * it are listed by a second query with the filter appended, as
+	 * {@link #listMembers} does, so that the filter is never nested in
+	 * an optional group.
+	 *
+	 * @param parents pids of the objects
+	 * @param filter filter condition applied - null if there is no filter
+	 * @return map of the pid of each object with members to the pids of
+	 * its members, in resource index order, each mapped to whether it
+	 * satisfies the filter
+	 */
+	private Map<String, Map<String, Boolean>> listLevel(List<String> parents,
+														String filter)
+		throws Exception
+	{
+		Map<String, Map<String, Boolean>> level;
+		Map<String, Boolean> children;
+		Set<String> matches = null;
+		String [] values;
+		String select;
+		String where;
+		String [] parts;
+
+		select = "$parentId $memberId";
+		where = "$s <info:fedora/fedora-system:def/relations-external#isMemberOfCollection> $parent . $parent <http://purl.org/dc/elements/1.1/identifier> $parentId . $s <http://purl.org/dc/elements/1.1/identifier> $memberId .";
+		values = parents.toArray(new String [0]);
 
-			for (String member : members) {
-				queue.add(member);
-				pathMap.put(member, parentPath + "," + member);
+		if (filter != null) {
+			matches = new HashSet<String>();
+			for (String row : searchIn(select, where + " " + filter, 
+									   "parentId", values)) {
+				matches.add(row);
 			}
+		}
 
-			if (filter != null) {
-				members = listMembers(nextPID, filter);
+		level = new HashMap<String, Map<String, Boolean>>();
+
+		for (String row : searchIn(select, where, "parentId", values)) {
+			parts = row.split(",", -1);
+			if (parts.length < 2) {
+				continue;
 			}
 
-			// add only those satisfying the filter to the result list			
-			for (String member : members) {			  
-				resultList.add(parentPath + "," + member);
+			children = level.get(parts[0]);
+			if (children == null) {
+				children = new LinkedHashMap<String, Boolean>();
+				level.put(parts[0], children);
 			}
+
+			children.put(parts[1], 
+						 Boolean.valueOf(matches == null || 
+										 matches.contains(row)));
 		}
-		
-		return (String []) resultList.toArray(new String [0]);
+
+		return level;
 	}
 
 	/**
@@ -371,12 +1109,24 @@ public abstract class FedoraConnector {
 	 */
 	public String [] listObjectsRI(String filter) throws Exception
 	{
-		String response = "";
+		return listObjectsRI(filter, null);
+	}
+
+	/**
+	 * Gets a list of first-level objects in Fedora repository through
+	 * resource index, in the order and range given by the solution
+	 * modifiers appended to the query.
+	 *
+	 * @param filter filter condition applied - null if there is no filter
+	 * @param modifiers <code>order by</code>, <code>limit</code> and 
+	 * <code>offset</code> clauses - null if there are none
+	 */
+	public String [] listObjectsRI(String filter, String modifiers) 
+		throws Exception
+	{
 		String query;
-		String line;
-		int i;
 		List<String> list = new ArrayList<String>();
-		String url;
+		TupleIterator tuples;
 
 		query = "SELECT $id from <#ri> {$s <http://purl.org/dc/elements/1.1/identifier> $id OPTIONAL { $s <info:fedora/fedora-system:def/relations-external#isMemberOfCollection> $parent } . FILTER (!bound($parent))";
 
@@ -386,20 +1136,20 @@ public abstract class FedoraConnector {
 
 		query += "}";
 
+		if (modifiers != null) {
+			query += " " + modifiers;
+		}
+
 		log.info(query);
 
 		try {
-			url = baseURL + "/risearch?type=tuples&flush=true&lang=sparql&format=CSV&query=" + URLEncoder.encode(query, "UTF-8");
-			response = postMethod(url);
-
-			BufferedReader reader =
-				new BufferedReader(new StringReader(response));
-			// skip header
-			line = reader.readLine();
-
-			list = new ArrayList<String>();
-			while ((line = reader.readLine()) != null) {
-				list.add(line);
+			tuples = searchTuples(query, "sparql");
+			try {
+				while (tuples.hasNext()) {
+					list.add(tuples.next()[0]);
+				}
+			} finally {
+				tuples.close();
 			}
 		} catch (Exception e) {
 			// e.printMessage();
@@ -420,54 +1170,16 @@ public abstract class FedoraConnector {
 	 * @return list of the objects that satisfy the condition
 	 */
 	public String [] filterObjects(String [] list, String filter)
+		throws Exception
 	{
-		String response = "";
-		String query;
-		String line;
-		int i;
-		List<String> resultList;
-		String url;
-
-		query = "select $t from <#ri> { $s <http://purl.org/dc/elements/1.1/identifier> $t . FILTER (";
-		
-		for (i = 0; i < list.length; ++i) {
-			if (i > 0) {
-				query += " || ";
-			}
-			// exact match
-			query += "regex($t, '^" + list[i] + "$')";
-		}
-
-		query += ")";
+		String where;
 
+		where = "$s <http://purl.org/dc/elements/1.1/identifier> $t .";
 		if (filter != null) {
-			query += " " + filter;
+			where += " " + filter;
 		}
 
-		query += "}";
-
-		resultList = new ArrayList<String>();
-
-		log.info(query);
-
-		try {
-			url = baseURL + "/risearch?type=tuples&flush=true&lang=sparql&format=CSV&query=" + URLEncoder.encode(query, "UTF-8");
-			response = postMethod(url);
-
-			BufferedReader reader =
-				new BufferedReader(new StringReader(response));
-			// skip header
-			line = reader.readLine();
-
-			while ((line = reader.readLine()) != null) {
-				resultList.add(line);
-			}
-		} catch (Exception e) {
-			 e.printStackTrace();
-			 log.error("failed to list objects!", e);
-		}
-		
-		return  (String []) resultList.toArray(new String[0]);
+		return searchIn("$t", where, "t", list);
 	}
 
 	/**
@@ -546,15 +1258,45 @@ public abstract class FedoraConnector {
 	 * @param filter filter condition applied - null if there is no filter
 	 * @return list of pid of the members that satisfy the filter condition
 	 */
-	public String [] listMembers(String pid, String filter)
+	public String [] listMembers(final String pid, final String filter)
+	{
+		return listMembers(pid, filter, null);
+	}
+
+	/**
+	 * Lists members of the collection represented by the pid, in the 
+	 * order and range given by the solution modifiers appended to the
+	 * query.
+	 *
+	 * @param pid pid of the object
+	 * @param filter filter condition applied - null if there is no filter
+	 * @param modifiers <code>order by</code>, <code>limit</code> and 
+	 * <code>offset</code> clauses - null if there are none
+	 * @return list of pid of the members that satisfy the filter condition
+	 */
+	public String [] listMembers(final String pid, final String filter,
+								 final String modifiers)
+	{
+		return coalesce(pid, "listMembers " + filter + " " + modifiers,
+			hedged(LatencyTracker.MEMBERS, new Callable<String []>() {
+				public String [] call() {
+					return fetchMembers(pid, filter, modifiers);
+				}
+			}));
+	}
+
+	/**
+	 * Runs the resource index query of {@link #listMembers}.
+	 */
+	private String [] fetchMembers(String pid, String filter, 
+								   String modifiers)
 	{
 		String predicate;
 		List<String> list = null;
 		String object;
 		String query;
-		String url;
-		String response = "";
 		String line;
+		TupleIterator tuples;
 
 		if (pid != null) {
 			// member of pid
@@ -571,22 +1313,25 @@ public abstract class FedoraConnector {
 
 		query += "}";
 
+		if (modifiers != null) {
+			query += " " + modifiers;
+		}
+
+		list = new ArrayList<String>();
+
 		try {
-			url = baseURL + "/risearch?type=tuples&flush=true&lang=sparql&format=CSV&query=" + URLEncoder.encode(query, "UTF-8");
-
-			response = postMethod(url);
-			BufferedReader reader =
-				new BufferedReader(new StringReader(response));
-			// skip header
-			line = reader.readLine();
-
-			list = new ArrayList<String>();
-			while ((line = reader.readLine()) != null) {
-				if (line.startsWith(Constants.FEDORA.uri)) {
-					line = line.substring(Constants.FEDORA.uri.length());
-					list.add(line);
-					log.debug(line);
+			tuples = searchTuples(query, "sparql", LatencyTracker.MEMBERS);
+			try {
+				while (tuples.hasNext()) {
+					line = tuples.next()[0];
+					if (line.startsWith(Constants.FEDORA.uri)) {
+						line = line.substring(Constants.FEDORA.uri.length());
+						list.add(line);
+						log.debug(line);
+					}
 				}
+			} finally {
+				tuples.close();
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -596,6 +1341,86 @@ public abstract class FedoraConnector {
 		return list.toArray(new String [0]);
 	}
 
+	/**
+	 * Lists the children of a digital object together with the UUID
+	 * stored in their jcr:uuid property, all in one resource index query.
+	 * If pid is null, the top-level objects (those not member of any
+	 * collection) are listed, as in {@link #listObjectsRI}.
+	 *
+	 * @param pid pid of the parent object, or null for top-level objects
+	 * @return list of the <code>Member</code> objects, or null if the
+	 * resource index could not be queried
+	 */
+	public Member [] listChildren(final String pid)
+	{
+		return coalesce(pid, "listChildren",
+			hedged(LatencyTracker.MEMBERS, new Callable<Member []>() {
+				public Member [] call() {
+					return fetchChildren(pid);
+				}
+			}));
+	}
+
+	/**
+	 * Runs the resource index query of {@link #listChildren}.
+	 */
+	private Member [] fetchChildren(String pid)
+	{
+		Map<String, Member> map;
+		String query;
+		String [] tuple;
+		String memberPID;
+		String uuid;
+		String [] parts;
+		TupleIterator tuples;
+
+		if (pid != null) {
+			query = "SELECT $s $uuid from <#ri> {$s <info:fedora/fedora-system:def/relations-external#isMemberOfCollection> $parent . $parent <http://purl.org/dc/elements/1.1/identifier> '" + pid + "' . OPTIONAL { $s <http://www.jcp.org/jcr/1.0/uuid> $uuid }}";
+		}
+		else {
+			query = "SELECT $s $uuid from <#ri> {$s <http://purl.org/dc/elements/1.1/identifier> $id OPTIONAL { $s <info:fedora/fedora-system:def/relations-external#isMemberOfCollection> $parent } . OPTIONAL { $s <http://www.jcp.org/jcr/1.0/uuid> $uuid } . FILTER (!bound($parent))}";
+		}
+
+		log.info(query);
+
+		map = new LinkedHashMap<String, Member>();
+
+		try {
+			tuples = searchTuples(query, "sparql", LatencyTracker.MEMBERS);
+			try {
+				while (tuples.hasNext()) {
+					tuple = tuples.next();
+					if (! tuple[0].startsWith(Constants.FEDORA.uri)) {
+						continue;
+					}
+
+					memberPID = tuple[0].substring(Constants.FEDORA.uri.length());
+					uuid = null;
+					if (tuple.length > 1) {
+						// type, number of values, definitionID, modCount, value
+						parts = tuple[1].split("%57");
+						if (parts.length > 4) {
+							uuid = parts[4];
+						}
+					}
+
+					if (! map.containsKey(memberPID)) {
+						map.put(memberPID, new Member(memberPID, uuid));
+					}
+				}
+			} finally {
+				tuples.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			log.error("failed to list children!", e);
+
+			return null;
+		}
+
+		return map.values().toArray(new Member [0]);
+	}
+
 	/**
 	 * Adds a member of the collection represented by the pid.
 	 *
@@ -616,6 +1441,9 @@ public abstract class FedoraConnector {
 			e.printStackTrace();
 			log.error("failed to add member!", e);
 		}
+
+		forgetInFlight(pid);
+		forgetInFlight(cpid);
 	}
 
 	/**
@@ -639,6 +1467,8 @@ public abstract class FedoraConnector {
 			e.printStackTrace();
 			log.error("failed to add relationship!", e);
 		}
+
+		forgetInFlight(pid);
 	}
 
 	/**
@@ -650,12 +1480,24 @@ public abstract class FedoraConnector {
 	 * @param uri URI of the predicate
 	 * @return property value as literal string
 	 */
-	public String getProperty(String pid, String uri)
+	public String getProperty(final String pid, final String uri)
+	{
+		return coalesce(pid, "getProperty " + uri,
+			hedged(LatencyTracker.PROPERTY, new Callable<String>() {
+				public String call() {
+					return fetchProperty(pid, uri);
+				}
+			}));
+	}
+
+	/**
+	 * Runs the resource index query of {@link #getProperty}.
+	 */
+	private String fetchProperty(String pid, String uri)
 	{
 		String query;
-		String url;
-		String response = "";
-		String line = "";
+		String line = null;
+		TupleIterator tuples;
 
 		query = "select $t from <#ri> where <" + PID.toURI(pid) + 
 			"> <" + uri + "> $t";
@@ -663,17 +1505,15 @@ public abstract class FedoraConnector {
 		log.info(query);
 
 		try {
-			url = baseURL + "/risearch?type=tuples&flush=true&lang=itql&format=CSV&query=" + URLEncoder.encode(query, "UTF-8");
-
-			response = postMethod(url);
-			BufferedReader reader =
-				new BufferedReader(new StringReader(response));
-			// skip header
-			reader.readLine();
-
-			// one line only
-			line = reader.readLine();
-			
+			tuples = searchTuples(query, "itql", LatencyTracker.PROPERTY);
+			try {
+				// one line only
+				if (tuples.hasNext()) {
+					line = tuples.next()[0];
+				}
+			} finally {
+				tuples.close();
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			log.error("failed to add data stream!", e);
@@ -707,6 +1547,8 @@ public abstract class FedoraConnector {
 		} catch (Exception e) {
 			log.error("failed to delete relationship!", e);
 		}
+
+		forgetInFlight(pid);
 	}
 
 	/**
@@ -715,35 +1557,46 @@ public abstract class FedoraConnector {
 	 * @param pid pid of the object
 	 * @return list of property names
 	 */
-	public String [] listProperties(String pid)
+	public String [] listProperties(final String pid)
+	{
+		return coalesce(pid, "listProperties",
+			hedged(LatencyTracker.PROPERTY, new Callable<String []>() {
+				public String [] call() {
+					return fetchPropertyNames(pid);
+				}
+			}));
+	}
+
+	/**
+	 * Runs the resource index query of {@link #listProperties}.
+	 */
+	private String [] fetchPropertyNames(String pid)
 	{
 		List<String> list = null;
 		String query;
-		String url;
-		String response = "";
 		String line;
+		TupleIterator tuples;
 
 		query = "select $s from <#ri> where <" + PID.toURI(pid) + "> $s $t";
 
+		list = new ArrayList<String>();
+
 		try {
-			url = baseURL + "/risearch?type=tuples&flush=true&lang=itql&format=CSV&query=" + URLEncoder.encode(query, "UTF-8");
-
-			response = postMethod(url);
-			BufferedReader reader =
-				new BufferedReader(new StringReader(response));
-			// skip header
-			line = reader.readLine();
-
-			list = new ArrayList<String>();
-			while ((line = reader.readLine()) != null) {
-				if (line.startsWith("info:fedora/")
-					// || line.startsWith("http://purl.org/dc/elements/1.1/")
-					) {
-					// ignore Fedora and DC predicates
-					continue;
-				}
+			tuples = searchTuples(query, "itql", LatencyTracker.PROPERTY);
+			try {
+				while (tuples.hasNext()) {
+					line = tuples.next()[0];
+					if (line.startsWith("info:fedora/")
+						// || line.startsWith("http://purl.org/dc/elements/1.1/")
+						) {
+						// ignore Fedora and DC predicates
+						continue;
+					}
 
-				list.add(line);
+					list.add(line);
+				}
+			} finally {
+				tuples.close();
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -753,6 +1606,67 @@ public abstract class FedoraConnector {
 		return list.toArray(new String [0]);
 	}
 
+	/**
+	 * Gets all the properties (RELS-EXT and DC triples) of an object
+	 * in a single resource index query. Only the first value of each
+	 * predicate is kept, as in {@link #getProperty}.
+	 *
+	 * @param pid pid of the object
+	 * @return map from predicate URI to property value as literal string,
+	 * or null if the resource index could not be queried
+	 */
+	public Map<String, String> getProperties(final String pid)
+	{
+		return coalesce(pid, "getProperties",
+			hedged(LatencyTracker.PROPERTY, new Callable<Map<String, String>>() {
+				public Map<String, String> call() {
+					return fetchProperties(pid);
+				}
+			}));
+	}
+
+	/**
+	 * Runs the resource index query of {@link #getProperties}.
+	 */
+	private Map<String, String> fetchProperties(String pid)
+	{
+		Map<String, String> map;
+		String query;
+		String [] tuple;
+		TupleIterator tuples;
+
+		query = "select $s $t from <#ri> where <" + PID.toURI(pid) + "> $s $t";
+
+		log.info(query);
+
+		map = new LinkedHashMap<String, String>();
+
+		try {
+			tuples = searchTuples(query, "itql", LatencyTracker.PROPERTY);
+			try {
+				while (tuples.hasNext()) {
+					tuple = tuples.next();
+					if (tuple.length < 2) {
+						continue;
+					}
+
+					if (! map.containsKey(tuple[0])) {
+						map.put(tuple[0], tuple[1]);
+					}
+				}
+			} finally {
+				tuples.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			log.error("failed to get properties!", e);
+
+			return null;
+		}
+
+		return map;
+	}
+
 	/**
 	 * Tests if the property exists.
 	 *
@@ -763,24 +1677,17 @@ public abstract class FedoraConnector {
 	public boolean existsProperty(String pid, String predicate)
 	{
 		String query;
-		String url;
-		String response = "";
-		String line;
+		TupleIterator tuples;
 
 		query = "select $s from <#ri> where <" + PID.toURI(pid) + "> <" +
 			predicate + "> $s";
 
 		try {
-			url = baseURL + "/risearch?type=tuples&flush=true&lang=itql&format=CSV&query=" + URLEncoder.encode(query, "UTF-8");
-
-			response = postMethod(url);
-			BufferedReader reader =
-				new BufferedReader(new StringReader(response));
-			// skip header
-			line = reader.readLine();
-
-			if (reader.readLine() != null) {
-				return true;
+			tuples = searchTuples(query, "itql", LatencyTracker.PROPERTY);
+			try {
+				return tuples.hasNext();
+			} finally {
+				tuples.close();
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -796,36 +1703,177 @@ public abstract class FedoraConnector {
 	 *
 	 * @param query the query string
 	 * @param language "sparql" or "itql"
-	 * @return list of pid of the objects returned by the query
+	 * @return list of pid of the objects returned by the query; the
+	 * values of a tuple with several columns are joined by commas
 	 */
 	public String [] searchObjects(String query, String language)
+	{
+		try {
+			return search(query, language);
+		} catch (Exception e) {
+			log.error("failed to search resource index!", e);
+		}
+
+		return new String [0];
+	}
+
+	/**
+	 * Runs a resource index query, hedged and bounded by the timeout of
+	 * searches, and fails if it does not complete.
+	 *
+	 * @param query the query string
+	 * @param language "sparql" or "itql"
+	 * @return rows of the query, the values of a row joined by commas
+	 */
+	private String [] search(final String query, final String language)
+		throws Exception
+	{
+		String [] result;
+
+		result = callHedged(LatencyTracker.SEARCH, 
+			new Callable<String []>() {
+				public String [] call() throws Exception {
+					return fetchSearch(query, language);
+				}
+			});
+
+		if (result == null) {
+			throw new Exception("resource index query timed out");
+		}
+
+		return result;
+	}
+
+	/**
+	 * Runs the resource index query of {@link #search}.
+	 */
+	private String [] fetchSearch(String query, String language)
+		throws Exception
 	{
 		List<String> list = null;
-		String url;
-		String response = "";
-		String line;
+		StringBuilder line;
+		String [] tuple;
+		TupleIterator tuples;
+
+		list = new ArrayList<String>();
+
+		tuples = searchTuples(query, language);
+		try {
+			while (tuples.hasNext()) {
+				tuple = tuples.next();
+				line = new StringBuilder(tuple[0]);
+				for (int i = 1; i < tuple.length; ++i) {
+					line.append(',').append(tuple[i]);
+				}
+				list.add(line.toString());
+			}
+		} finally {
+			tuples.close();
+		}
 
+		return list.toArray(new String [0]);
+	}
+
+	/**
+	 * Runs a SPARQL query restricted to a set of values of one of its
+	 * variables. The values are tested by exact comparison, in batches
+	 * of at most {@link #MEMBERSHIP_BATCH_SIZE} so that no query grows
+	 * with the size of the set. The batches run in parallel on the pool
+	 * of asynchronous calls, so this method must not be called from
+	 * that pool. Unlike {@link #searchObjects}, it fails if any batch
+	 * fails rather than returning the rows of the others.
+	 *
+	 * @param select variables selected, such as <code>"$t"</code>
+	 * @param where triple patterns and filters binding the variable
+	 * @param variable name of the variable restricted, without '$'
+	 * @param values values of the variable allowed
+	 * @return rows of the query, batch after batch, the values of a row
+	 * joined by commas
+	 * @throws Exception if a batch fails or times out
+	 */
+	public String [] searchIn(String select, String where, String variable,
+							  String [] values) throws Exception
+	{
+		List<String> set;
+		List<Future<String []>> futures;
+		List<String> result;
+		String [] rows;
+		int batches;
+
+		// each value is tested once
+		set = new ArrayList<String>(
+			new LinkedHashSet<String>(Arrays.asList(values)));
+		if (set.isEmpty()) {
+			return new String [0];
+		}
+
+		batches = (set.size() + MEMBERSHIP_BATCH_SIZE - 1) / 
+			MEMBERSHIP_BATCH_SIZE;
+		log.debug("testing " + set.size() + " values of $" + variable + 
+				  " in " + batches + " queries");
+		if (batches == 1) {
+			return search(getMembershipQuery(select, where, variable, set), 
+						  "sparql");
+		}
+
+		futures = new ArrayList<Future<String []>>(batches);
+		for (int i = 0; i < set.size(); i += MEMBERSHIP_BATCH_SIZE) {
+			final String query = getMembershipQuery(select, where, variable,
+				set.subList(i, Math.min(i + MEMBERSHIP_BATCH_SIZE, 
+										set.size())));
+
+			futures.add(async(new Callable<String []>() {
+					public String [] call() throws Exception {
+						return search(query, "sparql");
+					}
+				}));
+		}
+
+		result = new ArrayList<String>();
 		try {
-			url = baseURL + "/risearch?type=tuples&flush=true&lang=" + 
-				language + "&format=CSV&query=" + 
-				URLEncoder.encode(query, "UTF-8");
+			for (Future<String []> future : futures) {
+				try {
+					rows = future.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+				result.addAll(Arrays.asList(rows));
+			}
+		} finally {
+			// the other batches are of no use once one failed
+			for (Future<String []> future : futures) {
+				future.cancel(true);
+			}
+		}
+
+		return result.toArray(new String [0]);
+	}
 
-			response = postMethod(url);
-			BufferedReader reader =
-				new BufferedReader(new StringReader(response));
-			// skip header
-			line = reader.readLine();
+	/**
+	 * Builds the query of one batch of {@link #searchIn}.
+	 */
+	private static String getMembershipQuery(String select, String where,
+											 String variable,
+											 List<String> values)
+	{
+		StringBuilder query = new StringBuilder();
 
-			list = new ArrayList<String>();
-			while ((line = reader.readLine()) != null) {
-				list.add(line);
+		query.append("select ").append(select).append(" from <#ri> { ");
+		query.append(where).append(" FILTER (");
+		for (int i = 0; i < values.size(); ++i) {
+			if (i > 0) {
+				query.append(" || ");
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			log.error("failed to search resource index!", e);
+			query.append('$').append(variable).append(" = '");
+			query.append(values.get(i).replace("\\", "\\\\").replace("'", "\\'"));
+			query.append('\'');
 		}
+		query.append(") }");
 
-		return list.toArray(new String [0]);
+		return query.toString();
 	}
 
 	/**
@@ -15,7 +15,10 @@
  */
 package edu.northwestern.jcr.adapter.fedora.persistence;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -30,10 +33,12 @@ import fedora.server.types.gen.FieldSearchResult;
 import fedora.server.types.gen.ObjectFields;
 import fedora.server.types.gen.MIMETypedStream;
 import fedora.server.types.gen.DatastreamDef;
+import fedora.server.types.gen.Datastream;
 
 import fedora.server.management.FedoraAPIM;
 import fedora.common.Constants;
 
+import org.apache.axis.client.Stub;
 import org.apache.axis.types.NonNegativeInteger;
 
 import org.slf4j.Logger;
@@ -53,6 +58,27 @@ public class FedoraConnectorAPIX extends FedoraConnector {
 	private static Logger log = 
 		LoggerFactory.getLogger(FedoraConnectorREST.class);
 
+	/**
+	 * Gets an API-A stub whose calls time out after the timeout of a
+	 * class of operations. Each call creates a new stub, so the timeout
+	 * applies to this caller only.
+	 *
+	 * @param operation class of the operation, as in
+	 * {@link LatencyTracker}
+	 * @return the stub
+	 */
+	private FedoraAPIA getAPIA(String operation) throws Exception
+	{
+		FedoraAPIA apia = fc.getAPIA();
+
+		if (apia instanceof Stub) {
+			((Stub) apia).setTimeout((int)
+									 latencyTracker.getTimeout(operation));
+		}
+
+		return apia;
+	}
+
 	/**
 	 * Creates a dummy Fedora object with default attributes.
 	 * @param pid pid the new object
@@ -67,12 +93,14 @@ public class FedoraConnectorAPIX extends FedoraConnector {
 			System.out.println("ingesting " + pid);
 
 			// make the SOAP call on API-M using the connection stub
-			pid = fc.getAPIM().ingest(foxml.getBytes(), 
+			fc.getAPIM().ingest(foxml.getBytes(), 
 									  Constants.FOXML1_1.uri, null);
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.err.println("failed to insert object!");
 		}
+
+		forgetInFlight(pid);
 	}
 
 	/**
@@ -89,6 +117,8 @@ public class FedoraConnectorAPIX extends FedoraConnector {
 			e.printStackTrace();
 			System.err.println("failed to delete digital object!");
 		}
+
+		forgetInFlight(pid);
 	}
 
 	/**
@@ -115,7 +145,7 @@ public class FedoraConnectorAPIX extends FedoraConnector {
 
 		try {
 			FieldSearchResult result =
-				fc.getAPIA().findObjects(resultFields, 
+				getAPIA(LatencyTracker.SEARCH).findObjects(resultFields, 
 										 new NonNegativeInteger(""
 																+ 128),
 										 query);
@@ -131,7 +161,7 @@ public class FedoraConnectorAPIX extends FedoraConnector {
 
 				if (result.getListSession() != null &&
 					result.getListSession().getToken() != null) {
-					result = fc.getAPIA().resumeFindObjects(result.getListSession().getToken());
+					result = getAPIA(LatencyTracker.SEARCH).resumeFindObjects(result.getListSession().getToken());
 				}
 				else {
 					result = null;
@@ -169,7 +199,7 @@ public class FedoraConnectorAPIX extends FedoraConnector {
 	 * @param pid pid of the object
 	 * @return list of the <code>DataStream</code> objects
 	 */
-	public DataStream [] listDataStreams(String pid)
+	protected DataStream [] fetchDataStreams(String pid)
 	{
 		DatastreamDef [] dsDef = null;
 		DataStream [] dsList;
@@ -177,7 +207,7 @@ public class FedoraConnectorAPIX extends FedoraConnector {
 		int i;
 
 		try {
-			dsDef = fc.getAPIA().listDatastreams(pid, null);
+			dsDef = getAPIA(LatencyTracker.DATASTREAM).listDatastreams(pid, null);
 		} catch (Exception e) {
 			System.err.println("pid: " + pid);
 			System.err.println("ERROR: " + e.getClass().getName()
@@ -212,18 +242,66 @@ public class FedoraConnectorAPIX extends FedoraConnector {
 	 * @param dsID id of the datastream
 	 * @return byte content of the data stream
 	 */
-	public byte[] getDataStream(String pid, String dsID)
+	protected byte[] fetchDataStream(String pid, String dsID)
 	{
 		MIMETypedStream ds = null;
 
 		try {
-			ds = fc.getAPIA().getDatastreamDissemination(pid, dsID, null);
+			ds = getAPIA(LatencyTracker.DATASTREAM).getDatastreamDissemination(pid, dsID, null);
 		} catch (Exception e) {
-			
+			log.error("failed to get data stream!", e);
+			return null;
 		}
 
 		return ds.getStream();
 	}
+	/**
+	 * Opens the data stream content for reading. API-A returns the
+	 * dissemination as a whole, so the content is held in memory.
+	 *
+	 * @param pid pid of the object
+	 * @param dsID id of the datastream
+	 * @return stream of the data stream content, or null if it cannot
+	 * be retrieved
+	 */
+	public DataStreamInputStream openDataStream(String pid, String dsID)
+	{
+		byte [] bytes = getDataStream(pid, dsID);
+
+		if (bytes == null) {
+			return null;
+		}
+
+		return new DataStreamInputStream(new ByteArrayInputStream(bytes),
+										 bytes.length);
+	}
+
+	/**
+	 * Returns the size of the data stream content recorded by API-M.
+	 *
+	 * @param pid pid of the object
+	 * @param dsID id of the datastream
+	 * @return size in bytes, or -1 if it cannot be determined
+	 */
+	public long getDataStreamSize(String pid, String dsID)
+	{
+		Datastream ds;
+
+		try {
+			ds = fc.getAPIM().getDatastream(pid, dsID, null);
+		} catch (Exception e) {
+			log.warn("failed to get data stream size!");
+			return -1;
+		}
+
+		if (ds == null || ds.getSize() <= 0) {
+			// size is not always recorded (e.g. external content)
+			return -1;
+		}
+
+		return ds.getSize();
+	}
+
 
 	/**
 	 * Tests if a given data stream already exists in the Fedora repository.
@@ -264,6 +342,8 @@ public class FedoraConnectorAPIX extends FedoraConnector {
 			e.printStackTrace();
 			System.err.println("failed to update DC stream!");
 		}
+
+		forgetInFlight(pid);
 	}
 
 	/**
@@ -279,8 +359,28 @@ public class FedoraConnectorAPIX extends FedoraConnector {
 							  String mimeType, String fileName)
 	{
 		try {
-			String dsLocation = fc.uploadFile(new File(fileName));
-			System.out.println("filed uploaded at " + dsLocation);
+			addUploadedDataStream(pid, dsID, mimeType, new File(fileName));
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("failed to add data stream!");
+		}
+	}
+
+	/**
+	 * Uploads a file and adds it as a data stream.
+	 *
+	 * @param pid pid of the object
+	 * @param dsID id of the data stream
+	 * @param mimeType MIME type of the data stream content
+	 * @param file the file storing the data stream content
+	 */
+	private void addUploadedDataStream(String pid, String dsID, 
+									   String mimeType, File file)
+		throws Exception
+	{
+		try {
+			String dsLocation = fc.uploadFile(file);
+			log.debug("filed uploaded at " + dsLocation);
 
 			if (mimeType == null) {
 				// set default MIME type
@@ -301,12 +401,46 @@ public class FedoraConnectorAPIX extends FedoraConnector {
 									   null,
 									   null,
 									   null);
+		} finally {
+			forgetInFlight(pid);
+		}
+	}
+	/**
+	 * Adds a data stream. API-M takes the content from an uploaded file,
+	 * so the stream is first copied into a temporary file of its own.
+	 *
+	 * @param pid pid of the object
+	 * @param dsID id of the data stream
+	 * @param mimeType MIME type of the data stream content
+	 * @param in content of the data stream
+	 * @param length length of the content in bytes, or -1 if unknown
+	 * @throws IOException if the content could not be uploaded or Fedora
+	 * did not add the data stream
+	 */
+	public void addDataStream(String pid, String dsID, String mimeType,
+							  InputStream in, long length)
+		throws IOException
+	{
+		File file = null;
+
+		try {
+			file = spoolToTempFile(in);
+			addUploadedDataStream(pid, dsID, mimeType, file);
+		} catch (IOException e) {
+			throw e;
 		} catch (Exception e) {
-			e.printStackTrace();
-			System.err.println("failed to add data stream!");
+			IOException ioe = new IOException("failed to add data stream " +
+											  dsID + " of " + pid);
+			ioe.initCause(e);
+			throw ioe;
+		} finally {
+			if (file != null) {
+				file.delete();
+			}
 		}
 	}
 
+
 	/**
 	 * Deletes a data stream.
 	 * Wrapper of purgeDatastream in Fedora API-M
@@ -327,5 +461,7 @@ public class FedoraConnectorAPIX extends FedoraConnector {
 			e.printStackTrace();
 			System.err.println("failed to delete data stream!");
 		}
+
+		forgetInFlight(pid);
 	}
 }
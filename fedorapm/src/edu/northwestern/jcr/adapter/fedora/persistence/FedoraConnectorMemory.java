@@ -0,0 +1,710 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import fedora.common.Constants;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.northwestern.jcr.adapter.fedora.persistence.MemoryResourceIndex.Term;
+
+/**
+ * <p><code>FedoraConnectorMemory</code> keeps digital objects, their data
+ * streams and their resource index triples in memory, so that the
+ * persistence manager and the query classes can be run without a Fedora
+ * server. Resource index searches are answered by a
+ * {@link MemoryResourceIndex} and read through the same CSV parsing as
+ * the responses of a real server.</p>
+ *
+ * <p>Every call waits for a fixed latency, and the bytes of every
+ * response and of every data stream written are paced to a fixed
+ * bandwidth, so that performance work can be measured offline and
+ * reproducibly. They are read from fedora.properties:</p>
+ * <ul>
+ * <li><code>memory.latency</code> - latency of each call in
+ * milliseconds</li>
+ * <li><code>memory.bandwidth</code> - bandwidth in bytes per second, 0
+ * for no limit</li>
+ * </ul>
+ *
+ * <p>The connector is used when fedora.properties sets
+ * <code>connector=memory</code>. Nothing is kept once the JVM exits.</p>
+ *
+ * @author Xin Xiang
+ */
+public class FedoraConnectorMemory extends FedoraConnector {
+
+	/** log4j logger */
+	private static Logger log =
+		LoggerFactory.getLogger(FedoraConnectorMemory.class);
+
+	/** namespace of Dublin Core predicates */
+	private final static String DC_NS = "http://purl.org/dc/elements/1.1/";
+
+	/** namespace of Fedora model predicates */
+	private final static String MODEL_NS =
+		"info:fedora/fedora-system:def/model#";
+
+	/** predicate relating a member to its collection */
+	private final static String MEMBER_OF =
+		"info:fedora/fedora-system:def/relations-external#isMemberOfCollection";
+
+	/** Dublin Core field in the DC data stream */
+	private final static Pattern DC_FIELD =
+		Pattern.compile("<dc:(\\w+)>(.*?)</dc:\\1>", Pattern.DOTALL);
+
+	/**
+	 * Data stream of an object.
+	 */
+	private static class MemoryDataStream {
+		/** label */
+		final String label;
+
+		/** MIME type */
+		final String mimeType;
+
+		/** content, null if generated from the triples */
+		final byte [] content;
+
+		MemoryDataStream(String label, String mimeType, byte [] content)
+		{
+			this.label = label;
+			this.mimeType = mimeType;
+			this.content = content;
+		}
+	}
+
+	/** map pid to the data streams of the object, by data stream id */
+	private final Map<String, Map<String, MemoryDataStream>> objectMap =
+		new LinkedHashMap<String, Map<String, MemoryDataStream>>();
+
+	/** triples of the objects */
+	private final MemoryResourceIndex resourceIndex =
+		new MemoryResourceIndex();
+
+	/** latency of each call in milliseconds */
+	private volatile long latency;
+
+	/** bandwidth in bytes per second, 0 for no limit */
+	private volatile long bandwidth;
+
+	/**
+	 * Creates a new <code>FedoraConnectorMemory</code> instance with the
+	 * latency and bandwidth given in fedora.properties, if any.
+	 */
+	public FedoraConnectorMemory()
+	{
+		super();
+
+		Properties props = new Properties();
+		String s;
+
+		try {
+			props.load(new FileInputStream("fedora.properties"));
+		} catch (IOException e) {
+			return;
+		}
+
+		s = props.getProperty("memory.latency");
+		if (s != null && ! s.equals("")) {
+			try {
+				latency = Long.parseLong(s.trim());
+			} catch (NumberFormatException e) {
+				log.error("invalid latency, using default");
+			}
+		}
+
+		s = props.getProperty("memory.bandwidth");
+		if (s != null && ! s.equals("")) {
+			try {
+				bandwidth = Long.parseLong(s.trim());
+			} catch (NumberFormatException e) {
+				log.error("invalid bandwidth, using default");
+			}
+		}
+	}
+
+	/**
+	 * Creates a new <code>FedoraConnectorMemory</code> instance.
+	 *
+	 * @param latency latency of each call in milliseconds
+	 * @param bandwidth bandwidth in bytes per second, 0 for no limit
+	 */
+	public FedoraConnectorMemory(long latency, long bandwidth)
+	{
+		super();
+
+		this.latency = latency;
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * Sets the latency of each call.
+	 *
+	 * @param latency latency in milliseconds
+	 */
+	public void setLatency(long latency)
+	{
+		this.latency = latency;
+	}
+
+	/**
+	 * Sets the bandwidth.
+	 *
+	 * @param bandwidth bandwidth in bytes per second, 0 for no limit
+	 */
+	public void setBandwidth(long bandwidth)
+	{
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * Waits for the latency of a call.
+	 */
+	private void roundTrip()
+	{
+		sleep(latency * 1000000L);
+	}
+
+	/**
+	 * Waits for the time a number of bytes take at the bandwidth.
+	 */
+	private void transfer(long bytes)
+	{
+		long b = bandwidth;
+
+		if (b > 0) {
+			sleep(bytes * 1000000000L / b);
+		}
+	}
+
+	/**
+	 * Sleeps for a number of nanoseconds.
+	 */
+	private static void sleep(long nanos)
+	{
+		if (nanos <= 0) {
+			return;
+		}
+
+		try {
+			Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stream of a response, read at the bandwidth.
+	 */
+	private class PacedInputStream extends FilterInputStream {
+		PacedInputStream(byte [] bytes)
+		{
+			super(new ByteArrayInputStream(bytes));
+		}
+
+		public int read() throws IOException
+		{
+			int c = super.read();
+
+			if (c >= 0) {
+				transfer(1);
+			}
+
+			return c;
+		}
+
+		public int read(byte [] b, int off, int len) throws IOException
+		{
+			int n = super.read(b, off, len);
+
+			if (n > 0) {
+				transfer(n);
+			}
+
+			return n;
+		}
+	}
+
+	/**
+	 * Gets the URI of an object.
+	 */
+	private static String toURI(String pid)
+	{
+		return Constants.FEDORA.uri + pid;
+	}
+
+	/**
+	 * Runs the query against the triples in memory.
+	 */
+	protected TupleIterator searchTuples(String query, String language,
+										 String operation)
+		throws Exception
+	{
+		roundTrip();
+
+		return new TupleIterator(new PacedInputStream(resourceIndex.search(query, language)));
+	}
+
+	public void createObject(String pid) throws Exception
+	{
+		Map<String, MemoryDataStream> dataStreams;
+		byte [] dc;
+
+		roundTrip();
+
+		dc = ("<oai_dc:dc xmlns:oai_dc=\"http://www.openarchives.org/OAI/2.0/oai_dc/\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:schemaLocation=\"http://www.openarchives.org/OAI/2.0/oai_dc/ http://www.openarchives.org/OAI/2.0/oai_dc.xsd\">\n  <dc:identifier>" + escapeXML(pid) + "</dc:identifier>\n</oai_dc:dc>").getBytes("UTF-8");
+
+		synchronized (objectMap) {
+			if (objectMap.containsKey(pid)) {
+				log.warn("object already exists: " + pid);
+				return;
+			}
+
+			dataStreams = new LinkedHashMap<String, MemoryDataStream>();
+			dataStreams.put("DC", new MemoryDataStream("Dublin Core Record for this object", "text/xml", dc));
+			objectMap.put(pid, dataStreams);
+
+			resourceIndex.add(toURI(pid), MODEL_NS + "hasModel",
+							  new Term("info:fedora/fedora-system:FedoraObject-3.0", true));
+			resourceIndex.add(toURI(pid), MODEL_NS + "state",
+							  new Term(MODEL_NS + "Active", true));
+			indexDC(pid, dc);
+		}
+
+		forgetInFlight(pid);
+	}
+
+	public void deleteObject(String pid)
+	{
+		roundTrip();
+
+		synchronized (objectMap) {
+			if (objectMap.remove(pid) == null) {
+				log.warn("object not found: " + pid);
+				return;
+			}
+
+			// relationships of other objects to it are left
+			resourceIndex.removeAll(toURI(pid), null);
+		}
+
+		forgetInFlight(pid);
+	}
+
+	public String [] listObjects(String pattern) throws Exception
+	{
+		Pattern glob;
+		List<String> list = new ArrayList<String>();
+
+		roundTrip();
+
+		glob = Pattern.compile(("\\Q" + pattern + "\\E").replace("*", "\\E.*\\Q").replace("?", "\\E.\\Q"));
+
+		synchronized (objectMap) {
+			for (String pid : objectMap.keySet()) {
+				if (glob.matcher(pid).matches()) {
+					list.add(pid);
+				}
+			}
+		}
+
+		return list.toArray(new String [0]);
+	}
+
+	public boolean existsObject(String pid)
+	{
+		roundTrip();
+
+		synchronized (objectMap) {
+			return objectMap.containsKey(pid);
+		}
+	}
+
+	/**
+	 * Gets a data stream of an object.
+	 */
+	private MemoryDataStream getMemoryDataStream(String pid, String dsID)
+	{
+		Map<String, MemoryDataStream> dataStreams;
+
+		synchronized (objectMap) {
+			dataStreams = objectMap.get(pid);
+			return dataStreams == null ? null : dataStreams.get(dsID);
+		}
+	}
+
+	/**
+	 * Gets the content of a data stream, generating RELS-EXT from the
+	 * triples.
+	 */
+	private byte [] getContent(String pid, String dsID)
+	{
+		MemoryDataStream ds = getMemoryDataStream(pid, dsID);
+
+		if (ds == null) {
+			return null;
+		}
+
+		return ds.content != null ? ds.content : getRelsExt(pid);
+	}
+
+	protected DataStream [] fetchDataStreams(String pid)
+	{
+		Map<String, MemoryDataStream> dataStreams;
+		List<DataStream> list = new ArrayList<DataStream>();
+
+		roundTrip();
+
+		synchronized (objectMap) {
+			dataStreams = objectMap.get(pid);
+			if (dataStreams == null) {
+				return null;
+			}
+
+			for (Map.Entry<String, MemoryDataStream> entry : dataStreams.entrySet()) {
+				list.add(new DataStream(entry.getKey(),
+										entry.getValue().label,
+										entry.getValue().mimeType));
+			}
+		}
+
+		return list.toArray(new DataStream[0]);
+	}
+
+	protected byte[] fetchDataStream(String pid, String dsID)
+	{
+		byte [] content;
+
+		roundTrip();
+
+		content = getContent(pid, dsID);
+		if (content == null) {
+			return null;
+		}
+
+		transfer(content.length);
+
+		return content.clone();
+	}
+
+	public DataStreamInputStream openDataStream(String pid, String dsID)
+	{
+		byte [] content;
+
+		roundTrip();
+
+		content = getContent(pid, dsID);
+		if (content == null) {
+			return null;
+		}
+
+		return new DataStreamInputStream(new PacedInputStream(content),
+										 content.length);
+	}
+
+	public long getDataStreamSize(String pid, String dsID)
+	{
+		byte [] content;
+
+		roundTrip();
+
+		content = getContent(pid, dsID);
+
+		return content == null ? -1 : content.length;
+	}
+
+	public boolean existsDataStream(String pid, String dsID)
+	{
+		roundTrip();
+
+		return getMemoryDataStream(pid, dsID) != null;
+	}
+
+	public void modifyDCDataStream(String pid, byte [] bytes)
+	{
+		roundTrip();
+		transfer(bytes.length);
+
+		synchronized (objectMap) {
+			if (! objectMap.containsKey(pid)) {
+				log.warn("object not found: " + pid);
+				return;
+			}
+
+			objectMap.get(pid).put("DC", new MemoryDataStream("Dublin Core Record for this object", "text/xml", bytes.clone()));
+			indexDC(pid, bytes);
+		}
+
+		forgetInFlight(pid);
+	}
+
+	public void addDataStream(String pid, String dsID,
+							  String mimeType, String fileName)
+	{
+		InputStream in;
+
+		try {
+			in = new FileInputStream(fileName);
+		} catch (IOException e) {
+			log.error("failed to read " + fileName, e);
+			return;
+		}
+
+		try {
+			addDataStream(pid, dsID, mimeType, in, -1);
+		} catch (IOException e) {
+			log.error("failed to add data stream!", e);
+		}
+	}
+
+	public void addDataStream(String pid, String dsID, String mimeType,
+							  InputStream in, long length)
+		throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte [] buffer = new byte[8192];
+		int n;
+
+		roundTrip();
+
+		try {
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+
+		transfer(out.size());
+
+		synchronized (objectMap) {
+			if (! objectMap.containsKey(pid)) {
+				throw new IOException("object not found: " + pid);
+			}
+
+			objectMap.get(pid).put(dsID, new MemoryDataStream(dsID, mimeType, out.toByteArray()));
+		}
+
+		forgetInFlight(pid);
+	}
+
+	public void deleteDataStream(String pid, String dsID)
+	{
+		roundTrip();
+
+		synchronized (objectMap) {
+			if (objectMap.containsKey(pid)) {
+				objectMap.get(pid).remove(dsID);
+			}
+		}
+
+		forgetInFlight(pid);
+	}
+
+	public void addMember(String pid, String cpid)
+	{
+		roundTrip();
+
+		if (! addRelationship(cpid, MEMBER_OF, new Term(toURI(pid), true))) {
+			log.warn("error adding relationship");
+		}
+
+		forgetInFlight(pid);
+		forgetInFlight(cpid);
+	}
+
+	public void addProperty(String pid, String uri, String literal)
+	{
+		roundTrip();
+
+		if (! addRelationship(pid, uri, new Term(literal, false))) {
+			log.warn("error adding relationship");
+		}
+
+		forgetInFlight(pid);
+	}
+
+	/**
+	 * Adds a triple to RELS-EXT of an object.
+	 */
+	private boolean addRelationship(String pid, String uri, Term object)
+	{
+		synchronized (objectMap) {
+			if (! objectMap.containsKey(pid)) {
+				return false;
+			}
+
+			if (! objectMap.get(pid).containsKey("RELS-EXT")) {
+				objectMap.get(pid).put("RELS-EXT", new MemoryDataStream("Relationships", "text/xml", null));
+			}
+
+			return resourceIndex.add(toURI(pid), uri, object);
+		}
+	}
+
+	public void deleteProperty(String pid, String uri)
+	{
+		List<Term> objects;
+
+		if (uri.contains("http://purl.org/dc/elements/1.1")) {
+			// Dublin Core properties
+			return;
+		}
+
+		roundTrip();
+
+		synchronized (objectMap) {
+			objects = resourceIndex.getTriples(toURI(pid)).get(uri);
+			if (objects == null ||
+				! resourceIndex.remove(toURI(pid), uri, objects.get(0))) {
+				log.warn("error deleting relationship");
+			}
+		}
+
+		forgetInFlight(pid);
+	}
+
+	/**
+	 * Searches the data streams named in <code>gsearchfields</code> for
+	 * the phrase, ignoring case.
+	 */
+	public String [] searchFullText(String value)
+	{
+		List<String> resultList = new ArrayList<String>();
+		List<String> pids;
+		String phrase = value.toLowerCase();
+		byte [] content;
+
+		roundTrip();
+
+		synchronized (objectMap) {
+			pids = new ArrayList<String>(objectMap.keySet());
+		}
+
+		for (String pid : pids) {
+			for (String field : gsearchFields) {
+				content = getContent(pid, field);
+				if (content != null &&
+					new String(content).toLowerCase().contains(phrase)) {
+					resultList.add(pid);
+					break;
+				}
+			}
+		}
+
+		return resultList.toArray(new String[0]);
+	}
+
+	/**
+	 * Replaces the Dublin Core triples of an object with the fields of
+	 * its DC data stream.
+	 */
+	private void indexDC(String pid, byte [] bytes)
+	{
+		Matcher matcher;
+
+		resourceIndex.removeAll(toURI(pid), DC_NS);
+
+		try {
+			matcher = DC_FIELD.matcher(new String(bytes, "UTF-8"));
+		} catch (IOException e) {
+			return;
+		}
+
+		while (matcher.find()) {
+			resourceIndex.add(toURI(pid), DC_NS + matcher.group(1),
+							  new Term(unescapeXML(matcher.group(2)), false));
+		}
+	}
+
+	/**
+	 * Generates the RELS-EXT data stream of an object from its triples.
+	 */
+	private byte [] getRelsExt(String pid)
+	{
+		StringBuilder xml = new StringBuilder();
+		String predicate;
+		int index;
+
+		xml.append("<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">\n");
+		xml.append("  <rdf:Description rdf:about=\"").append(escapeXML(toURI(pid))).append("\">\n");
+
+		for (Map.Entry<String, List<Term>> entry :
+				 resourceIndex.getTriples(toURI(pid)).entrySet()) {
+			predicate = entry.getKey();
+			if (predicate.startsWith(DC_NS) || predicate.startsWith(MODEL_NS)) {
+				continue;
+			}
+
+			index = Math.max(predicate.lastIndexOf('#'), predicate.lastIndexOf('/')) + 1;
+			for (Term object : entry.getValue()) {
+				xml.append("    <").append(predicate.substring(index));
+				xml.append(" xmlns=\"").append(escapeXML(predicate.substring(0, index))).append("\"");
+				if (object.uri) {
+					xml.append(" rdf:resource=\"").append(escapeXML(object.value)).append("\"/>\n");
+				}
+				else {
+					xml.append(">").append(escapeXML(object.value));
+					xml.append("</").append(predicate.substring(index)).append(">\n");
+				}
+			}
+		}
+
+		xml.append("  </rdf:Description>\n</rdf:RDF>\n");
+
+		try {
+			return xml.toString().getBytes("UTF-8");
+		} catch (IOException e) {
+			return new byte[0];
+		}
+	}
+
+	/**
+	 * Escapes the characters special to XML.
+	 */
+	private static String escapeXML(String s)
+	{
+		return s.replace("&", "&amp;").replace("<", "&lt;")
+			.replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	/**
+	 * Resolves the predefined XML entities.
+	 */
+	private static String unescapeXML(String s)
+	{
+		return s.replace("&lt;", "<").replace("&gt;", ">")
+			.replace("&quot;", "\"").replace("&apos;", "'")
+			.replace("&amp;", "&");
+	}
+}
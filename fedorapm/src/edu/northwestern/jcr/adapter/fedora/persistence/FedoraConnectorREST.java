@@ -15,19 +15,18 @@
  */
 package edu.northwestern.jcr.adapter.fedora.persistence;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.io.InputStream;
+import java.io.IOException;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 
 import java.net.URLEncoder;
 
@@ -38,7 +37,11 @@ import fedora.client.HttpInputStream;
 import static org.apache.commons.httpclient.HttpStatus.SC_CREATED;
 import static org.apache.commons.httpclient.HttpStatus.SC_OK;
 import static org.apache.commons.httpclient.HttpStatus.SC_NO_CONTENT;
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
+import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
 import org.apache.commons.httpclient.methods.PostMethod;
 
 import org.slf4j.Logger;
@@ -57,6 +60,9 @@ public class FedoraConnectorREST extends FedoraConnector {
 	/** log4j logger. */
 	private static Logger log = 
 		LoggerFactory.getLogger(FedoraConnectorREST.class);
+
+	/** number of pids requested per page of findObjects results. */
+	private static final int PAGE_SIZE = 1024;
 	
 	/**
 	 * Sends an HTTP DELETE request and returns the status code.
@@ -123,21 +129,24 @@ public class FedoraConnectorREST extends FedoraConnector {
 	public void createObject(String pid) throws Exception
 	{
 		String url;
+		String encodedPID = pid;
 		PostMethod postMethod = null;
 		int statusCode;
 
 		try {
-			pid = URLEncoder.encode(pid, "UTF-8");
+			encodedPID = URLEncoder.encode(pid, "UTF-8");
 		} catch (Exception e) {
 
 		}
 
-		url = baseURL + "/objects/" + pid;
+		url = baseURL + "/objects/" + encodedPID;
 		log.debug("ingesting " + pid);
 		statusCode = httpPost(url);
 		if (statusCode != SC_OK && statusCode != SC_CREATED) {
 			log.warn("status code: " + statusCode);
 		};
+
+		forgetInFlight(pid);
 	}
 
 	/**
@@ -149,19 +158,191 @@ public class FedoraConnectorREST extends FedoraConnector {
 	public void deleteObject(String pid)
 	{
 		String url;
+		String encodedPID = pid;
 		int statusCode;
 
 		try {
-			pid = URLEncoder.encode(pid, "UTF-8");
+			encodedPID = URLEncoder.encode(pid, "UTF-8");
 		} catch (Exception e) {
 
 		}
 
-		url = baseURL + "/objects/" + pid;
+		url = baseURL + "/objects/" + encodedPID;
 		statusCode = httpDelete(url);
 		if (statusCode != SC_OK && statusCode != SC_NO_CONTENT) {
 			log.warn("status code: " + statusCode);
 		};
+
+		forgetInFlight(pid);
+	}
+
+	/**
+	 * Sends a REST request and returns the response as a stream, which
+	 * holds the HTTP connection until it is closed.
+	 *
+	 * @param path path of the request relative to the base URL
+	 * @param operation class of the operation, as in
+	 * {@link LatencyTracker}
+	 * @return the response
+	 */
+	private InputStream getResponse(String path, String operation)
+		throws Exception
+	{
+		GetMethod getMethod = null;
+		InputStream in;
+
+		try {
+			getMethod = new GetMethod(baseURL + path);
+			prepareRead(getMethod, operation);
+			getMethod.setFollowRedirects(false);
+			fc.getHttpClient().executeMethod(getMethod);
+
+			if (getMethod.getStatusCode() != SC_OK) {
+				throw new IOException("request " + path + 
+									  " failed, status code: " + 
+									  getMethod.getStatusCode());
+			}
+
+			in = new DataStreamInputStream(getMethod.getResponseBodyAsStream(),
+										   getMethod, 
+										   getMethod.getResponseContentLength());
+			getMethod = null;
+
+			return in;
+		} finally {
+			if (getMethod != null) {
+				getMethod.releaseConnection();
+			}
+		}
+	}
+
+	/**
+	 * Closes a response, releasing its connection.
+	 */
+	private static void close(InputStream in)
+	{
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Requests a page of findObjects results.
+	 *
+	 * @param query the pattern of pid
+	 * @param token session token of the page, null for the first page
+	 * @param pids list receiving the pids of the page
+	 * @return the page
+	 */
+	private RestResponseParser.ObjectPage getObjectPage(String query, 
+														String token,
+														List<String> pids)
+		throws Exception
+	{
+		String path;
+		InputStream in = null;
+
+		path = "/objects?query=pid%7E" + query + "&maxResults=" + 
+			PAGE_SIZE + "&resultFormat=xml&pid=true";
+		if (token != null) {
+			path += "&sessionToken=" + URLEncoder.encode(token, "UTF-8");
+		}
+
+		try {
+			in = getResponse(path, LatencyTracker.SEARCH);
+			return RestResponseParser.parseObjectPage(in, pids);
+		} finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * Iterates over the pids of a findObjects query, requesting the next
+	 * page of results only when the current one is exhausted. At most
+	 * one page of pids is held in memory.
+	 */
+	private class ObjectIterator implements Iterator<String> {
+
+		/** the pattern of pid */
+		private final String query;
+
+		/** pids of the current page */
+		private final List<String> page = new ArrayList<String>();
+
+		/** index of the next pid in the current page */
+		private int index;
+
+		/** session token of the next page, null after the last page */
+		private String token;
+
+		/**
+		 * Creates the iterator, requesting the first page.
+		 */
+		ObjectIterator(String query) throws Exception
+		{
+			this.query = query;
+			setToken(getObjectPage(query, null, page));
+		}
+
+		/**
+		 * Keeps the session token of the next page.
+		 */
+		private void setToken(RestResponseParser.ObjectPage p)
+		{
+			token = p.token;
+			if (token != null && token.equals("")) {
+				token = null;
+			}
+		}
+
+		public boolean hasNext()
+		{
+			while (index >= page.size()) {
+				if (token == null) {
+					return false;
+				}
+
+				page.clear();
+				index = 0;
+				try {
+					setToken(getObjectPage(query, token, page));
+				} catch (Exception e) {
+					log.error("failed to get the next page of objects", e);
+					token = null;
+				}
+			}
+
+			return true;
+		}
+
+		public String next()
+		{
+			if (! hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			return page.get(index++);
+		}
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Wrapper of findObjects in REST.
+	 * Iterates lazily over the objects in Fedora repository.
+	 *
+	 * @param query the pattern of pid
+	 * @return iterator over the pids that satisfy the pattern
+	 */
+	public Iterator<String> iterateObjects(String query) throws Exception
+	{
+		return new ObjectIterator(query);
 	}
 
 	/**
@@ -173,45 +354,17 @@ public class FedoraConnectorREST extends FedoraConnector {
 	 */
 	public String [] listObjects(String query) throws Exception
 	{
-		String response = "";
-		String allResponses;
-		Pattern pattern;
-		Matcher matcher;
-		String line;
-		String pid;
+		Iterator<String> it;
 		List<String> list = new ArrayList<String>();
-        String sessionToken;
 
 		try {
-			response = fc.getResponseAsString("/objects?query=pid%7E" + 
-											  query + "&maxResults=1024&resultFormat=xml&pid=true",
-											  true, false);
+			it = iterateObjects(query);
 		} catch (Exception e) {
 			return null;
 		}
 
-		allResponses = response;
-		while (response.contains("<token>")) {
-			sessionToken = response.substring(response.indexOf("<token>") + 7,
-											  response.indexOf("</token>"));
-
-			try {
-				response = fc.getResponseAsString("/objects?query=pid%7E" +
-												  query + "&maxResults=1024&resultFormat=xml&pid=true&sessionToken=" + sessionToken, true, false);
-			} catch (Exception e) {
-				break;
-			}
-
-			allResponses += response;
-		}
-
-		pattern = Pattern.compile("<pid>[^<]+</pid>");
-		matcher = pattern.matcher(allResponses);
-		
-		while (matcher.find()) {
-			line = matcher.group();
-			pid = line.substring(5, line.length() - 6);
-			list.add(pid);
+		while (it.hasNext()) {
+			list.add(it.next());
 		}
 
 		return  (String []) list.toArray(new String[0]);
@@ -223,118 +376,145 @@ public class FedoraConnectorREST extends FedoraConnector {
 	 * @param pid pid of the object
 	 * @return list of the <code>DataStream</code> objects
 	 */
-	public DataStream [] listDataStreams(String pid)
+	protected DataStream [] fetchDataStreams(String pid)
 	{
-		DataStream dataStream;
-		int i;
-		String response = "";
-		Pattern pattern, attributePattern;
-		Matcher matcher, attributeMatcher;
-		String line;
-		String s = "";
-		String dsid, label, mimeType;
+		InputStream in = null;
 		List<DataStream> list = new ArrayList<DataStream>();
 
 		try {
-			response = 
-				fc.getResponseAsString(
-									   String.format("/objects/%s/datastreams.xml", URLEncoder.encode(pid, "UTF-8")), true, false);
+			in = getResponse(String.format("/objects/%s/datastreams.xml", URLEncoder.encode(pid, "UTF-8")), LatencyTracker.DATASTREAM);
+			RestResponseParser.parseDataStreams(in, list);
 		} catch (Exception e) {
 			return null;
+		} finally {
+			close(in);
 		}
 
-		pattern = Pattern.compile("<datastream [^>]+/>");
-		matcher = pattern.matcher(response);
-		
-		while (matcher.find()) {
-			// iterate over all the datastream elements
-			line = matcher.group();
-
-			// get dsid, label and mime type respectively
-			attributePattern = Pattern.compile("dsid=\"[^\"]+\"");
-			attributeMatcher = attributePattern.matcher(line);
-			if (attributeMatcher.find()) {
-				s = attributeMatcher.group();
+		if (log.isDebugEnabled()) {
+			for (DataStream ds : list) {
+				log.debug(ds.id + ", " + ds.label + ", " + ds.mimeType);
 			}
+		}
 
-			dsid = s.substring(6, s.length() - 1);
+		return list.toArray(new DataStream[0]);
+	}
 
-			attributePattern = Pattern.compile("label=\"[^\"]*\"");
-			attributeMatcher = attributePattern.matcher(line);
-			if (attributeMatcher.find()) {
-				s = attributeMatcher.group();
-			}
-			label = s.substring(7, s.length() - 1);
+	/**
+	 * Wrapper of getDatastreamDissemination in REST.
+	 *
+	 * @param pid pid of the object
+	 * @param dsID id of the datastream
+	 * @return byte content of the data stream
+	 */
+	protected byte[] fetchDataStream(String pid, String dsID)
+	{
+		InputStream inputStream;
+		ByteArrayOutputStream out;
 
-			attributePattern = Pattern.compile("mimeType=\"[^\"]*\"");
-			attributeMatcher = attributePattern.matcher(line);
-			if (attributeMatcher.find()) {
-				s = attributeMatcher.group();
-			}
-			mimeType = s.substring(10, s.length() - 1);
+		inputStream = openDataStream(pid, dsID);
+		if (inputStream == null) {
+			return null;
+		}
 
-			if (mimeType == null || mimeType.equals("")) {
-				// set default MIME type
-				mimeType = "application/octet-stream";
+		out = new ByteArrayOutputStream();
+		try {
+			BufferPool.copy(inputStream, out);
+		} catch (IOException e) {
+			log.error("failed to read data stream!", e);
+			return null;
+		} finally {
+			try {
+				inputStream.close();
+			} catch (IOException e) {
 			}
-
-			// add the data stream object
-			dataStream = new DataStream(dsid, label, mimeType);
-			list.add(dataStream);
-
-			log.debug(dsid + ", " + label + ", " + mimeType);
 		}
 
-		return list.toArray(new DataStream[0]);
+		return out.toByteArray();
 	}
 
 	/**
-	 * Wrapper of getDatastreamDissemination in REST.
+	 * Opens the data stream content for reading without buffering it.
+	 * The returned stream holds an HTTP connection until it is closed,
+	 * and its length is the Content-Length of the response.
 	 *
 	 * @param pid pid of the object
 	 * @param dsID id of the datastream
-	 * @return byte content of the data stream
+	 * @return stream of the data stream content, or null if it cannot
+	 * be retrieved
 	 */
-	public byte[] getDataStream(String pid, String dsID)
+	public DataStreamInputStream openDataStream(String pid, String dsID)
 	{
-		HttpInputStream inputStream;
-		ReadableByteChannel channel;
-		ByteBuffer buf;
-		byte [] bytes;
-		int numRead = 0;
-		int length = 0;
-        
+		GetMethod getMethod = null;
+		DataStreamInputStream in;
+
 		try {
-			inputStream = fc.get(String.format("/objects/%s/datastreams/%s/content", URLEncoder.encode(pid, "UTF-8"), dsID), true, false);
+			getMethod = new GetMethod(baseURL + String.format("/objects/%s/datastreams/%s/content", URLEncoder.encode(pid, "UTF-8"), dsID));
+			prepareRead(getMethod, LatencyTracker.DATASTREAM);
+			getMethod.setFollowRedirects(false);
+			fc.getHttpClient().executeMethod(getMethod);
+
+			if (getMethod.getStatusCode() != SC_OK) {
+				log.error("failed to open data stream! status: " + 
+						  getMethod.getStatusCode());
+				return null;
+			}
+
+			in = new DataStreamInputStream(getMethod.getResponseBodyAsStream(),
+										   getMethod, 
+										   getMethod.getResponseContentLength());
+			getMethod = null;
+
+			return in;
 		} catch (Exception e) {
+			log.error("failed to open data stream!", e);
 			return null;
+		} finally {
+			if (getMethod != null) {
+				getMethod.releaseConnection();
+			}
 		}
+	}
 
-		channel = Channels.newChannel(inputStream);
-		// Create a direct ByteBuffer
-        buf = ByteBuffer.allocateDirect(10 * 1024 * 1024);
+	/**
+	 * Returns the size of the data stream content from the Content-Length
+	 * of an HTTP HEAD request, without retrieving the content.
+	 *
+	 * @param pid pid of the object
+	 * @param dsID id of the datastream
+	 * @return size in bytes, or -1 if it cannot be determined
+	 */
+	public long getDataStreamSize(String pid, String dsID)
+	{
+		HeadMethod headMethod = null;
+		Header header;
 
-		while (numRead >= 0) {
-            // Read bytes from the channel
-			try {
-				numRead = channel.read(buf);
-			} catch (Exception e) {
-				return null;
+		try {
+			headMethod = new HeadMethod(baseURL + String.format("/objects/%s/datastreams/%s/content", URLEncoder.encode(pid, "UTF-8"), dsID));
+			prepareRead(headMethod, LatencyTracker.DATASTREAM);
+			fc.getHttpClient().executeMethod(headMethod);
+
+			if (headMethod.getStatusCode() != SC_OK) {
+				return -1;
 			}
 
-			if (numRead > 0) {
-				length += numRead;
+			header = headMethod.getResponseHeader("Content-Length");
+			if (header == null) {
+				return -1;
 			}
-        }	
 
-		bytes = new byte[length];
-		// reset the position of the buffer to zero
-		buf.rewind();
-		buf.get(bytes);
+			return Long.parseLong(header.getValue().trim());
+		} catch (Exception e) {
+			log.warn("failed to get data stream size!");
 
-		return bytes;
+			return -1;
+		} finally {
+			if (headMethod != null) {
+				headMethod.releaseConnection();
+			}
+		}
 	}
 
+
 	/**
 	 * Tests if a given digital object already exists in the Fedora repository.
 	 *
@@ -343,23 +523,18 @@ public class FedoraConnectorREST extends FedoraConnector {
 	 */
 	public boolean existsObject(String pid)
 	{
-		String response = "";
-		Pattern pattern;
-		Matcher matcher;
+		InputStream in = null;
 
 		try {
-			response = fc.getResponseAsString(String.format("/objects?query=pid%%7E%s&resultFormat=xml&pid=true", URLEncoder.encode(pid, "UTF-8")),
-											  true, false);
+			in = getResponse(String.format("/objects?query=pid%%7E%s&resultFormat=xml&pid=true", URLEncoder.encode(pid, "UTF-8")), LatencyTracker.SEARCH);
+
+			// stop at the first pid
+			return RestResponseParser.parseObjectPage(in, null) != null;
 		} catch (Exception e) {
 			return false;
+		} finally {
+			close(in);
 		}
-
-		// System.out.println("response: " + response);
-
-		pattern = Pattern.compile("<pid>[^<]+</pid>");
-		matcher = pattern.matcher(response);
-		
-		return matcher.find();
 	}
 
 
@@ -372,43 +547,17 @@ public class FedoraConnectorREST extends FedoraConnector {
 	 */
 	public boolean existsDataStream(String pid, String dsID)
 	{
-		String response = "";
-		Pattern pattern, attributePattern;
-		Matcher matcher, attributeMatcher;
-		String line;
-		String s = "";
-		String id;
+		InputStream in = null;
 
 		try {
-			response = 
-				fc.getResponseAsString(
-									   String.format("/objects/%s/datastreams.xml", URLEncoder.encode(pid, "UTF-8")), true, false);
+			in = getResponse(String.format("/objects/%s/datastreams.xml", URLEncoder.encode(pid, "UTF-8")), LatencyTracker.DATASTREAM);
+
+			return RestResponseParser.containsDataStream(in, dsID);
 		} catch (Exception e) {
 			return false;
+		} finally {
+			close(in);
 		}
-
-		pattern = Pattern.compile("<datastream [^>]+/>");
-		matcher = pattern.matcher(response);
-		
-		while (matcher.find()) {
-			// iterate over all the datastream elements
-			line = matcher.group();
-
-			// get dsid, label and mime type respectively
-			attributePattern = Pattern.compile("dsid=\"[^\"]+\"");
-			attributeMatcher = attributePattern.matcher(line);
-			if (attributeMatcher.find()) {
-				s = attributeMatcher.group();
-			}
-
-			id = s.substring(6, s.length() - 1);
-
-			if (id.equals(dsID)) {
-				return true;
-			}
-		}
-
-		return false;
 	}
 
 	/**
@@ -437,6 +586,8 @@ public class FedoraConnectorREST extends FedoraConnector {
 			e.printStackTrace();
 			System.err.println("failed to update DC stream!");
 		}
+
+		forgetInFlight(pid);
 	}
 
 	/**
@@ -479,8 +630,65 @@ public class FedoraConnectorREST extends FedoraConnector {
 			e.printStackTrace();
 			log.error("failed to add data stream!", e);
 		}
+
+		forgetInFlight(pid);
+	}
+	/**
+	 * Adds a data stream, sending its content as the body of the REST
+	 * request. The content is streamed straight from the input stream,
+	 * chunked if its length is not known.
+	 *
+	 * @param pid pid of the object
+	 * @param dsID id of the data stream
+	 * @param mimeType MIME type of the data stream content
+	 * @param in content of the data stream
+	 * @param length length of the content in bytes, or -1 if unknown
+	 * @throws IOException if the request failed or Fedora did not
+	 * create the data stream
+	 */
+	public void addDataStream(String pid, String dsID, String mimeType,
+							  InputStream in, long length)
+		throws IOException
+	{
+		String url;
+		PostMethod postMethod = null;
+		int statusCode;
+
+		if (mimeType == null) {
+			// set default MIME type
+			mimeType = "application/octet-stream";
+		}
+
+		try {
+			url = baseURL + "/objects/" + URLEncoder.encode(pid, "UTF-8") + 
+				"/datastreams/" + dsID +
+				"?controlGroup=M&dsLabel=" + dsID + 
+				"&mimeType=" + URLEncoder.encode(mimeType, "UTF-8");
+
+			postMethod = new PostMethod(url);
+			postMethod.setDoAuthentication(true);
+			postMethod.getParams().setParameter("Connection", "Keep-Alive");
+			postMethod.setRequestEntity(new InputStreamRequestEntity(in, length, mimeType));
+			if (length < 0) {
+				postMethod.setContentChunked(true);
+			}
+			fc.getHttpClient().executeMethod(postMethod);
+
+			statusCode = postMethod.getStatusCode();
+			if (statusCode != SC_CREATED) {
+				throw new IOException("failed to add data stream " + dsID + 
+									  " of " + pid + ", status code: " + 
+									  statusCode);
+			}
+		} finally {
+			if (postMethod != null) {
+				postMethod.releaseConnection();
+			}
+			forgetInFlight(pid);
+		}
 	}
 
+
 	/**
 	 * Deletes a data stream.
 	 * Wrapper of purgeDatastream in Fedora REST
@@ -491,18 +699,21 @@ public class FedoraConnectorREST extends FedoraConnector {
 	public void deleteDataStream(String pid, String dsID)
 	{
 		String url;
+		String encodedPID = pid;
 		int statusCode;
 
 		try {
-			pid = URLEncoder.encode(pid, "UTF-8");
+			encodedPID = URLEncoder.encode(pid, "UTF-8");
 		} catch (Exception e) {
 
 		}
 
-		url = baseURL + "/objects/" + pid +	"/datastreams/" + dsID;
+		url = baseURL + "/objects/" + encodedPID + "/datastreams/" + dsID;
 		statusCode = httpDelete(url);
 		if (statusCode != SC_OK) {
 			log.warn("status code: " + statusCode);
 		}
+
+		forgetInFlight(pid);
 	}
 }
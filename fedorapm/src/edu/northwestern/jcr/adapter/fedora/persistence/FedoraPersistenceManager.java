@@ -15,10 +15,15 @@
  */
 package edu.northwestern.jcr.adapter.fedora.persistence;
 
+import org.apache.jackrabbit.core.fs.FileSystem;
+import org.apache.jackrabbit.core.fs.FileSystemException;
+import org.apache.jackrabbit.core.fs.FileSystemResource;
+import org.apache.jackrabbit.core.fs.local.LocalFileSystem;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
 import org.apache.jackrabbit.core.persistence.AbstractPersistenceManager;
 import org.apache.jackrabbit.core.persistence.PMContext;
+import org.apache.jackrabbit.core.state.ChangeLog;
 import org.apache.jackrabbit.core.state.ItemStateException;
 import org.apache.jackrabbit.core.state.NoSuchItemStateException;
 import org.apache.jackrabbit.core.state.NodeReferences;
@@ -40,20 +45,32 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.ArrayList;
 import java.util.Properties;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.util.UUID;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.io.FileInputStream;
 import java.io.ByteArrayInputStream;
 
@@ -121,45 +138,133 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		LoggerFactory.getLogger(FedoraPersistenceManager.class);
 
 	/** initialization flag */
-	private boolean initialized;
+	private volatile boolean initialized;
 
-	/** map UUID of the digital object node to JCR path */
-	private static Map<String, String> uuidMap = new HashMap<String, String>();
+	/** number of lock stripes, must be a power of two */
+	private final static int LOCK_STRIPES = 64;
 
-	/** map digital object node ID to its parent digital object node ID */
-	private static Map<String, String> doMap = new HashMap<String, String>();
+	/** 
+	 * locks serializing the load and store of the same node; loads of
+	 * different nodes run in parallel
+	 */
+	private final ReentrantLock [] nodeLocks;
 
-	/** map data stream node ID to its parent digital object node ID */
-	private static Map<String, String> dsMap = new HashMap<String, String>();
+	/** registry of the IDs of nodes mapped to Fedora objects */
+	private static IdRegistry registry = new IdRegistry();
 
-	/** map jcr:content node ID to its parent data stream node ID */
-	private static Map<String, String> contentMap = 
-		new HashMap<String, String>();
+	/** fedora client handle */
+	public static FedoraConnector fc;
 
-	/** list of IDs of nodes reprenting Sling folders */
-	private static List<String> slingNodeList = new ArrayList<String>();
+	/** nodes and properties that are pending to persist */
+	private static PendingItems pending = new PendingItems();
 
-	/** list of IDs of nodes reprenting Fedora objects */
-	private static List<String> fedoraNodeList = new ArrayList<String>();
+	/** digital objects known to exist or not to exist in Fedora */
+	private static KnownObjects knownObjects = 
+		new KnownObjects(KnownObjects.DEFAULT_CAPACITY);
 
-	/** map child UUID to relative path */
-	private static Map<String, String> childrenMap = 
-		new HashMap<String, String>();
+	/**
+	 * whether the known objects are seeded from the repository; off
+	 * unless this is the only client creating objects in Fedora
+	 */
+	private static boolean seedKnownObjects = false;
 
-	/** map UUID, DS name to DS UUID */
-	private static Map<String, Map<String, String>> dsNameMap =
-		new HashMap<String, Map<String, String>>();
+	/** default number of digital objects whose properties are cached */
+	private final static int DEFAULT_PROPERTY_CACHE_SIZE = 1000;
 
-	/** fedora client handle */
-	public static FedoraConnector fc;
+	/** maximum number of digital objects whose properties are cached */
+	private static int propertyCacheSize = DEFAULT_PROPERTY_CACHE_SIZE;
+
+	/** default time the properties of an object are cached, in ms */
+	private final static long DEFAULT_PROPERTY_CACHE_TTL = 60000;
+
+	/** 
+	 * time the properties of an object are cached, in milliseconds, no
+	 * limit if not positive; bounds how long changes made by other
+	 * Fedora clients go unseen
+	 */
+	private static long propertyCacheTTL = DEFAULT_PROPERTY_CACHE_TTL;
+
+	/** 
+	 * map pid to the snapshot of its properties (predicate URI to value),
+	 * in least recently used order
+	 */
+	private static Map<String, PropertySnapshot> propertyMap =
+		new LinkedHashMap<String, PropertySnapshot>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, PropertySnapshot> eldest) {
+				return size() > propertyCacheSize;
+			}
+		};
 
-	/** list of nodes that are pending to persist */
-	private static Map<String, NodeState> pendingNodeMap = 
-		new HashMap<String, NodeState>(); 
+	/** number of stripes of the property generations, a power of two */
+	private final static int PROPERTY_STRIPES = 256;
+
+	/** 
+	 * generations of the properties of the objects hashed to each
+	 * stripe, bumped whenever they are invalidated; guarded by
+	 * <code>propertyMap</code>
+	 */
+	private static long [] propertyGenerations = new long [PROPERTY_STRIPES];
+
+	/** default size up to which data stream content is held in memory */
+	private final static int DEFAULT_SPILL_THRESHOLD = 256 * 1024;
+
+	/** 
+	 * size up to which data stream content is held in memory; larger
+	 * content is streamed from Fedora or spilled to a temporary file
+	 */
+	private static int spillThreshold = DEFAULT_SPILL_THRESHOLD;
+
+	/** file system serving data stream content lazily from Fedora */
+	private DataStreamFileSystem dsFileSystem;
+
+	/** file system holding content of unknown size spilled to disk */
+	private LocalFileSystem spillFileSystem;
+
+	/** directory of the spill file system */
+	private File spillDirectory;
+
+	/** spilled files not deleted yet */
+	private final ConcurrentMap<File, Boolean> spillFiles =
+		new ConcurrentHashMap<File, Boolean>();
+
+	/** log persisting the node IDs of the shared registry */
+	private static MappingLog mappingLog;
+
+	/** 
+	 * number of open instances using the log, which is closed with the
+	 * last of them; guarded by the registry
+	 */
+	private static int mappingLogUsers;
 
-	/** list of properties that are pending to persist */
-	private static List<PropertyState> pendingProperties = 
-		new ArrayList<PropertyState>();
+	/** whether this instance counts among the users of the log */
+	private boolean usesMappingLog;
+
+	/** name of the node ID log in the workspace home directory */
+	private final static String MAPPING_LOG_NAME = "fedora-ids.log";
+
+	/** prefix of Fedora object URIs */
+	private final static String FEDORA_URI_PREFIX = "info:fedora/";
+
+	/** default number of objects written to Fedora concurrently */
+	private final static int DEFAULT_WRITE_THREADS = 8;
+
+	/** number of objects written to Fedora concurrently */
+	private static int writeThreads = DEFAULT_WRITE_THREADS;
+
+	/** 
+	 * number of times writes to Fedora have completed, so that results
+	 * read before can be told from results read after
+	 */
+	private static AtomicLong modificationCount = new AtomicLong();
+
+	/** pool writing independent objects of a change log */
+	private ExecutorService writeExecutor;
+
+	/** 
+	 * writes of the change log being stored, null when items are
+	 * written immediately
+	 */
+	private WriteBatch batch;
 
 	/** UUID of root node in Jackrabbit */
 	private final static String JR_ROOT_ID =
@@ -177,10 +282,30 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 	 * Creates a new <code>FedoraPersistenceManager</code> instance.
 	 */
 	public FedoraPersistenceManager() throws RepositoryException {
+		this(null);
+	}
+
+	/**
+	 * Creates a new <code>FedoraPersistenceManager</code> instance on a
+	 * given connector rather than the one named in fedora.properties.
+	 * This is the hook through which the benchmarks in fedorapm-bench
+	 * run the persistence manager over an in-memory repository.
+	 *
+	 * @param connector connector to Fedora, or null to create the one
+	 *        set in fedora.properties
+	 */
+	FedoraPersistenceManager(FedoraConnector connector) 
+		throws RepositoryException {
 		initialized = false;
 
+		nodeLocks = new ReentrantLock[LOCK_STRIPES];
+		for (int i = 0; i < LOCK_STRIPES; ++i) {
+			nodeLocks[i] = new ReentrantLock();
+		}
+
 		boolean property = true;
 		boolean useREST = true;
+		boolean useMemory = false;
 		Properties props = new Properties();
 		try {
 			props.load(new FileInputStream("fedora.properties"));
@@ -192,8 +317,59 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 			useREST = false;
 		}
 
+		if (property && "memory".equals(props.getProperty("connector"))) {
+			// objects kept in memory, without a Fedora server
+			useMemory = true;
+		}
+
+		if (property && props.getProperty("spillthreshold") != null) {
+			try {
+				spillThreshold = 
+					Integer.parseInt(props.getProperty("spillthreshold"));
+			} catch (NumberFormatException e) {
+				log.error("invalid spill threshold, using default");
+			}
+		}
+
+		if (property && props.getProperty("writethreads") != null) {
+			try {
+				writeThreads = 
+					Integer.parseInt(props.getProperty("writethreads"));
+			} catch (NumberFormatException e) {
+				log.error("invalid number of write threads, using default");
+			}
+		}
+
+		if (property && props.getProperty("propertycachesize") != null) {
+			try {
+				propertyCacheSize = 
+					Integer.parseInt(props.getProperty("propertycachesize"));
+			} catch (NumberFormatException e) {
+				log.error("invalid property cache size, using default");
+			}
+		}
+
+		if (property && props.getProperty("propertycachettl") != null) {
+			try {
+				propertyCacheTTL = 
+					Long.parseLong(props.getProperty("propertycachettl"));
+			} catch (NumberFormatException e) {
+				log.error("invalid property cache TTL, using default");
+			}
+		}
+
+		if (property && "y".equals(props.getProperty("knownobjects"))) {
+			seedKnownObjects = true;
+		}
+
 		try {
-			if (useREST) {
+			if (connector != null) {
+				fc = connector;
+			}
+			else if (useMemory) {
+				fc = new FedoraConnectorMemory();
+			}
+			else if (useREST) {
 				fc = new FedoraConnectorREST();
 			}
 			else {
@@ -216,7 +392,47 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 			throw new IllegalStateException("already initialized");
 		}
 
-		// to be implemented
+		dsFileSystem = new DataStreamFileSystem(fc);
+		dsFileSystem.init();
+
+		spillDirectory = new File(System.getProperty("java.io.tmpdir"),
+								  "fedora-spill");
+		spillDirectory.mkdirs();
+		spillFileSystem = new LocalFileSystem();
+		spillFileSystem.setRoot(spillDirectory);
+		spillFileSystem.init();
+
+		writeExecutor = Executors.newFixedThreadPool(Math.max(1, writeThreads),
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "fedora-writer-" + 
+										  count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+		if (seedKnownObjects) {
+			// shared as well, seeded by the first workspace
+			knownObjects.seed(fc);
+		}
+
+		if (context != null) {
+			// the registry is shared, the first workspace persists it
+			// and the last one to close closes the log
+			synchronized (registry) {
+				if (mappingLog == null) {
+					mappingLog = new MappingLog(new File(context.getHomeDir(),
+														 MAPPING_LOG_NAME));
+					mappingLog.open(registry);
+					registry.setLog(mappingLog);
+				}
+				++mappingLogUsers;
+				usesMappingLog = true;
+			}
+		}
 
 		initialized = true;
 	}
@@ -229,7 +445,82 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 			throw new IllegalStateException("not initialized");
 		}
 
-		// to be implemented		
+		dsFileSystem.close();
+		for (File file : spillFiles.keySet()) {
+			deleteSpillFile(file);
+		}
+		spillFileSystem.close();
+		writeExecutor.shutdown();
+
+		if (usesMappingLog) {
+			usesMappingLog = false;
+			synchronized (registry) {
+				if (--mappingLogUsers == 0) {
+					registry.setLog(null);
+					mappingLog.close();
+					mappingLog = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Derives a node UUID from a name, so that the same node gets the
+	 * same node ID every time it is discovered.
+	 *
+	 * @param name name identifying the node
+	 * @return string UUID of the node
+	 */
+	private static String getNameUUID(String name)
+	{
+		try {
+			return UUID.nameUUIDFromBytes(name.getBytes("UTF-8")).toString();
+		} catch (UnsupportedEncodingException e) {
+			return UUID.nameUUIDFromBytes(name.getBytes()).toString();
+		}
+	}
+
+	/**
+	 * Derives the node UUID of a member object from its parent node, so
+	 * that an object that is a member of several parents is a distinct
+	 * node, with a path of its own, under each of them.
+	 *
+	 * @param parentID string UUID of the parent node
+	 * @param pid pid of the member object
+	 * @return string UUID of the member node
+	 */
+	private static String getMemberUUID(String parentID, String pid)
+	{
+		return getNameUUID(parentID + "/" + FEDORA_URI_PREFIX + pid);
+	}
+
+	/**
+	 * Derives the node UUID of a data stream from the node of its
+	 * object, for the same reason.
+	 *
+	 * @param objectID string UUID of the object node
+	 * @param dsID id of the data stream
+	 * @return string UUID of the data stream node
+	 */
+	private static String getDataStreamUUID(String objectID, String dsID)
+	{
+		return getNameUUID(objectID + "/" + dsID);
+	}
+
+	/**
+	 * Gets the lock guarding a node. Readers only ever hold one node lock
+	 * and never the monitor of the persistence manager, so they cannot
+	 * deadlock with a writer in {@link #store(ChangeLog)}.
+	 *
+	 * @param nodeID string UUID of the node
+	 * @return the lock of the stripe the node falls in
+	 */
+	private ReentrantLock getNodeLock(String nodeID)
+	{
+		int h = nodeID.hashCode();
+
+		h ^= (h >>> 16);
+		return nodeLocks[h & (LOCK_STRIPES - 1)];
 	}
 
 	/**
@@ -346,10 +637,10 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		log.debug("escaped pid: " + pid);
 
 		// recover Fedora PID from escaped relative path
-		if (! fedoraNodeList.contains(nodeID)) {
+		if (! registry.isFedoraNode(nodeID)) {
 			// attach the hash code of the full path to distinguish
 			// nodes of the same name at the same level
-			pid = uuidMap.get(nodeID).hashCode() + "%57" + pid;
+			pid = registry.getPath(nodeID).hashCode() + "%57" + pid;
 			pid = "sling" + getJCRLevel(nodeID) + ":" + unescapePIDSling(pid);
 		}
 		else {
@@ -426,7 +717,7 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		String parentPath;
 
 		if (id.equals(JR_ROOT_ID)) {
-			uuidMap.put(id, "/");
+			registry.putPath(id, "/", null);
 			return;
 		}
 
@@ -435,14 +726,10 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 			parentID = JR_ROOT_ID;
 		}
 		else {
-			parentPath = uuidMap.get(parentID);
+			parentPath = registry.getPath(parentID);
 		}
 
-		doMap.put(id, parentID);
-
-		if (uuidMap.get(id) == null) {
-			uuidMap.put(id, parentPath + "/" + relativePath);
-		}
+		registry.putPath(id, parentPath + "/" + relativePath, parentID);
 	}
 
 	/**
@@ -455,7 +742,7 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 	{
 		String fullPath;
 
-		fullPath = uuidMap.get(uuid);
+		fullPath = registry.getPath(uuid);
 
 		if (fullPath == null) {
 			return null;
@@ -469,67 +756,15 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 	}
 
 	/**
-	 * Determine if the two nodes are related.
-	 */
-	private boolean isParentChild(String parentPath, String childPath)
-	{
-		if (parentPath.equals("/")) {
-			parentPath = "";
-		}
-
-		if (childPath.startsWith(parentPath + "/") &&
-			childPath.substring(parentPath.length() + 1).indexOf("/") == -1) {
-			return true;
-		}
-		else {
-			return false;
-		}
-	}
-
-	/**
-	 * Creates a map from uuid of its children to relative path.
-	 *
-	 * @param uuid string UUID of the node
-	 */
-	private void getChildrenMap(String uuid)
-	{
-		String path;
-		String nodePath;
-
-		path = uuidMap.get(uuid);
-
-		for (String key : uuidMap.keySet()) {
-			if (key.equals(uuid)) {
-				// skip itself
-				continue;
-			}
-
-			nodePath = uuidMap.get(key);
-
-			if (isParentChild(path, nodePath)) {
-				childrenMap.put(nodePath.substring(nodePath.lastIndexOf('/') + 
-												   1), key);
-			}
-		}
-	}
-
-	/**
-	 * Gets the UUID of the child node given its name.
+	 * Gets the UUID of a child node given its name.
 	 *
+	 * @param parentID string UUID of the parent node
 	 * @param name name of the child node
 	 * @return string UUID of the child node
 	 */
-	private String getChildUUID(String name)
+	private String getChildUUID(String parentID, String name)
 	{
-		return childrenMap.get(name);
-	}
-
-	/**
-	 * Cleans the map from uuid of children to relative path.
-	 */
-	private void cleanChildrenMap()
-	{
-		childrenMap.clear();
+		return registry.getChild(parentID, name);
 	}
 
 	/**
@@ -542,7 +777,7 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 	{
 		String fullPath;
 
-		fullPath = uuidMap.get(uuid);
+		fullPath = registry.getPath(uuid);
 
 		return fullPath.split("/").length - 1;
 	}
@@ -555,7 +790,7 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 	 */
 	private String getParentID(String id)
 	{
-		return doMap.get(id);
+		return registry.getParent(id);
 	}
 
 	/**
@@ -568,13 +803,7 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 	 */
 	private static boolean isSlingNode(String pid)
 	{
-		Pattern pattern;
-		Matcher matcher;
-
-		pattern = Pattern.compile("sling\\d+:");
-		matcher = pattern.matcher(pid);
-		
-		return matcher.find();
+		return Member.isSlingNode(pid);
 	}
 
 	/**
@@ -646,6 +875,114 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		return name;
 	}
 
+	/**
+	 * Fetches all the properties of a digital object from the resource
+	 * index in one query and refreshes the cached snapshot. The snapshot
+	 * is only cached if the properties of the object have not been
+	 * invalidated while they were fetched, since the fetch may then have
+	 * read them before the write.
+	 *
+	 * @param pid pid of the digital object
+	 * @return map from predicate URI to stored value, or null if the
+	 * properties could not be retrieved
+	 */
+	private static Map<String, String> loadProperties(String pid)
+	{
+		Map<String, String> properties;
+		int stripe = getPropertyStripe(pid);
+		long generation;
+
+		synchronized (propertyMap) {
+			generation = propertyGenerations[stripe];
+		}
+
+		properties = fc.getProperties(pid);
+		if (properties != null) {
+			synchronized (propertyMap) {
+				if (propertyGenerations[stripe] == generation) {
+					propertyMap.put(pid, new PropertySnapshot(properties));
+				}
+			}
+		}
+
+		return properties;
+	}
+
+	/**
+	 * Gets the snapshot of the properties of a digital object, querying
+	 * the resource index only if the snapshot is not cached or has
+	 * expired.
+	 *
+	 * @param pid pid of the digital object
+	 * @return map from predicate URI to stored value, or null if the
+	 * properties could not be retrieved
+	 */
+	private static Map<String, String> getProperties(String pid)
+	{
+		PropertySnapshot snapshot;
+
+		synchronized (propertyMap) {
+			snapshot = propertyMap.get(pid);
+			if (snapshot != null && propertyCacheTTL > 0 &&
+				System.currentTimeMillis() - snapshot.loaded > 
+				propertyCacheTTL) {
+				propertyMap.remove(pid);
+				snapshot = null;
+			}
+		}
+
+		if (snapshot == null) {
+			return loadProperties(pid);
+		}
+
+		return snapshot.properties;
+	}
+
+	/**
+	 * Discards the cached properties of a digital object after they
+	 * have been modified, and makes loads already under way leave them
+	 * uncached.
+	 *
+	 * @param pid pid of the digital object
+	 */
+	private static void invalidateProperties(String pid)
+	{
+		synchronized (propertyMap) {
+			propertyMap.remove(pid);
+			++propertyGenerations[getPropertyStripe(pid)];
+		}
+	}
+
+	/**
+	 * Gets the stripe of the property generation of a digital object.
+	 *
+	 * @param pid pid of the digital object
+	 * @return index in <code>propertyGenerations</code>
+	 */
+	private static int getPropertyStripe(String pid)
+	{
+		int h = pid.hashCode();
+
+		h ^= (h >>> 16);
+		return h & (PROPERTY_STRIPES - 1);
+	}
+
+	/**
+	 * Cached properties of a digital object.
+	 */
+	private static class PropertySnapshot {
+		/** map from predicate URI to stored value */
+		final Map<String, String> properties;
+		/** time the properties were fetched */
+		final long loaded;
+
+		PropertySnapshot(Map<String, String> properties)
+		{
+			this.properties = properties;
+			this.loaded = System.currentTimeMillis();
+		}
+	}
+
 	/**
 	 * Sets the node state of a node representing a Fedora digital object.
 	 *
@@ -658,13 +995,28 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		Name name;
 		DataStream [] dsList;
 		String nodeID;
-		String [] memberList;
-		String [] propertyList;
+		Member [] memberList;
+		Map<String, String> properties;
+		Future<DataStream []> dsFuture;
+		Future<Member []> memberFuture;
 
 		nodeID = state.getNodeId().toString();
 		pid = getPID(nodeID);
 
-		if (fc.existsProperty(pid, "http://www.jcp.org/jcr/1.0/data")) {
+		// the data streams and members are independent of the properties,
+		// request them concurrently
+		log.debug("list datastreams and members of " + pid);
+		dsFuture = fc.listDataStreamsAsync(pid);
+		memberFuture = fc.listChildrenAsync(pid);
+
+		// all properties of the object in one round trip
+		log.debug("list properties of " + pid);
+		properties = loadProperties(pid);
+		if (properties == null) {
+			properties = new HashMap<String, String>();
+		}
+
+		if (properties.containsKey("http://www.jcp.org/jcr/1.0/data")) {
 			// only nt:resource node has jcr:data
 			state.setNodeTypeName(NameFactoryImpl.getInstance().create("{http://www.jcp.org/jcr/nt/1.0}resource"));
 		}
@@ -676,8 +1028,7 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		state.setModCount((short) 0);			
 		state.addPropertyName(NameFactoryImpl.getInstance().create("{http://www.jcp.org/jcr/1.0}primaryType"));
 
-		log.debug("list datastreams of " + pid);
-		dsList = fc.listDataStreams(pid);
+		dsList = FedoraConnector.getResult(dsFuture);
 
 		if (dsList == null) {
 			// policy???
@@ -685,14 +1036,6 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 			return;
 		}
 
-		Map<String, String> map;
-
-		map = dsNameMap.get(nodeID);
-		if (map == null) {
-			map = new HashMap<String, String>();
-			dsNameMap.put(nodeID, map);
-		}
-
 		for (DataStream ds : dsList) {
 			if (ds.id.equals("DC") || ds.id.equals("RELS-EXT")) {
 				// skip the built-in datastreams since they should not
@@ -701,21 +1044,17 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 			}
 
 			// add a child node of DC
-			if (map.get(ds.id) != null) {
-				uuid = map.get(ds.id);
-			}
-			else {
-				uuid = new NodeId().toString(); // UUID.randomUUID();
+			uuid = registry.getDataStreamNode(nodeID, ds.id);
+			if (uuid == null) {
+				uuid = registry.putDataStreamName(nodeID, ds.id,
+					getDataStreamUUID(nodeID, ds.id));
 			}
 
 			// associate the UUID with the data stream object
-			if (map.get(ds.id) == null) {
-				ds.setUUID(uuid);
-				map.put(ds.id, uuid);
-			}
+			ds.setUUID(uuid);
 			
 			// link to its parent (do) ID
-			dsMap.put(uuid.toString(), nodeID);
+			registry.putDataStreamParent(uuid.toString(), nodeID);
 
 			// name
 			name = NameFactoryImpl.getInstance().create("{}" + 
@@ -724,44 +1063,30 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 			state.addChildNodeEntry(name, new NodeId(uuid));
 		}
 
-		log.debug("list members of " + pid);
-		memberList = fc.listMembers(pid, null);
-
-		if (getJCRPath(nodeID) != null) {
-			// create children map
-			cleanChildrenMap();
-			getChildrenMap(nodeID);
-		}
+		memberList = FedoraConnector.getResult(memberFuture);
 
 		if (memberList != null) {
-			for (String memberPID : memberList) {
+			for (Member member : memberList) {
+				String memberPID = member.pid;
+
 				// add a child node
-				if (fc.existsProperty(memberPID, 
-									  "http://www.jcp.org/jcr/1.0/uuid")) {
+				if (member.uuid != null) {
 					// use the UUID in the property jcr:uuid
-
-					String propertyValue = fc.getProperty(memberPID, 
-														  "http://www.jcp.org/jcr/1.0/uuid");
-					String [] parts = propertyValue.split("%57");
-					// type, number of values, definitionID, modCount
-					propertyValue = parts[4];
-							
-					uuid = propertyValue;
+					uuid = member.uuid;
 				}
-				else if (getChildUUID(escapePID(memberPID)) != null) {
-					uuid = getChildUUID(escapePID(memberPID));
+				else if (getChildUUID(nodeID, escapePID(memberPID)) != null) {
+					uuid = getChildUUID(nodeID, escapePID(memberPID));
 				}
 				else {
-					uuid = new NodeId().toString(); // UUID.randomUUID();
+					uuid = getMemberUUID(nodeID, memberPID);
 				}
 
 				String namespaceURI = "";
 
 				// add to sling node list
 				// if (isSlingNode(memberPID)) {
-				if (! isSlingNode(memberPID)) {				
-					// slingNodeList.add(uuid.toString());
-					fedoraNodeList.add(uuid.toString());
+				if (! member.sling) {				
+					registry.addFedoraNode(uuid.toString());
 					namespaceURI = FEDORA_NAMESPACE_URI;
 				}
 
@@ -782,27 +1107,20 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 				// uuid
 				state.addChildNodeEntry(name, new NodeId(uuid));
 			}
-
-			cleanChildrenMap();
-		}
-
-		log.debug("list properties of " + pid);
-		propertyList = fc.listProperties(pid);
-
-		if (propertyList == null) {
-			return;
 		}
 
-		for (String propertyURI : propertyList) {
+		for (String propertyURI : properties.keySet()) {
+			if (propertyURI.startsWith("info:fedora/")) {
+				// ignore Fedora predicates
+				continue;
+			}
 			if (propertyURI.equals("http://sling.apache.org/jcr/sling/1.0/NodeReferences")) {
 				// reserved for node references
 				continue;
 			}
 			if (propertyURI.equals("http://sling.apache.org/jcr/sling/1.0/MixinTypes")) {
 				// reserved for mixin types
-				String s = 
-					fc.getProperty(pid, 
-								   "http://sling.apache.org/jcr/sling/1.0/MixinTypes");
+				String s = properties.get(propertyURI);
 				String [] parts = s.split("%57");
 				int numTypes= Integer.parseInt(parts[0].replaceAll("\"", ""));
 				Set set = new HashSet(numTypes);
@@ -847,19 +1165,14 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 
 		// add a child node of jcr:content
 
-		for (String key : contentMap.keySet()) {
-			if (contentMap.get(key).equals(id)) {
-				uuid = key;
-				break;
-			}
-		}
+		uuid = registry.getContent(id);
 
 		if (uuid == null) {
-			uuid = new NodeId().toString(); // UUID.randomUUID();
+			uuid = getNameUUID(id + "/jcr:content");
 		}
 
 		// link to its parent (DS) ID
-		contentMap.put(uuid.toString(), id);
+		registry.putContentParent(uuid.toString(), id);
 
 		// name
 		name = NameFactoryImpl.getInstance().create("{http://www.jcp.org/jcr/1.0}content");
@@ -891,15 +1204,36 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 
 	/**
 	 * Loads the specified node into a <code>NodeState</code> object.
+	 * Only loads of the same node (or nodes in the same lock stripe)
+	 * are serialized.
+	 *
+	 * @param id the <code>NodeId</code> object representing the node
+	 * @return the <code>NodeState</code> object
+	 */
+	public NodeState load(NodeId id)
+			throws NoSuchItemStateException, ItemStateException {
+		ReentrantLock lock = getNodeLock(id.toString());
+
+		lock.lock();
+		try {
+			return loadNodeState(id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Loads the specified node into a <code>NodeState</code> object while
+	 * holding the lock of the node.
 	 *
 	 * @param id the <code>NodeId</code> object representing the node
 	 * @return the <code>NodeState</code> object
 	 */
-	public synchronized NodeState load(NodeId id)
+	private NodeState loadNodeState(NodeId id)
 			throws NoSuchItemStateException, ItemStateException {
 		String doUUID;
 		String dsUUID;
-		String [] pidList;
+		Member [] memberList;
 
 		if (!initialized) {
 			throw new IllegalStateException("not initialized");
@@ -910,25 +1244,23 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		String nodeID = state.getNodeId().toString();
 
 		// load from pending node if pending
-		for (String s : pendingNodeMap.keySet()) {
-			NodeState ns = pendingNodeMap.get(s);
-			if (ns.getNodeId().toString().equals(id.toString())) {
-				state.setNodeTypeName(ns.getNodeTypeName());
-				state.setParentId(ns.getParentId());
-				// state.setDefinitionId(ns.getDefinitionId());
-				state.setModCount((short) 0);			
-				
-				Collection c = ns.getChildNodeEntries();
-				for (Iterator iter = c.iterator(); iter.hasNext();) {
-					ChildNodeEntry entry = (ChildNodeEntry) iter.next();
-					NodeId nodeid = entry.getId();
-					Name name = entry.getName();
-
-					state.addChildNodeEntry(name, nodeid);
-				}
+		NodeState ns = pending.getNode(nodeID);
+		if (ns != null) {
+			state.setNodeTypeName(ns.getNodeTypeName());
+			state.setParentId(ns.getParentId());
+			// state.setDefinitionId(ns.getDefinitionId());
+			state.setModCount((short) 0);			
+			
+			Collection c = ns.getChildNodeEntries();
+			for (Iterator iter = c.iterator(); iter.hasNext();) {
+				ChildNodeEntry entry = (ChildNodeEntry) iter.next();
+				NodeId nodeid = entry.getId();
+				Name name = entry.getName();
 
-				return state;
+				state.addChildNodeEntry(name, nodeid);
 			}
+
+			return state;
 		}
 
 
@@ -962,47 +1294,32 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 			state.addChildNodeEntry(name, new NodeId("deadbeef-cafe-babe-cafe-babecafebabe"));
 
 			// get the list of all first-level objects
-			pidList = null;
-			try {
-				pidList = fc.listObjectsRI(null);
-			} catch (Exception e) {
-
-			}
-
-			if (getJCRPath(nodeID) != null) {
-				// create children map
-				cleanChildrenMap();
-				getChildrenMap(nodeID);
+			memberList = fc.listChildren(null);
+			if (memberList == null) {
+				memberList = new Member [0];
 			}
 
 			// put each of the Fedora digital objects as child node of root
-			for (String pid : pidList) {
+			for (Member member : memberList) {
+				String pid = member.pid;
 				String uuid;
 
-				if (fc.existsProperty(pid, 
-									  "http://www.jcp.org/jcr/1.0/uuid")) {
+				if (member.uuid != null) {
 					// use the UUID in the property jcr:uuid
-
-					String propertyValue = fc.getProperty(pid, 
-														  "http://www.jcp.org/jcr/1.0/uuid");
-					String [] parts = propertyValue.split("%57");
-					// type, number of values, definitionID, modCount
-					propertyValue = parts[4];
-
-					uuid = propertyValue;
+					uuid = member.uuid;
 				}
-				else if (getChildUUID(escapePID(pid)) != null) {
+				else if (getChildUUID(nodeID, escapePID(pid)) != null) {
 					// make sure the UUID stays the same over multiple loading
-					uuid = getChildUUID(escapePID(pid));
+					uuid = getChildUUID(nodeID, escapePID(pid));
 				}
 				else {
-					uuid = new NodeId().toString(); // UUID.randomUUID();
+					uuid = getMemberUUID(nodeID, pid);
 				}
 
 				String namespaceURI = "";
 
-				if (! isSlingNode(pid)) {
-					fedoraNodeList.add(uuid.toString());
+				if (! member.sling) {
+					registry.addFedoraNode(uuid.toString());
 					namespaceURI = FEDORA_NAMESPACE_URI;
 				}
 
@@ -1018,7 +1335,6 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 
 			// put the root node
 			putJCRPath(nodeID, "", null);
-			cleanChildrenMap();
 		}
 		else {
 			// regular nodes (non-system and non-root)
@@ -1031,7 +1347,7 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 			}
 			else {
 				// not a digital object node
-				doUUID = dsMap.get(nodeID);
+				doUUID = registry.getDataStreamParent(nodeID);
 
 				if (doUUID != null) {
 					// a data stream node
@@ -1039,7 +1355,7 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 				}
 				else {
 					// not a data stream node
-					dsUUID = contentMap.get(nodeID);
+					dsUUID = registry.getContentParent(nodeID);
 
 					if (dsUUID != null) {
 						// a jcr:content:node
@@ -1057,13 +1373,152 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		return state;
 	}
 
+	/**
+	 * Creates the value of a data stream. The content is requested once
+	 * and read up to the spill threshold; content that fits is held in
+	 * memory (as a string for text streams such as DC). For larger
+	 * content the request is dropped if the server announced its length,
+	 * and the value becomes a lazy binary value that streams from Fedora
+	 * only when it is read; larger content of unknown length is streamed
+	 * once into a temporary file.
+	 *
+	 * @param pid pid of the object
+	 * @param dsID id of the data stream
+	 * @param mimeType MIME type of the data stream
+	 * @return value of the data stream content
+	 */
+	private InternalValue loadDataStreamValue(String pid, String dsID,
+											  String mimeType)
+		throws Exception
+	{
+		long size;
+		DataStreamInputStream in;
+		ByteArrayOutputStream head;
+		byte [] buffer;
+		int n;
+
+		in = fc.openDataStream(pid, dsID);
+		if (in == null) {
+			throw new IOException("failed to open data stream");
+		}
+
+		buffer = BufferPool.acquire();
+		try {
+			// read up to the threshold in memory
+			head = new ByteArrayOutputStream();
+			while (head.size() <= spillThreshold &&
+				   (n = in.read(buffer)) > 0) {
+				head.write(buffer, 0, n);
+			}
+
+			if (head.size() <= spillThreshold) {
+				if (mimeType != null && mimeType.startsWith("text/")) {
+					// text stream such as DC
+					return InternalValue.valueOf(head.toString("UTF-8"), 1);
+				}
+				else {
+					// other (image, audio, etc.)
+					return InternalValue.create(head.toByteArray());
+				}
+			}
+
+			size = in.getLength();
+			if (size >= 0) {
+				// closing aborts the rest of the transfer
+				log.debug("lazy data stream " + dsID + " of " + pid + 
+						  ": " + size + " bytes");
+				return InternalValue.create(dsFileSystem.getResource(pid, dsID, size));
+			}
+
+			// size is unknown and the content is large
+			return spill(head, in);
+		} finally {
+			BufferPool.release(buffer);
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes content to a temporary file and returns a binary value
+	 * backed by it, so that the content does not stay on the heap. The
+	 * file is deleted when the value is deleted, or at the latest when
+	 * the persistence manager is closed.
+	 *
+	 * @param head content already read
+	 * @param in rest of the content
+	 * @return value backed by the temporary file
+	 */
+	private InternalValue spill(ByteArrayOutputStream head, InputStream in)
+		throws IOException
+	{
+		File file;
+		OutputStream out;
+
+		file = File.createTempFile("fedora-spill-", null, spillDirectory);
+		spillFiles.put(file, Boolean.TRUE);
+
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(file),
+										   BufferPool.BUFFER_SIZE);
+			try {
+				head.writeTo(out);
+				BufferPool.copy(in, out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			deleteSpillFile(file);
+			throw e;
+		}
+
+		log.debug("spilled data stream to " + file.getPath());
+
+		return InternalValue.create(new SpillResource(file));
+	}
+
+	/**
+	 * Deletes a spilled file, unless it is already deleted.
+	 *
+	 * @param file the spilled file
+	 */
+	private void deleteSpillFile(File file)
+	{
+		if (spillFiles.remove(file) != null && 
+			! file.delete() && file.exists()) {
+			log.warn("failed to delete spilled file " + file.getPath());
+		}
+	}
+
+	/**
+	 * Resource of a spilled data stream. Its file is deleted with the
+	 * value, or with the other spilled files when the persistence
+	 * manager is closed.
+	 */
+	private class SpillResource extends FileSystemResource {
+		/** the spilled file */
+		private final File file;
+
+		SpillResource(File file)
+		{
+			super(spillFileSystem, FileSystem.SEPARATOR + file.getName());
+			this.file = file;
+		}
+
+		public void delete(boolean pruneEmptyParentDirs)
+			throws FileSystemException
+		{
+			// the spill directory is shared, never prune it
+			deleteSpillFile(file);
+		}
+	}
+
 	/**
 	 * Loads the specified property into a <code>PropertyState</code> object.
 	 *
 	 * @param id the <code>PropertyId</code> object representing the property
 	 * @return the <code>PropertyState</code> object
 	 */
-	public synchronized PropertyState load(PropertyId id)
+	public PropertyState load(PropertyId id)
 			throws NoSuchItemStateException, ItemStateException 
 	{
 		int index;
@@ -1073,8 +1528,8 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		String dsID; // "DC" for example
 		String dsNodeID; // UUID of the DS Node
 		DataStream dataStream; // DataStream object
-		byte [] bytes;
 		String s;
+		Map<String, String> properties;
 		PropertyState state;
 		InternalValue[] values;
 
@@ -1100,26 +1555,25 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		values = new InternalValue[1];
 
 		// load from pending node if pending
-		for (PropertyState ps : pendingProperties) {
-			if (ps.getPropertyId().toString().equals(id.toString())) {
-				InternalValue[] v = ps.getValues();
-				if (propertyName.equals("{http://www.jcp.org/jcr/1.0}data")) {
-					// BLOBFileValue blobVal = v[0].getBLOBFileValue();
-					try {
-						InputStream in = v[0].getStream(); // blobVal.getStream();
-						values[0] = InternalValue.create(in);
-					} catch (Exception e) {
-						
-					}
-				}
-				else {
-					values[0] = InternalValue.valueOf(v[0].toString(), 1);
+		PropertyState ps = pending.getProperty(id.toString());
+		if (ps != null) {
+			InternalValue[] v = ps.getValues();
+			if (propertyName.equals("{http://www.jcp.org/jcr/1.0}data")) {
+				// BLOBFileValue blobVal = v[0].getBLOBFileValue();
+				try {
+					InputStream in = v[0].getStream(); // blobVal.getStream();
+					values[0] = InternalValue.create(in);
+				} catch (Exception e) {
+					
 				}
-				
-				state.setValues(values);
-				
-				return state;
 			}
+			else {
+				values[0] = InternalValue.valueOf(v[0].toString(), 1);
+			}
+			
+			state.setValues(values);
+			
+			return state;
 		}
 
 		if (nodeID.equals(JR_ROOT_ID) &&
@@ -1137,7 +1591,13 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		if (getJCRPath(nodeID) != null) {
 			// digital object node
 			pid = getPID(nodeID);
-			s = fc.getProperty(pid, getPropertyURI(propertyName));
+			properties = getProperties(pid);
+			if (properties != null) {
+				s = properties.get(getPropertyURI(propertyName));
+			}
+			else {
+				s = fc.getProperty(pid, getPropertyURI(propertyName));
+			}
 
 			if (propertyName.contains("http://purl.org/dc/elements/1.1")) {
 				// Dublin Core properties
@@ -1209,13 +1669,13 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		}
 
 		// data stream node (parent of jcr:content)
-		dsNodeID = contentMap.get(nodeID);
+		dsNodeID = registry.getContentParent(nodeID);
 
 		if (propertyName.equals("{http://www.jcp.org/jcr/1.0}data") ||
 			propertyName.equals("{http://www.jcp.org/jcr/1.0}encoding") ||
 			propertyName.equals("{http://www.jcp.org/jcr/1.0}mimeType") ) {
 			// digital object node (parent of data stream node)
-			nodeID = dsMap.get(dsNodeID);
+			nodeID = registry.getDataStreamParent(dsNodeID);
 		}
 
 		dataStream = DataStream.getDSFromUUID(dsNodeID);
@@ -1253,20 +1713,12 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 			// get data stream
 			pid = getPID(nodeID);
 
-			bytes = fc.getDataStream(pid, dsID);
-
 			try {
-				if (dataStream.mimeType.startsWith("text/")) {
-					// text stream such as DC
-					s = new String(bytes, "UTF-8");
-					values[0] = InternalValue.valueOf(s, 1);
-				}
-				else {
-					// other (image, audio, etc.)
-					values[0] = InternalValue.create(bytes);
-				}
+				values[0] = loadDataStreamValue(pid, dsID, 
+												dataStream.mimeType);
 			} catch (Exception e) {
-
+				log.error("failed to load data stream " + dsID + 
+						  " of " + pid, e);
 			} 
 		}
 
@@ -1279,11 +1731,11 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 				// digital object node
 				values[0] = InternalValue.valueOf("{http://www.jcp.org/jcr/nt/1.0}unstructured", PropertyType.NAME);
 			}
-			else if (dsMap.get(nodeID) != null) {
+			else if (registry.getDataStreamParent(nodeID) != null) {
 				// data stream node
 				values[0] = InternalValue.valueOf("{http://www.jcp.org/jcr/nt/1.0}file", PropertyType.NAME);
 			}
-			else if (contentMap.get(nodeID) != null) {
+			else if (registry.getContentParent(nodeID) != null) {
 				// content node
 				values[0] = InternalValue.valueOf("{http://www.jcp.org/jcr/nt/1.0}resource", PropertyType.NAME);
 			}
@@ -1299,7 +1751,7 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
     /**
      * {@inheritDoc}
      */
-    public synchronized NodeReferences loadReferencesTo(NodeId id)
+    public NodeReferences loadReferencesTo(NodeId id)
             throws NoSuchItemStateException, ItemStateException {
 		String nodeID, pid;
 		String propertyURI;
@@ -1341,11 +1793,171 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 	}
 
 	/**
-	 * Persists the <code>NodeState</code> object.
+	 * Persists all the changes in the change log. Writers are serialized
+	 * on the monitor of the persistence manager, so changes are applied
+	 * to Fedora in the order they are committed, while reads proceed
+	 * without it.
+	 *
+	 * The items are first visited in order to resolve the objects they
+	 * belong to, which queues the resulting Fedora writes per object.
+	 * The objects are then written parent before member, independent
+	 * objects concurrently. Fedora has no transactions: if a write fails
+	 * the save fails, but objects already written are not rolled back.
+	 *
+	 * @param changeLog the <code>ChangeLog</code> object
+	 */
+	public synchronized void store(ChangeLog changeLog)
+			throws ItemStateException {
+		batch = new WriteBatch();
+
+		try {
+			super.store(changeLog);
+
+			batch.execute(writeExecutor);
+		} catch (ItemStateException e) {
+			throw e;
+		} catch (Exception e) {
+			String msg = "error writing to the Fedora server";
+			log.error(msg);
+			throw new ItemStateException(msg, e);
+		} finally {
+			batch = null;
+			// even a failed batch may have written some of the objects
+			modificationCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Gets the number of times writes to Fedora have completed, either a
+	 * change log or an item stored or destroyed on its own. Results read
+	 * from Fedora while the count has not changed are still current, as
+	 * far as this repository can tell.
+	 *
+	 * @return the modification count
+	 */
+	public static long getModificationCount()
+	{
+		return modificationCount.get();
+	}
+
+	/**
+	 * Writes to a digital object, either immediately or as part of the
+	 * change log being stored.
+	 *
+	 * @param pid pid of the object modified by the write
+	 * @param write the write
+	 */
+	private void submit(String pid, WriteBatch.Write write) 
+		throws ItemStateException {
+		if (batch != null) {
+			batch.add(pid, write);
+			return;
+		}
+
+		try {
+			write.run();
+		} catch (ItemStateException e) {
+			throw e;
+		} catch (Exception e) {
+			String msg = "error writing to the Fedora server";
+			log.error(msg);
+			throw new ItemStateException(msg, e);
+		} finally {
+			modificationCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Creates a digital object unless it exists already. An object the
+	 * known objects do not hold may have been created by another client,
+	 * so it is looked up in Fedora before being created.
+	 *
+	 * @param pid pid of the object
+	 */
+	private static void createObjectIfMissing(String pid) throws Exception
+	{
+		if (knownObjects.contains(pid) == Boolean.TRUE) {
+			return;
+		}
+
+		// an object created meanwhile by another client makes the
+		// creation fail with a warning and is then known to exist
+		if (! fc.existsObject(pid)) {
+			fc.createObject(pid);
+		}
+
+		knownObjects.add(pid);
+	}
+
+	/**
+	 * Tests if a digital object exists, asking Fedora only if the known
+	 * objects cannot tell.
+	 *
+	 * @param pid pid of the object
+	 * @return whether the object exists
+	 */
+	private static boolean existsObject(String pid)
+	{
+		Boolean known = knownObjects.contains(pid);
+
+		if (known != null) {
+			return known.booleanValue();
+		}
+
+		if (fc.existsObject(pid)) {
+			knownObjects.add(pid);
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Replaces the value of a property of a digital object.
+	 *
+	 * @param pid pid of the object
+	 * @param propertyURI URI of the property
+	 * @param literal new value
+	 */
+	private static void replaceProperty(String pid, String propertyURI,
+										String literal)
+	{
+		if (fc.existsProperty(pid, propertyURI)) {
+			fc.deleteProperty(pid, propertyURI);
+		}
+
+		fc.addProperty(pid, propertyURI, literal);
+		invalidateProperties(pid);
+	}
+
+	/**
+	 * Persists the <code>NodeState</code> object, holding the lock of the
+	 * node so that the IDs and pending items it updates do not
+	 * interleave with a load of the same node. Within a change log the
+	 * lock only covers queueing the writes: they run later, when the
+	 * batch is executed, and a load meanwhile may see the object partly
+	 * written, as Fedora has no transactions. Each write of properties
+	 * invalidates their cached snapshot, so none survives it.
 	 *
 	 * @param state the <code>NodeState</code> object
 	 */
 	protected void store(NodeState state) throws ItemStateException {
+		ReentrantLock lock = getNodeLock(state.getNodeId().toString());
+
+		lock.lock();
+		try {
+			storeNodeState(state);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Persists the <code>NodeState</code> object.
+	 *
+	 * @param state the <code>NodeState</code> object
+	 */
+	private void storeNodeState(NodeState state) throws ItemStateException {
 		if (!initialized) {
 			throw new IllegalStateException("not initialized");
 		}
@@ -1371,10 +1983,9 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 													  + 1), null);
 
 				// flush if pending
-				NodeState st = pendingNodeMap.get(uuid);
+				NodeState st = pending.removeNode(uuid);
 				if (st != null) {
 					store(st);
-					pendingNodeMap.remove(uuid);
 				}
 			}
 
@@ -1407,10 +2018,10 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 
 				log.debug("child " + dsID);
 				if (getJCRPath(uuid) == null) {
-					if (dsMap.get(uuid) != null) {
+					if (registry.getDataStreamParent(uuid) != null) {
 						// data stream node
 						// associate the ds node with its parent do node
-						dsMap.put(uuid, nodeID);
+						registry.putDataStreamParent(uuid, nodeID);
 
 						// create a data stream
 						if (DataStream.getDSFromUUID(uuid) == null) {
@@ -1427,32 +2038,30 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 
 			if (pid == null) {
 				// not in map yet, add to the pending node list
-				pendingNodeMap.put(nodeID, state);
+				pending.putNode(nodeID, state);
 			
 				return;
 			}
 
+			final String objectPID = pid;
+
 			// persist (the digital object) to Fedora repository if it does
 			// not exist already
-			try {
-				if (! fc.existsObject(pid)) {
-					fc.createObject(pid);
-				}
-			} catch (Exception e) {
-				String msg = "error connecting to the Fedora server";
-				log.error(msg);
-				throw new ItemStateException(msg, e);
-			}
+			submit(pid, new WriteBatch.Write() {
+					public void run() throws Exception {
+						createObjectIfMissing(objectPID);
+					}
+				});
 
 			// flush its children (DS nodes)
 			for (Iterator iter = c.iterator(); iter.hasNext();) {
 				ChildNodeEntry entry = (ChildNodeEntry) iter.next();
 				String uuid = entry.getId().toString();
 				String childID = entry.getName().toString();
-				NodeState st = pendingNodeMap.get(uuid);
+				NodeState st = pending.removeNode(uuid);
 
 
-				if (getJCRPath(uuid) == null && dsMap.get(uuid) == null) {
+				if (getJCRPath(uuid) == null && registry.getDataStreamParent(uuid) == null) {
 					// child do node
 					putJCRPath(uuid, childID.substring(childID.indexOf("}") + 1),
 							   nodeID);
@@ -1460,27 +2069,27 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 
 				if (st != null) {
 					store(st);
-					pendingNodeMap.remove(uuid);
 				}
 
-				String cpid = getPID(uuid);
+				final String cpid = getPID(uuid);
 
 				if (cpid != null) {
 					// also a digital object
 					// persist (the digital object) to Fedora repository if it does
-					// not exist already
-					try {
-						if (! fc.existsObject(cpid)) {
-							fc.createObject(cpid);
-						}
-					} catch (Exception e) {
-						String msg = "error connecting to the Fedora server";
-						log.error(msg);
-						throw new ItemStateException(msg, e);
+					// not exist already, once its parent is written
+					submit(cpid, new WriteBatch.Write() {
+							public void run() throws Exception {
+								createObjectIfMissing(cpid);
+
+								log.debug("add relationship " + objectPID + 
+										  ", " + cpid);
+								fc.addMember(objectPID, cpid);
+							}
+						});
+
+					if (batch != null) {
+						batch.addDependency(cpid, objectPID);
 					}
-
-					log.debug("add relationship " + pid + ", " + cpid);
-					fc.addMember(pid, cpid);
 				}
 			}
 
@@ -1491,22 +2100,20 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 				storedString += "%57" + iter.next().toString();   // name
 			}
 
-			// URI of the property
-			String propertyURI = "http://sling.apache.org/jcr/sling/1.0/MixinTypes";
-			if (fc.existsProperty(pid, propertyURI)) {
-				fc.deleteProperty(pid, propertyURI);
-			}
+			final String mixinString = storedString;
 
-			fc.addProperty(pid, propertyURI, storedString);
+			// URI of the property
+			submit(pid, new WriteBatch.Write() {
+					public void run() {
+						replaceProperty(objectPID, 
+							"http://sling.apache.org/jcr/sling/1.0/MixinTypes",
+							mixinString);
+					}
+				});
 
 			// flush its children (DO properties)
-			for (Iterator<PropertyState> it = pendingProperties.iterator();
-				 it.hasNext();) {
-				PropertyState st = it.next();
-				if (st.getParentId().toString().equals(nodeID)) {
-					store(st);
-					it.remove();
-				}
+			for (PropertyState st : pending.removeProperties(nodeID)) {
+				store(st);
 			}
 		}
 		else if (nodeType.equals("{http://www.jcp.org/jcr/nt/1.0}file")) {
@@ -1521,20 +2128,16 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 				String uuid = entry.getId().toString();
 
 				// associate the content node with its parent ds node
-				if (contentMap.get(uuid) == null) {
-					contentMap.put(uuid, nodeID);
-				}
+				registry.putContentParent(uuid, nodeID);
 			}
 
 			log.debug("nt:file node: " + nodeID);
 
-			if (dsMap.get(nodeID) == null) {
+			if (registry.getDataStreamParent(nodeID) == null) {
 				// not hooked up with its parent yet
-				dsMap.put(nodeID, "");
+				registry.putDataStreamParent(nodeID, "");
 
-				if (pendingNodeMap.get(nodeID) == null) {
-					pendingNodeMap.put(nodeID, state);
-					
+				if (pending.putNodeIfAbsent(nodeID, state)) {
 					return;
 				}
 			}
@@ -1543,51 +2146,35 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 			for (Iterator iter = c.iterator(); iter.hasNext();) {
 				ChildNodeEntry entry = (ChildNodeEntry) iter.next();
 				String uuid = entry.getId().toString();
-				NodeState st = pendingNodeMap.get(uuid);
+				NodeState st = pending.removeNode(uuid);
 				if (st != null) {
 					store(st);
-					pendingNodeMap.remove(uuid);
 				}
 			}
 
 			// flush its children (nt:file properties)
-			for (Iterator<PropertyState> it = pendingProperties.iterator();
-				 it.hasNext();) {
-				PropertyState st = it.next();
-				if (st.getParentId().toString().equals(nodeID)) {
-					// simply remove it since no nt:file property is supported
-					it.remove();
-				}
-			}
+			// simply remove them since no nt:file property is supported
+			pending.removeProperties(nodeID);
 		}
 		else if (nodeType.equals("{http://www.jcp.org/jcr/nt/1.0}resource")) {
 			// jcr:content node, do not persist 
 			// (only the jcr:data property is persisted)
 
-			if (contentMap.get(nodeID) == null ||
-				dsMap.get(contentMap.get(nodeID)).equals("")) {
+			if (registry.getContentParent(nodeID) == null ||
+				registry.getDataStreamParent(registry.getContentParent(nodeID)).equals("")) {
 				// not hooked up with its parent yet
-				if (pendingNodeMap.get(nodeID) == null) {
-					pendingNodeMap.put(nodeID, state);
-				}					
-					return;
-					// }
+				pending.putNodeIfAbsent(nodeID, state);
+
+				return;
 			}
 
 			// flush its children (jcr:data properties)
-			for (Iterator<PropertyState> it = pendingProperties.iterator();
-				 it.hasNext();) {
-				PropertyState st = it.next();
-				log.debug("flushing: " + st.getId().toString());
-				log.debug("DS node ID: " + contentMap.get(nodeID));
-				log.debug("DO node ID: " + dsMap.get(contentMap.get(nodeID)));
-				if (st.getParentId().toString().equals(nodeID)) {
-					log.debug("Storing pending property: " + 
-									   st.getId().toString());
-					store(st);
-					
-					it.remove();
-				}
+			log.debug("DS node ID: " + registry.getContentParent(nodeID));
+			log.debug("DO node ID: " + registry.getDataStreamParent(registry.getContentParent(nodeID)));
+			for (PropertyState st : pending.removeProperties(nodeID)) {
+				log.debug("Storing pending property: " + 
+						  st.getId().toString());
+				store(st);
 			}
 		}
 	}
@@ -1605,8 +2192,6 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		int index;
 		String nodeID, propertyName, pid;
 		String dsID;
-		String mimeType;
-		String propertyURI;
 		String storedString;
 		InternalValue[] values = state.getValues();
 		PropertyId id = state.getPropertyId();
@@ -1629,17 +2214,25 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 
 		if (getJCRPath(nodeID) != null) {
 			// digital object node
-			pid = getPID(nodeID);
-			log.debug("pid: " + pid);
-			propertyURI = getPropertyURI(propertyName);
-			if (fc.existsProperty(pid, propertyURI)) {
-				fc.deleteProperty(pid, propertyURI);
-			}
+			final String objectPID = getPID(nodeID);
+			final String uri = getPropertyURI(propertyName);
 
-			if (propertyURI.contains("http://purl.org/dc/elements/1.1")) {
+			log.debug("pid: " + objectPID);
+
+			if (uri.contains("http://purl.org/dc/elements/1.1")) {
 				// Dublin Core properties
-				index = propertyURI.lastIndexOf("/");
-				fc.modifyDCField(pid, propertyURI.substring(index + 1), values[0].toString());
+				final String field = uri.substring(uri.lastIndexOf("/") + 1);
+				final String value = values[0].toString();
+
+				submit(objectPID, new WriteBatch.Write() {
+						public void run() {
+							if (fc.existsProperty(objectPID, uri)) {
+								fc.deleteProperty(objectPID, uri);
+							}
+							fc.modifyDCField(objectPID, field, value);
+							invalidateProperties(objectPID);
+						}
+					});
 				return;
 			}
 
@@ -1655,23 +2248,29 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 				storedString += "%57" + values[i].toString();
 			}
 
-			fc.addProperty(pid, propertyURI, storedString);
+			final String literal = storedString;
+
+			submit(objectPID, new WriteBatch.Write() {
+					public void run() {
+						replaceProperty(objectPID, uri, literal);
+					}
+				});
 			return;
 		}
 
-		if (contentMap.get(nodeID) == null &&
-			dsMap.get(nodeID) == null) {
-			pendingProperties.add(state);
+		if (registry.getContentParent(nodeID) == null &&
+			registry.getDataStreamParent(nodeID) == null) {
+			pending.addProperty(state);
 			return;
 		}
 
-		if (dsMap.get(nodeID) != null) {
+		if (registry.getDataStreamParent(nodeID) != null) {
 			// nt:file (data stream) node
 			return;
 		}
 
 		// jcr:content node
-		pid = getPID(dsMap.get(contentMap.get(nodeID)));
+		pid = getPID(registry.getDataStreamParent(registry.getContentParent(nodeID)));
 
 		log.debug("pid: " + pid);
 
@@ -1679,7 +2278,7 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		if (pid == null) {
 			// not in map yet
 			log.debug("should not happen");
-			pendingProperties.add(state);
+			pending.addProperty(state);
 			
 			return;
 		}
@@ -1688,56 +2287,57 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 
 		}
 		else if (propertyName.equals("{http://www.jcp.org/jcr/1.0}mimeType") ) {
-			DataStream.getDSFromUUID(contentMap.get(nodeID)).setMIMEType(values[0].toString());
+			DataStream.getDSFromUUID(registry.getContentParent(nodeID)).setMIMEType(values[0].toString());
 		}
 		else if (propertyName.equals("{http://www.jcp.org/jcr/1.0}data")) {
-			String tmpFile = "fedora-upload-";
-			// BLOBFileValue blobVal = values[0].getBLOBFileValue();
-			try {
-				InputStream in = values[0].getStream(); // blobVal.getStream();
-				File f = new File(tmpFile);
-				OutputStream out = new FileOutputStream(f);
-				byte buf[] = new byte[1024];
-				int len;
-				while ((len = in.read(buf)) > 0) {
-					out.write(buf, 0, len);
-				}
-				out.close();
-				in.close();
-
-				dsID = DataStream.getDSFromUUID(contentMap.get(nodeID)).id;
-				dsID = dsID.substring(dsID.indexOf("}") + 1);
-
-				if (dsID.startsWith("._")) {
-					// ignore
-					log.debug("ignore data stream " + dsID);
-					return;
-				}
-
-				dsID = unescapeDSID(dsID);
-				mimeType = 
-					DataStream.getDSFromUUID(contentMap.get(nodeID)).mimeType;
-
-				log.debug("adding data stream " + dsID + " of MIME type " + mimeType);
-
-				if (fc.existsDataStream(pid, dsID)) {
-					// do not overwrite existing data stream
-					// return;
-					log.debug("deleting data stream: " + dsID);
-					fc.deleteDataStream(pid, dsID);
-				}
+			dsID = DataStream.getDSFromUUID(registry.getContentParent(nodeID)).id;
+			dsID = dsID.substring(dsID.indexOf("}") + 1);
 
-				fc.addDataStream(pid, 
-								 dsID,
-								 mimeType,
-								 // values[0].toString().getBytes());
-								 tmpFile);
-			} catch (Exception e) {
-				String msg = "error adding data stream";
-				log.error(msg);
-				throw new ItemStateException(msg, e);
+			if (dsID.startsWith("._")) {
+				// ignore
+				log.debug("ignore data stream " + dsID);
+				return;
 			}
-                
+
+			final String objectPID = pid;
+			final String streamID = unescapeDSID(dsID);
+			final String streamType = 
+				DataStream.getDSFromUUID(registry.getContentParent(nodeID)).mimeType;
+			final InternalValue value = values[0];
+
+			submit(pid, new WriteBatch.Write() {
+					public void run() throws Exception {
+						InputStream in = null;
+
+						log.debug("adding data stream " + streamID + 
+								  " of MIME type " + streamType);
+
+						try {
+							if (fc.existsDataStream(objectPID, streamID)) {
+								// do not overwrite existing data stream
+								// return;
+								log.debug("deleting data stream: " + streamID);
+								fc.deleteDataStream(objectPID, streamID);
+							}
+
+							// stream the value straight to Fedora
+							in = value.getStream();
+							fc.addDataStream(objectPID, streamID, streamType, 
+											 in, value.getLength());
+						} catch (Exception e) {
+							String msg = "error adding data stream";
+							log.error(msg);
+							throw new ItemStateException(msg, e);
+						} finally {
+							if (in != null) {
+								try {
+									in.close();
+								} catch (IOException e) {
+								}
+							}
+						}
+					}
+				});
 		}
 		else {
 			// not supported
@@ -1765,9 +2365,6 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		pid = getPID(nodeID);
 		// URI of the property
 		propertyURI = "http://sling.apache.org/jcr/sling/1.0/NodeReferences";
-		if (fc.existsProperty(pid, propertyURI)) {
-			fc.deleteProperty(pid, propertyURI);
-		}
 
         // references
         c = refs.getReferences();
@@ -1780,7 +2377,15 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
             storedString += "%57" + propId.toString();   // propertyId
         }
 
-		fc.addProperty(pid, propertyURI, storedString);
+		final String objectPID = pid;
+		final String uri = propertyURI;
+		final String literal = storedString;
+
+		submit(pid, new WriteBatch.Write() {
+				public void run() {
+					replaceProperty(objectPID, uri, literal);
+				}
+			});
 	}
 
 	/**
@@ -1819,11 +2424,19 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 				pid = "sling:" + pid;
 			}
 
+			final String objectPID = pid;
+
 			// delete from Fedora repository if it exists
-			if (fc.existsObject(pid)) {
-				log.debug("deleting digital object: " + pid);
-				fc.deleteObject(pid);
-			}
+			submit(pid, new WriteBatch.Write() {
+					public void run() {
+						if (existsObject(objectPID)) {
+							log.debug("deleting digital object: " + objectPID);
+							fc.deleteObject(objectPID);
+							knownObjects.remove(objectPID);
+						}
+						invalidateProperties(objectPID);
+					}
+				});
 		}
 		else if (nodeType.equals("{http://www.jcp.org/jcr/nt/1.0}file")) {
 			// data stream node
@@ -1849,7 +2462,6 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		String dsID;
 		String mimeType;
 		PropertyId id = state.getPropertyId();
-		String propertyURI;
 
 		index = id.toString().indexOf("/");
 		nodeID = id.toString().substring(0, index);
@@ -1860,32 +2472,38 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 
 		if (getJCRPath(nodeID) != null) {
 			// digital object node
-			pid = getPID(nodeID);
-			propertyURI = getPropertyURI(propertyName);
-			fc.deleteProperty(pid, propertyURI);
+			final String objectPID = getPID(nodeID);
+			final String uri = getPropertyURI(propertyName);
+
+			submit(objectPID, new WriteBatch.Write() {
+					public void run() {
+						fc.deleteProperty(objectPID, uri);
+						invalidateProperties(objectPID);
+					}
+				});
 			return;
 		}
 
-		if (dsMap.get(nodeID) != null) {
+		if (registry.getDataStreamParent(nodeID) != null) {
 			// nt:file (data stream node)
 			return;
 		}
 
 		// jcr:content node
-		pid = getPID(dsMap.get(contentMap.get(nodeID)));
+		pid = getPID(registry.getDataStreamParent(registry.getContentParent(nodeID)));
 
 		// non-root and non-system
 		if (pid == null) {
 			// not in map yet
 			// should not happen
-			// pendingProperties.add(state);
+			// pending.addProperty(state);
 			log.debug("null pid!!!");
 			
 			return;
 		}
 
 		if (propertyName.equals("{http://www.jcp.org/jcr/1.0}data")) {
-			dsID = DataStream.getDSFromUUID(contentMap.get(nodeID)).id;
+			dsID = DataStream.getDSFromUUID(registry.getContentParent(nodeID)).id;
 			dsID = dsID.substring(dsID.indexOf("}") + 1);
 
 			if (dsID.startsWith("._")) {
@@ -1902,14 +2520,21 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 				return;
 			}
 
-			try {
-				if (fc.existsDataStream(pid, dsID)) {
-					log.debug("deleting data stream: " + dsID);
-					fc.deleteDataStream(pid, dsID);
-				}
-			} catch (Exception e) {
-				log.error("error deleting data stream " + dsID, e);
-			}
+			final String objectPID = pid;
+			final String streamID = dsID;
+
+			submit(pid, new WriteBatch.Write() {
+					public void run() {
+						try {
+							if (fc.existsDataStream(objectPID, streamID)) {
+								log.debug("deleting data stream: " + streamID);
+								fc.deleteDataStream(objectPID, streamID);
+							}
+						} catch (Exception e) {
+							log.error("error deleting data stream " + streamID, e);
+						}
+					}
+				});
 		}
 	}
 
@@ -1932,11 +2557,12 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 	 * @param id the <code>PropertyId</code> object that represents the property
 	 * @return whether the property exists
 	 */
-	public synchronized boolean exists(PropertyId id) throws ItemStateException
+	public boolean exists(PropertyId id) throws ItemStateException
 	{
 		int index;
 		String nodeID, propertyName;
 		String pid;
+		Map<String, String> properties;
 
 		if (!initialized) {
 			throw new IllegalStateException("not initialized");
@@ -1954,7 +2580,7 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 			return false;
 		}
 
-		if (contentMap.get(nodeID) != null) {
+		if (registry.getContentParent(nodeID) != null) {
 			// jcr:content node
 			if ((propertyName.equals("{http://www.jcp.org/jcr/1.0}data") ||
 				 propertyName.equals("{http://www.jcp.org/jcr/1.0}encoding") ||
@@ -1965,7 +2591,7 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 				return false;
 			}
 		}
-		if (dsMap.get(nodeID) != null) {
+		if (registry.getDataStreamParent(nodeID) != null) {
 			// data stream node
 			if (propertyName.equals("{http://www.jcp.org/jcr/1.0}primaryType")) {
 				return true;
@@ -1981,7 +2607,17 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 			if (propertyName.equals("{http://www.jcp.org/jcr/1.0}primaryType")) {
 				return true;
 			}
-			
+
+			if (knownObjects.contains(pid) == Boolean.FALSE) {
+				// not written to Fedora (yet)
+				return false;
+			}
+
+			properties = getProperties(pid);
+			if (properties != null) {
+				return properties.containsKey(getPropertyURI(propertyName));
+			}
+
 			if (fc.existsProperty(pid, getPropertyURI(propertyName))) {
 				return true;
 			}
@@ -2001,7 +2637,7 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 	 * @param id the <code>NodeId</code> object that represents the node
 	 * @return whether the nodes exists
 	 */
-	public synchronized boolean exists(NodeId id) throws ItemStateException {
+	public boolean exists(NodeId id) throws ItemStateException {
 		if (!initialized) {
 			throw new IllegalStateException("not initialized");
 		}
@@ -2016,10 +2652,10 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		if (getPID(id.toString()) != null) {
 			return true;
 		}
-		else if (dsMap.get(id.toString()) != null) {
+		else if (registry.getDataStreamParent(id.toString()) != null) {
 			return true;
 		}
-		else if (contentMap.get(id.toString()) != null) {
+		else if (registry.getContentParent(id.toString()) != null) {
 			return true;
 		}
 		else {
@@ -2030,7 +2666,7 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
     /**
      * {@inheritDoc}
      */
-    public synchronized boolean existsReferencesTo(NodeId id)
+    public boolean existsReferencesTo(NodeId id)
 			throws ItemStateException {
 		String nodeID, pid;
 		String propertyURI;
@@ -2046,6 +2682,10 @@ public class FedoraPersistenceManager extends AbstractPersistenceManager {
 		// URI of the property
 		propertyURI = "http://sling.apache.org/jcr/sling/1.0/NodeReferences";
 		
+		if (pid == null || knownObjects.contains(pid) == Boolean.FALSE) {
+			return false;
+		}
+
 		if (fc.existsProperty(pid, propertyURI)) {
 			return true;
 		}
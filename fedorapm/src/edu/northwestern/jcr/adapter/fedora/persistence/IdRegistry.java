@@ -0,0 +1,369 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p><code>IdRegistry</code> keeps track of the JCR node IDs handed out
+ * for Fedora digital objects, data streams and their content nodes.</p>
+ *
+ * <p>Every association is kept in a concurrent map together with its
+ * reverse (or parent to children) index, so that resolving a child by
+ * name, the content node of a data stream or the kind of a node never
+ * requires scanning the registry.</p>
+ *
+ * @author Xin Xiang
+ */
+class IdRegistry {
+
+	/** map node ID of the digital object node to its full JCR path */
+	private final ConcurrentMap<String, String> pathMap =
+		new ConcurrentHashMap<String, String>();
+
+	/** map digital object node ID to its parent digital object node ID */
+	private final ConcurrentMap<String, String> parentMap =
+		new ConcurrentHashMap<String, String>();
+
+	/** map node ID to its children (relative path to child node ID) */
+	private final ConcurrentMap<String, ConcurrentMap<String, String>> childrenMap =
+		new ConcurrentHashMap<String, ConcurrentMap<String, String>>();
+
+	/** map data stream node ID to its parent digital object node ID */
+	private final ConcurrentMap<String, String> dsMap =
+		new ConcurrentHashMap<String, String>();
+
+	/** map digital object node ID to its data streams (DS name to DS ID) */
+	private final ConcurrentMap<String, ConcurrentMap<String, String>> dsNameMap =
+		new ConcurrentHashMap<String, ConcurrentMap<String, String>>();
+
+	/** map jcr:content node ID to its parent data stream node ID */
+	private final ConcurrentMap<String, String> contentMap =
+		new ConcurrentHashMap<String, String>();
+
+	/** map data stream node ID to its jcr:content node ID */
+	private final ConcurrentMap<String, String> dsContentMap =
+		new ConcurrentHashMap<String, String>();
+
+	/** set of IDs of nodes representing native Fedora objects */
+	private final ConcurrentMap<String, Boolean> fedoraNodeSet =
+		new ConcurrentHashMap<String, Boolean>();
+
+	/** log recording new associations, null if not persisted */
+	private volatile MappingLog mappingLog;
+
+	/**
+	 * Sets the log that new associations are appended to.
+	 *
+	 * @param mappingLog the log, or null to stop recording
+	 */
+	public void setLog(MappingLog mappingLog)
+	{
+		this.mappingLog = mappingLog;
+	}
+
+	/**
+	 * Tests if new associations are recorded in a log.
+	 *
+	 * @return whether a log is set
+	 */
+	public boolean hasLog()
+	{
+		return mappingLog != null;
+	}
+
+	/**
+	 * Appends a record to the log if there is one.
+	 */
+	private void record(String... fields)
+	{
+		MappingLog l = mappingLog;
+
+		if (l != null) {
+			l.append(fields);
+		}
+	}
+
+	/**
+	 * Writes every association as a record of the log.
+	 *
+	 * @param l log defining the record format
+	 * @param out destination
+	 */
+	void writeTo(MappingLog l, Writer out) throws IOException
+	{
+		for (Map.Entry<String, String> e : pathMap.entrySet()) {
+			l.writeRecord(out, "P", e.getKey(), e.getValue(),
+						  parentMap.get(e.getKey()));
+		}
+		for (String id : fedoraNodeSet.keySet()) {
+			l.writeRecord(out, "F", id);
+		}
+		for (Map.Entry<String, String> e : dsMap.entrySet()) {
+			l.writeRecord(out, "D", e.getKey(), e.getValue());
+		}
+		for (Map.Entry<String, ConcurrentMap<String, String>> e : 
+				 dsNameMap.entrySet()) {
+			for (Map.Entry<String, String> ds : e.getValue().entrySet()) {
+				l.writeRecord(out, "N", e.getKey(), ds.getKey(), 
+							  ds.getValue());
+			}
+		}
+		for (Map.Entry<String, String> e : contentMap.entrySet()) {
+			l.writeRecord(out, "C", e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * Associates a digital object node with its full JCR path and its
+	 * parent. The path of a node never changes once it is registered.
+	 *
+	 * @param id node ID
+	 * @param path full JCR path of the node
+	 * @param parentID node ID of the parent, or null for the root node
+	 */
+	public void putPath(String id, String path, String parentID)
+	{
+		boolean added;
+		String oldParentID;
+
+		if (parentID == null) {
+			if (pathMap.putIfAbsent(id, path) == null) {
+				record("P", id, path, null);
+			}
+			return;
+		}
+
+		oldParentID = parentMap.put(id, parentID);
+		added = pathMap.putIfAbsent(id, path) == null;
+
+		if (added) {
+			getChildren(parentID).put(path.substring(path.lastIndexOf('/') + 1), id);
+		}
+
+		if (added || ! parentID.equals(oldParentID)) {
+			record("P", id, pathMap.get(id), parentID);
+		}
+	}
+
+	/**
+	 * Gets the full JCR path of a digital object node.
+	 *
+	 * @param id node ID
+	 * @return full JCR path, or null if the node is not registered
+	 */
+	public String getPath(String id)
+	{
+		return pathMap.get(id);
+	}
+
+	/**
+	 * Gets the parent node ID of a digital object node.
+	 *
+	 * @param id node ID
+	 * @return node ID of the parent
+	 */
+	public String getParent(String id)
+	{
+		return parentMap.get(id);
+	}
+
+	/**
+	 * Gets the node ID of a child given its relative path.
+	 *
+	 * @param parentID node ID of the parent
+	 * @param name relative path of the child
+	 * @return node ID of the child, or null if not registered
+	 */
+	public String getChild(String parentID, String name)
+	{
+		Map<String, String> children;
+
+		children = childrenMap.get(parentID);
+		if (children == null) {
+			return null;
+		}
+
+		return children.get(name);
+	}
+
+	/**
+	 * Gets the children of a node, creating the index if necessary.
+	 *
+	 * @param parentID node ID of the parent
+	 * @return map from relative path to child node ID
+	 */
+	private ConcurrentMap<String, String> getChildren(String parentID)
+	{
+		ConcurrentMap<String, String> children;
+		ConcurrentMap<String, String> existing;
+
+		children = childrenMap.get(parentID);
+		if (children == null) {
+			children = new ConcurrentHashMap<String, String>();
+			existing = childrenMap.putIfAbsent(parentID, children);
+			if (existing != null) {
+				children = existing;
+			}
+		}
+
+		return children;
+	}
+
+	/**
+	 * Associates a data stream node with its digital object node. An empty
+	 * string marks a data stream whose digital object is not known yet.
+	 *
+	 * @param dsID node ID of the data stream
+	 * @param doID node ID of the digital object
+	 */
+	public void putDataStreamParent(String dsID, String doID)
+	{
+		if (! doID.equals(dsMap.put(dsID, doID))) {
+			record("D", dsID, doID);
+		}
+	}
+
+	/**
+	 * Gets the digital object node of a data stream node.
+	 *
+	 * @param dsID node ID of the data stream
+	 * @return node ID of the digital object, or null if not a data stream
+	 */
+	public String getDataStreamParent(String dsID)
+	{
+		return dsMap.get(dsID);
+	}
+
+	/**
+	 * Gets the node of a data stream of a digital object node.
+	 *
+	 * @param doID node ID of the digital object
+	 * @param name id of the data stream in Fedora
+	 * @return node ID of the data stream, or null if not registered
+	 */
+	public String getDataStreamNode(String doID, String name)
+	{
+		Map<String, String> map;
+
+		map = dsNameMap.get(doID);
+		if (map == null) {
+			return null;
+		}
+
+		return map.get(name);
+	}
+
+	/**
+	 * Associates a data stream of a digital object node with its node ID,
+	 * unless the data stream is already registered.
+	 *
+	 * @param doID node ID of the digital object
+	 * @param name id of the data stream in Fedora
+	 * @param dsID node ID of the data stream
+	 * @return node ID registered for the data stream
+	 */
+	public String putDataStreamName(String doID, String name, String dsID)
+	{
+		ConcurrentMap<String, String> map;
+		ConcurrentMap<String, String> existing;
+		String old;
+
+		map = dsNameMap.get(doID);
+		if (map == null) {
+			map = new ConcurrentHashMap<String, String>();
+			existing = dsNameMap.putIfAbsent(doID, map);
+			if (existing != null) {
+				map = existing;
+			}
+		}
+
+		old = map.putIfAbsent(name, dsID);
+		if (old != null) {
+			return old;
+		}
+
+		record("N", doID, name, dsID);
+
+		return dsID;
+	}
+
+	/**
+	 * Associates a jcr:content node with its data stream node, unless
+	 * the content node is already registered.
+	 *
+	 * @param contentID node ID of the jcr:content node
+	 * @param dsID node ID of the data stream
+	 */
+	public void putContentParent(String contentID, String dsID)
+	{
+		if (contentMap.putIfAbsent(contentID, dsID) == null) {
+			dsContentMap.putIfAbsent(dsID, contentID);
+			record("C", contentID, dsID);
+		}
+	}
+
+	/**
+	 * Gets the data stream node of a jcr:content node.
+	 *
+	 * @param contentID node ID of the jcr:content node
+	 * @return node ID of the data stream, or null if not a content node
+	 */
+	public String getContentParent(String contentID)
+	{
+		return contentMap.get(contentID);
+	}
+
+	/**
+	 * Gets the jcr:content node of a data stream node.
+	 *
+	 * @param dsID node ID of the data stream
+	 * @return node ID of the jcr:content node, or null if not registered
+	 */
+	public String getContent(String dsID)
+	{
+		return dsContentMap.get(dsID);
+	}
+
+	/**
+	 * Marks a node as representing a native Fedora object.
+	 *
+	 * @param id node ID
+	 */
+	public void addFedoraNode(String id)
+	{
+		if (fedoraNodeSet.put(id, Boolean.TRUE) == null) {
+			record("F", id);
+		}
+	}
+
+	/**
+	 * Tests if a node represents a native Fedora object rather than
+	 * a Sling folder.
+	 *
+	 * @param id node ID
+	 * @return whether it is a Fedora node
+	 */
+	public boolean isFedoraNode(String id)
+	{
+		return fedoraNodeSet.containsKey(id);
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p><code>KnownObjects</code> keeps track of the digital objects known to
+ * exist in Fedora, so that most existence checks are answered without a
+ * request to the server.</p>
+ *
+ * <p>It combines a Bloom filter of every pid seen, seeded from an
+ * enumeration of the repository and then fed with the objects created
+ * through this connector, with an exact set of the pids recently
+ * confirmed to exist, seeded as far as it holds. A pid missing from
+ * the filter does not exist; a pid in the exact set does. A pid that
+ * passes the filter without being in the exact set, such as a false
+ * positive or a deleted object, is ambiguous and has to be checked on
+ * the server. Until the filter has been seeded only the exact set is
+ * used.</p>
+ *
+ * <p>Objects created or purged by other Fedora clients after the
+ * enumeration are not seen, so the enumeration is only done when the
+ * <code>knownobjects</code> property is <code>y</code>.</p>
+ *
+ * @author Xin Xiang
+ */
+class KnownObjects {
+
+	/** log4j logger */
+	private static Logger log = LoggerFactory.getLogger(KnownObjects.class);
+
+	/** default number of pids in the exact set */
+	final static int DEFAULT_CAPACITY = 100000;
+
+	/** number of filter bits per expected pid, about 1% false positives */
+	private final static int BITS_PER_PID = 10;
+
+	/** number of hash functions of the filter */
+	private final static int NUM_HASHES = 7;
+
+	/** minimum number of pids the filter is sized for */
+	private final static int MIN_EXPECTED = 1024;
+
+	/** bits of the Bloom filter, null until seeded */
+	private long [] bits;
+
+	/** number of bits of the Bloom filter */
+	private int numBits;
+
+	/** maximum number of pids in the exact set */
+	private final int capacity;
+
+	/** pids confirmed to exist, in least recently used order */
+	private final Map<String, Boolean> exactMap;
+
+	/**
+	 * Creates a new <code>KnownObjects</code> instance.
+	 *
+	 * @param capacity maximum number of pids in the exact set
+	 */
+	public KnownObjects(int capacity)
+	{
+		this.capacity = capacity;
+		exactMap = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+					return size() > KnownObjects.this.capacity;
+				}
+			};
+	}
+
+	/**
+	 * Seeds the filter with all the objects of the repository. Until it
+	 * succeeds, no pid is known to be missing. Seeding a second time has
+	 * no effect.
+	 *
+	 * <p>The pids are streamed twice, once to size the filter and once
+	 * to fill it, so that they are never all held in memory.</p>
+	 *
+	 * @param fc connector enumerating the objects
+	 * @return whether the filter is seeded
+	 */
+	public boolean seed(FedoraConnector fc)
+	{
+		Iterator<String> it;
+		List<String> exact = new ArrayList<String>();
+		String pid;
+		long [] seedBits;
+		int seedNumBits;
+		int count = 0;
+
+		if (isSeeded()) {
+			return true;
+		}
+
+		try {
+			// enumerate once to size the filter
+			for (it = fc.iterateObjects("*"); it.hasNext(); it.next()) {
+				++count;
+			}
+
+			// room for as many new objects as there are now
+			seedNumBits = Math.max(MIN_EXPECTED, 2 * count) * BITS_PER_PID;
+			seedBits = new long[(seedNumBits + 63) / 64];
+
+			// and again to fill it, keeping as many pids as the exact
+			// set holds
+			count = 0;
+			for (it = fc.iterateObjects("*"); it.hasNext();) {
+				pid = it.next();
+				setBits(seedBits, seedNumBits, pid);
+				if (exact.size() < capacity) {
+					exact.add(pid);
+				}
+				++count;
+			}
+		} catch (Exception e) {
+			log.error("failed to enumerate the objects in Fedora", e);
+			return false;
+		}
+
+		synchronized (this) {
+			if (bits != null) {
+				return true;
+			}
+
+			// objects created while enumerating
+			for (String created : exactMap.keySet()) {
+				setBits(seedBits, seedNumBits, created);
+			}
+
+			bits = seedBits;
+			numBits = seedNumBits;
+
+			// as many of the enumerated pids as fit, without evicting
+			// the objects created meanwhile
+			for (int i = 0; i < exact.size() && exactMap.size() < capacity; ++i) {
+				if (! exactMap.containsKey(exact.get(i))) {
+					exactMap.put(exact.get(i), Boolean.TRUE);
+				}
+			}
+		}
+
+		log.info("known objects seeded with " + count + " pids");
+
+		return true;
+	}
+
+	/**
+	 * Tests if the filter has been seeded.
+	 *
+	 * @return whether missing pids are detected
+	 */
+	public synchronized boolean isSeeded()
+	{
+		return bits != null;
+	}
+
+	/**
+	 * Tests if an object is known to exist or not to exist.
+	 *
+	 * @param pid pid of the object
+	 * @return <code>TRUE</code> if it exists, <code>FALSE</code> if it
+	 * does not, null if the server has to be asked
+	 */
+	public synchronized Boolean contains(String pid)
+	{
+		if (exactMap.containsKey(pid)) {
+			return Boolean.TRUE;
+		}
+
+		if (bits != null && ! mightContain(bits, numBits, pid)) {
+			return Boolean.FALSE;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Records that an object exists, because it was created or found on
+	 * the server.
+	 *
+	 * @param pid pid of the object
+	 */
+	public synchronized void add(String pid)
+	{
+		if (bits != null) {
+			setBits(bits, numBits, pid);
+		}
+
+		exactMap.put(pid, Boolean.TRUE);
+	}
+
+	/**
+	 * Records that an object was deleted. The filter cannot forget it,
+	 * so the object becomes ambiguous.
+	 *
+	 * @param pid pid of the object
+	 */
+	public synchronized void remove(String pid)
+	{
+		exactMap.remove(pid);
+	}
+
+	/**
+	 * Gets the bit indexes of a pid by double hashing.
+	 */
+	private static int [] indexes(String pid, int n)
+	{
+		int [] result = new int[NUM_HASHES];
+		int h1 = mix(pid.hashCode());
+		int h2;
+
+		// FNV-1a as the second, independent hash
+		h2 = 0x811c9dc5;
+		for (int i = 0; i < pid.length(); ++i) {
+			h2 ^= pid.charAt(i);
+			h2 *= 0x01000193;
+		}
+		h2 = mix(h2) | 1;
+
+		for (int i = 0; i < NUM_HASHES; ++i) {
+			result[i] = ((h1 + i * h2) & 0x7fffffff) % n;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Spreads the bits of a hash code.
+	 */
+	private static int mix(int h)
+	{
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+
+		return h;
+	}
+
+	/**
+	 * Sets the bits of a pid.
+	 */
+	private static void setBits(long [] b, int n, String pid)
+	{
+		for (int index : indexes(pid, n)) {
+			b[index >>> 6] |= 1L << (index & 63);
+		}
+	}
+
+	/**
+	 * Tests the bits of a pid.
+	 */
+	private static boolean mightContain(long [] b, int n, String pid)
+	{
+		for (int index : indexes(pid, n)) {
+			if ((b[index >>> 6] & (1L << (index & 63))) == 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p><code>LatencyTracker</code> records the recent latencies of each
+ * class of Fedora operations and derives from them when a hedged
+ * duplicate of a request is sent and how long a request may take.</p>
+ *
+ * <p>Each operation class is configured in fedora.properties:</p>
+ * <ul>
+ * <li><code>hedge.&lt;class&gt;</code> - percentile of the recent
+ * latencies after which a duplicate request is sent, 0 to never send
+ * one</li>
+ * <li><code>timeout.&lt;class&gt;</code> - upper bound of the timeout
+ * in milliseconds</li>
+ * </ul>
+ *
+ * <p>The timeout is a multiple of the 99th percentile of the recent
+ * latencies, between {@link #MIN_TIMEOUT} and the upper bound. Until
+ * enough latencies have been recorded, no request is hedged and the
+ * upper bound is used.</p>
+ *
+ * @author Xin Xiang
+ */
+class LatencyTracker {
+
+	/** log4j logger */
+	private static Logger log = LoggerFactory.getLogger(LatencyTracker.class);
+
+	/** class of resource index queries on properties */
+	final static String PROPERTY = "property";
+
+	/** class of resource index queries on members */
+	final static String MEMBERS = "members";
+
+	/** class of data stream reads */
+	final static String DATASTREAM = "datastream";
+
+	/** class of other resource index searches */
+	final static String SEARCH = "search";
+
+	/** number of latencies kept per class */
+	private final static int WINDOW = 256;
+
+	/** number of latencies needed before they are used */
+	private final static int MIN_SAMPLES = 20;
+
+	/** lower bound of the adaptive timeout in milliseconds */
+	final static long MIN_TIMEOUT = 5000;
+
+	/** default upper bound of the timeout in milliseconds */
+	final static long DEFAULT_MAX_TIMEOUT = 60000;
+
+	/** timeout as a multiple of the 99th percentile */
+	private final static int TIMEOUT_FACTOR = 4;
+
+	/** default percentile after which reads are hedged */
+	private final static int DEFAULT_HEDGE_PERCENTILE = 95;
+
+	/** at most one request in this many is hedged */
+	private final static int HEDGE_RATIO = 10;
+
+	/**
+	 * Latencies and settings of one class of operations.
+	 */
+	private static class Operation {
+		/** percentile after which a request is hedged, 0 for never */
+		int hedgePercentile;
+
+		/** upper bound of the timeout */
+		long maxTimeout = DEFAULT_MAX_TIMEOUT;
+
+		/** recent latencies, as a ring */
+		final long [] samples = new long[WINDOW];
+
+		/** number of latencies recorded */
+		long count;
+
+		/** number of requests */
+		long requests;
+
+		/** number of hedged requests */
+		long hedged;
+	}
+
+	/** map class name to its operation */
+	private final Map<String, Operation> operationMap =
+		new HashMap<String, Operation>();
+
+	/**
+	 * Creates a new <code>LatencyTracker</code> instance. Reads of
+	 * properties, members and data streams are hedged by default,
+	 * other searches are not.
+	 *
+	 * @param props the settings, or null for the defaults
+	 */
+	public LatencyTracker(Properties props)
+	{
+		configure(PROPERTY, DEFAULT_HEDGE_PERCENTILE, props);
+		configure(MEMBERS, DEFAULT_HEDGE_PERCENTILE, props);
+		configure(DATASTREAM, DEFAULT_HEDGE_PERCENTILE, props);
+		configure(SEARCH, 0, props);
+	}
+
+	/**
+	 * Sets up an operation class.
+	 */
+	private void configure(String name, int hedgePercentile,
+						   Properties props)
+	{
+		Operation op = new Operation();
+		String s;
+
+		op.hedgePercentile = hedgePercentile;
+
+		if (props != null) {
+			s = props.getProperty("hedge." + name);
+			if (s != null && ! s.equals("")) {
+				try {
+					op.hedgePercentile = 
+						Math.max(0, Math.min(99, Integer.parseInt(s.trim())));
+				} catch (NumberFormatException e) {
+					log.error("invalid hedge percentile of " + name + 
+							  ", using default");
+				}
+			}
+
+			s = props.getProperty("timeout." + name);
+			if (s != null && ! s.equals("")) {
+				try {
+					op.maxTimeout = 
+						Math.max(MIN_TIMEOUT, Long.parseLong(s.trim()));
+				} catch (NumberFormatException e) {
+					log.error("invalid timeout of " + name + 
+							  ", using default");
+				}
+			}
+		}
+
+		operationMap.put(name, op);
+	}
+
+	/**
+	 * Gets an operation class.
+	 */
+	private Operation getOperation(String name)
+	{
+		Operation op = operationMap.get(name);
+
+		if (op == null) {
+			throw new IllegalArgumentException("unknown operation: " + name);
+		}
+
+		return op;
+	}
+
+	/**
+	 * Records the latency of a completed request.
+	 *
+	 * @param name class of the operation
+	 * @param millis latency in milliseconds
+	 */
+	public void record(String name, long millis)
+	{
+		Operation op = getOperation(name);
+
+		synchronized (op) {
+			op.samples[(int) (op.count % WINDOW)] = millis;
+			op.count++;
+		}
+	}
+
+	/**
+	 * Gets a percentile of the recent latencies.
+	 *
+	 * @param name class of the operation
+	 * @param percentile the percentile, from 0 to 100
+	 * @return the latency in milliseconds, or -1 if too few latencies
+	 * have been recorded
+	 */
+	public long getPercentile(String name, int percentile)
+	{
+		Operation op = getOperation(name);
+		long [] sorted;
+		int n;
+
+		synchronized (op) {
+			if (op.count < MIN_SAMPLES) {
+				return -1;
+			}
+
+			n = (int) Math.min(op.count, WINDOW);
+			sorted = new long[n];
+			System.arraycopy(op.samples, 0, sorted, 0, n);
+		}
+
+		Arrays.sort(sorted);
+
+		return sorted[Math.min(n - 1, n * percentile / 100)];
+	}
+
+	/**
+	 * Gets the timeout of a request.
+	 *
+	 * @param name class of the operation
+	 * @return the timeout in milliseconds
+	 */
+	public long getTimeout(String name)
+	{
+		Operation op = getOperation(name);
+		long p99 = getPercentile(name, 99);
+
+		if (p99 < 0) {
+			return op.maxTimeout;
+		}
+
+		return Math.max(MIN_TIMEOUT, Math.min(op.maxTimeout,
+											  TIMEOUT_FACTOR * p99));
+	}
+
+	/**
+	 * Gets the delay after which a request is hedged, counting the
+	 * request. A request is not hedged if hedging is disabled for its
+	 * class, if too few latencies are known, or if too many requests
+	 * have been hedged already.
+	 *
+	 * @param name class of the operation
+	 * @return the delay in milliseconds, or -1 if not to be hedged
+	 */
+	public long getHedgeDelay(String name)
+	{
+		Operation op = getOperation(name);
+
+		synchronized (op) {
+			op.requests++;
+			if (op.hedgePercentile <= 0 ||
+				op.hedged * HEDGE_RATIO >= op.requests) {
+				return -1;
+			}
+		}
+
+		return getPercentile(name, op.hedgePercentile);
+	}
+
+	/**
+	 * Counts a hedged request.
+	 *
+	 * @param name class of the operation
+	 */
+	public void hedged(String name)
+	{
+		Operation op = getOperation(name);
+
+		synchronized (op) {
+			op.hedged++;
+		}
+	}
+
+	/**
+	 * Gets the number of requests and hedged requests of a class.
+	 *
+	 * @param name class of the operation
+	 * @return number of requests and number of hedged requests
+	 */
+	public long [] getStatistics(String name)
+	{
+		Operation op = getOperation(name);
+
+		synchronized (op) {
+			return new long [] {op.requests, op.hedged};
+		}
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p><code>MappingLog</code> persists the associations kept in an
+ * {@link IdRegistry} as an append-only log of tab separated records, so
+ * that node IDs survive a restart without rediscovering the repository
+ * through the resource index.</p>
+ *
+ * <p>The log is replayed once at startup, in a single pass over the
+ * file, and then compacted to one record per association. New
+ * associations are appended as they are made. Record types are:</p>
+ * <ul>
+ * <li><code>P id path parentID</code> digital object node</li>
+ * <li><code>F id</code> node representing a native Fedora object</li>
+ * <li><code>D dsNodeID doNodeID</code> data stream node</li>
+ * <li><code>N doNodeID dsID dsNodeID</code> data stream of an object</li>
+ * <li><code>C contentID dsNodeID</code> jcr:content node</li>
+ * </ul>
+ *
+ * @author Xin Xiang
+ */
+class MappingLog {
+
+	/** log4j logger */
+	private static Logger log = LoggerFactory.getLogger(MappingLog.class);
+
+	/** file of the log */
+	private File file;
+
+	/** writer appending to the log */
+	private Writer writer;
+
+	/**
+	 * Creates a new <code>MappingLog</code> instance.
+	 *
+	 * @param file file of the log
+	 */
+	public MappingLog(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Replays the log into the registry, compacts it and opens it for
+	 * appending.
+	 *
+	 * @param registry registry to populate
+	 */
+	public void open(IdRegistry registry) throws IOException
+	{
+		int count = 0;
+
+		if (file.exists()) {
+			count = replay(registry);
+		}
+
+		compact(registry);
+
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+
+		log.info("loaded " + count + " node mappings from " + file.getPath());
+	}
+
+	/**
+	 * Closes the log.
+	 */
+	public synchronized void close() throws IOException
+	{
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+
+	/**
+	 * Appends a record to the log.
+	 *
+	 * @param fields type and fields of the record
+	 */
+	public synchronized void append(String... fields)
+	{
+		if (writer == null) {
+			return;
+		}
+
+		try {
+			writeRecord(writer, fields);
+			writer.flush();
+		} catch (IOException e) {
+			log.error("failed to write node mapping log", e);
+		}
+	}
+
+	/**
+	 * Reads every record of the log into the registry.
+	 *
+	 * @param registry registry to populate
+	 * @return number of records read
+	 */
+	private int replay(IdRegistry registry) throws IOException
+	{
+		BufferedReader reader;
+		String line;
+		String [] f;
+		int count = 0;
+
+		reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			while ((line = reader.readLine()) != null) {
+				f = line.split("\t", -1);
+				for (int i = 0; i < f.length; ++i) {
+					f[i] = unescape(f[i]);
+				}
+
+				if (f[0].equals("P") && f.length == 4) {
+					registry.putPath(f[1], f[2],
+									 f[3].equals("") ? null : f[3]);
+				}
+				else if (f[0].equals("F") && f.length == 2) {
+					registry.addFedoraNode(f[1]);
+				}
+				else if (f[0].equals("D") && f.length == 3) {
+					registry.putDataStreamParent(f[1], f[2]);
+				}
+				else if (f[0].equals("N") && f.length == 4) {
+					registry.putDataStreamName(f[1], f[2], f[3]);
+				}
+				else if (f[0].equals("C") && f.length == 3) {
+					registry.putContentParent(f[1], f[2]);
+				}
+				else {
+					// truncated by a crash while appending
+					log.warn("skipping node mapping record: " + line);
+					continue;
+				}
+
+				++count;
+			}
+		} finally {
+			reader.close();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Rewrites the log with the current content of the registry.
+	 *
+	 * @param registry registry to write
+	 */
+	private void compact(IdRegistry registry) throws IOException
+	{
+		File tmp = new File(file.getPath() + ".tmp");
+		Writer out;
+
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+		try {
+			registry.writeTo(this, out);
+		} finally {
+			out.close();
+		}
+
+		if (file.exists() && ! file.delete()) {
+			throw new IOException("failed to replace " + file.getPath());
+		}
+		if (! tmp.renameTo(file)) {
+			throw new IOException("failed to replace " + file.getPath());
+		}
+	}
+
+	/**
+	 * Writes one record.
+	 *
+	 * @param out destination
+	 * @param fields type and fields of the record
+	 */
+	void writeRecord(Writer out, String... fields) throws IOException
+	{
+		for (int i = 0; i < fields.length; ++i) {
+			if (i > 0) {
+				out.write('\t');
+			}
+			out.write(escape(fields[i] == null ? "" : fields[i]));
+		}
+		out.write('\n');
+	}
+
+	/**
+	 * Escapes the separators in a field.
+	 */
+	private static String escape(String s)
+	{
+		if (s.indexOf('\\') < 0 && s.indexOf('\t') < 0 &&
+			s.indexOf('\n') < 0) {
+			return s;
+		}
+
+		return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+	}
+
+	/**
+	 * Reverses {@link #escape}.
+	 */
+	private static String unescape(String s)
+	{
+		StringBuilder sb;
+		char c;
+
+		if (s.indexOf('\\') < 0) {
+			return s;
+		}
+
+		sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); ++i) {
+			c = s.charAt(i);
+			if (c == '\\' && i + 1 < s.length()) {
+				c = s.charAt(++i);
+				if (c == 't') {
+					c = '\t';
+				}
+				else if (c == 'n') {
+					c = '\n';
+				}
+			}
+			sb.append(c);
+		}
+
+		return sb.toString();
+	}
+}
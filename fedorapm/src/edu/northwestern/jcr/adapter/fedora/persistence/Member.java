@@ -0,0 +1,64 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.regex.Pattern;
+
+/**
+ * <code>Member</code> stores a child of a digital object (or a top-level
+ * object) as returned by a single membership query, together with the
+ * UUID stored in its jcr:uuid property if there is one.
+ *
+ * @author Xin Xiang
+ */
+class Member {
+
+	/** pattern of pids of objects created from Sling */
+	private final static Pattern slingPattern = Pattern.compile("sling\\d+:");
+
+	/** pid of the member object */
+	public String pid;
+
+	/** UUID stored in the jcr:uuid property, or null if not present */
+	public String uuid;
+
+	/** whether the member represents a Sling folder */
+	public boolean sling;
+
+	/**
+	 * Creates a new <code>Member</code> instance.
+	 *
+	 * @param pid pid of the member object
+	 * @param uuid UUID in the jcr:uuid property, or null
+	 */
+	public Member(String pid, String uuid)
+	{
+		this.pid = pid;
+		this.uuid = uuid;
+		this.sling = isSlingNode(pid);
+	}
+
+	/**
+	 * Tests if the object with the given pid represents a Sling folder.
+	 *
+	 * @param pid pid of the object
+	 * @return whether it is a Sling node
+	 */
+	static boolean isSlingNode(String pid)
+	{
+		return slingPattern.matcher(pid).find();
+	}
+}
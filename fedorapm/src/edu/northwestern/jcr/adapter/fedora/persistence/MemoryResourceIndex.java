@@ -0,0 +1,1472 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.io.UnsupportedEncodingException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * <p><code>MemoryResourceIndex</code> holds the triples of the resource
+ * index of {@link FedoraConnectorMemory} and answers the subset of the
+ * risearch query languages that the connector and the query classes
+ * emit:</p>
+ * <ul>
+ * <li>SPARQL: <code>select $a $b from &lt;#ri&gt; { ... }</code> with
+ * triple patterns, <code>OPTIONAL { ... }</code> and <code>FILTER</code>
+ * over <code>regex</code>, <code>bound</code>, <code>=</code>, <code>!</code>,
+ * <code>&amp;&amp;</code> and <code>||</code>;</li>
+ * <li>iTQL: <code>select $a from &lt;#ri&gt; where ... and ...</code>
+ * with triple patterns and <code>&lt;mulgara:is&gt;</code>.</li>
+ * </ul>
+ *
+ * <p>Both may end with <code>order by</code>, over <code>asc($a)</code>,
+ * <code>desc($a)</code> or <code>$a</code> optionally followed by
+ * <code>asc</code> or <code>desc</code>, and with <code>limit</code>
+ * and <code>offset</code>. Values are compared as strings and unbound
+ * variables sort first.</p>
+ *
+ * <p>As in SPARQL, a filter applies to the whole group it is written in,
+ * and a condition on an unbound variable is an error that only an
+ * <code>||</code> can overcome. Tuples are produced in the order the
+ * triples were added and returned in the CSV format of risearch.</p>
+ *
+ * @author Xin Xiang
+ */
+class MemoryResourceIndex {
+
+	/** predicate binding a variable to a value in iTQL */
+	private final static String MULGARA_IS = "mulgara:is";
+
+	/**
+	 * Node of a triple, either a URI or a literal.
+	 */
+	static class Term {
+		/** URI or lexical form of the literal */
+		final String value;
+
+		/** whether it is a URI */
+		final boolean uri;
+
+		Term(String value, boolean uri)
+		{
+			this.value = value;
+			this.uri = uri;
+		}
+
+		public boolean equals(Object o)
+		{
+			if (! (o instanceof Term)) {
+				return false;
+			}
+
+			return uri == ((Term) o).uri && value.equals(((Term) o).value);
+		}
+
+		public int hashCode()
+		{
+			return uri ? value.hashCode() : ~value.hashCode();
+		}
+	}
+
+	/** map subject to predicate to objects, in the order added */
+	private final Map<String, Map<String, List<Term>>> subjectMap =
+		new LinkedHashMap<String, Map<String, List<Term>>>();
+
+	/** map predicate to object to subjects, in the order added */
+	private final Map<String, Map<Term, Set<String>>> predicateMap =
+		new HashMap<String, Map<Term, Set<String>>>();
+
+	/** guards both maps */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Adds a triple.
+	 *
+	 * @param subject URI of the subject
+	 * @param predicate URI of the predicate
+	 * @param object the object
+	 * @return false if the triple was already there
+	 */
+	public boolean add(String subject, String predicate, Term object)
+	{
+		Map<String, List<Term>> predicates;
+		List<Term> objects;
+		Map<Term, Set<String>> objectMap;
+		Set<String> subjects;
+
+		lock.writeLock().lock();
+		try {
+			predicates = subjectMap.get(subject);
+			if (predicates == null) {
+				predicates = new LinkedHashMap<String, List<Term>>();
+				subjectMap.put(subject, predicates);
+			}
+
+			objects = predicates.get(predicate);
+			if (objects == null) {
+				objects = new ArrayList<Term>();
+				predicates.put(predicate, objects);
+			}
+			else if (objects.contains(object)) {
+				return false;
+			}
+			objects.add(object);
+
+			objectMap = predicateMap.get(predicate);
+			if (objectMap == null) {
+				objectMap = new LinkedHashMap<Term, Set<String>>();
+				predicateMap.put(predicate, objectMap);
+			}
+
+			subjects = objectMap.get(object);
+			if (subjects == null) {
+				subjects = new LinkedHashSet<String>();
+				objectMap.put(object, subjects);
+			}
+			subjects.add(subject);
+
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes a triple.
+	 *
+	 * @param subject URI of the subject
+	 * @param predicate URI of the predicate
+	 * @param object the object
+	 * @return false if there was no such triple
+	 */
+	public boolean remove(String subject, String predicate, Term object)
+	{
+		Map<String, List<Term>> predicates;
+		List<Term> objects;
+
+		lock.writeLock().lock();
+		try {
+			predicates = subjectMap.get(subject);
+			if (predicates == null) {
+				return false;
+			}
+
+			objects = predicates.get(predicate);
+			if (objects == null || ! objects.remove(object)) {
+				return false;
+			}
+
+			if (objects.isEmpty()) {
+				predicates.remove(predicate);
+			}
+			if (predicates.isEmpty()) {
+				subjectMap.remove(subject);
+			}
+
+			unindex(subject, predicate, object);
+
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes all the triples of a subject whose predicate starts with a
+	 * prefix.
+	 *
+	 * @param subject URI of the subject
+	 * @param prefix prefix of the predicates, or null for all of them
+	 */
+	public void removeAll(String subject, String prefix)
+	{
+		Map<String, List<Term>> predicates;
+		Map.Entry<String, List<Term>> entry;
+
+		lock.writeLock().lock();
+		try {
+			predicates = subjectMap.get(subject);
+			if (predicates == null) {
+				return;
+			}
+
+			for (Iterator<Map.Entry<String, List<Term>>> it =
+					 predicates.entrySet().iterator(); it.hasNext();) {
+				entry = it.next();
+				if (prefix != null && ! entry.getKey().startsWith(prefix)) {
+					continue;
+				}
+
+				for (Term object : entry.getValue()) {
+					unindex(subject, entry.getKey(), object);
+				}
+				it.remove();
+			}
+
+			if (predicates.isEmpty()) {
+				subjectMap.remove(subject);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes a triple from the predicate map.
+	 */
+	private void unindex(String subject, String predicate, Term object)
+	{
+		Map<Term, Set<String>> objectMap = predicateMap.get(predicate);
+		Set<String> subjects;
+
+		if (objectMap == null) {
+			return;
+		}
+
+		subjects = objectMap.get(object);
+		if (subjects != null) {
+			subjects.remove(subject);
+			if (subjects.isEmpty()) {
+				objectMap.remove(object);
+			}
+		}
+
+		if (objectMap.isEmpty()) {
+			predicateMap.remove(predicate);
+		}
+	}
+
+	/**
+	 * Gets the triples of a subject.
+	 *
+	 * @param subject URI of the subject
+	 * @return copy of the map from predicate to objects
+	 */
+	public Map<String, List<Term>> getTriples(String subject)
+	{
+		Map<String, List<Term>> result =
+			new LinkedHashMap<String, List<Term>>();
+		Map<String, List<Term>> predicates;
+
+		lock.readLock().lock();
+		try {
+			predicates = subjectMap.get(subject);
+			if (predicates != null) {
+				for (Map.Entry<String, List<Term>> entry : predicates.entrySet()) {
+					result.put(entry.getKey(),
+							   new ArrayList<Term>(entry.getValue()));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Runs a query and returns its tuples in CSV format, with a header
+	 * naming the columns.
+	 *
+	 * @param query the query string
+	 * @param language "sparql" or "itql"
+	 * @return the CSV response
+	 */
+	public byte [] search(String query, String language)
+	{
+		Query q = new Parser(query).parseQuery(language.equalsIgnoreCase("itql"));
+		List<Map<String, Term>> solutions;
+		StringBuilder csv = new StringBuilder();
+		Set<String> seen = null;
+		StringBuilder line = new StringBuilder();
+		Term value;
+		int skip;
+		int count;
+
+		solutions = new ArrayList<Map<String, Term>>();
+		solutions.add(new HashMap<String, Term>());
+
+		lock.readLock().lock();
+		try {
+			solutions = evaluate(q.where, solutions);
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		for (int i = 0; i < q.columns.size(); ++i) {
+			if (i > 0) {
+				csv.append(',');
+			}
+			csv.append(q.columns.get(i));
+		}
+		csv.append('\n');
+
+		if (q.distinct) {
+			seen = new HashSet<String>();
+		}
+
+		if (! q.orderBy.isEmpty()) {
+			Collections.sort(solutions, new Order(q));
+		}
+
+		skip = q.offset;
+		count = 0;
+		for (Map<String, Term> solution : solutions) {
+			if (q.limit >= 0 && count >= q.limit) {
+				break;
+			}
+
+			line.setLength(0);
+			for (int i = 0; i < q.columns.size(); ++i) {
+				if (i > 0) {
+					line.append(',');
+				}
+				value = solution.get(q.columns.get(i));
+				if (value != null) {
+					appendValue(line, value.value);
+				}
+			}
+
+			if (seen != null && ! seen.add(line.toString())) {
+				continue;
+			}
+
+			if (skip > 0) {
+				skip--;
+				continue;
+			}
+
+			csv.append(line).append('\n');
+			count++;
+		}
+
+		try {
+			return csv.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Appends a CSV value, quoted if necessary.
+	 */
+	private static void appendValue(StringBuilder line, String value)
+	{
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 &&
+			value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+			line.append(value);
+			return;
+		}
+
+		line.append('"').append(value.replace("\"", "\"\"")).append('"');
+	}
+
+	// ---------------------------------< evaluation >
+
+	/**
+	 * Evaluates a group against each of the given solutions.
+	 */
+	private List<Map<String, Term>> evaluate(Group group,
+											 List<Map<String, Term>> input)
+	{
+		List<Map<String, Term>> solutions = input;
+		List<Map<String, Term>> next;
+		List<Map<String, Term>> single;
+		List<Map<String, Term>> extended;
+		List<TriplePattern> remaining;
+		Set<String> bound;
+		TriplePattern best;
+		Boolean value;
+		boolean keep;
+
+		remaining = new ArrayList<TriplePattern>(group.patterns);
+		bound = new HashSet<String>();
+		if (! input.isEmpty()) {
+			bound.addAll(input.get(0).keySet());
+		}
+
+		while (! remaining.isEmpty() && ! solutions.isEmpty()) {
+			// most selective pattern first
+			best = remaining.get(0);
+			for (TriplePattern pattern : remaining) {
+				if (pattern.getScore(bound) > best.getScore(bound)) {
+					best = pattern;
+				}
+			}
+			remaining.remove(best);
+
+			next = new ArrayList<Map<String, Term>>();
+			for (Map<String, Term> solution : solutions) {
+				match(best, solution, next);
+			}
+			solutions = next;
+			best.addVariables(bound);
+		}
+
+		if (! remaining.isEmpty()) {
+			// no solution left
+			return solutions;
+		}
+
+		for (Group optional : group.optionals) {
+			next = new ArrayList<Map<String, Term>>();
+			for (Map<String, Term> solution : solutions) {
+				single = new ArrayList<Map<String, Term>>();
+				single.add(solution);
+				extended = evaluate(optional, single);
+				if (extended.isEmpty()) {
+					next.add(solution);
+				}
+				else {
+					next.addAll(extended);
+				}
+			}
+			solutions = next;
+		}
+
+		if (group.filters.isEmpty()) {
+			return solutions;
+		}
+
+		next = new ArrayList<Map<String, Term>>();
+		for (Map<String, Term> solution : solutions) {
+			keep = true;
+			for (Expression filter : group.filters) {
+				value = filter.evaluate(solution);
+				if (value == null || ! value.booleanValue()) {
+					keep = false;
+					break;
+				}
+			}
+			if (keep) {
+				next.add(solution);
+			}
+		}
+
+		return next;
+	}
+
+	/**
+	 * Matches a triple pattern under a solution, adding the extended
+	 * solutions to the output.
+	 */
+	private void match(TriplePattern pattern, Map<String, Term> solution,
+					   List<Map<String, Term>> out)
+	{
+		Term s = pattern.subject.resolve(solution);
+		Term p = pattern.predicate.resolve(solution);
+		Term o = pattern.object.resolve(solution);
+		Map<String, List<Term>> predicates;
+		List<Term> objects;
+		Map<Term, Set<String>> objectMap;
+		Set<String> subjects;
+
+		if (p != null && p.uri && p.value.equals(MULGARA_IS)) {
+			if (s == null) {
+				emit(pattern, solution, o, p, o, out);
+			}
+			else if (o == null || s.value.equals(o.value)) {
+				emit(pattern, solution, s, p, s, out);
+			}
+			return;
+		}
+
+		if (s != null) {
+			if (! s.uri) {
+				return;
+			}
+
+			predicates = subjectMap.get(s.value);
+			if (predicates == null) {
+				return;
+			}
+
+			if (p != null) {
+				objects = predicates.get(p.value);
+				if (objects != null) {
+					for (Term object : objects) {
+						if (o == null || o.equals(object)) {
+							emit(pattern, solution, s, p, object, out);
+						}
+					}
+				}
+				return;
+			}
+
+			for (Map.Entry<String, List<Term>> entry : predicates.entrySet()) {
+				for (Term object : entry.getValue()) {
+					if (o == null || o.equals(object)) {
+						emit(pattern, solution, s,
+							 new Term(entry.getKey(), true), object, out);
+					}
+				}
+			}
+			return;
+		}
+
+		if (p != null) {
+			objectMap = predicateMap.get(p.value);
+			if (objectMap == null) {
+				return;
+			}
+
+			if (o != null) {
+				subjects = objectMap.get(o);
+				if (subjects != null) {
+					for (String subject : subjects) {
+						emit(pattern, solution, new Term(subject, true),
+							 p, o, out);
+					}
+				}
+				return;
+			}
+
+			for (Map.Entry<Term, Set<String>> entry : objectMap.entrySet()) {
+				for (String subject : entry.getValue()) {
+					emit(pattern, solution, new Term(subject, true),
+						 p, entry.getKey(), out);
+				}
+			}
+			return;
+		}
+
+		// neither subject nor predicate is known
+		for (Map.Entry<String, Map<String, List<Term>>> subjectEntry :
+				 subjectMap.entrySet()) {
+			for (Map.Entry<String, List<Term>> entry :
+					 subjectEntry.getValue().entrySet()) {
+				for (Term object : entry.getValue()) {
+					if (o == null || o.equals(object)) {
+						emit(pattern, solution,
+							 new Term(subjectEntry.getKey(), true),
+							 new Term(entry.getKey(), true), object, out);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Binds the variables of a matched triple pattern and adds the
+	 * solution to the output, unless a variable occurring twice gets
+	 * two different values.
+	 */
+	private static void emit(TriplePattern pattern, Map<String, Term> solution,
+							 Term s, Term p, Term o,
+							 List<Map<String, Term>> out)
+	{
+		Map<String, Term> result = new HashMap<String, Term>(solution);
+
+		if (pattern.subject.bind(result, s) &&
+			pattern.predicate.bind(result, p) &&
+			pattern.object.bind(result, o)) {
+			out.add(result);
+		}
+	}
+
+	// ---------------------------------< query model >
+
+	/**
+	 * Parsed query.
+	 */
+	private static class Query {
+		/** names of the selected variables */
+		final List<String> columns = new ArrayList<String>();
+
+		/** whether duplicate tuples are removed */
+		boolean distinct;
+
+		/** the pattern */
+		Group where;
+
+		/** variables the tuples are sorted by */
+		final List<String> orderBy = new ArrayList<String>();
+
+		/** whether each sort variable is ascending */
+		final List<Boolean> ascending = new ArrayList<Boolean>();
+
+		/** maximum number of tuples, -1 if unlimited */
+		int limit = -1;
+
+		/** number of tuples skipped */
+		int offset;
+	}
+
+	/**
+	 * Compares solutions by the sort variables of a query.
+	 */
+	private static class Order implements Comparator<Map<String, Term>> {
+		private final Query query;
+
+		Order(Query query)
+		{
+			this.query = query;
+		}
+
+		public int compare(Map<String, Term> a, Map<String, Term> b)
+		{
+			Term x, y;
+			int compare;
+
+			for (int i = 0; i < query.orderBy.size(); ++i) {
+				x = a.get(query.orderBy.get(i));
+				y = b.get(query.orderBy.get(i));
+
+				if (x == null) {
+					compare = y == null ? 0 : -1;
+				}
+				else if (y == null) {
+					compare = 1;
+				}
+				else {
+					compare = x.value.compareTo(y.value);
+				}
+
+				if (compare != 0) {
+					return query.ascending.get(i).booleanValue() ?
+						compare : -compare;
+				}
+			}
+
+			return 0;
+		}
+	}
+
+	/**
+	 * Group of triple patterns, optional groups and filters.
+	 */
+	private static class Group {
+		final List<TriplePattern> patterns = new ArrayList<TriplePattern>();
+		final List<Group> optionals = new ArrayList<Group>();
+		final List<Expression> filters = new ArrayList<Expression>();
+	}
+
+	/**
+	 * Subject, predicate or object of a triple pattern: a variable or a
+	 * constant.
+	 */
+	private static class Slot {
+		/** name of the variable, null if constant */
+		final String variable;
+
+		/** value of the constant, null if variable */
+		final Term constant;
+
+		Slot(String variable, Term constant)
+		{
+			this.variable = variable;
+			this.constant = constant;
+		}
+
+		/**
+		 * Gets the value under a solution, null if unbound.
+		 */
+		Term resolve(Map<String, Term> solution)
+		{
+			return variable == null ? constant : solution.get(variable);
+		}
+
+		/**
+		 * Binds the variable, testing that it is not bound to another
+		 * value already.
+		 */
+		boolean bind(Map<String, Term> solution, Term value)
+		{
+			Term old;
+
+			if (variable == null) {
+				return true;
+			}
+
+			old = solution.put(variable, value);
+
+			return old == null || old.equals(value);
+		}
+	}
+
+	/**
+	 * Triple pattern.
+	 */
+	private static class TriplePattern {
+		final Slot subject;
+		final Slot predicate;
+		final Slot object;
+
+		TriplePattern(Slot subject, Slot predicate, Slot object)
+		{
+			this.subject = subject;
+			this.predicate = predicate;
+			this.object = object;
+		}
+
+		/**
+		 * Estimates how selective the pattern is once the given
+		 * variables are bound.
+		 */
+		int getScore(Set<String> bound)
+		{
+			int score = 0;
+
+			if (predicate.constant != null &&
+				predicate.constant.value.equals(MULGARA_IS)) {
+				return 8;
+			}
+
+			if (subject.constant != null || bound.contains(subject.variable)) {
+				score += 4;
+			}
+			if (object.constant != null || bound.contains(object.variable)) {
+				score += 2;
+			}
+			if (predicate.constant != null ||
+				bound.contains(predicate.variable)) {
+				score += 1;
+			}
+
+			return score;
+		}
+
+		/**
+		 * Adds the variables of the pattern to a set.
+		 */
+		void addVariables(Set<String> variables)
+		{
+			for (Slot slot : new Slot [] {subject, predicate, object}) {
+				if (slot.variable != null) {
+					variables.add(slot.variable);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Filter expression. Evaluates to null on error, such as a condition
+	 * on an unbound variable.
+	 */
+	private static abstract class Expression {
+		abstract Boolean evaluate(Map<String, Term> solution);
+	}
+
+	/**
+	 * Disjunction.
+	 */
+	private static class Or extends Expression {
+		final List<Expression> operands;
+
+		Or(List<Expression> operands)
+		{
+			this.operands = operands;
+		}
+
+		Boolean evaluate(Map<String, Term> solution)
+		{
+			boolean error = false;
+			Boolean value;
+
+			for (Expression operand : operands) {
+				value = operand.evaluate(solution);
+				if (value == null) {
+					error = true;
+				}
+				else if (value.booleanValue()) {
+					return Boolean.TRUE;
+				}
+			}
+
+			return error ? null : Boolean.FALSE;
+		}
+	}
+
+	/**
+	 * Conjunction.
+	 */
+	private static class And extends Expression {
+		final List<Expression> operands;
+
+		And(List<Expression> operands)
+		{
+			this.operands = operands;
+		}
+
+		Boolean evaluate(Map<String, Term> solution)
+		{
+			boolean error = false;
+			Boolean value;
+
+			for (Expression operand : operands) {
+				value = operand.evaluate(solution);
+				if (value == null) {
+					error = true;
+				}
+				else if (! value.booleanValue()) {
+					return Boolean.FALSE;
+				}
+			}
+
+			return error ? null : Boolean.TRUE;
+		}
+	}
+
+	/**
+	 * Negation.
+	 */
+	private static class Not extends Expression {
+		final Expression operand;
+
+		Not(Expression operand)
+		{
+			this.operand = operand;
+		}
+
+		Boolean evaluate(Map<String, Term> solution)
+		{
+			Boolean value = operand.evaluate(solution);
+
+			return value == null ? null : Boolean.valueOf(! value.booleanValue());
+		}
+	}
+
+	/**
+	 * <code>bound($x)</code>.
+	 */
+	private static class Bound extends Expression {
+		final String variable;
+
+		Bound(String variable)
+		{
+			this.variable = variable;
+		}
+
+		Boolean evaluate(Map<String, Term> solution)
+		{
+			return Boolean.valueOf(solution.containsKey(variable));
+		}
+	}
+
+	/**
+	 * <code>regex($x, 'pattern', 'flags')</code>. A pattern anchored at
+	 * both ends without any special character is compared as a string.
+	 */
+	private static class Regex extends Expression {
+		final String variable;
+
+		/** value matched exactly, null if a real pattern */
+		final String exact;
+
+		/** compiled pattern, null if exact */
+		final Pattern pattern;
+
+		Regex(String variable, String regex, String flags)
+		{
+			String middle;
+			int f = 0;
+
+			this.variable = variable;
+
+			if (flags.equals("") && regex.length() >= 2 &&
+				regex.startsWith("^") && regex.endsWith("$")) {
+				middle = regex.substring(1, regex.length() - 1);
+				if (! containsSpecial(middle)) {
+					exact = middle;
+					pattern = null;
+					return;
+				}
+			}
+
+			if (flags.indexOf('i') >= 0) {
+				f |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+			}
+			if (flags.indexOf('s') >= 0) {
+				f |= Pattern.DOTALL;
+			}
+			if (flags.indexOf('m') >= 0) {
+				f |= Pattern.MULTILINE;
+			}
+			if (flags.indexOf('x') >= 0) {
+				f |= Pattern.COMMENTS;
+			}
+
+			exact = null;
+			pattern = Pattern.compile(regex, f);
+		}
+
+		/**
+		 * Tests if a string has characters special to regular expressions.
+		 */
+		private static boolean containsSpecial(String s)
+		{
+			for (int i = 0; i < s.length(); ++i) {
+				if ("\\^$.|?*+()[]{}".indexOf(s.charAt(i)) >= 0) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		Boolean evaluate(Map<String, Term> solution)
+		{
+			Term value = solution.get(variable);
+
+			if (value == null) {
+				return null;
+			}
+			if (exact != null) {
+				return Boolean.valueOf(value.value.equals(exact));
+			}
+
+			return Boolean.valueOf(pattern.matcher(value.value).find());
+		}
+	}
+
+	/**
+	 * <code>$x = 'value'</code> or <code>$x = &lt;uri&gt;</code>.
+	 */
+	private static class Equals extends Expression {
+		final String variable;
+		final Term value;
+
+		Equals(String variable, Term value)
+		{
+			this.variable = variable;
+			this.value = value;
+		}
+
+		Boolean evaluate(Map<String, Term> solution)
+		{
+			Term term = solution.get(variable);
+
+			if (term == null) {
+				return null;
+			}
+
+			return Boolean.valueOf(term.equals(value));
+		}
+	}
+
+	/**
+	 * Disjunction of exact regular expressions or equalities on one
+	 * variable, as emitted to test a list of pids, tested as a set
+	 * lookup.
+	 */
+	private static class OneOf extends Expression {
+		final String variable;
+		final Set<String> values = new HashSet<String>();
+
+		OneOf(String variable)
+		{
+			this.variable = variable;
+		}
+
+		Boolean evaluate(Map<String, Term> solution)
+		{
+			Term value = solution.get(variable);
+
+			if (value == null) {
+				return null;
+			}
+
+			return Boolean.valueOf(values.contains(value.value));
+		}
+	}
+
+	// ---------------------------------< parsing >
+
+	/**
+	 * Recursive descent parser of the supported subset.
+	 */
+	private static class Parser {
+		/** the query */
+		private final String text;
+
+		/** tokens of the query */
+		private final List<String> tokens = new ArrayList<String>();
+
+		/** index of the next token */
+		private int pos;
+
+		Parser(String text)
+		{
+			this.text = text;
+			tokenize();
+		}
+
+		/**
+		 * Splits the query into tokens. Variables keep their '$',
+		 * URIs their angle brackets and string literals their opening
+		 * quote, with escapes resolved.
+		 */
+		private void tokenize()
+		{
+			int i = 0;
+			int n = text.length();
+			char c;
+			int start;
+			StringBuilder literal;
+
+			while (i < n) {
+				c = text.charAt(i);
+
+				if (Character.isWhitespace(c)) {
+					i++;
+				}
+				else if (c == '<') {
+					start = i;
+					i = text.indexOf('>', i);
+					if (i < 0) {
+						throw error("unterminated URI");
+					}
+					tokens.add(text.substring(start, ++i));
+				}
+				else if (c == '\'' || c == '"') {
+					literal = new StringBuilder();
+					literal.append('\'');
+					i++;
+					while (i < n && text.charAt(i) != c) {
+						if (text.charAt(i) == '\\' && i + 1 < n) {
+							i++;
+							switch (text.charAt(i)) {
+							case 'n': literal.append('\n'); break;
+							case 't': literal.append('\t'); break;
+							case 'r': literal.append('\r'); break;
+							default: literal.append(text.charAt(i));
+							}
+						}
+						else {
+							literal.append(text.charAt(i));
+						}
+						i++;
+					}
+					if (i >= n) {
+						throw error("unterminated string");
+					}
+					i++;
+					tokens.add(literal.toString());
+				}
+				else if (c == '$' || c == '?' ||
+						 Character.isLetterOrDigit(c) || c == '_') {
+					start = i++;
+					while (i < n && (Character.isLetterOrDigit(text.charAt(i)) ||
+									 text.charAt(i) == '_')) {
+						i++;
+					}
+					if (text.charAt(start) == '?') {
+						tokens.add("$" + text.substring(start + 1, i));
+					}
+					else {
+						tokens.add(text.substring(start, i));
+					}
+				}
+				else if ((c == '&' || c == '|') && i + 1 < n &&
+						 text.charAt(i + 1) == c) {
+					tokens.add(text.substring(i, i + 2));
+					i += 2;
+				}
+				else if ("{}().,!=".indexOf(c) >= 0) {
+					tokens.add(String.valueOf(c));
+					i++;
+				}
+				else {
+					throw error("unexpected character '" + c + "'");
+				}
+			}
+		}
+
+		/**
+		 * Creates the exception thrown for an unsupported query.
+		 */
+		private IllegalArgumentException error(String message)
+		{
+			return new IllegalArgumentException(message +
+												" in query: " + text);
+		}
+
+		private String peek()
+		{
+			return pos < tokens.size() ? tokens.get(pos) : null;
+		}
+
+		private String next()
+		{
+			if (pos >= tokens.size()) {
+				throw error("unexpected end");
+			}
+
+			return tokens.get(pos++);
+		}
+
+		/**
+		 * Skips the next token if it is the given punctuation or keyword,
+		 * regardless of case.
+		 */
+		private boolean accept(String token)
+		{
+			if (token.equalsIgnoreCase(peek())) {
+				pos++;
+				return true;
+			}
+
+			return false;
+		}
+
+		private void expect(String token)
+		{
+			if (! accept(token)) {
+				throw error("expected '" + token + "' but found '" +
+							peek() + "'");
+			}
+		}
+
+		/**
+		 * Reads a variable and returns its name without the '$'.
+		 */
+		private String variable()
+		{
+			String token = next();
+
+			if (! token.startsWith("$")) {
+				throw error("expected a variable but found '" + token + "'");
+			}
+
+			return token.substring(1);
+		}
+
+		/**
+		 * Reads a string literal.
+		 */
+		private String string()
+		{
+			String token = next();
+
+			if (! token.startsWith("'")) {
+				throw error("expected a string but found '" + token + "'");
+			}
+
+			return token.substring(1);
+		}
+
+		Query parseQuery(boolean itql)
+		{
+			Query query = new Query();
+			String token;
+
+			expect("select");
+			query.distinct = accept("distinct");
+			while (peek() != null && peek().startsWith("$")) {
+				query.columns.add(variable());
+			}
+			if (query.columns.isEmpty()) {
+				throw error("no variable selected");
+			}
+
+			expect("from");
+			token = next();
+			if (! token.startsWith("<")) {
+				throw error("expected a model but found '" + token + "'");
+			}
+
+			if (itql) {
+				expect("where");
+				query.where = parseConjunction();
+			}
+			else {
+				accept("where");
+				query.where = parseGroup();
+			}
+
+			parseModifiers(query);
+
+			if (peek() != null) {
+				throw error("unexpected '" + peek() + "'");
+			}
+
+			return query;
+		}
+
+		/**
+		 * Parses the <code>order by</code>, <code>limit</code> and
+		 * <code>offset</code> clauses, in any order.
+		 */
+		private void parseModifiers(Query query)
+		{
+			while (peek() != null) {
+				if (accept("order")) {
+					expect("by");
+					do {
+						parseSortKey(query);
+					} while (peek() != null && (peek().startsWith("$") ||
+												isDirection(peek())));
+				}
+				else if (accept("limit")) {
+					query.limit = number();
+				}
+				else if (accept("offset")) {
+					query.offset = number();
+				}
+				else {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Parses one sort key, <code>asc($a)</code> or <code>$a asc</code>.
+		 */
+		private void parseSortKey(Query query)
+		{
+			boolean ascending = true;
+
+			if (isDirection(peek())) {
+				ascending = next().equalsIgnoreCase("asc");
+				expect("(");
+				query.orderBy.add(variable());
+				expect(")");
+			}
+			else {
+				query.orderBy.add(variable());
+				if (isDirection(peek())) {
+					ascending = next().equalsIgnoreCase("asc");
+				}
+			}
+
+			query.ascending.add(Boolean.valueOf(ascending));
+		}
+
+		/**
+		 * Tells whether a token is a sort direction.
+		 */
+		private boolean isDirection(String token)
+		{
+			return "asc".equalsIgnoreCase(token) ||
+				"desc".equalsIgnoreCase(token) ||
+				"dsc".equalsIgnoreCase(token);
+		}
+
+		/**
+		 * Reads a non-negative integer.
+		 */
+		private int number()
+		{
+			String token = next();
+
+			try {
+				return Integer.parseInt(token);
+			} catch (NumberFormatException e) {
+				throw error("expected a number but found '" + token + "'");
+			}
+		}
+
+		/**
+		 * Parses iTQL triple patterns joined by <code>and</code>.
+		 */
+		private Group parseConjunction()
+		{
+			Group group = new Group();
+
+			do {
+				group.patterns.add(parsePattern());
+			} while (accept("and"));
+
+			return group;
+		}
+
+		/**
+		 * Parses a SPARQL group in braces.
+		 */
+		private Group parseGroup()
+		{
+			Group group = new Group();
+
+			expect("{");
+			while (! accept("}")) {
+				if (peek() == null) {
+					throw error("unterminated group");
+				}
+
+				if (accept(".")) {
+					continue;
+				}
+
+				if (accept("optional")) {
+					group.optionals.add(parseGroup());
+				}
+				else if (accept("filter")) {
+					group.filters.add(parseUnary());
+				}
+				else {
+					group.patterns.add(parsePattern());
+				}
+			}
+
+			return group;
+		}
+
+		private TriplePattern parsePattern()
+		{
+			return new TriplePattern(parseSlot(), parseSlot(), parseSlot());
+		}
+
+		private Slot parseSlot()
+		{
+			String token = next();
+
+			if (token.startsWith("$")) {
+				return new Slot(token.substring(1), null);
+			}
+			if (token.startsWith("<")) {
+				return new Slot(null, new Term(token.substring(1, token.length() - 1), true));
+			}
+			if (token.startsWith("'")) {
+				return new Slot(null, new Term(token.substring(1), false));
+			}
+
+			throw error("unexpected '" + token + "' in triple pattern");
+		}
+
+		private Expression parseOr()
+		{
+			List<Expression> operands = new ArrayList<Expression>();
+			OneOf oneOf;
+			String variable;
+			String value;
+
+			operands.add(parseAnd());
+			while (accept("||")) {
+				operands.add(parseAnd());
+			}
+
+			if (operands.size() == 1) {
+				return operands.get(0);
+			}
+
+			// a list of exact matches on one variable
+			oneOf = null;
+			for (Expression operand : operands) {
+				if (operand instanceof Regex && 
+					((Regex) operand).exact != null) {
+					variable = ((Regex) operand).variable;
+					value = ((Regex) operand).exact;
+				}
+				else if (operand instanceof Equals &&
+						 ! ((Equals) operand).value.uri) {
+					variable = ((Equals) operand).variable;
+					value = ((Equals) operand).value.value;
+				}
+				else {
+					return new Or(operands);
+				}
+
+				if (oneOf == null) {
+					oneOf = new OneOf(variable);
+				}
+				else if (! oneOf.variable.equals(variable)) {
+					return new Or(operands);
+				}
+				oneOf.values.add(value);
+			}
+
+			return oneOf;
+		}
+
+		private Expression parseAnd()
+		{
+			List<Expression> operands = new ArrayList<Expression>();
+
+			operands.add(parseUnary());
+			while (accept("&&")) {
+				operands.add(parseUnary());
+			}
+
+			return operands.size() == 1 ? operands.get(0) : new And(operands);
+		}
+
+		private Expression parseUnary()
+		{
+			if (accept("!")) {
+				return new Not(parseUnary());
+			}
+
+			return parsePrimary();
+		}
+
+		private Expression parsePrimary()
+		{
+			Expression expression;
+			String variable;
+			Slot slot;
+			String regex;
+			String flags = "";
+
+			if (accept("(")) {
+				expression = parseOr();
+				expect(")");
+				return expression;
+			}
+
+			if (accept("regex")) {
+				expect("(");
+				if (accept("str")) {
+					expect("(");
+					variable = variable();
+					expect(")");
+				}
+				else {
+					variable = variable();
+				}
+				expect(",");
+				regex = string();
+				if (accept(",")) {
+					flags = string();
+				}
+				expect(")");
+				return new Regex(variable, regex, flags);
+			}
+
+			if (accept("bound")) {
+				expect("(");
+				variable = variable();
+				expect(")");
+				return new Bound(variable);
+			}
+
+			if (peek() != null && peek().startsWith("$")) {
+				variable = variable();
+				expect("=");
+				slot = parseSlot();
+				if (slot.constant == null) {
+					throw error("comparison of two variables");
+				}
+				return new Equals(variable, slot.constant);
+			}
+
+			throw error("unsupported expression at '" + peek() + "'");
+		}
+	}
+}
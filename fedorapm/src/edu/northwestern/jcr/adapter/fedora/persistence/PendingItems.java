@@ -0,0 +1,159 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.core.state.PropertyState;
+
+/**
+ * <p><code>PendingItems</code> buffers the nodes and properties that
+ * were stored before the node they belong to could be resolved to a
+ * Fedora object, as happens when an import hands over children before
+ * their parents.</p>
+ *
+ * <p>Nodes are indexed by ID and properties both by ID and by the ID of
+ * their parent node, so that a pending item is found in constant time
+ * and flushing the properties of a node only touches those
+ * properties.</p>
+ *
+ * @author Xin Xiang
+ */
+class PendingItems {
+
+	/** map node ID to the pending node */
+	private final ConcurrentMap<String, NodeState> nodeMap =
+		new ConcurrentHashMap<String, NodeState>();
+
+	/** map property ID to the pending property */
+	private final ConcurrentMap<String, PropertyState> propertyMap =
+		new ConcurrentHashMap<String, PropertyState>();
+
+	/**
+	 * map parent node ID to its pending properties (property ID to
+	 * property), in the order they were stored
+	 */
+	private final Map<String, Map<String, PropertyState>> childMap =
+		new HashMap<String, Map<String, PropertyState>>();
+
+	/**
+	 * Gets a pending node.
+	 *
+	 * @param nodeID string UUID of the node
+	 * @return the pending node, or null if not pending
+	 */
+	public NodeState getNode(String nodeID)
+	{
+		return nodeMap.get(nodeID);
+	}
+
+	/**
+	 * Adds a pending node, replacing an earlier state of the same node.
+	 *
+	 * @param nodeID string UUID of the node
+	 * @param state the node
+	 */
+	public void putNode(String nodeID, NodeState state)
+	{
+		nodeMap.put(nodeID, state);
+	}
+
+	/**
+	 * Adds a pending node unless the node is pending already.
+	 *
+	 * @param nodeID string UUID of the node
+	 * @param state the node
+	 * @return whether the node was added
+	 */
+	public boolean putNodeIfAbsent(String nodeID, NodeState state)
+	{
+		return nodeMap.putIfAbsent(nodeID, state) == null;
+	}
+
+	/**
+	 * Removes a pending node.
+	 *
+	 * @param nodeID string UUID of the node
+	 * @return the removed node, or null if not pending
+	 */
+	public NodeState removeNode(String nodeID)
+	{
+		return nodeMap.remove(nodeID);
+	}
+
+	/**
+	 * Gets a pending property.
+	 *
+	 * @param propertyID string ID of the property
+	 * @return the pending property, or null if not pending
+	 */
+	public PropertyState getProperty(String propertyID)
+	{
+		return propertyMap.get(propertyID);
+	}
+
+	/**
+	 * Adds a pending property, replacing an earlier state of the same
+	 * property.
+	 *
+	 * @param state the property
+	 */
+	public synchronized void addProperty(PropertyState state)
+	{
+		String propertyID = state.getPropertyId().toString();
+		String parentID = state.getParentId().toString();
+		Map<String, PropertyState> map;
+
+		map = childMap.get(parentID);
+		if (map == null) {
+			map = new LinkedHashMap<String, PropertyState>();
+			childMap.put(parentID, map);
+		}
+
+		map.put(propertyID, state);
+		propertyMap.put(propertyID, state);
+	}
+
+	/**
+	 * Removes the pending properties of a node.
+	 *
+	 * @param parentID string UUID of the node
+	 * @return the removed properties in the order they were stored
+	 */
+	public synchronized List<PropertyState> removeProperties(String parentID)
+	{
+		Map<String, PropertyState> map;
+
+		map = childMap.remove(parentID);
+		if (map == null) {
+			return Collections.emptyList();
+		}
+
+		for (String propertyID : map.keySet()) {
+			propertyMap.remove(propertyID);
+		}
+
+		return new ArrayList<PropertyState>(map.values());
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p><code>RequestCoalescer</code> lets concurrent identical read requests
+ * share a single call to Fedora: the first caller runs the call, and
+ * callers arriving while it is in flight wait for it and get its result
+ * instead of issuing their own. Nothing is cached once the call is
+ * done.</p>
+ *
+ * <p>Requests are keyed by the pid they read, so that a write to an
+ * object can {@link #forget} the calls in flight for it, as well as
+ * those over all objects; callers arriving after the write then start a
+ * new call rather than joining one that may have read the object before
+ * it was modified.</p>
+ *
+ * <p>Array results are copied for each caller that joins a call, so
+ * callers never share an array.</p>
+ *
+ * @author Xin Xiang
+ */
+class RequestCoalescer {
+
+	/** map request key to the call in flight */
+	private final ConcurrentMap<String, FutureTask<?>> inFlight =
+		new ConcurrentHashMap<String, FutureTask<?>>();
+
+	/** number of requests */
+	private final AtomicLong requests = new AtomicLong();
+
+	/** number of requests that joined a call in flight */
+	private final AtomicLong shared = new AtomicLong();
+
+	/**
+	 * Gets the key of a request.
+	 */
+	private static String getKey(String pid, String request)
+	{
+		return pid + " " + request;
+	}
+
+	/**
+	 * Runs a read request, or joins the identical request in flight.
+	 *
+	 * @param pid pid of the object read, or null if none
+	 * @param request the request, including all its arguments
+	 * @param call the call to Fedora
+	 * @return result of the call
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T call(String pid, String request, Callable<T> call)
+		throws Exception
+	{
+		String key = getKey(pid, request);
+		FutureTask<T> task = new FutureTask<T>(call);
+		FutureTask<T> running;
+		T result;
+
+		requests.incrementAndGet();
+
+		running = (FutureTask<T>) inFlight.putIfAbsent(key, task);
+		if (running == null) {
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+
+			return getResult(task);
+		}
+
+		shared.incrementAndGet();
+		result = getResult(running);
+		if (result instanceof Object []) {
+			result = (T) ((Object []) result).clone();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Waits for a call and returns its result.
+	 */
+	private static <T> T getResult(FutureTask<T> task) throws Exception
+	{
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops later requests from joining the calls in flight for an
+	 * object or for all objects, after the object has been modified.
+	 *
+	 * @param pid pid of the object
+	 */
+	public void forget(String pid)
+	{
+		String prefix = getKey(pid, "");
+		String allPrefix = getKey(null, "");
+		String key;
+
+		for (Iterator<String> it = inFlight.keySet().iterator(); it.hasNext();) {
+			key = it.next();
+			if (key.startsWith(prefix) || key.startsWith(allPrefix)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of requests.
+	 *
+	 * @return number of requests
+	 */
+	public long getRequestCount()
+	{
+		return requests.get();
+	}
+
+	/**
+	 * Gets the number of requests that shared the call of another one.
+	 *
+	 * @return number of coalesced requests
+	 */
+	public long getSharedCount()
+	{
+		return shared.get();
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.util.List;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * <p><code>RestResponseParser</code> reads the XML responses of the
+ * Fedora REST API as a stream of SAX events, so that a response is
+ * never held in memory as a whole and parsing can stop as soon as the
+ * answer is known.</p>
+ *
+ * <p>Each thread reuses its own parser.</p>
+ *
+ * @author Xin Xiang
+ */
+class RestResponseParser {
+
+	/** factory of the parsers */
+	private static final SAXParserFactory factory =
+		SAXParserFactory.newInstance();
+
+	/** parser of each thread */
+	private static final ThreadLocal<SAXParser> parsers =
+		new ThreadLocal<SAXParser>() {
+			protected SAXParser initialValue() {
+				try {
+					return factory.newSAXParser();
+				} catch (Exception e) {
+					throw new IllegalStateException("no SAX parser", e);
+				}
+			}
+		};
+
+	/**
+	 * Thrown by a handler to stop parsing once it has its answer.
+	 */
+	private static class StopParsingException extends SAXException {
+		private static final long serialVersionUID = 1L;
+
+		StopParsingException() {
+			super("done");
+		}
+	}
+
+	/**
+	 * Page of a findObjects response.
+	 */
+	static class ObjectPage {
+		/** session token of the next page, null if this is the last */
+		String token;
+	}
+
+	/**
+	 * Parses a response with the given handler.
+	 */
+	private static void parse(InputStream in, DefaultHandler handler)
+		throws IOException, SAXException
+	{
+		SAXParser parser = parsers.get();
+
+		try {
+			parser.parse(in, handler);
+		} catch (StopParsingException e) {
+			// the handler has its answer
+		} finally {
+			parser.reset();
+		}
+	}
+
+	/**
+	 * Returns the name of an element without its prefix.
+	 */
+	private static String localName(String qName)
+	{
+		int index = qName.indexOf(':');
+
+		return index < 0 ? qName : qName.substring(index + 1);
+	}
+
+	/**
+	 * Reads the data streams of a listDatastreams response.
+	 *
+	 * @param in the response
+	 * @param list list receiving the data streams
+	 */
+	public static void parseDataStreams(InputStream in,
+										final List<DataStream> list)
+		throws IOException, SAXException
+	{
+		parse(in, new DefaultHandler() {
+				public void startElement(String uri, String localName,
+										 String qName, Attributes attributes) {
+					String dsid, label, mimeType;
+
+					if (! localName(qName).equals("datastream")) {
+						return;
+					}
+
+					dsid = attributes.getValue("dsid");
+					label = attributes.getValue("label");
+					mimeType = attributes.getValue("mimeType");
+
+					if (dsid == null) {
+						return;
+					}
+					if (label == null) {
+						label = "";
+					}
+					if (mimeType == null || mimeType.equals("")) {
+						// set default MIME type
+						mimeType = "application/octet-stream";
+					}
+
+					list.add(new DataStream(dsid, label, mimeType));
+				}
+			});
+	}
+
+	/**
+	 * Tests if a listDatastreams response contains a data stream,
+	 * reading no further than the data stream.
+	 *
+	 * @param in the response
+	 * @param dsID id of the data stream
+	 * @return whether the data stream is listed
+	 */
+	public static boolean containsDataStream(InputStream in,
+											 final String dsID)
+		throws IOException, SAXException
+	{
+		final boolean [] found = new boolean[1];
+
+		parse(in, new DefaultHandler() {
+				public void startElement(String uri, String localName,
+										 String qName, Attributes attributes)
+					throws SAXException {
+					if (localName(qName).equals("datastream") &&
+						dsID.equals(attributes.getValue("dsid"))) {
+						found[0] = true;
+						throw new StopParsingException();
+					}
+				}
+			});
+
+		return found[0];
+	}
+
+	/**
+	 * Reads the pids and the session token of a findObjects response.
+	 *
+	 * @param in the response
+	 * @param pids list receiving the pids, or null to stop at the
+	 * first pid
+	 * @return the page, whose token is null if there are no more pages;
+	 * null if <code>pids</code> is null and no pid was found
+	 */
+	public static ObjectPage parseObjectPage(InputStream in,
+											 final List<String> pids)
+		throws IOException, SAXException
+	{
+		final ObjectPage page = new ObjectPage();
+		final StringBuilder text = new StringBuilder();
+		final boolean [] found = new boolean[1];
+
+		parse(in, new DefaultHandler() {
+				/** whether the text of the current element is wanted */
+				private boolean inText;
+
+				public void startElement(String uri, String localName,
+										 String qName, Attributes attributes) {
+					String name = localName(qName);
+
+					inText = name.equals("pid") || name.equals("token");
+					text.setLength(0);
+				}
+
+				public void characters(char [] ch, int start, int length) {
+					if (inText) {
+						text.append(ch, start, length);
+					}
+				}
+
+				public void endElement(String uri, String localName,
+									   String qName) throws SAXException {
+					String name = localName(qName);
+
+					if (! inText) {
+						return;
+					}
+					inText = false;
+
+					if (name.equals("token")) {
+						page.token = text.toString().trim();
+					}
+					else if (name.equals("pid")) {
+						found[0] = true;
+						if (pids == null) {
+							throw new StopParsingException();
+						}
+						pids.add(text.toString().trim());
+					}
+				}
+			});
+
+		if (pids == null && ! found[0]) {
+			return null;
+		}
+
+		return page;
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.httpclient.HttpMethod;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p><code>TupleIterator</code> reads the tuples of a resource index
+ * search in CSV format one at a time, directly off the HTTP response,
+ * so that a large result is never held in memory and the first tuple is
+ * available as soon as it arrives.</p>
+ *
+ * <p>Values are unquoted as in RFC 4180: a quoted value may contain
+ * commas, line breaks and doubled quotes. The header line naming the
+ * columns is read when the iterator is created.</p>
+ *
+ * <p>The HTTP connection is released when the last tuple has been read
+ * or when {@link #close} is called, whichever comes first. Callers that
+ * may stop early must call <code>close</code> in a finally block.</p>
+ *
+ * @author Xin Xiang
+ */
+public class TupleIterator implements Iterator<String []> {
+
+	/** log4j logger */
+	private static Logger log = LoggerFactory.getLogger(TupleIterator.class);
+
+	/** HTTP method holding the connection, null if not from HTTP */
+	private HttpMethod method;
+
+	/** reader of the response */
+	private Reader reader;
+
+	/** names of the columns */
+	private String [] columns;
+
+	/** next tuple, null if not read yet */
+	private String [] next;
+
+	/** whether the end of the response has been reached */
+	private boolean done;
+
+	/**
+	 * Creates a new <code>TupleIterator</code> instance over the response
+	 * of an executed HTTP method.
+	 *
+	 * @param method the HTTP method, released when the iterator is closed
+	 */
+	public TupleIterator(HttpMethod method) throws IOException
+	{
+		this.method = method;
+
+		try {
+			open(method.getResponseBodyAsStream());
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Creates a new <code>TupleIterator</code> instance over a CSV
+	 * stream.
+	 *
+	 * @param in the CSV stream, closed when the iterator is closed
+	 */
+	public TupleIterator(InputStream in) throws IOException
+	{
+		try {
+			open(in);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens the response and reads its header.
+	 */
+	private void open(InputStream in) throws IOException
+	{
+		if (in == null) {
+			// empty response
+			columns = new String [0];
+			done = true;
+			return;
+		}
+
+		reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		columns = readTuple();
+		if (columns == null) {
+			columns = new String [0];
+		}
+	}
+
+	/**
+	 * Gets the names of the columns, as given in the header.
+	 *
+	 * @return names of the columns
+	 */
+	public String [] getColumns()
+	{
+		return columns;
+	}
+
+	/**
+	 * Reads one tuple.
+	 *
+	 * @return values of the tuple, or null at the end of the response
+	 */
+	private String [] readTuple() throws IOException
+	{
+		List<String> values = new ArrayList<String>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		int c;
+
+		c = reader.read();
+		if (c < 0) {
+			return null;
+		}
+
+		while (true) {
+			if (quoted) {
+				if (c < 0) {
+					// unterminated quote
+					break;
+				}
+				if (c == '"') {
+					c = reader.read();
+					if (c != '"') {
+						// closing quote
+						quoted = false;
+						continue;
+					}
+				}
+				value.append((char) c);
+			}
+			else if (c == '"') {
+				quoted = true;
+			}
+			else if (c == ',') {
+				values.add(value.toString());
+				value.setLength(0);
+			}
+			else if (c == '\n' || c < 0) {
+				break;
+			}
+			else if (c != '\r') {
+				value.append((char) c);
+			}
+
+			c = reader.read();
+		}
+
+		values.add(value.toString());
+
+		return values.toArray(new String [values.size()]);
+	}
+
+	/**
+	 * Tests if there is another tuple, reading it if necessary. The
+	 * connection is released once the response is exhausted.
+	 *
+	 * @return whether there is another tuple
+	 */
+	public boolean hasNext()
+	{
+		if (next != null) {
+			return true;
+		}
+		if (done) {
+			return false;
+		}
+
+		try {
+			next = readTuple();
+		} catch (IOException e) {
+			log.error("failed to read resource index tuples!", e);
+			next = null;
+		}
+
+		if (next == null) {
+			done = true;
+			close();
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Gets the next tuple.
+	 *
+	 * @return values of the tuple, in the order of the columns
+	 */
+	public String [] next()
+	{
+		String [] tuple;
+
+		if (! hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		tuple = next;
+		next = null;
+
+		return tuple;
+	}
+
+	/**
+	 * Not supported.
+	 */
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Releases the connection. If the response has not been read to
+	 * the end, the connection is aborted rather than drained. Closing
+	 * more than once has no effect.
+	 */
+	public void close()
+	{
+		if (method != null) {
+			if (! done) {
+				method.abort();
+			}
+			method.releaseConnection();
+			method = null;
+		}
+		else if (reader != null) {
+			try {
+				reader.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+
+		reader = null;
+		done = true;
+		next = null;
+	}
+}
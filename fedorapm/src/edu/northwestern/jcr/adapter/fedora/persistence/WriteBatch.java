@@ -0,0 +1,215 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p><code>WriteBatch</code> collects the writes to Fedora resulting from
+ * one change log, grouped by the digital object they modify.</p>
+ *
+ * <p>The writes of an object are applied in the order they were added.
+ * An object that depends on another one, such as a member that has to
+ * be linked to its newly created parent, is only written once the
+ * other object is done. Objects at the same depth of the dependency
+ * graph are independent and are written concurrently.</p>
+ *
+ * @author Xin Xiang
+ */
+class WriteBatch {
+
+	/** log4j logger */
+	private static Logger log = LoggerFactory.getLogger(WriteBatch.class);
+
+	/**
+	 * A deferred write to Fedora.
+	 */
+	interface Write {
+		/**
+		 * Performs the write.
+		 */
+		void run() throws Exception;
+	}
+
+	/** map pid to its writes, in the order they were added */
+	private final Map<String, List<Write>> writeMap =
+		new LinkedHashMap<String, List<Write>>();
+
+	/** map pid to the pids that have to be written before it */
+	private final Map<String, Set<String>> dependencyMap =
+		new HashMap<String, Set<String>>();
+
+	/**
+	 * Adds a write of a digital object.
+	 *
+	 * @param pid pid of the object modified by the write
+	 * @param write the write
+	 */
+	public void add(String pid, Write write)
+	{
+		List<Write> list = writeMap.get(pid);
+
+		if (list == null) {
+			list = new ArrayList<Write>();
+			writeMap.put(pid, list);
+		}
+
+		list.add(write);
+	}
+
+	/**
+	 * Requires the writes of an object to be done before those of
+	 * another one.
+	 *
+	 * @param pid pid of the dependent object
+	 * @param parentPID pid of the object it depends on
+	 */
+	public void addDependency(String pid, String parentPID)
+	{
+		Set<String> set = dependencyMap.get(pid);
+
+		if (set == null) {
+			set = new HashSet<String>();
+			dependencyMap.put(pid, set);
+		}
+
+		set.add(parentPID);
+	}
+
+	/**
+	 * Tests if the batch holds no write.
+	 *
+	 * @return whether the batch is empty
+	 */
+	public boolean isEmpty()
+	{
+		return writeMap.isEmpty();
+	}
+
+	/**
+	 * Gets the depth of an object in the dependency graph, counting only
+	 * the objects written by this batch.
+	 */
+	private int getLevel(String pid, Map<String, Integer> levelMap,
+						 Set<String> visiting)
+	{
+		Integer level = levelMap.get(pid);
+		Set<String> parents;
+		int max = 0;
+
+		if (level != null) {
+			return level.intValue();
+		}
+
+		parents = dependencyMap.get(pid);
+		if (parents != null && visiting.add(pid)) {
+			for (String parent : parents) {
+				if (writeMap.containsKey(parent) && ! visiting.contains(parent)) {
+					max = Math.max(max, getLevel(parent, levelMap, visiting) + 1);
+				}
+			}
+			visiting.remove(pid);
+		}
+
+		levelMap.put(pid, Integer.valueOf(max));
+
+		return max;
+	}
+
+	/**
+	 * Runs the writes of an object in order.
+	 */
+	private static void runAll(List<Write> list) throws Exception
+	{
+		for (Write write : list) {
+			write.run();
+		}
+	}
+
+	/**
+	 * Applies all the writes, one level of the dependency graph after the
+	 * other. If a write fails, the writes of the other objects at its
+	 * level are completed but no later level is started.
+	 *
+	 * @param executor pool running the writes of independent objects
+	 */
+	public void execute(ExecutorService executor) throws Exception
+	{
+		Map<String, Integer> levelMap = new HashMap<String, Integer>();
+		Map<Integer, List<String>> levels = new TreeMap<Integer, List<String>>();
+		List<Callable<Object>> tasks;
+		List<String> pids;
+		Integer level;
+
+		for (String pid : writeMap.keySet()) {
+			level = Integer.valueOf(getLevel(pid, levelMap, new HashSet<String>()));
+			pids = levels.get(level);
+			if (pids == null) {
+				pids = new ArrayList<String>();
+				levels.put(level, pids);
+			}
+			pids.add(pid);
+		}
+
+		for (List<String> list : levels.values()) {
+			log.debug("writing " + list.size() + " objects");
+
+			if (list.size() == 1 || executor == null) {
+				for (String pid : list) {
+					runAll(writeMap.get(pid));
+				}
+				continue;
+			}
+
+			tasks = new ArrayList<Callable<Object>>(list.size());
+			for (String pid : list) {
+				final List<Write> writes = writeMap.get(pid);
+
+				tasks.add(new Callable<Object>() {
+						public Object call() throws Exception {
+							runAll(writes);
+							return null;
+						}
+					});
+			}
+
+			for (Future<Object> future : executor.invokeAll(tasks)) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+			}
+		}
+	}
+}
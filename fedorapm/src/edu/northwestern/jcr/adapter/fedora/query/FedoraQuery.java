@@ -17,6 +17,10 @@ package edu.northwestern.jcr.adapter.fedora.query;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +41,19 @@ import edu.northwestern.jcr.adapter.fedora.persistence.FedoraConnector;
  * The pid in the array <code>current</code> after all the steps are
  * processed will be the query results.</p>
  *
+ * <p>The ordering and the range of the results set by {@link #setOrder}
+ * before the last step are pushed into its resource index query when
+ * the step runs a single one, so that the rows come back sorted and
+ * only the requested page is transferred. Otherwise the results are
+ * left for {@link SearchIndex} to sort.</p>
+ *
+ * <p>A <code>*</code> or <code>//*</code> step below the first level
+ * runs one resource index query per current result. These run on the
+ * fan-out pool of the {@link SearchIndex} of the workspace, separate
+ * from the pool of asynchronous calls of the connector, which the
+ * queries themselves may use; the results are still collected in the
+ * order of the current results.</p>
+ *
  * <p>The <a href="http://jackrabbit.apache.org/search-implementation.html">"Search Implementation" section of the Jackrabbit website</a> gives a short
  * introduction to query handling in Jackrabbit.
  *
@@ -60,6 +77,29 @@ class FedoraQuery {
 	private int type;
 	/** node local name at this level. */
 	private String name;
+	/** triple patterns binding the sort variables. */
+	private String orderPatterns;
+	/** order by clause, empty if there is no ordering. */
+	private String orderClause = "";
+	/** number of results to skip. */
+	private long offset;
+	/** maximum number of results, no limit if not positive. */
+	private long limit;
+	/** whether the range is left to the sort of {@link SearchIndex}. */
+	private boolean sortedLater;
+	/** whether the current result is in the requested order. */
+	private boolean ordered;
+	/** number of results already skipped by the resource index. */
+	private long skipped;
+
+	/** default number of per-parent queries run at once. */
+	public static final int DEFAULT_FAN_OUT_THREADS = 8;
+
+	/** 
+	 * pool running the per-parent queries, null to run them on the
+	 * calling thread.
+	 */
+	private final ExecutorService fanOutExecutor;
 
 	/** type of the step: exact match. */
 	public static final int EXACT = 0;
@@ -72,10 +112,14 @@ class FedoraQuery {
 
     /**
      * Public constructor.
+     *
+     * @param fanOutExecutor pool running the per-parent queries of a
+     * step, null to run them one after the other on the calling thread
      */
-	public FedoraQuery()
+	public FedoraQuery(ExecutorService fanOutExecutor)
 	{
 		level = 0;
+		this.fanOutExecutor = fanOutExecutor;
 	}
 
 	/**
@@ -102,6 +146,232 @@ class FedoraQuery {
 		}
 	}
 
+	/**
+	 * Sets the ordering and the range of the results of the next
+	 * location step.
+	 *
+	 * @param patterns triple patterns binding the sort variables to the 
+	 * properties of <code>$s</code>
+	 * @param clause order by clause, empty if there is no ordering
+	 * @param offset number of results to skip
+	 * @param limit maximum number of results, no limit if not positive
+	 */
+	public void setOrder(String patterns, String clause, 
+						 long offset, long limit)
+	{
+		this.orderPatterns = patterns;
+		this.orderClause = clause;
+		this.offset = offset;
+		this.limit = limit;
+		sortedLater = false;
+	}
+
+	/**
+	 * Sets the range of the results of the next location step when its
+	 * ordering is left to {@link SearchIndex}. The resource index
+	 * returns every result, and the sort may keep only the first
+	 * <code>offset + limit</code>.
+	 *
+	 * @param offset number of results to skip
+	 * @param limit maximum number of results, no limit if not positive
+	 */
+	public void setRange(long offset, long limit)
+	{
+		this.orderPatterns = null;
+		this.orderClause = "";
+		this.offset = offset;
+		this.limit = limit;
+		sortedLater = true;
+	}
+
+	/**
+	 * Returns the number of results to skip. It is 0 unless no result
+	 * can be dropped by the access check.
+	 *
+	 * @return the offset
+	 */
+	public long getOffset()
+	{
+		return offset;
+	}
+
+	/**
+	 * Returns the maximum number of results, 0 unless no result can be
+	 * dropped by the access check.
+	 *
+	 * @return the limit, no limit if not positive
+	 */
+	public long getLimit()
+	{
+		return limit;
+	}
+
+	/**
+	 * Tells whether the resource index has already sorted the result.
+	 *
+	 * @return true if the result is in the requested order
+	 */
+	public boolean isOrdered()
+	{
+		return ordered;
+	}
+
+	/**
+	 * Replaces the result with the same result sorted in the requested
+	 * order, so that a query reused from the result cache is not sorted
+	 * again.
+	 *
+	 * @param result the sorted result, truncated to offset + limit
+	 */
+	public void setSortedResult(String [] result)
+	{
+		current = result;
+		ordered = true;
+	}
+
+	/**
+	 * Returns the number of results the resource index has already
+	 * skipped, at the start of the requested range.
+	 *
+	 * @return number of results skipped
+	 */
+	public long getSkipped()
+	{
+		return skipped;
+	}
+
+	/**
+	 * Returns the solution modifiers for the ordering and the range
+	 * set by {@link #setOrder}, and records that the resource index
+	 * applies them. 
+	 *
+	 * @return the modifiers, or null if there are none
+	 */
+	private String applyOrder()
+	{
+		String modifiers = orderClause;
+
+		if (sortedLater) {
+			return null;
+		}
+
+		if (limit > 0) {
+			modifiers += " limit " + limit;
+		}
+		if (offset > 0) {
+			modifiers += " offset " + offset;
+		}
+
+		if (modifiers.trim().length() == 0) {
+			return null;
+		}
+
+		ordered = orderClause.length() > 0;
+		skipped = offset;
+
+		return modifiers;
+	}
+
+	/**
+	 * Appends the triple patterns of the sort variables to a filter.
+	 *
+	 * @param filter the filter, null if there is none
+	 * @return the filter binding the sort variables
+	 */
+	private String withOrderPatterns(String filter)
+	{
+		if (orderPatterns == null || orderPatterns.length() == 0) {
+			return filter;
+		}
+
+		return filter == null ? orderPatterns : filter + " " + orderPatterns;
+	}
+
+	/**
+	 * Lists the members or the descendants of one current result.
+	 *
+	 * @param fc the connector
+	 * @param pid pid of the current result
+	 * @return list of members or CSV paths to the descendants
+	 */
+	private String [] list(FedoraConnector fc, String pid) throws Exception
+	{
+		if (type == DESCENDANTS) {
+			// search for descendants of this object
+			return fc.listDescendantsRI(pid, filter);
+		}
+		else if (current.length == 1) {
+			// the only parent, ordered by the resource index
+			return fc.listMembers(pid, withOrderPatterns(filter),
+								  applyOrder());
+		}
+		else {
+			// search for members of this object
+			return fc.listMembers(pid, filter);
+		}
+	}
+
+	/**
+	 * Lists the members or the descendants of every current result,
+	 * one query each. With more than one result the queries run on the
+	 * fan-out pool.
+	 *
+	 * @param fc the connector
+	 * @return the lists, in the order of the current results
+	 */
+	private String [][] listAll(final FedoraConnector fc) throws Exception
+	{
+		String [][] results = new String [current.length][];
+		List<Future<String []>> futures;
+		ExecutorService executor;
+		Throwable cause;
+		String [] parts;
+
+		executor = current.length > 1 ? fanOutExecutor : null;
+
+		if (executor == null) {
+			for (int i = 0; i < current.length; ++i) {
+				parts = current[i].split(",");
+				results[i] = list(fc, parts[parts.length - 1]);
+			}
+
+			return results;
+		}
+
+		futures = new ArrayList<Future<String []>>(current.length);
+		try {
+			for (int i = 0; i < current.length; ++i) {
+				parts = current[i].split(",");
+				final String pid = parts[parts.length - 1];
+
+				futures.add(executor.submit(new Callable<String []>() {
+						public String [] call() throws Exception {
+							return list(fc, pid);
+						}
+					}));
+			}
+
+			for (int i = 0; i < results.length; ++i) {
+				try {
+					results[i] = futures.get(i).get();
+				} catch (ExecutionException e) {
+					cause = e.getCause();
+					if (cause instanceof Exception) {
+						throw (Exception) cause;
+					}
+					throw new Exception("error listing members", cause);
+				}
+			}
+		} finally {
+			// no-op unless a query failed
+			for (Future<String []> future : futures) {
+				future.cancel(true);
+			}
+		}
+
+		return results;
+	}
+
 	/**
 	 * Returns the result at current level.
 	 *
@@ -123,6 +393,7 @@ class FedoraQuery {
 		int index;
 		String [] parts;
 		String [] result;
+		String [][] results;
 		String prefix;
 		boolean hit;
 		String query;
@@ -134,6 +405,8 @@ class FedoraQuery {
 		String uuid;
 
 		fc = FedoraPersistenceManager.fc;
+		ordered = false;
+		skipped = 0;
 
 		if (type == DEREF) {
 			resultList = new ArrayList<String>();
@@ -188,13 +461,14 @@ class FedoraQuery {
 		}
 
 		if (level == 1 && name.equals("*")) {
-			if (filter.startsWith("dsm:")) {
+			if (filter != null && filter.startsWith("dsm:")) {
 				// deal with full-text search against data streams
 				current = fc.searchFullText(filter.replace("dsm:", ""));
 			}
 			else if (type == CHILDREN) {
-				// first level objects
-				current = fc.listObjectsRI(filter);
+				// first level objects, ordered by the resource index
+				current = fc.listObjectsRI(withOrderPatterns(filter),
+										   applyOrder());
 			}
 			else { // type == DESCENDANT
 				// all objects
@@ -233,20 +507,10 @@ class FedoraQuery {
 			// descendants of a low level node
 			// create one query for each current result
 
-			for (i = 0; i < current.length; ++i) {
-				parts = current[i].split(",");
-				pid = parts[parts.length - 1];
+			results = listAll(fc);
 
-				if (type == DESCENDANTS) {
-					// search for descendants of this object
-					result = fc.listDescendantsRI(pid,
-												  filter);
-				}
-				else {
-					// search for members of this object
-					result = fc.listMembers(pid, 
-											filter);
-				}
+			for (i = 0; i < current.length; ++i) {
+				result = results[i];
 
 				// add to the result list
 				for (String r : result) {
@@ -20,6 +20,7 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import javax.jcr.NamespaceException;
 import javax.jcr.PropertyType;
@@ -83,6 +84,13 @@ public class FedoraQueryBuilder implements QueryNodeVisitor {
     private static final Logger log = 
 		LoggerFactory.getLogger(FedoraQueryBuilder.class);
 
+    /**
+     * Namespace of the Dublin Core properties, whose values are stored
+     * as plain literals.
+     */
+    private static final String DC_NAMESPACE = 
+		"http://purl.org/dc/elements/1.1";
+
     /**
      * Root node of the abstract query tree.
      */
@@ -123,6 +131,24 @@ public class FedoraQueryBuilder implements QueryNodeVisitor {
      */
     private final List exceptions = new ArrayList();
 
+    /**
+     * The number of results the resource index skips, 0 if the offset is
+     * applied after the access check.
+     */
+    private final long offset;
+
+    /**
+     * The maximum number of results the resource index returns, no limit
+     * if not positive.
+     */
+    private final long limit;
+
+    /**
+     * The pool running the per-parent queries of a step, null to run them
+     * on the calling thread.
+     */
+    private final ExecutorService fanOutExecutor;
+
     /**
      * Creates a new <code>FedoraQueryBuilder</code> instance.
      *
@@ -133,13 +159,19 @@ public class FedoraQueryBuilder implements QueryNodeVisitor {
      * @param hmgr               a hierarchy manager based on sharedItemMgr.
      * @param nsMappings         namespace resolver for internal prefixes.
      * @param propReg            the property type registry.
+     * @param offset             the offset in the total result set.
+     * @param limit              the maximum result size.
+     * @param fanOutExecutor     the pool running the per-parent queries.
      */
     private FedoraQueryBuilder(QueryRootNode root,
                                SessionImpl session,
                                ItemStateManager sharedItemMgr,
                                HierarchyManager hmgr,
                                NamespaceMappings nsMappings,
-                               PropertyTypeRegistry propReg
+                               PropertyTypeRegistry propReg,
+							   long offset,
+							   long limit,
+							   ExecutorService fanOutExecutor
 							   ) {
         this.root = root;
         this.session = session;
@@ -148,6 +180,9 @@ public class FedoraQueryBuilder implements QueryNodeVisitor {
         this.nsMappings = nsMappings;
         this.propRegistry = propReg;
         this.resolver = NamePathResolverImpl.create(nsMappings);
+        this.offset = offset;
+        this.limit = limit;
+        this.fanOutExecutor = fanOutExecutor;
     }
 
     /**
@@ -160,6 +195,11 @@ public class FedoraQueryBuilder implements QueryNodeVisitor {
      * @param nsMappings      namespace resolver for internal prefixes.
      * @param propReg         the property type registry to lookup type
      *                        information.
+     * @param offset          the offset in the total result set.
+     * @param limit           the maximum result size, no limit if not
+     *                        positive.
+     * @param fanOutExecutor  the pool running the per-parent queries of a
+     *                        step, null to run them on the calling thread.
      * @return the FedoraQuery object.
      * @throws RepositoryException if an error occurs during the translation.
      */
@@ -167,7 +207,10 @@ public class FedoraQueryBuilder implements QueryNodeVisitor {
 										  SessionImpl session,
 										  ItemStateManager sharedItemMgr,
 										  NamespaceMappings nsMappings,
-										  PropertyTypeRegistry propReg
+										  PropertyTypeRegistry propReg,
+										  long offset,
+										  long limit,
+										  ExecutorService fanOutExecutor
 									 )
             throws RepositoryException 
 	{
@@ -177,7 +220,9 @@ public class FedoraQueryBuilder implements QueryNodeVisitor {
 			new FedoraQueryBuilder(
 								   root, session, sharedItemMgr, hmgr, 
 								   nsMappings, 
-								   propReg
+								   propReg,
+								   offset, limit,
+								   fanOutExecutor
 								   );
 
 		FedoraQuery q = builder.createFedoraQuery();
@@ -418,6 +463,12 @@ public class FedoraQueryBuilder implements QueryNodeVisitor {
 	 * is resolved and then triggers the operations in
 	 * {@link edu.northwestern.jcr.adapter.fedora.query.FedoraQuery} 
 	 * which generates the SPARQL expressions and executes.
+	 * The ORDER BY clause, the offset and the limit go with the last
+	 * step, whose query can sort and truncate the results. Only Dublin
+	 * Core properties are sorted by the resource index, since the other
+	 * properties are stored with their type and the resource index would
+	 * compare the encoded strings; ordering on any other property leaves
+	 * the sort and the range to {@link SearchIndex}.
 	 *
 	 * @param node the query node
 	 * @param data not used in this implementation
@@ -426,13 +477,14 @@ public class FedoraQueryBuilder implements QueryNodeVisitor {
     public Object visit(PathQueryNode node, Object data) 
 		throws RepositoryException 
 	{
-		FedoraQuery query = new FedoraQuery();
+		FedoraQuery query = new FedoraQuery(fanOutExecutor);
 		int type;
 		String name;
         LocationStepQueryNode[] steps = node.getPathSteps();
 
 		String orderbyVariables = "";
 		String orderbyClause = "";
+		boolean pushOrder = true;
 		String namespaceURI;
 		String localName;
 		QueryRootNode root = (QueryRootNode) node.getParent();
@@ -458,8 +510,13 @@ public class FedoraQueryBuilder implements QueryNodeVisitor {
 				namespaceURI = "http://sling.apache.org/jcr/sling/1.0";
 			}
 
-			orderbyVariables += "$s <" + namespaceURI + "/" + localName + 
-				"> $" + localName + ". ";
+			if (! namespaceURI.startsWith(DC_NAMESPACE)) {
+				pushOrder = false;
+			}
+
+			// optional, so that objects without the property are kept
+			orderbyVariables += "OPTIONAL { $s <" + namespaceURI + "/" + 
+				localName + "> $order" + i + " } ";
 			if (i == 0) {
 				orderbyClause += "order by ";
 			}
@@ -468,10 +525,10 @@ public class FedoraQueryBuilder implements QueryNodeVisitor {
 				orderbyClause += "asc(";
 			}
 			else {
-				orderbyClause += "dsc(";
+				orderbyClause += "desc(";
 			}
 
-			orderbyClause += "$" + localName + ") ";
+			orderbyClause += "$order" + i + ") ";
         }
 
 		for (int i = 0; i < steps.length; i++) {
@@ -479,6 +536,15 @@ public class FedoraQueryBuilder implements QueryNodeVisitor {
 			String propertyURI;
 			String nameURI;
 
+			if (i == steps.length - 1) {
+				if (pushOrder) {
+					query.setOrder(orderbyVariables, orderbyClause.trim(),
+								   offset, limit);
+				} else {
+					query.setRange(offset, limit);
+				}
+			}
+
 			if (steps[i] instanceof DerefQueryNode) {
 				// deref function
 
@@ -716,8 +782,10 @@ public class FedoraQueryBuilder implements QueryNodeVisitor {
     }
 
 	/**
-	 * Visits the order query node. Not used since all the 
-	 * ordering are implemented in
+	 * Visits the order query node. Not used since the ordering is
+	 * pushed into the query of the last location step in the 
+	 * <code>visit</code> method for <code>PathQueryNode</code>, or
+	 * implemented in
 	 * {@link edu.northwestern.jcr.adapter.fedora.query.SearchIndex}.
 	 *
 	 * @param node the query node
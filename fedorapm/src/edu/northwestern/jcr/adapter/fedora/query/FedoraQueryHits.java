@@ -20,13 +20,16 @@ import org.apache.jackrabbit.core.id.NodeId;
 
 import java.io.IOException;
 
+import edu.northwestern.jcr.adapter.fedora.persistence.FedoraPersistenceManager;
+
 /**
- * Wraps the hits.
+ * Wraps the hits: comma-separated lists of the pids along the paths to
+ * the results, converted to node paths only as they are read.
  */
 public class FedoraQueryHits extends AbstractQueryHits {
 
 	/**
-	 * The array of name
+	 * The pids along the path to each hit
 	 */
 	private final String [] hits;
 
@@ -57,11 +60,41 @@ public class FedoraQueryHits extends AbstractQueryHits {
 		if (++hitIndex >= hits.length) {
             return null;
         }
-        String uuid = "";
 
-		return new ScoreNode(null, 0, hits[hitIndex]);
+		return new ScoreNode(null, 0, toPath(hits[hitIndex]));
     }
 
+	/**
+	 * Converts the comma-separated pids along a path into the form
+	 * "{} {}name1 {}name2 ...", with tabs between the elements.
+	 *
+	 * @param line the pids, empty for the root
+	 * @return the path
+	 */
+	static String toPath(String line)
+	{
+		StringBuilder s = new StringBuilder("{}");
+		String escapedPID;
+
+		if (line.equals("")) {
+			// root
+			return s.toString();
+		}
+
+		for (String pid : line.split(",")) {
+			escapedPID = FedoraPersistenceManager.escapePID(pid);
+			if (escapedPID.equals("xmltext")) {
+				// needs a better way to handle the jcr namespace
+				s.append("\t{http://www.jcp.org/jcr/1.0}xmltext");
+			}
+			else {
+				s.append("\t{}").append(escapedPID);
+			}
+		}
+
+		return s.toString();
+	}
+
     /**
      * Skips <code>n</code> hits.
      *
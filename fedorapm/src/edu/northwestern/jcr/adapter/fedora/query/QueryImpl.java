@@ -21,6 +21,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import javax.jcr.RepositoryException;
+import javax.security.auth.Subject;
 import javax.jcr.nodetype.PropertyDefinition;
 import javax.jcr.query.InvalidQueryException;
 import javax.jcr.query.QueryResult;
@@ -28,6 +29,8 @@ import javax.jcr.query.QueryResult;
 import org.apache.jackrabbit.core.ItemManager;
 import org.apache.jackrabbit.core.SessionImpl;
 import org.apache.jackrabbit.core.nodetype.NodeTypeImpl;
+import org.apache.jackrabbit.core.security.SystemPrincipal;
+import org.apache.jackrabbit.core.security.principal.AdminPrincipal;
 import org.apache.jackrabbit.spi.commons.nodetype.PropertyDefinitionImpl;
 import org.apache.jackrabbit.core.query.PropertyTypeRegistry;
 import org.apache.jackrabbit.spi.Name;
@@ -45,6 +48,7 @@ import org.apache.jackrabbit.spi.commons.query.QueryRootNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.northwestern.jcr.adapter.fedora.persistence.FedoraPersistenceManager;
 import edu.northwestern.jcr.adapter.fedora.query.FedoraQuery;
 
 /**
@@ -107,11 +111,33 @@ public class QueryImpl extends AbstractQueryImpl {
     public QueryResult execute(long offset, long limit) throws RepositoryException {
 		log.info("Executing query: \n" + root.dump());
 
-		FedoraQuery query =
-			FedoraQueryBuilder.createQuery(root, session,
-										   index.getContext().getItemStateManager(),
-										   index.getNamespaceMappings(),
-										   propReg);
+		QueryResultCache cache = index.getResultCache();
+		long modificationCount = FedoraPersistenceManager.getModificationCount();
+		String key = null;
+		FedoraQuery query = null;
+
+		// the access check may drop results, so the resource index can
+		// only apply the range for a session that reads every node
+		long queryOffset = 0;
+		long queryLimit = 0;
+		if (isUnrestricted()) {
+			queryOffset = offset;
+			queryLimit = limit;
+		}
+
+		if (cache != null) {
+			key = QueryKey.create(root, queryOffset, queryLimit);
+			query = cache.get(key);
+		}
+
+		boolean cached = query != null;
+		if (! cached) {
+			query = FedoraQueryBuilder.createQuery(root, session,
+												   index.getContext().getItemStateManager(),
+												   index.getNamespaceMappings(),
+												   propReg, queryOffset, queryLimit,
+												   index.getFanOutExecutor());
+		}
 
         OrderQueryNode orderNode = root.getOrderNode();
 
@@ -128,12 +154,37 @@ public class QueryImpl extends AbstractQueryImpl {
             ascSpecs[i] = orderSpecs[i].isAscending();
         }
 
-        return new QueryResultImpl(index, itemMgr,
-								   session, session.getAccessManager(),
-								   this, 
-								   query,
-								   getSelectProperties(), orderProperties, ascSpecs,
-								   getRespectDocumentOrder(), offset, limit);
+        QueryResultImpl result =
+			new QueryResultImpl(index, itemMgr,
+								session, session.getAccessManager(),
+								this, 
+								query,
+								getSelectProperties(), orderProperties, ascSpecs,
+								getRespectDocumentOrder(), offset, limit);
+
+		if (cache != null && ! cached &&
+			(orderProperties.length == 0 || query.isOrdered())) {
+			// cache the query once its result is sorted, so that it is
+			// not sorted again
+			cache.put(key, query, modificationCount);
+		}
+
+		return result;
+    }
+
+    /**
+     * Tells whether the session of this query may read every node, as
+     * the system and admin sessions do, so that the access check drops
+     * no result.
+     *
+     * @return <code>true</code> if no result is dropped by the access
+     *         check
+     */
+    private boolean isUnrestricted() {
+        Subject subject = session.getSubject();
+
+        return ! subject.getPrincipals(SystemPrincipal.class).isEmpty()
+            || ! subject.getPrincipals(AdminPrincipal.class).isEmpty();
     }
 
     /**
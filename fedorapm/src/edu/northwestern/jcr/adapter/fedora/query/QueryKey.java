@@ -0,0 +1,258 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.query;
+
+import java.util.Arrays;
+
+import javax.jcr.RepositoryException;
+
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.Path;
+import org.apache.jackrabbit.spi.commons.query.AndQueryNode;
+import org.apache.jackrabbit.spi.commons.query.DerefQueryNode;
+import org.apache.jackrabbit.spi.commons.query.ExactQueryNode;
+import org.apache.jackrabbit.spi.commons.query.LocationStepQueryNode;
+import org.apache.jackrabbit.spi.commons.query.NAryQueryNode;
+import org.apache.jackrabbit.spi.commons.query.NodeTypeQueryNode;
+import org.apache.jackrabbit.spi.commons.query.NotQueryNode;
+import org.apache.jackrabbit.spi.commons.query.OrQueryNode;
+import org.apache.jackrabbit.spi.commons.query.OrderQueryNode;
+import org.apache.jackrabbit.spi.commons.query.PathQueryNode;
+import org.apache.jackrabbit.spi.commons.query.PropertyFunctionQueryNode;
+import org.apache.jackrabbit.spi.commons.query.QueryConstants;
+import org.apache.jackrabbit.spi.commons.query.QueryNode;
+import org.apache.jackrabbit.spi.commons.query.QueryNodeVisitor;
+import org.apache.jackrabbit.spi.commons.query.QueryRootNode;
+import org.apache.jackrabbit.spi.commons.query.RelationQueryNode;
+import org.apache.jackrabbit.spi.commons.query.TextsearchQueryNode;
+
+/**
+ * <p><code>QueryKey</code> writes the canonical form of a query tree,
+ * the key of the query in the {@link QueryResultCache}. Names are
+ * written expanded, so the key does not depend on the prefixes of the
+ * statement, and the operands of <code>and</code> and <code>or</code>
+ * and the predicates of a location step are sorted, so that the same
+ * constraints given in a different order give the same key. The offset
+ * and the limit are part of the key.</p>
+ *
+ * @author Xin Xiang
+ */
+class QueryKey implements QueryNodeVisitor {
+
+	/** the single instance, the visitor has no state */
+	private static final QueryKey INSTANCE = new QueryKey();
+
+	private QueryKey()
+	{
+	}
+
+	/**
+	 * Creates the key of a query.
+	 *
+	 * @param root root of the query tree
+	 * @param offset the offset in the total result set
+	 * @param limit the maximum result size
+	 * @return the key
+	 */
+	public static String create(QueryRootNode root, long offset, long limit)
+		throws RepositoryException
+	{
+		return root.accept(INSTANCE, null) + "offset(" + offset +
+			")limit(" + limit + ")";
+	}
+
+	/**
+	 * Quotes free text, so that it cannot be taken for the structure of
+	 * the key.
+	 */
+	private static String quote(Object text)
+	{
+		String s = String.valueOf(text);
+
+		return s.length() + ":" + s;
+	}
+
+	/**
+	 * Writes the keys of the operands of a node.
+	 *
+	 * @param node the node
+	 * @param sorted whether the order of the operands is irrelevant
+	 */
+	private String operands(NAryQueryNode node, boolean sorted)
+		throws RepositoryException
+	{
+		return operands(node.getOperands(), sorted);
+	}
+
+	/**
+	 * Writes the keys of a list of nodes.
+	 *
+	 * @param nodes the nodes
+	 * @param sorted whether the order of the nodes is irrelevant
+	 */
+	private String operands(QueryNode [] nodes, boolean sorted)
+		throws RepositoryException
+	{
+		String [] keys = new String [nodes.length];
+		StringBuilder buffer = new StringBuilder();
+
+		for (int i = 0; i < nodes.length; ++i) {
+			keys[i] = (String) nodes[i].accept(this, null);
+		}
+
+		if (sorted) {
+			Arrays.sort(keys);
+		}
+
+		for (String key : keys) {
+			buffer.append(key);
+		}
+
+		return buffer.toString();
+	}
+
+	public Object visit(QueryRootNode node, Object data)
+		throws RepositoryException
+	{
+		Name [] select = node.getSelectProperties();
+		String [] names = new String [select.length];
+		StringBuilder buffer = new StringBuilder("root(select(");
+
+		for (int i = 0; i < select.length; ++i) {
+			names[i] = quote(select[i]);
+		}
+		Arrays.sort(names);
+		for (String name : names) {
+			buffer.append(name);
+		}
+		buffer.append(')');
+
+		if (node.getLocationNode() != null) {
+			buffer.append(node.getLocationNode().accept(this, null));
+		}
+		if (node.getOrderNode() != null) {
+			buffer.append(node.getOrderNode().accept(this, null));
+		}
+
+		return buffer.append(')').toString();
+	}
+
+	public Object visit(OrQueryNode node, Object data)
+		throws RepositoryException
+	{
+		return "or(" + operands(node, true) + ")";
+	}
+
+	public Object visit(AndQueryNode node, Object data)
+		throws RepositoryException
+	{
+		return "and(" + operands(node, true) + ")";
+	}
+
+	public Object visit(NotQueryNode node, Object data)
+		throws RepositoryException
+	{
+		return "not(" + operands(node, false) + ")";
+	}
+
+	public Object visit(ExactQueryNode node, Object data)
+	{
+		return "exact(" + quote(node.getPropertyName()) +
+			quote(node.getValue()) + ")";
+	}
+
+	public Object visit(NodeTypeQueryNode node, Object data)
+	{
+		return "type(" + quote(node.getValue()) + ")";
+	}
+
+	public Object visit(TextsearchQueryNode node, Object data)
+	{
+		return "text(" + quote(node.getRelativePath()) +
+			node.getReferencesProperty() + quote(node.getQuery()) + ")";
+	}
+
+	public Object visit(PathQueryNode node, Object data)
+		throws RepositoryException
+	{
+		return "path(" + node.isAbsolute() + operands(node, false) + ")";
+	}
+
+	public Object visit(LocationStepQueryNode node, Object data)
+		throws RepositoryException
+	{
+		return "step(" + quote(node.getNameTest()) +
+			node.getIncludeDescendants() + "," + node.getIndex() +
+			operands(node.getPredicates(), true) + ")";
+	}
+
+	public Object visit(RelationQueryNode node, Object data)
+		throws RepositoryException
+	{
+		String value;
+
+		switch (node.getValueType()) {
+		case QueryConstants.TYPE_LONG:
+			value = String.valueOf(node.getLongValue());
+			break;
+		case QueryConstants.TYPE_DOUBLE:
+			value = String.valueOf(node.getDoubleValue());
+			break;
+		case QueryConstants.TYPE_DATE:
+		case QueryConstants.TYPE_TIMESTAMP:
+			value = node.getDateValue() == null ? "null" :
+				String.valueOf(node.getDateValue().getTime());
+			break;
+		case QueryConstants.TYPE_POSITION:
+			value = String.valueOf(node.getPositionValue());
+			break;
+		default:
+			value = quote(node.getStringValue());
+		}
+
+		return "rel(" + node.getOperation() + "," + node.getValueType() +
+			"," + value +
+			(node.getRelativePath() == null ? "" :
+			 (String) node.getRelativePath().accept(this, null)) +
+			operands(node, false) + ")";
+	}
+
+	public Object visit(OrderQueryNode node, Object data)
+	{
+		OrderQueryNode.OrderSpec [] specs = node.getOrderSpecs();
+		StringBuilder buffer = new StringBuilder("order(");
+		Path path;
+
+		for (int i = 0; i < specs.length; ++i) {
+			path = specs[i].getPropertyPath();
+			buffer.append(quote(path)).append(specs[i].isAscending());
+		}
+
+		return buffer.append(')').toString();
+	}
+
+	public Object visit(DerefQueryNode node, Object data)
+		throws RepositoryException
+	{
+		return "deref(" + quote(node.getRefProperty()) +
+			visit((LocationStepQueryNode) node, data) + ")";
+	}
+
+	public Object visit(PropertyFunctionQueryNode node, Object data)
+	{
+		return "fn(" + node.getFunctionName() + ")";
+	}
+}
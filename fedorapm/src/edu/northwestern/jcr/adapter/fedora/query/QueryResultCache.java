@@ -0,0 +1,232 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.query;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.northwestern.jcr.adapter.fedora.persistence.FedoraPersistenceManager;
+
+/**
+ * <p><code>QueryResultCache</code> keeps the executed {@link FedoraQuery}
+ * objects of recent queries, keyed by {@link QueryKey}, so that a query
+ * run again is answered without translating it and asking the resource
+ * index. The cached results are the raw hits; access rights are still
+ * checked for the session reading them.</p>
+ *
+ * <p>The cache holds a bounded number of queries, in least recently used
+ * order, each for a bounded time. Since any write may change the result
+ * of any query, the whole cache is dropped as soon as the modification
+ * count of the persistence manager changes, and a query is only cached
+ * if the count did not change while it was executed. Changes made to
+ * Fedora by other clients are only seen once the cached queries
+ * expire.</p>
+ *
+ * @author Xin Xiang
+ */
+class QueryResultCache {
+
+	/** log4j logger */
+	private static Logger log =
+		LoggerFactory.getLogger(QueryResultCache.class);
+
+	/** default maximum number of queries cached */
+	public final static int DEFAULT_SIZE = 100;
+
+	/** default time queries are cached, in milliseconds */
+	public final static long DEFAULT_TIME_TO_LIVE = 60000;
+
+	/** maximum number of queries cached */
+	private final int size;
+
+	/** time queries are cached, in milliseconds */
+	private final long timeToLive;
+
+	/** cached queries in least recently used order */
+	private final Map<String, Entry> entries;
+
+	/** modification count the cached queries were executed at */
+	private long modificationCount;
+
+	/** number of lookups answered from the cache */
+	private long hits;
+
+	/** number of lookups not answered from the cache */
+	private long misses;
+
+	/** number of queries evicted because the cache was full */
+	private long evictions;
+
+	/** number of times the cache was dropped after a write */
+	private long invalidations;
+
+	/**
+	 * Creates a new <code>QueryResultCache</code> instance.
+	 *
+	 * @param size maximum number of queries cached
+	 * @param timeToLive time queries are cached, in milliseconds,
+	 * no limit if not positive
+	 */
+	public QueryResultCache(int size, long timeToLive)
+	{
+		this.size = size;
+		this.timeToLive = timeToLive;
+		modificationCount = FedoraPersistenceManager.getModificationCount();
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				if (size() > QueryResultCache.this.size) {
+					++evictions;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Looks up an executed query.
+	 *
+	 * @param key key of the query
+	 * @return the executed query, or null if it is not cached
+	 */
+	public synchronized FedoraQuery get(String key)
+	{
+		Entry entry;
+
+		checkModificationCount();
+
+		entry = entries.get(key);
+		if (entry != null && timeToLive > 0 &&
+			System.currentTimeMillis() - entry.created > timeToLive) {
+			entries.remove(key);
+			entry = null;
+		}
+
+		if (entry == null) {
+			++misses;
+			return null;
+		}
+
+		++hits;
+		log.debug("query result cache hit");
+		return entry.query;
+	}
+
+	/**
+	 * Caches an executed query, unless Fedora has been written to since
+	 * it started.
+	 *
+	 * @param key key of the query
+	 * @param query the executed query
+	 * @param count modification count of the persistence manager
+	 * before the query was executed
+	 */
+	public synchronized void put(String key, FedoraQuery query, long count)
+	{
+		checkModificationCount();
+
+		if (count != modificationCount) {
+			// the result may already be out of date
+			return;
+		}
+
+		entries.put(key, new Entry(query, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Drops all the cached queries.
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+	}
+
+	/**
+	 * Drops the cached queries if Fedora has been written to since they
+	 * were executed.
+	 */
+	private void checkModificationCount()
+	{
+		long count = FedoraPersistenceManager.getModificationCount();
+
+		if (count != modificationCount) {
+			if (! entries.isEmpty()) {
+				++invalidations;
+				entries.clear();
+			}
+			modificationCount = count;
+		}
+	}
+
+	/**
+	 * @return number of queries cached.
+	 */
+	public synchronized int getSize()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * @return number of lookups answered from the cache.
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * @return number of lookups not answered from the cache.
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * @return number of queries evicted because the cache was full.
+	 */
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	/**
+	 * @return number of times the cache was dropped after a write.
+	 */
+	public synchronized long getInvalidations()
+	{
+		return invalidations;
+	}
+
+	/**
+	 * Cached query.
+	 */
+	private static class Entry {
+		/** the executed query */
+		final FedoraQuery query;
+		/** time the query was cached */
+		final long created;
+
+		Entry(FedoraQuery query, long created)
+		{
+			this.query = query;
+			this.created = created;
+		}
+	}
+}
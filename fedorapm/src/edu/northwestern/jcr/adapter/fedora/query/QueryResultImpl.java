@@ -140,6 +140,17 @@ public class QueryResultImpl implements QueryResult {
      */
     private final long limit;
 
+    /**
+     * The hits of the query, read on as more results are fetched;
+     * <code>null</code> once they have all been read.
+     */
+    private MultiColumnQueryHits hits;
+
+    /**
+     * If <code>true</code> the query has been executed.
+     */
+    private boolean executed = false;
+
     /**
      * Creates a new query result.
      *
@@ -186,7 +197,7 @@ public class QueryResultImpl implements QueryResult {
         this.offset = offset;
         this.limit = limit;
         // if document order is requested get all results right away
-        getResults(docOrder ? Integer.MAX_VALUE : Integer.MAX_VALUE);
+        getResults(docOrder ? Integer.MAX_VALUE : index.getResultFetchSize());
     }
 
     /**
@@ -267,6 +278,11 @@ public class QueryResultImpl implements QueryResult {
      * #resultNodes}. If the size of {@link #resultNodes} is less than
      * <code>size</code> then there are no more than <code>resultNodes.size()</code>
      * results for this query.
+     * <p/>
+     * The query is executed on the first call only. Its hits are kept open
+     * as a cursor and later calls read on from where the previous one
+     * stopped, so that paging through the results does not execute the
+     * query again.
      *
      * @param size the number of results to fetch for the query.
      * @throws RepositoryException if an error occurs while executing the
@@ -280,7 +296,7 @@ public class QueryResultImpl implements QueryResult {
         long maxResultSize = size;
 
         // is there any limit?
-        if (limit > 0) {
+        if (limit > 0 && limit < maxResultSize) {
             maxResultSize = limit;
         }
 
@@ -289,40 +305,64 @@ public class QueryResultImpl implements QueryResult {
             return;
         }
 
-        // execute it
-        MultiColumnQueryHits result = null;
-        try {
-            long time = System.currentTimeMillis();
-            result = executeQuery();
-            log.debug("query executed in {} ms",
-                    new Long(System.currentTimeMillis() - time));
+        if (executed && hits == null) {
+            // the hits have all been read
+            return;
+        }
 
-            if (resultNodes.isEmpty() && offset > 0) {
-                // collect result offset into dummy list
-                collectScoreNodes(result, new ArrayList(), offset);
-            } else {
-                int start = resultNodes.size() + invalid + (int) offset;
-                result.skip(start);
+        try {
+            long time;
+
+            if (!executed) {
+                // execute it
+                time = System.currentTimeMillis();
+                hits = executeQuery();
+                executed = true;
+                log.debug("query executed in {} ms",
+                        new Long(System.currentTimeMillis() - time));
+
+                // numResults counts the results skipped by the resource
+                // index, which only applies the range when the session
+                // reads every node, so none of them would have been
+                // dropped by the access check
+                numResults = hits.getSize() + (int) query.getSkipped();
+
+                // the resource index may already have skipped the offset
+                long skip = offset - query.getSkipped();
+                if (skip > 0) {
+                    // collect result offset into dummy list
+                    collectScoreNodes(hits, new ArrayList(), skip);
+                }
             }
 
             time = System.currentTimeMillis();
-            collectScoreNodes(result, resultNodes, maxResultSize);
+            collectScoreNodes(hits, resultNodes, maxResultSize);
             log.debug("retrieved ScoreNodes in {} ms",
                     new Long(System.currentTimeMillis() - time));
 
-            // update numResults
-            numResults = result.getSize();
+            if (resultNodes.size() < maxResultSize
+                    || (limit > 0 && resultNodes.size() >= limit)) {
+                // no more hits needed
+                closeHits();
+            }
         } catch (IOException e) {
             log.error("Exception while executing query: ", e);
+            closeHits();
             // todo throw?
-        } finally {
-            if (result != null) {
-                try {
-                    result.close();
-                } catch (IOException e) {
-                    log.warn("Unable to close query result: " + e);
-                }
+        }
+    }
+
+    /**
+     * Closes the hits of the query, if they are still open.
+     */
+    private void closeHits() {
+        if (hits != null) {
+            try {
+                hits.close();
+            } catch (IOException e) {
+                log.warn("Unable to close query result: " + e);
             }
+            hits = null;
         }
     }
 
@@ -563,9 +603,11 @@ public class QueryResultImpl implements QueryResult {
                     try {
                         int num;
                         if (resultNodes.size() == 0) {
-                            num = 0; // index.getResultFetchSize();
+                            num = index.getResultFetchSize();
                         } else {
-                            num = resultNodes.size() * 2;
+                            num = (int) Math.min(Integer.MAX_VALUE,
+                                    (long) resultNodes.size()
+                                    + index.getResultFetchSize());
                         }
                         getResults(num);
                     } catch (RepositoryException e) {
@@ -63,6 +63,12 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Comparator;
 import java.util.Calendar;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.jackrabbit.core.query.AbstractQueryHandler;
 import org.apache.jackrabbit.util.ISO8601;
 
@@ -102,7 +108,8 @@ import edu.northwestern.jcr.adapter.fedora.query.ScoreNode;
  * queries since the "index" for Fedora objects is maintained by Fedora 
  * through the Mulgara-backed resource index.
  *
- * <p>ORDER BY clause is handled here by the {@link #sort} method. Other
+ * <p>ORDER BY clause is handled here by the {@link #sort} method, with
+ * a {@link ResultSorter}, when the resource index has not done it. Other
  * than that this class is little more than a wrapper of query handling
  * classes.
  *
@@ -309,6 +316,49 @@ public class SearchIndex extends AbstractQueryHandler {
      */
     private int resultFetchSize = Integer.MAX_VALUE;
 
+    /**
+     * The number of results sorted in memory before the sort spills to
+     * temporary files.
+     * <p/>
+     * Default value is: {@link ResultSorter#DEFAULT_BUFFER_SIZE}.
+     */
+    private int sortBufferSize = ResultSorter.DEFAULT_BUFFER_SIZE;
+
+    /**
+     * The number of per-parent resource index queries of a location step
+     * run at once.
+     * <p/>
+     * Default value is: {@link FedoraQuery#DEFAULT_FAN_OUT_THREADS}.
+     */
+    private int fanOutThreads = FedoraQuery.DEFAULT_FAN_OUT_THREADS;
+
+    /**
+     * The pool running the per-parent queries of this workspace, created
+     * on first use and shut down when this handler is closed.
+     */
+    private ExecutorService fanOutExecutor;
+
+    /**
+     * The maximum number of queries whose results are cached, no cache if
+     * not positive.
+     * <p/>
+     * Default value is: {@link QueryResultCache#DEFAULT_SIZE}.
+     */
+    private int resultCacheSize = QueryResultCache.DEFAULT_SIZE;
+
+    /**
+     * The time query results are cached, in milliseconds, no limit if not
+     * positive.
+     * <p/>
+     * Default value is: {@link QueryResultCache#DEFAULT_TIME_TO_LIVE}.
+     */
+    private long resultCacheTimeToLive = QueryResultCache.DEFAULT_TIME_TO_LIVE;
+
+    /**
+     * The cache of query results, <code>null</code> if disabled.
+     */
+    private QueryResultCache resultCache;
+
     /**
      * If set to <code>true</code> the fulltext field is stored and and a term
      * vector is created with offset information.
@@ -350,6 +400,11 @@ public class SearchIndex extends AbstractQueryHandler {
         nsMappings = 
 			new NSRegistryBasedNamespaceMappings(
 												 context.getNamespaceRegistry());
+
+        if (resultCacheSize > 0) {
+            resultCache = new QueryResultCache(resultCacheSize,
+                                               resultCacheTimeToLive);
+        }
     }
 
     /**
@@ -455,148 +510,71 @@ public class SearchIndex extends AbstractQueryHandler {
      * Closes this <code>QueryHandler</code> and frees resources attached
      * to this handler.
      */
-    public void close() {
+    public synchronized void close() {
+        if (fanOutExecutor != null) {
+            // queries already submitted still complete
+            fanOutExecutor.shutdown();
+            fanOutExecutor = null;
+        }
+        closed = true;
     }
 
 
 	/**
 	 * Sorts the query results based on the value of the properties.
-	 * The ORDER BY clause is actually handled here.
+	 * The ORDER BY clause is actually handled here, unless the resource
+	 * index has already sorted the results.
 	 *
 	 * @param lines array of comma-separated full paths to the query results
 	 * @param valueMap maps pid to comma-separated values
 	 * @param orderSpecs true for ascending, false for descending
-	 * @return array of sorted results
+	 * @param offset number of results that will be skipped
+	 * @param limit maximum number of results wanted, no limit if not
+	 * positive
+	 * @return array of sorted results, truncated to offset + limit
 	 */
 	private String [] sort(String [] lines, 
-						   final Map<String, String> valueMap,
-						   final boolean [] orderSpecs)
+						   Map<String, String> valueMap,
+						   boolean [] orderSpecs,
+						   long offset, long limit)
+		throws IOException
 	{
-		
-		Comparator<String> result_order = new Comparator<String> () {
-			public int compare(String line1, String line2) 
-			{
-				String pid1, pid2;
-				String valueList1, valueList2;
-				String [] parts;
-				String [] valueString1, valueString2;
-				String value1, value2;
-				Double double1, double2;
-				Long long1, long2;
-				Calendar calendar1, calendar2;
-				Boolean boolean1, boolean2;
-				String propertyType;
-				int i;
-				int compare = 0;
-
-				// get pid of the last object in the list
-				parts = line1.split(",");
-				pid1 = parts[parts.length - 1];
-				parts = line2.split(",");
-				pid2 = parts[parts.length - 1];
-
-				// get comma-separated the value list
-				valueList1 = valueMap.get(pid1);
-				valueList2 = valueMap.get(pid2);
-
-				valueString1 = valueList1.split(",");
-				valueString2 = valueList2.split(",");
-
-				for (i = 0; i < valueString1.length; ++i) {
-					// loop over the values
-					// default type (STRING) for all DC attributes
-					propertyType = "1";
-
-					value1 = valueString1[i];
-					if (value1.matches("%57")) {
-						parts = value1.split("%57");
-						value1 = parts[parts.length - 1];						
-					}
-
-					value2 = valueString2[i];
-					if (value2.matches("%57")) {
-						parts = value2.split("%57");
-						value2 = parts[parts.length - 1];
-						propertyType = parts[0];
-					}
-
-					switch (Integer.parseInt(propertyType)) {
-					case PropertyType.STRING:
-						if (orderSpecs[i]) {
-							compare = value1.compareTo(value2);
-						}
-						else {
-							compare = value2.compareTo(value1);
-						}
-						break;
-					case PropertyType.DOUBLE:
-						double1 = Double.parseDouble(value1);
-						double2 = Double.parseDouble(value2);
-						if (orderSpecs[i]) {
-							compare = double1.compareTo(double2);
-						}
-						else {
-							compare = double2.compareTo(double1);
-						}
-						break;
-					case PropertyType.LONG:
-						long1 = Long.parseLong(value1);
-						long2 = Long.parseLong(value2);
-						if (orderSpecs[i]) {
-							compare = long1.compareTo(long2);
-						}
-						else {
-							compare = long2.compareTo(long1);
-						}
-						break;
-					case PropertyType.DATE:
-						calendar1 = ISO8601.parse(value1);
-						calendar2 = ISO8601.parse(value2);
-						if (orderSpecs[i]) {
-							compare = calendar1.compareTo(calendar2);
-						}
-						else {
-							compare = calendar2.compareTo(calendar1);
-						}
-						break;
-					case PropertyType.BOOLEAN:
-						boolean1 = Boolean.valueOf(value1);
-						boolean2 = Boolean.valueOf(value2);
-						if (orderSpecs[i]) {
-							compare = boolean1.compareTo(boolean2);
-						}
-						else {
-							compare = boolean2.compareTo(boolean1);
-						}
-						break;
-						// not supported
-					case PropertyType.BINARY:
-					case PropertyType.REFERENCE:
-					case PropertyType.NAME:
-					case PropertyType.PATH:
-						compare = 0;
-					}
-
-					if (compare != 0) {
-						return compare;
-					}
-
-					// more comparison
-				}
+		ResultSorter sorter;
+		String values;
+		String [] parts;
+		int [] positions;
+		String [] result;
 
-				return compare;
+		sorter = new ResultSorter(orderSpecs, offset, limit, sortBufferSize);
+
+		for (String line : lines) {
+			// values of the last object in the list
+			values = valueMap.get(line.substring(line.lastIndexOf(',') + 1));
+			parts = values == null ? new String [0] : values.split(",", -1);
+			for (int i = 0; i < parts.length; ++i) {
+				if (parts[i].length() == 0) {
+					// unbound
+					parts[i] = null;
+				}
 			}
-		};
+			sorter.add(parts);
+		}
 
-		List<String> resultList = Arrays.asList(lines);
-		Collections.sort(resultList, result_order);
-		return resultList.toArray(new String[0]);
+		positions = sorter.sort();
+		result = new String [positions.length];
+		for (int i = 0; i < positions.length; ++i) {
+			result[i] = lines[positions[i]];
+		}
+
+		return result;
 	}
 
     /**
-     * Sorts the query results and converts them to query hits (in the form
-	 * "{} {}path1 {}path2 ..."). Note at this point the 
-	 * {@link FedoraQuery} object is already populated with query results.
+     * Sorts the query results and wraps them in query hits, which convert
+	 * them to the form "{} {}path1 {}path2 ..." as they are read.
+	 * Note at this point the 
+	 * {@link FedoraQuery} object is already populated with query results,
+	 * which are only sorted here if the resource index has not done it.
 	 *
      * @param session the session that executes the query.
      * @param queryImpl the query impl.
@@ -618,9 +596,7 @@ public class SearchIndex extends AbstractQueryHandler {
         checkOpen();
 
 		String [] result;
-		int i, j;
-		String s;
-		String [] parts;
+		int i;
 		Map<String, String> valueMap = new HashMap<String, String>();
 		// query has been executes and the result is available
 		result = query.getCurrentResult();
@@ -629,8 +605,9 @@ public class SearchIndex extends AbstractQueryHandler {
 		log.info("number of order properties: " + orderProps.length);
 
 		if (orderProps != null && orderProps.length > 0 &&
-			result.length > 0) {
-			// do not bother if there is no result
+			result.length > 0 && ! query.isOrdered()) {
+			// do not bother if there is no result or the resource
+			// index has already sorted it
 			String select = "$id";
 			String where = "$s <http://purl.org/dc/elements/1.1/identifier> $id .";
 			log.debug("order by properties: ");
@@ -641,32 +618,29 @@ public class SearchIndex extends AbstractQueryHandler {
 					namespaceURI = "http://sling.apache.org/jcr/sling/1.0";
 				}
 
-				select += " $" + localName;
-				where += " $s <" + namespaceURI + "/" + localName + 
-					"> $" + localName + ".";
+				// optional, so that objects without the property are kept
+				select += " $order" + i;
+				where += " OPTIONAL { $s <" + namespaceURI + "/" + localName + 
+					"> $order" + i + " }";
 				log.debug(localName);
 			}
 
-			where += " FILTER ( ";
-
+			// pid of the last object in each path
+			String [] ids = new String [result.length];
 			for (i = 0; i < result.length; ++i) {
-				String line = result[i];
-				parts = line.split(",");
-				String id = parts[parts.length - 1];
-				if (i > 0) {
-					where += " || ";
-				}
-				where += "regex($id, '^" + id + "$')";
+				ids[i] = result[i].substring(result[i].lastIndexOf(',') + 1);
 			}
 
-			where += " )";
-
-			String sparql = "select " + select + " from <#ri> {" +
-				where + "}";
-			log.info(sparql);
-
-			String [] resultWithProperty = 
-				FedoraPersistenceManager.fc.searchObjects(sparql, "sparql");
+			String [] resultWithProperty;
+			try {
+				resultWithProperty = FedoraPersistenceManager.fc.searchIn(
+					select, where, "id", ids);
+			} catch (Exception e) {
+				IOException ioe = new IOException(
+					"failed to get the values of the order properties");
+				ioe.initCause(e);
+				throw ioe;
+			}
 
 			// creates value map
 			for (String line : resultWithProperty) {
@@ -679,39 +653,187 @@ public class SearchIndex extends AbstractQueryHandler {
 			}
 
 			log.debug("sorting result list ...");
-			result = sort(result, valueMap, orderSpecs);
+			// truncated only if the access check drops no result
+			result = sort(result, valueMap, orderSpecs, 
+						  query.getOffset(), query.getLimit());
+			// keep the sorted result in case the query is cached
+			query.setSortedResult(result);
 		}
 
-		// creates the result in a format similar to full JCR path
-		for (i = 0; i < result.length; ++i) {
-			log.info("result: " + result[i]);
-			parts = result[i].split(",");
+		// the hits are converted to paths as they are read
+		return new QueryHitsAdapter(new FedoraQueryHits(result), 
+									QueryImpl.DEFAULT_SELECTOR_NAME);
+    }
 
-			s = "{}";
-			if (result[i].equals("")) {
-				// root
-				result[i] = s;
-				continue;
-			}
+    /**
+     * Sets the number of results fetched at a time while a query result
+     * is iterated.
+     *
+     * @param size the number of results.
+     */
+    public void setResultFetchSize(int size) {
+        resultFetchSize = size;
+    }
 
-			for (j = 0; j < parts.length; ++j) {
-				String escapedPID = 
-					FedoraPersistenceManager.escapePID(parts[j]);
-				if (escapedPID.equals("xmltext")) {
-					// needs a better way to handle the jcr namespace
-					s += "\t{http://www.jcp.org/jcr/1.0}xmltext";
-				}
-				else {
-					s += "\t{}" + escapedPID;
-				}
-			}
+    /**
+     * @return the number of results fetched at a time.
+     */
+    public int getResultFetchSize() {
+        return resultFetchSize;
+    }
 
-			log.info(s);
-			result[i] = s;			
-		}
+    /**
+     * Sets the number of results sorted in memory before the sort
+     * spills to temporary files.
+     *
+     * @param size the number of results.
+     */
+    public void setSortBufferSize(int size) {
+        sortBufferSize = size;
+    }
 
-		return new QueryHitsAdapter(new FedoraQueryHits(result), 
-									QueryImpl.DEFAULT_SELECTOR_NAME);
+    /**
+     * @return the number of results sorted in memory.
+     */
+    public int getSortBufferSize() {
+        return sortBufferSize;
+    }
+
+    /**
+     * Sets the number of per-parent resource index queries of a location
+     * step run at once, such as the member queries of a <code>*</code>
+     * step below many nodes. The pool is recreated with the new size on
+     * next use.
+     *
+     * @param threads the number of queries, 1 to run them one after the
+     *                other.
+     */
+    public synchronized void setFanOutThreads(int threads) {
+        fanOutThreads = threads;
+
+        if (fanOutExecutor != null) {
+            // queries already submitted still complete
+            fanOutExecutor.shutdown();
+            fanOutExecutor = null;
+        }
+    }
+
+    /**
+     * @return the number of per-parent queries run at once.
+     */
+    public int getFanOutThreads() {
+        return fanOutThreads;
+    }
+
+    /**
+     * Gets the pool running the per-parent queries of a location step,
+     * creating it on first use.
+     *
+     * @return the executor, or null if the queries run on the calling
+     *         thread.
+     */
+    synchronized ExecutorService getFanOutExecutor() {
+        if (fanOutThreads <= 1 || closed) {
+            return null;
+        }
+
+        if (fanOutExecutor == null) {
+            fanOutExecutor = new ThreadPoolExecutor(fanOutThreads,
+                fanOutThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "fedora-query-" +
+                                              count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+
+        return fanOutExecutor;
+    }
+
+    /**
+     * Sets the maximum number of queries whose results are cached. Takes
+     * effect when the search index is initialized.
+     *
+     * @param size the number of queries, no cache if not positive.
+     */
+    public void setResultCacheSize(int size) {
+        resultCacheSize = size;
+    }
+
+    /**
+     * @return the maximum number of queries whose results are cached.
+     */
+    public int getResultCacheSize() {
+        return resultCacheSize;
+    }
+
+    /**
+     * Sets the time query results are cached. Takes effect when the
+     * search index is initialized.
+     *
+     * @param millis the time in milliseconds, no limit if not positive.
+     */
+    public void setResultCacheTimeToLive(long millis) {
+        resultCacheTimeToLive = millis;
+    }
+
+    /**
+     * @return the time query results are cached, in milliseconds.
+     */
+    public long getResultCacheTimeToLive() {
+        return resultCacheTimeToLive;
+    }
+
+    /**
+     * @return the number of queries answered from the result cache.
+     */
+    public long getResultCacheHits() {
+        return resultCache == null ? 0 : resultCache.getHits();
+    }
+
+    /**
+     * @return the number of queries not answered from the result cache.
+     */
+    public long getResultCacheMisses() {
+        return resultCache == null ? 0 : resultCache.getMisses();
+    }
+
+    /**
+     * @return the number of queries evicted from the full result cache.
+     */
+    public long getResultCacheEvictions() {
+        return resultCache == null ? 0 : resultCache.getEvictions();
+    }
+
+    /**
+     * @return the number of times the result cache was dropped because
+     * the repository was written to.
+     */
+    public long getResultCacheInvalidations() {
+        return resultCache == null ? 0 : resultCache.getInvalidations();
+    }
+
+    /**
+     * Drops the cached query results, for instance after Fedora has been
+     * changed by another client.
+     */
+    public void clearResultCache() {
+        if (resultCache != null) {
+            resultCache.clear();
+        }
+    }
+
+    /**
+     * @return the cache of query results, <code>null</code> if disabled.
+     */
+    QueryResultCache getResultCache() {
+        return resultCache;
     }
 
     /**
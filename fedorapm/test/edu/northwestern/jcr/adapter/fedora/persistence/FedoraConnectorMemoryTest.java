@@ -0,0 +1,163 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that {@link FedoraConnectorMemory} answers the calls of the
+ * persistence manager the way a Fedora server does, including the
+ * resource index queries of {@link FedoraConnector}.
+ */
+public class FedoraConnectorMemoryTest extends TestCase {
+
+	private static final String PROPERTY = "http://example.org/terms#color";
+
+	private FedoraConnectorMemory fc;
+
+	protected void setUp() throws Exception
+	{
+		fc = new FedoraConnectorMemory(0, 0);
+
+		fc.createObject("demo:1");
+		fc.createObject("demo:2");
+		fc.createObject("demo:3");
+		fc.createObject("other:10");
+	}
+
+	private static Set<String> set(String [] values)
+	{
+		return new HashSet<String>(Arrays.asList(values));
+	}
+
+	public void testObjects() throws Exception
+	{
+		assertTrue(fc.existsObject("demo:1"));
+		assertFalse(fc.existsObject("demo:4"));
+
+		assertEquals(set(new String [] {"demo:1", "demo:2", "demo:3"}),
+					 set(fc.listObjects("demo:*")));
+		assertEquals(set(new String [] {"other:10"}),
+					 set(fc.listObjects("other:??")));
+
+		fc.deleteObject("demo:2");
+		assertFalse(fc.existsObject("demo:2"));
+		assertEquals(3, fc.listObjects("*").length);
+	}
+
+	public void testDataStreams() throws Exception
+	{
+		byte [] content = "hello world".getBytes("UTF-8");
+		InputStream in;
+		DataStream [] dataStreams;
+
+		fc.addDataStream("demo:1", "TEXT", "text/plain",
+						 new ByteArrayInputStream(content), content.length);
+
+		dataStreams = fc.listDataStreams("demo:1");
+		assertEquals(2, dataStreams.length);
+		assertEquals("DC", dataStreams[0].id);
+		assertEquals("TEXT", dataStreams[1].id);
+		assertEquals("text/plain", dataStreams[1].mimeType);
+
+		assertTrue(fc.existsDataStream("demo:1", "TEXT"));
+		assertEquals(content.length, fc.getDataStreamSize("demo:1", "TEXT"));
+		assertTrue(Arrays.equals(content, fc.getDataStream("demo:1", "TEXT")));
+
+		in = fc.openDataStream("demo:1", "TEXT");
+		try {
+			assertEquals('h', in.read());
+		} finally {
+			in.close();
+		}
+
+		fc.deleteDataStream("demo:1", "TEXT");
+		assertFalse(fc.existsDataStream("demo:1", "TEXT"));
+		assertEquals(-1, fc.getDataStreamSize("demo:1", "TEXT"));
+		assertNull(fc.listDataStreams("demo:9"));
+	}
+
+	/**
+	 * Members and their parents are found through the RELS-EXT and DC
+	 * triples, as on a server.
+	 */
+	public void testMembers() throws Exception
+	{
+		fc.addMember("demo:1", "demo:2");
+		fc.addMember("demo:1", "demo:3");
+		fc.addMember("demo:3", "other:10");
+
+		assertEquals(set(new String [] {"demo:2", "demo:3"}),
+					 set(fc.listMembers("demo:1", null)));
+		assertEquals(0, fc.listMembers("demo:2", null).length);
+		assertEquals("demo:3", fc.getParent("other:10"));
+		assertNull(fc.getParent("demo:1"));
+
+		// top-level objects have no parent
+		assertEquals(set(new String [] {"demo:1"}),
+					 set(fc.listObjectsRI(null)));
+	}
+
+	public void testProperties() throws Exception
+	{
+		Map<String, String> properties;
+
+		fc.addProperty("demo:1", PROPERTY, "blue");
+
+		assertEquals("blue", fc.getProperty("demo:1", PROPERTY));
+		assertTrue(fc.existsProperty("demo:1", PROPERTY));
+		assertTrue(set(fc.listProperties("demo:1")).contains(PROPERTY));
+
+		properties = fc.getProperties("demo:1");
+		assertEquals("blue", properties.get(PROPERTY));
+		assertEquals("demo:1", properties.get(
+						 "http://purl.org/dc/elements/1.1/identifier"));
+
+		fc.deleteProperty("demo:1", PROPERTY);
+		assertFalse(fc.existsProperty("demo:1", PROPERTY));
+	}
+
+	public void testDublinCore() throws Exception
+	{
+		fc.modifyDCField("demo:2", "title", "Second");
+
+		assertTrue(new String(fc.getDataStream("demo:2", "DC"), "UTF-8")
+				   .contains("<dc:title>Second</dc:title>"));
+		assertEquals("Second", fc.getProperty("demo:2",
+						 "http://purl.org/dc/elements/1.1/title"));
+		assertEquals(set(new String [] {"info:fedora/demo:2"}),
+					 set(fc.searchObjects("select $s from <#ri> { $s " +
+						 "<http://purl.org/dc/elements/1.1/title> $t " +
+						 "FILTER (regex($t, 'Sec')) }", "sparql")));
+	}
+
+	public void testLatency() throws Exception
+	{
+		long start;
+
+		fc.setLatency(50);
+		start = System.currentTimeMillis();
+		assertTrue(fc.existsObject("demo:1"));
+		assertTrue(System.currentTimeMillis() - start >= 50);
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the answers of {@link KnownObjects} before and after it is
+ * seeded from an in-memory repository.
+ */
+public class KnownObjectsTest extends TestCase {
+
+	/** repository holding demo:0 to demo:99 */
+	private FedoraConnectorMemory fc;
+
+	/** number of enumerations of the repository */
+	private int enumerations;
+
+	protected void setUp() throws Exception
+	{
+		fc = new FedoraConnectorMemory(0, 0) {
+				public Iterator<String> iterateObjects(String pattern)
+					throws Exception {
+					++enumerations;
+					return super.iterateObjects(pattern);
+				}
+			};
+
+		for (int i = 0; i < 100; ++i) {
+			fc.createObject("demo:" + i);
+		}
+	}
+
+	public void testUnseeded()
+	{
+		KnownObjects known = new KnownObjects(10);
+
+		assertFalse(known.isSeeded());
+		assertNull(known.contains("demo:1"));
+		assertNull(known.contains("missing:1"));
+
+		known.add("demo:1");
+		assertEquals(Boolean.TRUE, known.contains("demo:1"));
+
+		known.remove("demo:1");
+		assertNull(known.contains("demo:1"));
+	}
+
+	public void testSeeded()
+	{
+		KnownObjects known = new KnownObjects(1000);
+
+		assertTrue(known.seed(fc));
+		assertTrue(known.isSeeded());
+		assertEquals(2, enumerations);
+
+		for (int i = 0; i < 100; ++i) {
+			assertEquals(Boolean.TRUE, known.contains("demo:" + i));
+		}
+
+		// a few false positives of the filter are allowed
+		int missing = 0;
+		for (int i = 0; i < 1000; ++i) {
+			if (known.contains("missing:" + i) == Boolean.FALSE) {
+				++missing;
+			}
+		}
+		assertTrue("only " + missing + " misses", missing > 950);
+
+		// seeding again does not enumerate again
+		assertTrue(known.seed(fc));
+		assertEquals(2, enumerations);
+	}
+
+	/**
+	 * Pids that do not fit in the exact set are still in the filter, so
+	 * they are never reported missing.
+	 */
+	public void testExactSetFull()
+	{
+		KnownObjects known = new KnownObjects(10);
+		int exact = 0;
+
+		assertTrue(known.seed(fc));
+
+		for (int i = 0; i < 100; ++i) {
+			Boolean b = known.contains("demo:" + i);
+			assertTrue(b != Boolean.FALSE);
+			if (b == Boolean.TRUE) {
+				++exact;
+			}
+		}
+		assertEquals(10, exact);
+	}
+
+	public void testAddedAndRemovedAfterSeed()
+	{
+		KnownObjects known = new KnownObjects(1000);
+
+		known.add("new:1");
+		assertTrue(known.seed(fc));
+		assertEquals(Boolean.TRUE, known.contains("new:1"));
+
+		known.add("new:2");
+		assertEquals(Boolean.TRUE, known.contains("new:2"));
+
+		// a purged object is ambiguous, never known to be missing
+		known.remove("demo:5");
+		assertNull(known.contains("demo:5"));
+	}
+
+	public void testFailedEnumeration()
+	{
+		KnownObjects known = new KnownObjects(1000);
+		FedoraConnectorMemory broken = new FedoraConnectorMemory(0, 0) {
+				public Iterator<String> iterateObjects(String pattern)
+					throws Exception {
+					throw new Exception("unreachable");
+				}
+			};
+
+		assertFalse(known.seed(broken));
+		assertFalse(known.isSeeded());
+		assertNull(known.contains("missing:1"));
+
+		assertTrue(known.seed(fc));
+	}
+}
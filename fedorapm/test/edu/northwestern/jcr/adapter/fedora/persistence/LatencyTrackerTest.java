@@ -0,0 +1,214 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the timeouts and hedge delays derived by {@link LatencyTracker}
+ * and how the reads of a connector are hedged and abandoned.
+ */
+public class LatencyTrackerTest extends TestCase {
+
+	/**
+	 * Records the same latency a number of times.
+	 */
+	private static void record(LatencyTracker tracker, String name,
+							   long millis, int times)
+	{
+		for (int i = 0; i < times; ++i) {
+			tracker.record(name, millis);
+		}
+	}
+
+	public void testDefaultsUntilEnoughSamples()
+	{
+		LatencyTracker tracker = new LatencyTracker(null);
+
+		record(tracker, LatencyTracker.PROPERTY, 10, 19);
+		assertEquals(-1, tracker.getPercentile(LatencyTracker.PROPERTY, 50));
+		assertEquals(LatencyTracker.DEFAULT_MAX_TIMEOUT,
+					 tracker.getTimeout(LatencyTracker.PROPERTY));
+		assertEquals(-1, tracker.getHedgeDelay(LatencyTracker.PROPERTY));
+
+		tracker.record(LatencyTracker.PROPERTY, 10);
+		assertEquals(10, tracker.getPercentile(LatencyTracker.PROPERTY, 50));
+		assertEquals(10, tracker.getHedgeDelay(LatencyTracker.PROPERTY));
+	}
+
+	public void testTimeoutBounds()
+	{
+		Properties props = new Properties();
+		LatencyTracker tracker;
+
+		props.setProperty("timeout.search", "20000");
+		tracker = new LatencyTracker(props);
+
+		// four times the 99th percentile, at least the minimum
+		record(tracker, LatencyTracker.SEARCH, 100, 100);
+		assertEquals(LatencyTracker.MIN_TIMEOUT,
+					 tracker.getTimeout(LatencyTracker.SEARCH));
+
+		record(tracker, LatencyTracker.SEARCH, 3000, 256);
+		assertEquals(12000, tracker.getTimeout(LatencyTracker.SEARCH));
+
+		// at most the configured bound
+		record(tracker, LatencyTracker.SEARCH, 9000, 256);
+		assertEquals(20000, tracker.getTimeout(LatencyTracker.SEARCH));
+	}
+
+	public void testHedgeSettings()
+	{
+		Properties props = new Properties();
+		LatencyTracker tracker;
+
+		props.setProperty("hedge.members", "0");
+		props.setProperty("hedge.search", "50");
+		tracker = new LatencyTracker(props);
+
+		for (int i = 1; i <= 100; ++i) {
+			tracker.record(LatencyTracker.MEMBERS, i);
+			tracker.record(LatencyTracker.SEARCH, i);
+			tracker.record(LatencyTracker.DATASTREAM, i);
+		}
+
+		assertEquals(-1, tracker.getHedgeDelay(LatencyTracker.MEMBERS));
+		assertEquals(51, tracker.getHedgeDelay(LatencyTracker.SEARCH));
+		assertEquals(96, tracker.getHedgeDelay(LatencyTracker.DATASTREAM));
+	}
+
+	/**
+	 * No more than one request in ten is hedged.
+	 */
+	public void testHedgeRatio()
+	{
+		LatencyTracker tracker = new LatencyTracker(null);
+		int hedged = 0;
+
+		record(tracker, LatencyTracker.DATASTREAM, 10, 20);
+		for (int i = 0; i < 100; ++i) {
+			if (tracker.getHedgeDelay(LatencyTracker.DATASTREAM) >= 0) {
+				tracker.hedged(LatencyTracker.DATASTREAM);
+				++hedged;
+			}
+		}
+
+		assertEquals(10, hedged);
+		assertEquals(100, tracker.getStatistics(LatencyTracker.DATASTREAM)[0]);
+		assertEquals(10, tracker.getStatistics(LatencyTracker.DATASTREAM)[1]);
+	}
+
+	/**
+	 * Connector whose data stream reads are given by the test.
+	 */
+	private static class Connector extends FedoraConnectorMemory {
+		/** number of reads started */
+		final AtomicInteger reads = new AtomicInteger();
+
+		/** thread of the last read */
+		volatile Thread thread;
+
+		/** released to let blocked reads finish */
+		final CountDownLatch release = new CountDownLatch(1);
+
+		/** number of reads interrupted while blocked */
+		final AtomicInteger interrupted = new AtomicInteger();
+
+		/** reads up to this number block until released */
+		volatile int blocking;
+
+		Connector(LatencyTracker tracker)
+		{
+			super(0, 0);
+			latencyTracker = tracker;
+		}
+
+		protected byte [] fetchDataStream(String pid, String dsID)
+		{
+			int n = reads.incrementAndGet();
+
+			thread = Thread.currentThread();
+			if (n <= blocking) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					interrupted.incrementAndGet();
+					return null;
+				}
+			}
+
+			return new byte [] {(byte) n};
+		}
+	}
+
+	public void testUnhedgedReadRunsInline()
+	{
+		Connector fc = new Connector(new LatencyTracker(null));
+
+		assertEquals(1, fc.getDataStream("demo:1", "DS")[0]);
+		assertSame(Thread.currentThread(), fc.thread);
+		assertEquals(1, fc.reads.get());
+	}
+
+	public void testSlowReadIsHedged()
+	{
+		LatencyTracker tracker = new LatencyTracker(null);
+		Connector fc = new Connector(tracker);
+
+		record(tracker, LatencyTracker.DATASTREAM, 1, 20);
+		fc.blocking = 1;
+
+		try {
+			// the duplicate answers while the first read is blocked
+			assertEquals(2, fc.getDataStream("demo:1", "DS")[0]);
+		} finally {
+			fc.release.countDown();
+		}
+
+		assertNotSame(Thread.currentThread(), fc.thread);
+		assertEquals(1, tracker.getStatistics(LatencyTracker.DATASTREAM)[1]);
+	}
+
+	/**
+	 * A hedged read that outlives its timeout returns nothing, and its
+	 * runs are interrupted.
+	 */
+	public void testStuckReadIsAbandoned() throws Exception
+	{
+		LatencyTracker tracker = new LatencyTracker(null);
+		Connector fc = new Connector(tracker);
+		long start = System.currentTimeMillis();
+		long end;
+
+		record(tracker, LatencyTracker.DATASTREAM, 1, 20);
+		fc.blocking = 2;
+
+		assertNull(fc.getDataStream("demo:1", "DS"));
+		assertTrue(System.currentTimeMillis() - start >=
+				   LatencyTracker.MIN_TIMEOUT);
+
+		end = System.currentTimeMillis() + 5000;
+		while (fc.interrupted.get() < 2 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, fc.interrupted.get());
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the level by level walk of
+ * {@link FedoraConnector#listDescendantsRI} over an in-memory tree.
+ */
+public class ListDescendantsTest extends TestCase {
+
+	private static final String TITLE =
+		"http://purl.org/dc/elements/1.1/title";
+
+	/** filter of the objects whose title starts with "x" */
+	private static final String FILTER =
+		"$s <" + TITLE + "> $title FILTER (regex($title, '^x'))";
+
+	/** repository holding the tree */
+	private FedoraConnectorMemory fc;
+
+	/** number of queries run */
+	private AtomicInteger queries;
+
+	/**
+	 * Builds a tree of top-level objects a and z:
+	 * a holds b and c, b holds d and e, e holds f.
+	 * The titles of c, d and f start with "x".
+	 */
+	protected void setUp() throws Exception
+	{
+		queries = new AtomicInteger();
+		fc = new FedoraConnectorMemory(0, 0) {
+				protected TupleIterator searchTuples(String query,
+													 String language,
+													 String operation)
+					throws Exception {
+					queries.incrementAndGet();
+					return super.searchTuples(query, language, operation);
+				}
+			};
+
+		for (String name : new String [] {"a", "b", "c", "d", "e", "f", "z"}) {
+			fc.createObject("demo:" + name);
+		}
+
+		fc.addMember("demo:a", "demo:b");
+		fc.addMember("demo:a", "demo:c");
+		fc.addMember("demo:b", "demo:d");
+		fc.addMember("demo:b", "demo:e");
+		fc.addMember("demo:e", "demo:f");
+
+		fc.modifyDCField("demo:c", "title", "xc");
+		fc.modifyDCField("demo:d", "title", "xd");
+		fc.modifyDCField("demo:f", "title", "xf");
+		fc.modifyDCField("demo:z", "title", "z");
+
+		queries.set(0);
+	}
+
+	private static Set<String> set(String [] values)
+	{
+		return new HashSet<String>(Arrays.asList(values));
+	}
+
+	public void testDescendantsOfObject() throws Exception
+	{
+		assertEquals(set(new String [] {"demo:b", "demo:c",
+										"demo:b,demo:d", "demo:b,demo:e",
+										"demo:b,demo:e,demo:f"}),
+					 set(fc.listDescendantsRI("demo:a", null)));
+
+		// one query per level, and one for the level without members
+		assertEquals(4, queries.get());
+	}
+
+	public void testAllDescendants() throws Exception
+	{
+		assertEquals(set(new String [] {"demo:a", "demo:z",
+										"demo:a,demo:b", "demo:a,demo:c",
+										"demo:a,demo:b,demo:d",
+										"demo:a,demo:b,demo:e",
+										"demo:a,demo:b,demo:e,demo:f"}),
+					 set(fc.listDescendantsRI(null, null)));
+	}
+
+	/**
+	 * The walk goes on below the objects the filter rejects.
+	 */
+	public void testFilter() throws Exception
+	{
+		assertEquals(set(new String [] {"demo:c", "demo:b,demo:d",
+										"demo:b,demo:e,demo:f"}),
+					 set(fc.listDescendantsRI("demo:a", FILTER)));
+		assertEquals(set(new String [] {"demo:a,demo:c",
+										"demo:a,demo:b,demo:d",
+										"demo:a,demo:b,demo:e,demo:f"}),
+					 set(fc.listDescendantsRI(null, FILTER)));
+	}
+
+	public void testLeaf() throws Exception
+	{
+		assertEquals(0, fc.listDescendantsRI("demo:f", null).length);
+		assertEquals(1, queries.get());
+	}
+
+	public void testCycle() throws Exception
+	{
+		fc.addMember("demo:f", "demo:b");
+
+		// the walk stops when it comes back to b
+		assertEquals(set(new String [] {"demo:b", "demo:c",
+										"demo:b,demo:d", "demo:b,demo:e",
+										"demo:b,demo:e,demo:f"}),
+					 set(fc.listDescendantsRI("demo:a", null)));
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.PMContext;
+import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.core.state.ItemState;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.spi.NameFactory;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+
+/**
+ * Tests that a {@link MappingLog} replays what was recorded in an
+ * {@link IdRegistry}, including names holding its separators.
+ */
+public class MappingLogTest extends TestCase {
+
+	/** UUID of root node in Jackrabbit */
+	private static final String ROOT_ID =
+		"cafebabe-cafe-babe-cafe-babecafebabe";
+
+	/** file of the log */
+	private File file;
+
+	protected void setUp() throws IOException
+	{
+		file = File.createTempFile("mapping-", ".log");
+		file.delete();
+	}
+
+	protected void tearDown()
+	{
+		file.delete();
+		new File(file.getPath() + ".tmp").delete();
+	}
+
+	/**
+	 * Opens the log into a new registry that records into it.
+	 */
+	private IdRegistry open(MappingLog mappingLog) throws IOException
+	{
+		IdRegistry registry = new IdRegistry();
+
+		mappingLog.open(registry);
+		registry.setLog(mappingLog);
+
+		return registry;
+	}
+
+	/**
+	 * Replays the log into a new registry and closes it.
+	 */
+	private IdRegistry replay() throws IOException
+	{
+		MappingLog mappingLog = new MappingLog(file);
+		IdRegistry registry = open(mappingLog);
+
+		registry.setLog(null);
+		mappingLog.close();
+
+		return registry;
+	}
+
+	private int countLines() throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		int n = 0;
+
+		try {
+			while (reader.readLine() != null) {
+				++n;
+			}
+		} finally {
+			reader.close();
+		}
+
+		return n;
+	}
+
+	public void testReplay() throws IOException
+	{
+		MappingLog mappingLog = new MappingLog(file);
+		IdRegistry registry = open(mappingLog);
+
+		registry.putPath("root", "/", null);
+		registry.putPath("a", "/a", "root");
+		registry.putPath("b", "/a/b", "a");
+		registry.addFedoraNode("b");
+		registry.putDataStreamName("b", "IMAGE", "ds");
+		registry.putDataStreamParent("ds", "b");
+		registry.putContentParent("content", "ds");
+		mappingLog.close();
+
+		registry = replay();
+
+		assertEquals("/a/b", registry.getPath("b"));
+		assertEquals("a", registry.getParent("b"));
+		assertEquals("b", registry.getChild("a", "b"));
+		assertTrue(registry.isFedoraNode("b"));
+		assertFalse(registry.isFedoraNode("a"));
+		assertEquals("ds", registry.getDataStreamNode("b", "IMAGE"));
+		assertEquals("b", registry.getDataStreamParent("ds"));
+		assertEquals("ds", registry.getContentParent("content"));
+		assertEquals("content", registry.getContent("ds"));
+	}
+
+	public void testEscaping() throws IOException
+	{
+		String name = "tab\there, newline\nthere, backslash\\ and \\t";
+		MappingLog mappingLog = new MappingLog(file);
+		IdRegistry registry = open(mappingLog);
+
+		registry.putPath("root", "/", null);
+		registry.putPath("a", "/" + name, "root");
+		registry.putDataStreamName("a", name, "ds");
+		mappingLog.close();
+
+		registry = replay();
+
+		assertEquals("/" + name, registry.getPath("a"));
+		assertEquals("a", registry.getChild("root", name));
+		assertEquals("ds", registry.getDataStreamNode("a", name));
+
+		// once compacted, still one line per association
+		assertEquals(3, countLines());
+	}
+
+	public void testTruncatedRecordSkipped() throws IOException
+	{
+		MappingLog mappingLog = new MappingLog(file);
+		IdRegistry registry = open(mappingLog);
+		Writer out;
+
+		registry.putPath("root", "/", null);
+		registry.putPath("a", "/a", "root");
+		mappingLog.close();
+
+		// as left by a crash while appending
+		out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+		out.write("P\tb\t/a/b");
+		out.close();
+
+		registry = replay();
+
+		assertEquals("/a", registry.getPath("a"));
+		assertNull(registry.getPath("b"));
+		assertEquals(2, countLines());
+	}
+
+	public void testCompaction() throws IOException
+	{
+		MappingLog mappingLog = new MappingLog(file);
+		IdRegistry registry = open(mappingLog);
+
+		registry.putPath("root", "/", null);
+		registry.putPath("a", "/a", "root");
+		mappingLog.close();
+
+		// reopened several times, the log does not grow
+		replay();
+		replay();
+		registry = replay();
+
+		assertEquals(2, countLines());
+		assertEquals("/a", registry.getPath("a"));
+	}
+
+	/**
+	 * Workspaces share the log of the registry; it keeps recording
+	 * until the last of their persistence managers is closed.
+	 */
+	public void testSharedLogClosedByLastManager() throws Exception
+	{
+		NameFactory factory = NameFactoryImpl.getInstance();
+		FedoraConnectorMemory fc = new FedoraConnectorMemory(0, 0);
+		FedoraPersistenceManager first = new FedoraPersistenceManager(fc);
+		FedoraPersistenceManager second = new FedoraPersistenceManager(fc);
+		File home = file.getParentFile();
+		PMContext context;
+		NodeId rootID = new NodeId(ROOT_ID);
+		NodeId doID = new NodeId();
+		NodeState root;
+		ChangeLog changeLog;
+		String content = "";
+		BufferedReader reader;
+		String line;
+
+		home = new File(home, file.getName() + ".d");
+		home.mkdirs();
+		file = new File(home, "fedora-ids.log");
+		context = new PMContext(home, null, rootID, null, null, null);
+
+		first.init(context);
+		second.init(context);
+		first.close();
+
+		// recorded through the log the first workspace opened
+		root = new NodeState(rootID, factory.create("{internal}root"),
+							 null, ItemState.STATUS_EXISTING, false);
+		root.addChildNodeEntry(factory.create("{}shared"), doID);
+		changeLog = new ChangeLog();
+		changeLog.added(new NodeState(doID,
+			factory.create("{http://www.jcp.org/jcr/nt/1.0}unstructured"),
+			rootID, ItemState.STATUS_NEW, false));
+		changeLog.modified(root);
+		second.store(changeLog);
+		second.close();
+
+		reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			while ((line = reader.readLine()) != null) {
+				content += line + "\n";
+			}
+		} finally {
+			reader.close();
+		}
+		file.delete();
+		home.delete();
+
+		assertTrue(content, content.indexOf(doID.toString()) >= 0);
+	}
+}
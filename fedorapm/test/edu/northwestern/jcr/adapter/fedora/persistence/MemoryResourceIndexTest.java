@@ -0,0 +1,153 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the SPARQL and iTQL subset answered by
+ * {@link MemoryResourceIndex} and its CSV responses.
+ */
+public class MemoryResourceIndexTest extends TestCase {
+
+	private static final String MEMBER_OF =
+		"info:fedora/fedora-system:def/relations-external#isMemberOfCollection";
+	private static final String TITLE =
+		"http://purl.org/dc/elements/1.1/title";
+
+	private MemoryResourceIndex index;
+
+	private static MemoryResourceIndex.Term uri(String value)
+	{
+		return new MemoryResourceIndex.Term(value, true);
+	}
+
+	private static MemoryResourceIndex.Term literal(String value)
+	{
+		return new MemoryResourceIndex.Term(value, false);
+	}
+
+	/**
+	 * Runs a query and returns its CSV response.
+	 */
+	private String search(String query, String language) throws Exception
+	{
+		return new String(index.search(query, language), "UTF-8");
+	}
+
+	protected void setUp()
+	{
+		index = new MemoryResourceIndex();
+
+		// a holds b and c; b has a title with a comma
+		index.add("info:fedora/demo:b", MEMBER_OF, uri("info:fedora/demo:a"));
+		index.add("info:fedora/demo:c", MEMBER_OF, uri("info:fedora/demo:a"));
+		index.add("info:fedora/demo:a", TITLE, literal("Alpha"));
+		index.add("info:fedora/demo:b", TITLE, literal("Beta, \"second\""));
+		index.add("info:fedora/demo:c", TITLE, literal("Gamma"));
+	}
+
+	public void testAddAndRemove()
+	{
+		assertFalse(index.add("info:fedora/demo:a", TITLE, literal("Alpha")));
+		assertTrue(index.remove("info:fedora/demo:a", TITLE, literal("Alpha")));
+		assertFalse(index.remove("info:fedora/demo:a", TITLE, literal("Alpha")));
+		assertTrue(index.getTriples("info:fedora/demo:a").isEmpty());
+
+		index.removeAll("info:fedora/demo:b", "info:fedora/");
+		assertEquals(1, index.getTriples("info:fedora/demo:b").size());
+		assertTrue(index.getTriples("info:fedora/demo:b").containsKey(TITLE));
+	}
+
+	public void testTriplePatternsInOrderAdded() throws Exception
+	{
+		assertEquals("s,t\n" +
+					 "info:fedora/demo:b,\"Beta, \"\"second\"\"\"\n" +
+					 "info:fedora/demo:c,Gamma\n",
+					 search("select $s $t from <#ri> { $s <" + MEMBER_OF +
+							"> <info:fedora/demo:a> . $s <" + TITLE +
+							"> $t }", "sparql"));
+	}
+
+	public void testOptionalAndBound() throws Exception
+	{
+		// objects that are not members of anything
+		assertEquals("s\ninfo:fedora/demo:a\n",
+					 search("select $s from <#ri> { $s <" + TITLE +
+							"> $t OPTIONAL { $s <" + MEMBER_OF +
+							"> $p } . FILTER (!bound($p)) }", "sparql"));
+	}
+
+	public void testFilters() throws Exception
+	{
+		assertEquals("t\nGamma\n",
+					 search("select $t from <#ri> { $s <" + TITLE +
+							"> $t FILTER (regex($t, 'mm')) }", "sparql"));
+		assertEquals("t\nAlpha\nGamma\n",
+					 search("select $t from <#ri> { $s <" + TITLE +
+							"> $t FILTER ($t = 'Alpha' || $t = 'Gamma') }",
+							"sparql"));
+		assertEquals("t\nGamma\n",
+					 search("select $t from <#ri> { $s <" + TITLE +
+							"> $t FILTER (regex($t, 'a$') && !($t = 'Alpha')) }",
+							"sparql"));
+	}
+
+	public void testOrderLimitOffset() throws Exception
+	{
+		String query = "select $t from <#ri> { $s <" + TITLE + "> $t }";
+
+		assertEquals("t\nGamma\n\"Beta, \"\"second\"\"\"\nAlpha\n",
+					 search(query + " order by desc($t)", "sparql"));
+		assertEquals("t\n\"Beta, \"\"second\"\"\"\n",
+					 search(query + " order by $t limit 1 offset 1",
+							"sparql"));
+	}
+
+	public void testItql() throws Exception
+	{
+		assertEquals("s\ninfo:fedora/demo:b\n",
+					 search("select $s from <#ri> where $s <" + MEMBER_OF +
+							"> $p and $s <" + TITLE + "> $t and $t " +
+							"<mulgara:is> 'Beta, \"second\"'", "itql"));
+	}
+
+	/**
+	 * The response reads back through the tuple parser of the
+	 * connector.
+	 */
+	public void testResponseParsesAsTuples() throws Exception
+	{
+		TupleIterator tuples = new TupleIterator(
+			new ByteArrayInputStream(index.search(
+				"select $s $t from <#ri> { $s <" + TITLE + "> $t }",
+				"sparql")));
+		String [] tuple;
+
+		try {
+			// the header is skipped, demo:a comes first
+			assertTrue(tuples.hasNext());
+			assertEquals("info:fedora/demo:a", tuples.next()[0]);
+			tuple = tuples.next();
+			assertEquals("info:fedora/demo:b", tuple[0]);
+			assertEquals("Beta, \"second\"", tuple[1]);
+		} finally {
+			tuples.close();
+		}
+	}
+}
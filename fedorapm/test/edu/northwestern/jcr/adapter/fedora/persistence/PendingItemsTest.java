@@ -0,0 +1,188 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.core.state.ItemState;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.core.state.PropertyState;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.NameFactory;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+
+/**
+ * Tests the lookups of {@link PendingItems} and an import whose items
+ * reach the persistence manager children first.
+ */
+public class PendingItemsTest extends TestCase {
+
+	/** UUID of root node in Jackrabbit */
+	private static final String ROOT_ID =
+		"cafebabe-cafe-babe-cafe-babecafebabe";
+
+	/** name factory */
+	private static final NameFactory factory = NameFactoryImpl.getInstance();
+
+	private static final Name UNSTRUCTURED =
+		factory.create("{http://www.jcp.org/jcr/nt/1.0}unstructured");
+	private static final Name TITLE = factory.create("{}title");
+
+	/**
+	 * Creates a string property of a node.
+	 */
+	private static PropertyState property(NodeId parent, String name,
+										  String value)
+	{
+		PropertyState state;
+
+		state = new PropertyState(new PropertyId(parent,
+												 factory.create("{}" + name)),
+								  ItemState.STATUS_NEW, false);
+		state.setType(1);
+		state.setValues(new InternalValue [] {InternalValue.create(value)});
+
+		return state;
+	}
+
+	public void testNodeLookup()
+	{
+		PendingItems pending = new PendingItems();
+		NodeId id = new NodeId();
+		NodeState first = new NodeState(id, UNSTRUCTURED, null,
+										 ItemState.STATUS_NEW, false);
+		NodeState second = new NodeState(id, UNSTRUCTURED, null,
+										 ItemState.STATUS_NEW, false);
+
+		assertNull(pending.getNode(id.toString()));
+		pending.putNode(id.toString(), first);
+		assertSame(first, pending.getNode(id.toString()));
+
+		assertFalse(pending.putNodeIfAbsent(id.toString(), second));
+		assertSame(first, pending.getNode(id.toString()));
+
+		pending.putNode(id.toString(), second);
+		assertSame(second, pending.removeNode(id.toString()));
+		assertNull(pending.getNode(id.toString()));
+		assertNull(pending.removeNode(id.toString()));
+		assertTrue(pending.putNodeIfAbsent(id.toString(), first));
+	}
+
+	public void testPropertiesGroupedByParent()
+	{
+		PendingItems pending = new PendingItems();
+		NodeId a = new NodeId();
+		NodeId b = new NodeId();
+		PropertyState a1 = property(a, "one", "a1");
+		PropertyState a2 = property(a, "two", "a2");
+		PropertyState b1 = property(b, "one", "b1");
+		List<PropertyState> removed;
+
+		pending.addProperty(a1);
+		pending.addProperty(b1);
+		pending.addProperty(a2);
+
+		assertSame(a1, pending.getProperty(a1.getPropertyId().toString()));
+		assertSame(b1, pending.getProperty(b1.getPropertyId().toString()));
+
+		removed = pending.removeProperties(a.toString());
+		assertEquals(2, removed.size());
+		assertSame(a1, removed.get(0));
+		assertSame(a2, removed.get(1));
+
+		// only the properties of a are gone
+		assertNull(pending.getProperty(a1.getPropertyId().toString()));
+		assertNull(pending.getProperty(a2.getPropertyId().toString()));
+		assertSame(b1, pending.getProperty(b1.getPropertyId().toString()));
+		assertTrue(pending.removeProperties(a.toString()).isEmpty());
+	}
+
+	public void testReplacedPropertyKeepsItsPlace()
+	{
+		PendingItems pending = new PendingItems();
+		NodeId a = new NodeId();
+		PropertyState one = property(a, "one", "old");
+		PropertyState two = property(a, "two", "two");
+		PropertyState newer = property(a, "one", "new");
+		List<PropertyState> removed;
+
+		pending.addProperty(one);
+		pending.addProperty(two);
+		pending.addProperty(newer);
+
+		assertSame(newer, pending.getProperty(one.getPropertyId().toString()));
+
+		removed = pending.removeProperties(a.toString());
+		assertEquals(2, removed.size());
+		assertSame(newer, removed.get(0));
+		assertSame(two, removed.get(1));
+	}
+
+	/**
+	 * Stores an object and its property before the root that links it,
+	 * as an import does, and checks that both are served while pending
+	 * and that the object is created once the root is saved.
+	 */
+	public void testChildrenFirstImport() throws Exception
+	{
+		FedoraConnectorMemory fc = new FedoraConnectorMemory(0, 0);
+		FedoraPersistenceManager pm = new FedoraPersistenceManager(fc);
+		NodeId rootID = new NodeId(ROOT_ID);
+		NodeId doID = new NodeId();
+		NodeState root;
+		NodeState state;
+		NodeState loaded;
+		PropertyState title;
+		ChangeLog changeLog;
+
+		pm.init(null);
+		try {
+			title = property(doID, "title", "Pending");
+			state = new NodeState(doID, UNSTRUCTURED, rootID,
+								  ItemState.STATUS_NEW, false);
+
+			changeLog = new ChangeLog();
+			changeLog.added(title);
+			changeLog.added(state);
+			pm.store(changeLog);
+
+			assertEquals(0, fc.listObjects("*").length);
+			loaded = pm.load(doID);
+			assertEquals(UNSTRUCTURED, loaded.getNodeTypeName());
+			assertEquals(rootID, loaded.getParentId());
+			assertEquals("Pending", pm.load(new PropertyId(doID, TITLE))
+						 .getValues()[0].getString());
+
+			root = new NodeState(rootID, factory.create("{internal}root"),
+								 null, ItemState.STATUS_EXISTING, false);
+			root.addChildNodeEntry(factory.create("{}pending"), doID);
+			changeLog = new ChangeLog();
+			changeLog.modified(root);
+			pm.store(changeLog);
+
+			assertEquals(1, fc.listObjects("*").length);
+			assertEquals(rootID, pm.load(doID).getParentId());
+		} finally {
+			pm.close();
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests which concurrent requests {@link RequestCoalescer} lets share a
+ * call, and that nothing outlives the call.
+ */
+public class RequestCoalescerTest extends TestCase {
+
+	private RequestCoalescer coalescer;
+
+	/** threads of the callers */
+	private ExecutorService executor;
+
+	/** number of calls actually run */
+	private AtomicInteger calls;
+
+	/** counted down when a call starts */
+	private CountDownLatch started;
+
+	/** released to let the calls finish */
+	private CountDownLatch release;
+
+	protected void setUp()
+	{
+		coalescer = new RequestCoalescer();
+		executor = Executors.newCachedThreadPool();
+		calls = new AtomicInteger();
+		started = new CountDownLatch(1);
+		release = new CountDownLatch(1);
+	}
+
+	protected void tearDown()
+	{
+		release.countDown();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Starts a request in another thread whose call waits for the
+	 * release.
+	 */
+	private Future<String []> request(final String pid, final String request,
+									  final Exception failure)
+	{
+		return executor.submit(new Callable<String []>() {
+				public String [] call() throws Exception {
+					return coalescer.call(pid, request, new Callable<String []>() {
+							public String [] call() throws Exception {
+								calls.incrementAndGet();
+								started.countDown();
+								release.await();
+								if (failure != null) {
+									throw failure;
+								}
+								return new String [] {pid, request};
+							}
+						});
+				}
+			});
+	}
+
+	/**
+	 * Waits until the given number of requests joined a call.
+	 */
+	private void awaitShared(long n) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + 5000;
+
+		while (coalescer.getSharedCount() < n) {
+			assertTrue("requests did not join", System.currentTimeMillis() < end);
+			Thread.sleep(5);
+		}
+	}
+
+	public void testIdenticalRequestsShareOneCall() throws Exception
+	{
+		Future<String []> first = request("demo:1", "listDataStreams", null);
+		Future<String []> second;
+		String [] a, b;
+
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		second = request("demo:1", "listDataStreams", null);
+		awaitShared(1);
+		release.countDown();
+
+		a = first.get(5, TimeUnit.SECONDS);
+		b = second.get(5, TimeUnit.SECONDS);
+		assertEquals(1, calls.get());
+		assertEquals(2, coalescer.getRequestCount());
+		assertEquals("demo:1", b[0]);
+
+		// each caller has its own array
+		assertNotSame(a, b);
+		a[0] = "changed";
+		assertEquals("demo:1", b[0]);
+	}
+
+	public void testDifferentRequestsDoNotShare() throws Exception
+	{
+		Future<String []> first = request("demo:1", "listDataStreams", null);
+		Future<String []> other = request("demo:2", "listDataStreams", null);
+		Future<String []> third = request("demo:1", "listMembers", null);
+
+		release.countDown();
+		first.get(5, TimeUnit.SECONDS);
+		other.get(5, TimeUnit.SECONDS);
+		third.get(5, TimeUnit.SECONDS);
+
+		assertEquals(3, calls.get());
+		assertEquals(0, coalescer.getSharedCount());
+	}
+
+	public void testNothingKeptAfterTheCall() throws Exception
+	{
+		release.countDown();
+		request("demo:1", "listDataStreams", null).get(5, TimeUnit.SECONDS);
+		request("demo:1", "listDataStreams", null).get(5, TimeUnit.SECONDS);
+
+		assertEquals(2, calls.get());
+		assertEquals(0, coalescer.getSharedCount());
+	}
+
+	/**
+	 * A request arriving after a write to the object, or after any
+	 * write for a request over all objects, starts a new call.
+	 */
+	public void testForget() throws Exception
+	{
+		Future<String []> object = request("demo:1", "listDataStreams", null);
+		Future<String []> all = request(null, "searchObjects", null);
+
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		while (calls.get() < 2) {
+			Thread.sleep(5);
+		}
+
+		coalescer.forget("demo:1");
+		request("demo:1", "listDataStreams", null);
+		request(null, "searchObjects", null);
+		release.countDown();
+
+		object.get(5, TimeUnit.SECONDS);
+		all.get(5, TimeUnit.SECONDS);
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+		assertEquals(4, calls.get());
+		assertEquals(0, coalescer.getSharedCount());
+	}
+
+	public void testFailureReachesEveryCaller() throws Exception
+	{
+		Exception failure = new Exception("server down");
+		Future<String []> first = request("demo:1", "listDataStreams", failure);
+		Future<String []> second;
+
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		second = request("demo:1", "listDataStreams", null);
+		awaitShared(1);
+		release.countDown();
+
+		assertFails(failure, first);
+		assertFails(failure, second);
+		assertEquals(1, calls.get());
+	}
+
+	/**
+	 * Checks that a request failed with the given exception.
+	 */
+	private static void assertFails(Exception failure, Future<String []> f)
+		throws Exception
+	{
+		try {
+			f.get(5, TimeUnit.SECONDS);
+			fail("no failure");
+		} catch (ExecutionException e) {
+			assertSame(failure, e.getCause());
+		}
+	}
+}
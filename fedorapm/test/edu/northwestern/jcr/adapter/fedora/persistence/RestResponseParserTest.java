@@ -0,0 +1,144 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Tests that {@link RestResponseParser} reads the listDatastreams and
+ * findObjects responses of the Fedora REST API and stops reading once
+ * it has its answer.
+ */
+public class RestResponseParserTest extends TestCase {
+
+	/** listDatastreams response with a prefixed and a plain element */
+	private static final String DATASTREAMS =
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+		"<objectDatastreams xmlns=\"http://www.fedora.info/definitions/1/0/access/\"" +
+		" xmlns:a=\"http://www.fedora.info/definitions/1/0/access/\"" +
+		" pid=\"demo:1\">" +
+		"<a:datastream dsid=\"DC\" label=\"Dublin Core\" mimeType=\"text/xml\"/>" +
+		"<datastream dsid=\"DATA\" mimeType=\"\"/>" +
+		"<datastream label=\"no id\"/>" +
+		"</objectDatastreams>";
+
+	/** findObjects response with a session token */
+	private static final String PAGE =
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+		"<result xmlns=\"http://www.fedora.info/definitions/1/0/types/\">" +
+		"<listSession><token> abc123 </token><cursor>0</cursor></listSession>" +
+		"<resultList>" +
+		"<objectFields><pid>demo:1</pid><title>one</title></objectFields>" +
+		"<objectFields><pid> demo:2 </pid></objectFields>" +
+		"</resultList></result>";
+
+	/** findObjects response of the last page */
+	private static final String LAST_PAGE =
+		"<result><resultList>" +
+		"<objectFields><pid>demo:3</pid></objectFields>" +
+		"</resultList></result>";
+
+	/** findObjects response without any object */
+	private static final String EMPTY_PAGE =
+		"<result><resultList/></result>";
+
+	private static InputStream stream(String s) throws Exception
+	{
+		return new ByteArrayInputStream(s.getBytes("UTF-8"));
+	}
+
+	public void testDataStreams() throws Exception
+	{
+		List<DataStream> list = new ArrayList<DataStream>();
+
+		RestResponseParser.parseDataStreams(stream(DATASTREAMS), list);
+
+		assertEquals(2, list.size());
+		assertEquals("DC", list.get(0).id);
+		assertEquals("Dublin Core", list.get(0).label);
+		assertEquals("text/xml", list.get(0).mimeType);
+		assertEquals("DATA", list.get(1).id);
+		assertEquals("", list.get(1).label);
+		assertEquals("application/octet-stream", list.get(1).mimeType);
+	}
+
+	public void testContainsDataStream() throws Exception
+	{
+		assertTrue(RestResponseParser.containsDataStream(
+					   stream(DATASTREAMS), "DATA"));
+		assertFalse(RestResponseParser.containsDataStream(
+						stream(DATASTREAMS), "RELS-EXT"));
+	}
+
+	/**
+	 * A response that breaks off after the data stream still finds it,
+	 * since the parser stops there.
+	 */
+	public void testContainsDataStreamStopsReading() throws Exception
+	{
+		String truncated = DATASTREAMS.substring(0,
+			DATASTREAMS.indexOf("<datastream dsid=\"DATA\"")) +
+			"<a:datastream dsid=\"X\"/><broken";
+
+		assertTrue(RestResponseParser.containsDataStream(
+					   stream(truncated), "DC"));
+
+		// reading it to the end fails
+		try {
+			RestResponseParser.parseDataStreams(stream(truncated),
+												new ArrayList<DataStream>());
+			fail("parsed a broken response");
+		} catch (SAXException e) {
+			// expected
+		}
+	}
+
+	public void testObjectPage() throws Exception
+	{
+		List<String> pids = new ArrayList<String>();
+		RestResponseParser.ObjectPage page;
+
+		page = RestResponseParser.parseObjectPage(stream(PAGE), pids);
+		assertEquals("abc123", page.token);
+		assertEquals(2, pids.size());
+		assertEquals("demo:1", pids.get(0));
+		assertEquals("demo:2", pids.get(1));
+
+		pids.clear();
+		page = RestResponseParser.parseObjectPage(stream(LAST_PAGE), pids);
+		assertNull(page.token);
+		assertEquals(1, pids.size());
+		assertEquals("demo:3", pids.get(0));
+	}
+
+	public void testFirstPidOnly() throws Exception
+	{
+		String truncated = PAGE.substring(0,
+			PAGE.indexOf("<objectFields><pid> demo:2")) + "<broken";
+
+		assertNotNull(RestResponseParser.parseObjectPage(stream(truncated),
+														  null));
+		assertNull(RestResponseParser.parseObjectPage(stream(EMPTY_PAGE),
+													   null));
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the batched set-membership queries of
+ * {@link FedoraConnector#searchIn} and how their failures are reported.
+ */
+public class SearchInTest extends TestCase {
+
+	private static final String TITLE =
+		"http://purl.org/dc/elements/1.1/title";
+
+	/** number of objects, enough for three batches */
+	private static final int OBJECTS = 600;
+
+	/** repository holding demo:0 to demo:599 */
+	private FedoraConnectorMemory fc;
+
+	/** number of queries run */
+	private AtomicInteger queries;
+
+	/** queries holding this text fail, if not null */
+	private volatile String failOn;
+
+	protected void setUp() throws Exception
+	{
+		queries = new AtomicInteger();
+		fc = new FedoraConnectorMemory(0, 0) {
+				protected TupleIterator searchTuples(String query,
+													 String language,
+													 String operation)
+					throws Exception {
+					queries.incrementAndGet();
+					if (failOn != null && query.indexOf(failOn) >= 0) {
+						throw new Exception("resource index unavailable");
+					}
+					return super.searchTuples(query, language, operation);
+				}
+			};
+
+		for (int i = 0; i < OBJECTS; ++i) {
+			fc.createObject("demo:" + i);
+		}
+	}
+
+	private static Set<String> set(String [] values)
+	{
+		return new HashSet<String>(Arrays.asList(values));
+	}
+
+	/**
+	 * Gets a list of all the pids, in order.
+	 */
+	private static List<String> pids()
+	{
+		List<String> list = new ArrayList<String>();
+
+		for (int i = 0; i < OBJECTS; ++i) {
+			list.add("demo:" + i);
+		}
+
+		return list;
+	}
+
+	public void testBatches() throws Exception
+	{
+		List<String> values = pids();
+		String [] result;
+
+		// duplicates are tested once, missing objects are dropped
+		values.addAll(pids().subList(0, 100));
+		values.add("missing:1");
+
+		result = fc.filterObjects(values.toArray(new String [0]), null);
+
+		assertEquals(3, queries.get());
+		assertEquals(OBJECTS, result.length);
+		assertEquals(new HashSet<String>(pids()), set(result));
+	}
+
+	public void testFilterAppliedToEveryBatch() throws Exception
+	{
+		String [] result;
+
+		fc.modifyDCField("demo:5", "title", "Five");
+		fc.modifyDCField("demo:505", "title", "Five hundred and five");
+
+		result = fc.filterObjects(pids().toArray(new String [0]),
+			"$s <" + TITLE + "> $title FILTER (regex($title, '^Five'))");
+
+		assertEquals(set(new String [] {"demo:5", "demo:505"}), set(result));
+	}
+
+	public void testQuotedValues() throws Exception
+	{
+		fc.modifyDCField("demo:1", "title", "O'Brien");
+		fc.modifyDCField("demo:2", "title", "back\\slash");
+
+		assertEquals(set(new String [] {"demo:1,O'Brien",
+										"demo:2,back\\slash"}),
+					 set(fc.searchIn("$id $t", "$s <" + TITLE +
+									 "> $t . $s <http://purl.org/dc/elements/1.1/identifier> $id .",
+									 "t",
+									 new String [] {"O'Brien", "back\\slash"})));
+	}
+
+	public void testEmptySet() throws Exception
+	{
+		assertEquals(0, fc.filterObjects(new String [0], null).length);
+		assertEquals(0, queries.get());
+	}
+
+	/**
+	 * A failed batch fails the whole search rather than leaving its
+	 * rows out.
+	 */
+	public void testFailedBatch()
+	{
+		failOn = "'demo:300'";
+
+		try {
+			fc.filterObjects(pids().toArray(new String [0]), null);
+			fail("failed batch dropped");
+		} catch (Exception e) {
+			assertEquals("resource index unavailable", e.getMessage());
+		}
+
+		try {
+			fc.filterObjects(new String [] {"demo:300"}, null);
+			fail("failed query dropped");
+		} catch (Exception e) {
+			assertEquals("resource index unavailable", e.getMessage());
+		}
+
+		// a plain search still reports nothing found
+		assertEquals(0, fc.searchObjects("select $s from <#ri> { $s " +
+			"<http://purl.org/dc/elements/1.1/identifier> 'demo:300' }",
+			"sparql").length);
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+
+/**
+ * Tests the CSV parsing of {@link TupleIterator} and the release of its
+ * connection.
+ */
+public class TupleIteratorTest extends TestCase {
+
+	/**
+	 * Reads all the tuples of a CSV document.
+	 */
+	private static List<String []> readAll(String csv) throws IOException
+	{
+		TupleIterator tuples = new TupleIterator(stream(csv));
+		List<String []> list = new ArrayList<String []>();
+
+		while (tuples.hasNext()) {
+			list.add(tuples.next());
+		}
+
+		return list;
+	}
+
+	private static InputStream stream(String s) throws IOException
+	{
+		return new ByteArrayInputStream(s.getBytes("UTF-8"));
+	}
+
+	private static void assertTuple(String [] expected, String [] actual)
+	{
+		assertEquals(Arrays.asList(expected), Arrays.asList(actual));
+	}
+
+	public void testHeader() throws IOException
+	{
+		TupleIterator tuples = new TupleIterator(stream("s,o\r\na,b\r\n"));
+
+		assertTuple(new String [] {"s", "o"}, tuples.getColumns());
+		assertTrue(tuples.hasNext());
+		assertTuple(new String [] {"a", "b"}, tuples.next());
+		assertFalse(tuples.hasNext());
+	}
+
+	public void testEmptyResponse() throws IOException
+	{
+		TupleIterator tuples = new TupleIterator(stream(""));
+
+		assertEquals(0, tuples.getColumns().length);
+		assertFalse(tuples.hasNext());
+	}
+
+	public void testQuotedComma() throws IOException
+	{
+		List<String []> list = readAll("s,o\n\"a,b\",c\n");
+
+		assertEquals(1, list.size());
+		assertTuple(new String [] {"a,b", "c"}, list.get(0));
+	}
+
+	public void testDoubledQuote() throws IOException
+	{
+		List<String []> list = readAll("o\n\"say \"\"hi\"\"\"\n\"\"\"\"\n");
+
+		assertEquals(2, list.size());
+		assertTuple(new String [] {"say \"hi\""}, list.get(0));
+		assertTuple(new String [] {"\""}, list.get(1));
+	}
+
+	public void testEmbeddedNewline() throws IOException
+	{
+		List<String []> list = readAll("s,o\r\n\"line 1\r\nline 2\",x\r\ny,z\r\n");
+
+		assertEquals(2, list.size());
+		assertTuple(new String [] {"line 1\r\nline 2", "x"}, list.get(0));
+		assertTuple(new String [] {"y", "z"}, list.get(1));
+	}
+
+	public void testTrailingEmptyFields() throws IOException
+	{
+		List<String []> list = readAll("a,b,c\nx,,\n,,\n");
+
+		assertEquals(2, list.size());
+		assertTuple(new String [] {"x", "", ""}, list.get(0));
+		assertTuple(new String [] {"", "", ""}, list.get(1));
+	}
+
+	public void testQuotedEmptyField() throws IOException
+	{
+		List<String []> list = readAll("a,b\n\"\",x\n");
+
+		assertTuple(new String [] {"", "x"}, list.get(0));
+	}
+
+	public void testLastLineWithoutNewline() throws IOException
+	{
+		List<String []> list = readAll("a,b\nx,y");
+
+		assertEquals(1, list.size());
+		assertTuple(new String [] {"x", "y"}, list.get(0));
+	}
+
+	public void testUTF8() throws IOException
+	{
+		List<String []> list = readAll("a\n\u00e9t\u00e9\n");
+
+		assertTuple(new String [] {"\u00e9t\u00e9"}, list.get(0));
+	}
+
+	public void testAbortOnEarlyClose() throws IOException
+	{
+		RecordingMethod method = new RecordingMethod("a\nx\ny\n");
+		TupleIterator tuples = new TupleIterator(method);
+
+		assertTrue(tuples.hasNext());
+		assertTuple(new String [] {"x"}, tuples.next());
+		tuples.close();
+
+		assertTrue(method.aborted);
+		assertTrue(method.released);
+		assertFalse(tuples.hasNext());
+	}
+
+	public void testReleaseWithoutAbortAtEnd() throws IOException
+	{
+		RecordingMethod method = new RecordingMethod("a\nx\n");
+		TupleIterator tuples = new TupleIterator(method);
+
+		while (tuples.hasNext()) {
+			tuples.next();
+		}
+
+		assertFalse(method.aborted);
+		assertTrue(method.released);
+
+		// closing again has no effect
+		method.released = false;
+		tuples.close();
+		assertFalse(method.released);
+	}
+
+	/**
+	 * Method returning a fixed response, recording how it is released.
+	 */
+	private static class RecordingMethod extends GetMethod {
+		private final String body;
+		boolean aborted;
+		boolean released;
+
+		RecordingMethod(String body)
+		{
+			this.body = body;
+		}
+
+		public InputStream getResponseBodyAsStream() throws IOException
+		{
+			return stream(body);
+		}
+
+		public void abort()
+		{
+			aborted = true;
+		}
+
+		public void releaseConnection()
+		{
+			released = true;
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the order in which a {@link WriteBatch} applies its writes and
+ * where it stops when one fails.
+ */
+public class WriteBatchTest extends TestCase {
+
+	/** pool running the writes of independent objects */
+	private ExecutorService executor;
+
+	/** writes done, in order */
+	private List<String> done;
+
+	protected void setUp()
+	{
+		executor = Executors.newFixedThreadPool(4);
+		done = Collections.synchronizedList(new ArrayList<String>());
+	}
+
+	protected void tearDown()
+	{
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Creates a write recording its name.
+	 */
+	private WriteBatch.Write write(final String name)
+	{
+		return new WriteBatch.Write() {
+			public void run() {
+				done.add(name);
+			}
+		};
+	}
+
+	/**
+	 * Creates a write that fails.
+	 */
+	private WriteBatch.Write failing(final String name)
+	{
+		return new WriteBatch.Write() {
+			public void run() throws Exception {
+				done.add(name);
+				throw new Exception("failed: " + name);
+			}
+		};
+	}
+
+	public void testEmpty() throws Exception
+	{
+		WriteBatch batch = new WriteBatch();
+
+		assertTrue(batch.isEmpty());
+		batch.execute(executor);
+		assertTrue(done.isEmpty());
+	}
+
+	public void testWritesOfAnObjectInOrder() throws Exception
+	{
+		WriteBatch batch = new WriteBatch();
+
+		batch.add("a", write("a1"));
+		batch.add("b", write("b1"));
+		batch.add("a", write("a2"));
+		batch.add("a", write("a3"));
+		assertFalse(batch.isEmpty());
+
+		batch.execute(executor);
+
+		assertEquals(4, done.size());
+		assertTrue(done.indexOf("a1") < done.indexOf("a2"));
+		assertTrue(done.indexOf("a2") < done.indexOf("a3"));
+	}
+
+	public void testParentsFirst() throws Exception
+	{
+		WriteBatch batch = new WriteBatch();
+
+		// added children first, as an import does
+		batch.add("c", write("c"));
+		batch.add("b1", write("b1"));
+		batch.add("b2", write("b2"));
+		batch.add("a", write("a"));
+		batch.addDependency("c", "b1");
+		batch.addDependency("c", "b2");
+		batch.addDependency("b1", "a");
+		batch.addDependency("b2", "a");
+
+		batch.execute(executor);
+
+		assertEquals(4, done.size());
+		assertEquals("a", done.get(0));
+		assertEquals("c", done.get(3));
+	}
+
+	public void testDependencyOutsideBatchIgnored() throws Exception
+	{
+		WriteBatch batch = new WriteBatch();
+
+		batch.add("b", write("b"));
+		batch.addDependency("b", "written-before");
+
+		batch.execute(null);
+
+		assertEquals(1, done.size());
+	}
+
+	public void testCycleTerminates() throws Exception
+	{
+		WriteBatch batch = new WriteBatch();
+
+		batch.add("a", write("a"));
+		batch.add("b", write("b"));
+		batch.addDependency("a", "b");
+		batch.addDependency("b", "a");
+
+		batch.execute(executor);
+
+		assertEquals(2, done.size());
+	}
+
+	public void testFailureStopsLaterLevels() throws Exception
+	{
+		WriteBatch batch = new WriteBatch();
+
+		batch.add("a", write("a"));
+		batch.add("b1", failing("b1"));
+		batch.add("b1", write("b1 second"));
+		batch.add("b2", write("b2"));
+		batch.add("c", write("c"));
+		batch.addDependency("b1", "a");
+		batch.addDependency("b2", "a");
+		batch.addDependency("c", "b2");
+
+		try {
+			batch.execute(executor);
+			fail("the failed write was not reported");
+		} catch (Exception e) {
+			assertEquals("failed: b1", e.getMessage());
+		}
+
+		// the level of the failure is completed, the next is not started
+		assertTrue(done.contains("a"));
+		assertTrue(done.contains("b2"));
+		assertFalse(done.contains("b1 second"));
+		assertFalse(done.contains("c"));
+	}
+
+	public void testFailureWithoutExecutor() throws Exception
+	{
+		WriteBatch batch = new WriteBatch();
+
+		batch.add("a", failing("a"));
+		batch.add("b", write("b"));
+		batch.addDependency("b", "a");
+
+		try {
+			batch.execute(null);
+			fail("the failed write was not reported");
+		} catch (Exception e) {
+			assertEquals("failed: a", e.getMessage());
+		}
+
+		assertFalse(done.contains("b"));
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.query;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.NamespaceException;
+import javax.jcr.RepositoryException;
+
+import junit.framework.TestCase;
+
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.conversion.DefaultNamePathResolver;
+import org.apache.jackrabbit.spi.commons.conversion.NameResolver;
+import org.apache.jackrabbit.spi.commons.namespace.NamespaceResolver;
+import org.apache.jackrabbit.spi.commons.query.DefaultQueryNodeFactory;
+import org.apache.jackrabbit.spi.commons.query.QueryRootNode;
+import org.apache.jackrabbit.spi.commons.query.xpath.XPathQueryBuilder;
+
+/**
+ * Tests that {@link QueryKey} gives equivalent queries the same key and
+ * different queries different keys.
+ */
+public class QueryKeyTest extends TestCase {
+
+	private static final String DC_URI = "http://purl.org/dc/elements/1.1/";
+
+	/** resolver mapping dc to the Dublin Core namespace */
+	private NameResolver resolver;
+
+	protected void setUp()
+	{
+		resolver = createResolver("dc");
+	}
+
+	/**
+	 * Creates a resolver of the built-in prefixes, with the Dublin Core
+	 * namespace mapped to the given prefix.
+	 */
+	private static NameResolver createResolver(String dcPrefix)
+	{
+		final Map<String, String> uris = new HashMap<String, String>();
+
+		uris.put("", "");
+		uris.put("jcr", Name.NS_JCR_URI);
+		uris.put("nt", Name.NS_NT_URI);
+		uris.put("mix", Name.NS_MIX_URI);
+		uris.put("xs", "http://www.w3.org/2001/XMLSchema");
+		uris.put("fn", "http://www.w3.org/2005/xpath-functions");
+		uris.put(dcPrefix, DC_URI);
+
+		return new DefaultNamePathResolver(new NamespaceResolver() {
+				public String getURI(String prefix) throws NamespaceException {
+					String uri = uris.get(prefix);
+
+					if (uri == null) {
+						throw new NamespaceException("unknown prefix " + prefix);
+					}
+					return uri;
+				}
+
+				public String getPrefix(String uri) throws NamespaceException {
+					for (Map.Entry<String, String> e : uris.entrySet()) {
+						if (e.getValue().equals(uri)) {
+							return e.getKey();
+						}
+					}
+					throw new NamespaceException("unknown URI " + uri);
+				}
+			});
+	}
+
+	private static String key(String statement, NameResolver resolver,
+							  long offset, long limit)
+		throws RepositoryException
+	{
+		QueryRootNode root;
+
+		root = XPathQueryBuilder.createQuery(statement, resolver,
+			new DefaultQueryNodeFactory(Collections.<Name>emptyList()));
+
+		return QueryKey.create(root, offset, limit);
+	}
+
+	private String key(String statement) throws RepositoryException
+	{
+		return key(statement, resolver, 0, 0);
+	}
+
+	public void testSameQuerySameKey() throws RepositoryException
+	{
+		assertEquals(key("//element(*, nt:base)[@dc:title = 'x']"),
+					 key("//element(*, nt:base)[@dc:title = 'x']"));
+	}
+
+	public void testOperandsOfAndSorted() throws RepositoryException
+	{
+		assertEquals(key("//*[@dc:title = 'x' and @dc:creator = 'y']"),
+					 key("//*[@dc:creator = 'y' and @dc:title = 'x']"));
+	}
+
+	public void testOperandsOfOrSorted() throws RepositoryException
+	{
+		assertEquals(key("//*[@dc:title = 'x' or @dc:title = 'y']"),
+					 key("//*[@dc:title = 'y' or @dc:title = 'x']"));
+	}
+
+	public void testPrefixIndependent() throws RepositoryException
+	{
+		assertEquals(key("//*[@dc:title = 'x']"),
+					 key("//*[@d:title = 'x']", createResolver("d"), 0, 0));
+	}
+
+	public void testValuesDistinguished() throws RepositoryException
+	{
+		assertFalse(key("//*[@dc:title = 'x']").equals(
+						key("//*[@dc:title = 'y']")));
+		assertFalse(key("//*[@dc:title = 'x']").equals(
+						key("//*[@dc:title != 'x']")));
+		assertFalse(key("//*[@dc:title = 'x']").equals(
+						key("//*[@dc:creator = 'x']")));
+		assertFalse(key("//*[@dc:title = 1]").equals(
+						key("//*[@dc:title = '1']")));
+	}
+
+	public void testQuotedValuesCannotForgeStructure()
+		throws RepositoryException
+	{
+		assertFalse(key("//*[@dc:title = 'a' and @dc:creator = 'b']").equals(
+						key("//*[@dc:title = 'a'')(b' and @dc:creator = '']")));
+	}
+
+	public void testPathStepsInOrder() throws RepositoryException
+	{
+		assertFalse(key("//a/b").equals(key("//b/a")));
+		assertFalse(key("/jcr:root/a//*").equals(key("//a/*")));
+	}
+
+	public void testOrderDistinguished() throws RepositoryException
+	{
+		String base = "//*[@dc:title = 'x']";
+
+		assertFalse(key(base).equals(
+						key(base + " order by @dc:title")));
+		assertFalse(key(base + " order by @dc:title ascending").equals(
+						key(base + " order by @dc:title descending")));
+		assertFalse(key(base + " order by @dc:title, @dc:creator").equals(
+						key(base + " order by @dc:creator, @dc:title")));
+	}
+
+	public void testOffsetAndLimitDistinguished() throws RepositoryException
+	{
+		String statement = "//*[@dc:title = 'x']";
+
+		assertEquals(key(statement, resolver, 10, 5),
+					 key(statement, resolver, 10, 5));
+		assertFalse(key(statement, resolver, 0, 5).equals(
+						key(statement, resolver, 10, 5)));
+		assertFalse(key(statement, resolver, 10, 5).equals(
+						key(statement, resolver, 10, 0)));
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.fedora.query;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.jcr.PropertyType;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the order of {@link ResultSorter}, in memory, with a bounded
+ * heap and with runs spilled to disk.
+ */
+public class ResultSorterTest extends TestCase {
+
+	/**
+	 * Encodes a value the way the persistence manager stores it.
+	 */
+	private static String stored(int type, String value)
+	{
+		return type + "%571%57%570%57" + value;
+	}
+
+	/**
+	 * Sorts single values.
+	 */
+	private static int [] sort(boolean ascending, long offset, long limit,
+							   int bufferSize, String... values)
+		throws IOException
+	{
+		ResultSorter sorter = new ResultSorter(new boolean [] {ascending},
+											   offset, limit, bufferSize);
+
+		for (String value : values) {
+			sorter.add(new String [] {value});
+		}
+
+		return sorter.sort();
+	}
+
+	private static int [] sort(boolean ascending, String... values)
+		throws IOException
+	{
+		return sort(ascending, 0, 0, ResultSorter.DEFAULT_BUFFER_SIZE,
+					values);
+	}
+
+	private static void assertOrder(int [] expected, int [] actual)
+	{
+		assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+	}
+
+	public void testPlainStrings() throws IOException
+	{
+		assertOrder(new int [] {1, 2, 0},
+					sort(true, "pear", "apple", "banana"));
+		assertOrder(new int [] {0, 2, 1},
+					sort(false, "pear", "apple", "banana"));
+	}
+
+	public void testLongsCompareAsNumbers() throws IOException
+	{
+		assertOrder(new int [] {2, 1, 0},
+					sort(true, stored(PropertyType.LONG, "10"),
+						 stored(PropertyType.LONG, "9"),
+						 stored(PropertyType.LONG, "-3")));
+	}
+
+	public void testDoublesCompareAsNumbers() throws IOException
+	{
+		assertOrder(new int [] {1, 3, 2, 0},
+					sort(true, stored(PropertyType.DOUBLE, "2.5"),
+						 stored(PropertyType.DOUBLE, "-10.0"),
+						 stored(PropertyType.DOUBLE, "0.25"),
+						 stored(PropertyType.DOUBLE, "-0.5")));
+	}
+
+	public void testDates() throws IOException
+	{
+		assertOrder(new int [] {1, 0},
+					sort(true,
+						 stored(PropertyType.DATE, "2009-03-01T10:00:00.000+01:00"),
+						 stored(PropertyType.DATE, "2009-03-01T10:00:00.000+02:00")));
+	}
+
+	public void testMissingValuesFirst() throws IOException
+	{
+		assertOrder(new int [] {1, 2, 0},
+					sort(true, "b", null, "a"));
+	}
+
+	public void testStable() throws IOException
+	{
+		assertOrder(new int [] {0, 2, 1, 3},
+					sort(true, "a", "b", "a", "b"));
+		assertOrder(new int [] {1, 3, 0, 2},
+					sort(false, "a", "b", "a", "b"));
+	}
+
+	public void testSeveralProperties() throws IOException
+	{
+		ResultSorter sorter = new ResultSorter(new boolean [] {true, false},
+											   0, 0, 10);
+
+		sorter.add(new String [] {"a", "1"});
+		sorter.add(new String [] {"b", "9"});
+		sorter.add(new String [] {"a", "2"});
+		// second value left out
+		sorter.add(new String [] {"b"});
+
+		assertOrder(new int [] {2, 0, 1, 3}, sorter.sort());
+	}
+
+	public void testHeapKeepsOffsetPlusLimit() throws IOException
+	{
+		String [] values = {"e", "b", "d", "a", "c", "f"};
+
+		assertOrder(new int [] {3, 1, 4},
+					sort(true, 1, 2, ResultSorter.DEFAULT_BUFFER_SIZE, values));
+		assertOrder(new int [] {5, 0, 2},
+					sort(false, 0, 3, ResultSorter.DEFAULT_BUFFER_SIZE, values));
+	}
+
+	public void testSpilledRunsMerged() throws IOException
+	{
+		Random random = new Random(42);
+		String [] values = new String [1000];
+		int [] expected, actual;
+
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = random.nextInt(10) == 0 ? null :
+				stored(PropertyType.LONG,
+					   String.valueOf(random.nextInt(200) - 100));
+		}
+
+		for (boolean ascending : new boolean [] {true, false}) {
+			expected = sort(ascending, values);
+			// several runs, the last one shorter
+			actual = sort(ascending, 0, 0, 64, values);
+
+			assertOrder(expected, actual);
+		}
+	}
+
+	public void testEmpty() throws IOException
+	{
+		assertEquals(0, sort(true).length);
+		assertEquals(0, sort(true, 0, 10, 2).length);
+	}
+}
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.net.URLEncoder;
 
@@ -29,8 +30,10 @@ import javax.jcr.RepositoryException;
 import static org.apache.commons.httpclient.HttpStatus.SC_OK;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -64,17 +67,38 @@ public class XTFClient {
 	/** port of the XTF app */
 	private	String port = "";
 
-    /** Seconds to wait before a connection is established. */
-    public int TIMEOUT_SECONDS = 20;
+    /** Default seconds to wait before a connection is established. */
+    public final static int TIMEOUT_SECONDS = 20;
 
-    /** Seconds to wait while waiting for data over the socket (SO_TIMEOUT). */
-    public int SOCKET_TIMEOUT_SECONDS = 1800; // 30 minutes
+    /** Default seconds to wait for data over the socket (SO_TIMEOUT). */
+    public final static int SOCKET_TIMEOUT_SECONDS = 1800; // 30 minutes
 
-    /** Maxiumum http connections per host (for REST calls only). */
-    public int MAX_CONNECTIONS_PER_HOST = 15;
+    /** Default maxiumum http connections per host. */
+    public final static int MAX_CONNECTIONS_PER_HOST = 15;
 
-    /** Maxiumum total http connections (for REST calls only). */
-    public int MAX_TOTAL_CONNECTIONS = 30;
+    /** Default maxiumum total http connections. */
+    public final static int MAX_TOTAL_CONNECTIONS = 30;
+
+    /** Default seconds an idle pooled connection is kept open. */
+    public final static int IDLE_TIMEOUT_SECONDS = 60;
+
+	/** connection pool shared by all clients */
+	private static MultiThreadedHttpConnectionManager connectionManager;
+
+	/** http client on the shared connection pool */
+	private static HttpClient httpClient;
+
+	/** thread closing the pooled connections left idle */
+	private static IdleConnectionTimeoutThread idleConnectionThread;
+
+	/** number of requests sent */
+	private static final AtomicLong requestCount = new AtomicLong();
+
+	/** number of requests that failed to connect */
+	private static final AtomicLong failureCount = new AtomicLong();
+
+	/** client shared by the query processor */
+	private static XTFClient instance;
 
 	/** first part of the raw XML query */
 	private static String xmlQuery1 = "<query indexPath=\"index\" style=\"NullStyle.xsl\" maxDocs=\"all\">";
@@ -86,107 +110,217 @@ public class XTFClient {
 	 * Creates a new <code>XTFClient</code> instance. If the
 	 * property file xtf.properties is present, the property values in 
 	 * that file are used. Otherwise the default values are used.
+	 * All instances share one connection pool, configured when the
+	 * first instance is created.
 	 */
 	public XTFClient() // throws Exception
 	{
-		boolean property = true;
-
-		Properties props = new Properties();
-		try {
-			props.load(new FileInputStream("xtf.properties"));
-		} catch(IOException e) {
-			e.printStackTrace();
+		Properties props = loadProperties();
 
+		if (props == null) {
 			// set default
 			host = "connectdev.at.northwestern.edu";
 			port = "9090";
 
-			property = false;
+			props = new Properties();
 		}
-
-		if (property) {
+		else {
 			host = props.getProperty("host");
 			port = props.getProperty("port");
 		}
 
 		baseURL = "http://" + host + ":" + port
 			+ "/" + "xtf";
+
+		initConnectionPool(props);
 	}
 
 	/**
-	 * Sends an HTTP GET request and returns the GetMethod instance.
+	 * Reads the property file xtf.properties.
 	 *
-	 * @param url URL of the resource
-	 * @return the GetMethod instance
+	 * @return the settings, or null if the file cannot be read
 	 */
-	private GetMethod httpGet(String url) throws Exception
+	private static Properties loadProperties()
 	{
-		GetMethod getMethod;
-		MultiThreadedHttpConnectionManager m_cManager;
-
-        m_cManager = new MultiThreadedHttpConnectionManager();
-        m_cManager.getParams()
-                .setDefaultMaxConnectionsPerHost(MAX_CONNECTIONS_PER_HOST);
-        m_cManager.getParams().setMaxTotalConnections(MAX_TOTAL_CONNECTIONS);
-        m_cManager.getParams().setConnectionTimeout(TIMEOUT_SECONDS * 1000);
-        m_cManager.getParams().setSoTimeout(SOCKET_TIMEOUT_SECONDS * 1000);
-        HttpClient client = new HttpClient(m_cManager);
-
-		getMethod = new GetMethod(url);
-		getMethod.setDoAuthentication(true);
-		getMethod.getParams().setParameter("Connection", "Keep-Alive");
-		
+		Properties props = new Properties();
+
 		try {
-			client.executeMethod(getMethod);
-		} catch (Exception e) {
-			String msg = "error connecting to the XTF server";
-            log.error(msg);
-            throw new RepositoryException(msg, null);
+			props.load(new FileInputStream("xtf.properties"));
+		} catch(IOException e) {
+			e.printStackTrace();
+			return null;
 		}
 
-		if (getMethod.getStatusCode() != SC_OK) {
-			log.warn("status code: " + getMethod.getStatusCode());
+		return props;
+	}
+
+	/**
+	 * Returns the client shared by all queries, so that xtf.properties
+	 * is only read once.
+	 *
+	 * @return the shared <code>XTFClient</code> instance
+	 */
+	public static synchronized XTFClient getInstance()
+	{
+		if (instance == null) {
+			instance = new XTFClient();
 		}
 
-		return getMethod;
+		return instance;
 	}
 
 	/**
-	 * Sends an HTTP POST request and returns the GetMethod instance.
+	 * Reads an integer setting, falling back to the default value.
+	 */
+	private static int getIntProperty(Properties props, String name,
+									  int defaultValue)
+	{
+		String value = props.getProperty(name);
+
+		if (value == null) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			log.error("invalid value of " + name + ", using default");
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Creates the shared connection pool unless it exists already.
+	 * Connections are kept alive and reused across requests; those
+	 * left idle longer than the idle timeout are closed.
 	 *
-	 * @param url URL of the resource
-	 * @return the PostMethod instance
+	 * @param props settings from xtf.properties
 	 */
-	private PostMethod httpPost(String url) throws Exception
+	private static synchronized void initConnectionPool(Properties props)
 	{
-		PostMethod postMethod;
-		MultiThreadedHttpConnectionManager m_cManager;
-
-        m_cManager = new MultiThreadedHttpConnectionManager();
-        m_cManager.getParams()
-                .setDefaultMaxConnectionsPerHost(MAX_CONNECTIONS_PER_HOST);
-        m_cManager.getParams().setMaxTotalConnections(MAX_TOTAL_CONNECTIONS);
-        m_cManager.getParams().setConnectionTimeout(TIMEOUT_SECONDS * 1000);
-        m_cManager.getParams().setSoTimeout(SOCKET_TIMEOUT_SECONDS * 1000);
-        HttpClient client = new HttpClient(m_cManager);
-
-		postMethod = new PostMethod(url);
-		postMethod.setDoAuthentication(true);
-		postMethod.getParams().setParameter("Connection", "Keep-Alive");
-		
+		int idleTimeout;
+
+		if (connectionManager != null) {
+			return;
+		}
+
+		connectionManager = new MultiThreadedHttpConnectionManager();
+		connectionManager.getParams().setDefaultMaxConnectionsPerHost(
+			getIntProperty(props, "maxconnectionsperhost", 
+						   MAX_CONNECTIONS_PER_HOST));
+		connectionManager.getParams().setMaxTotalConnections(
+			getIntProperty(props, "maxtotalconnections", 
+						   MAX_TOTAL_CONNECTIONS));
+		connectionManager.getParams().setConnectionTimeout(
+			getIntProperty(props, "connectiontimeout", 
+						   TIMEOUT_SECONDS) * 1000);
+		connectionManager.getParams().setSoTimeout(
+			getIntProperty(props, "sockettimeout", 
+						   SOCKET_TIMEOUT_SECONDS) * 1000);
+		// a pooled connection may have been closed by the server
+		connectionManager.getParams().setStaleCheckingEnabled(true);
+
+		httpClient = new HttpClient(connectionManager);
+
+		idleTimeout = getIntProperty(props, "idletimeout", 
+									 IDLE_TIMEOUT_SECONDS) * 1000;
+		if (idleTimeout > 0) {
+			idleConnectionThread = new IdleConnectionTimeoutThread();
+			idleConnectionThread.setName("xtf-idle-connections");
+			idleConnectionThread.addConnectionManager(connectionManager);
+			idleConnectionThread.setConnectionTimeout(idleTimeout);
+			idleConnectionThread.setTimeoutInterval(
+				Math.max(1000, idleTimeout / 2));
+			idleConnectionThread.start();
+		}
+	}
+
+	/**
+	 * Closes the shared connection pool. The next request opens a new
+	 * one, configured from xtf.properties as the first was.
+	 */
+	public static synchronized void shutdown()
+	{
+		if (idleConnectionThread != null) {
+			idleConnectionThread.shutdown();
+			idleConnectionThread = null;
+		}
+
+		if (connectionManager != null) {
+			connectionManager.shutdown();
+			connectionManager = null;
+			httpClient = null;
+		}
+
+		instance = null;
+	}
+
+	/**
+	 * Returns statistics of the shared connection pool.
+	 *
+	 * @return connections open in the pool, requests sent and requests
+	 * that failed to connect
+	 */
+	public static synchronized String getPoolStatistics()
+	{
+		int open = 0;
+
+		if (connectionManager != null) {
+			open = connectionManager.getConnectionsInPool();
+		}
+
+		return "open connections: " + open + 
+			", requests: " + requestCount.get() +
+			", failures: " + failureCount.get();
+	}
+
+	/**
+	 * Returns the client on the shared connection pool. If the pool has
+	 * been shut down, a new one is opened with the settings read again
+	 * from xtf.properties.
+	 */
+	private static synchronized HttpClient getHttpClient()
+	{
+		Properties props;
+
+		if (httpClient == null) {
+			props = loadProperties();
+			initConnectionPool(props == null ? new Properties() : props);
+		}
+
+		return httpClient;
+	}
+
+	/**
+	 * Sends an HTTP request on the shared connection pool. The caller
+	 * must release the connection of the method once the response body
+	 * is read; it is released here if the request fails.
+	 *
+	 * @param method the HTTP method
+	 */
+	private void execute(HttpMethodBase method) throws Exception
+	{
+		method.setDoAuthentication(true);
+
+		requestCount.incrementAndGet();
 		try {
-			client.executeMethod(postMethod);
+			getHttpClient().executeMethod(method);
 		} catch (Exception e) {
+			method.releaseConnection();
+			failureCount.incrementAndGet();
+
 			String msg = "error connecting to the XTF server";
             log.error(msg);
-            throw new RepositoryException(msg, null);
+            throw new RepositoryException(msg, e);
 		}
 
-		if (postMethod.getStatusCode() != SC_OK) {
-			log.warn("status code: " + postMethod.getStatusCode());
+		if (method.getStatusCode() != SC_OK) {
+			log.warn("status code: " + method.getStatusCode());
 		}
 
-		return postMethod;
+		if (log.isDebugEnabled()) {
+			log.debug(getPoolStatistics());
+		}
 	}
 
 	/**
@@ -198,7 +332,14 @@ public class XTFClient {
 	 */
 	private String getMethod(String url) throws Exception
 	{
-		return httpGet(url).getResponseBodyAsString();
+		GetMethod method = new GetMethod(url);
+
+		execute(method);
+		try {
+			return method.getResponseBodyAsString();
+		} finally {
+			method.releaseConnection();
+		}
 	}
 
 	/**
@@ -210,7 +351,14 @@ public class XTFClient {
 	 */
 	private String postMethod(String url) throws Exception
 	{
-		return httpPost(url).getResponseBodyAsString();
+		PostMethod method = new PostMethod(url);
+
+		execute(method);
+		try {
+			return method.getResponseBodyAsString();
+		} finally {
+			method.releaseConnection();
+		}
 	}
 
 	/**
@@ -222,7 +370,14 @@ public class XTFClient {
 	 */
 	private byte [] getMethodByte(String url) throws Exception
 	{
-		return httpGet(url).getResponseBody();
+		GetMethod method = new GetMethod(url);
+
+		execute(method);
+		try {
+			return method.getResponseBody();
+		} finally {
+			method.releaseConnection();
+		}
 	}
 
 	/**
@@ -90,11 +90,13 @@ public class XTFDoc {
 	/**
 	 * Returns the value(s) of a property.
 	 * @param name name of the field
-	 * @return list of values
+	 * @return list of values, null if the document has no such field
 	 */
 	public String [] getProperty(String name)
 	{
-		return valueMap.get(name).toArray(new String[1]);
+		List<String> values = valueMap.get(name);
+
+		return values == null ? null : values.toArray(new String[1]);
 	}
 
 	/**
@@ -0,0 +1,488 @@
+/*
+ * Copyright 2009 Northwestern University
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package edu.northwestern.jcr.adapter.xtf.query;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import javax.jcr.PropertyType;
+
+import org.apache.jackrabbit.util.ISO8601;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p><code>ResultSorter</code> sorts query results by the values of the
+ * ORDER BY properties. The values of each result are decoded once, as
+ * they are added, into a property type and a primitive key: dates become
+ * milliseconds since the epoch, doubles a <code>long</code> in the same
+ * order, booleans 0 or 1, and the other types stay strings. Values may
+ * be stored the way the persistence manager writes them
+ * (<code>type%57...%57value</code>) or be plain strings, as Dublin Core
+ * fields are. Missing values sort lower than any value, so they come
+ * first in ascending order and last in descending order, as unbound
+ * values do in a SPARQL ORDER BY.</p>
+ *
+ * <p>When the number of results wanted is bounded by a limit, only the
+ * first <code>offset + limit</code> are kept, in a heap. Otherwise, each
+ * time the sort buffer is full it is sorted and written to a temporary
+ * file as a run, and the runs are merged at the end, so that the keys
+ * of a large result do not have to fit in memory at once.</p>
+ *
+ * <p>The results themselves stay with the caller: {@link #sort} returns
+ * their positions in the order they were added to the sorter.</p>
+ *
+ * <p>The connectors share no library, so fedorapm has a copy of this
+ * class; a change to one goes to both.</p>
+ *
+ * @author Xin Xiang
+ */
+class ResultSorter {
+	/** log4j logger. */
+	private static Logger log =
+		LoggerFactory.getLogger(ResultSorter.class);
+
+	/** default number of results sorted in memory. */
+	public static final int DEFAULT_BUFFER_SIZE = 100000;
+
+	/** separator between the type and the value of a stored property. */
+	private static final String SEPARATOR = "%57";
+
+	/** true for ascending, false for descending, one per property. */
+	private final boolean [] ascending;
+	/** number of results kept, -1 if all of them. */
+	private final int maxResults;
+	/** number of results sorted in memory. */
+	private final int bufferSize;
+	/** order of the keys. */
+	private final Comparator<Key> order;
+	/** keys not yet written to a run. */
+	private final List<Key> buffer;
+	/** the best keys, worst first, if the number kept is bounded. */
+	private final PriorityQueue<Key> heap;
+	/** runs written to temporary files. */
+	private final List<File> runs;
+	/** number of results added. */
+	private int count;
+
+	/**
+	 * Creates a sorter.
+	 *
+	 * @param ascending true for ascending, false for descending, one
+	 * per ORDER BY property
+	 * @param offset number of results that will be skipped
+	 * @param limit maximum number of results wanted, no limit if not
+	 * positive
+	 * @param bufferSize number of results sorted in memory
+	 */
+	public ResultSorter(boolean [] ascending, long offset, long limit,
+						int bufferSize)
+	{
+		this.ascending = ascending;
+		this.bufferSize = Math.max(bufferSize, 1);
+		order = new KeyOrder();
+		buffer = new ArrayList<Key>();
+		runs = new ArrayList<File>();
+
+		if (limit > 0 && offset + limit < Integer.MAX_VALUE) {
+			maxResults = (int) (offset + limit);
+			heap = new PriorityQueue<Key>(maxResults + 1,
+										  Collections.reverseOrder(order));
+		}
+		else {
+			maxResults = -1;
+			heap = null;
+		}
+	}
+
+	/**
+	 * Adds the next result.
+	 *
+	 * @param values values of the ORDER BY properties, missing ones may
+	 * be null or left out
+	 */
+	public void add(String [] values) throws IOException
+	{
+		Key key = new Key(count++, ascending.length);
+
+		for (int i = 0; i < ascending.length; ++i) {
+			decode(i < values.length ? values[i] : null, i, key);
+		}
+
+		if (heap != null) {
+			heap.add(key);
+			if (heap.size() > maxResults) {
+				// drop the worst
+				heap.poll();
+			}
+			return;
+		}
+
+		buffer.add(key);
+		if (buffer.size() >= bufferSize) {
+			writeRun();
+		}
+	}
+
+	/**
+	 * Sorts the results added.
+	 *
+	 * @return positions of the results in the order they were added,
+	 * sorted and truncated to <code>offset + limit</code>
+	 */
+	public int [] sort() throws IOException
+	{
+		List<Key> keys;
+		int [] result;
+
+		if (heap != null) {
+			keys = new ArrayList<Key>(heap);
+			heap.clear();
+			Collections.sort(keys, order);
+			return toPositions(keys);
+		}
+
+		if (runs.isEmpty()) {
+			Collections.sort(buffer, order);
+			result = toPositions(buffer);
+			buffer.clear();
+			return result;
+		}
+
+		try {
+			if (! buffer.isEmpty()) {
+				writeRun();
+			}
+			return merge();
+		} finally {
+			for (File run : runs) {
+				run.delete();
+			}
+			runs.clear();
+		}
+	}
+
+	/**
+	 * Converts sorted keys to the positions of their results.
+	 */
+	private static int [] toPositions(List<Key> keys)
+	{
+		int [] result = new int [keys.size()];
+
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = keys.get(i).position;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Decodes one value into the key.
+	 *
+	 * @param value the value, null if missing
+	 * @param i index of the property
+	 * @param key the key
+	 */
+	private static void decode(String value, int i, Key key)
+	{
+		int type = PropertyType.STRING;
+		int index;
+		Calendar calendar;
+
+		if (value == null) {
+			key.types[i] = PropertyType.UNDEFINED;
+			return;
+		}
+
+		index = value.indexOf(SEPARATOR);
+		if (index > 0) {
+			try {
+				type = Integer.parseInt(value.substring(0, index));
+				value = value.substring(value.lastIndexOf(SEPARATOR) +
+										SEPARATOR.length());
+			} catch (NumberFormatException e) {
+				// not a stored property, compare it as it is
+				type = PropertyType.STRING;
+			}
+		}
+
+		try {
+			switch (type) {
+			case PropertyType.LONG:
+				key.numbers[i] = Long.parseLong(value.trim());
+				break;
+			case PropertyType.DOUBLE:
+				key.numbers[i] =
+					toSortableLong(Double.parseDouble(value.trim()));
+				break;
+			case PropertyType.DATE:
+				calendar = ISO8601.parse(value.trim());
+				if (calendar == null) {
+					type = PropertyType.STRING;
+					key.strings[i] = value;
+				}
+				else {
+					key.numbers[i] = calendar.getTimeInMillis();
+				}
+				break;
+			case PropertyType.BOOLEAN:
+				key.numbers[i] = Boolean.valueOf(value.trim()).booleanValue() ?
+					1 : 0;
+				break;
+			default:
+				type = PropertyType.STRING;
+				key.strings[i] = value;
+			}
+		} catch (NumberFormatException e) {
+			log.debug("cannot decode " + value + ", compared as string");
+			type = PropertyType.STRING;
+			key.strings[i] = value;
+		}
+
+		key.types[i] = type;
+	}
+
+	/**
+	 * Maps a double to a <code>long</code> that sorts the same way.
+	 */
+	private static long toSortableLong(double d)
+	{
+		long bits = Double.doubleToLongBits(d);
+
+		return bits < 0 ? bits ^ Long.MAX_VALUE : bits;
+	}
+
+	/**
+	 * Sorts the buffer and writes it to a temporary file.
+	 */
+	private void writeRun() throws IOException
+	{
+		File file;
+		DataOutputStream out;
+
+		Collections.sort(buffer, order);
+
+		file = File.createTempFile("xtf-sort-", null);
+		runs.add(file);
+		out = new DataOutputStream(new BufferedOutputStream(
+										new FileOutputStream(file)));
+		try {
+			for (Key key : buffer) {
+				key.write(out);
+			}
+		} finally {
+			out.close();
+		}
+
+		log.debug("wrote run of " + buffer.size() + " results to " + file);
+		buffer.clear();
+	}
+
+	/**
+	 * Merges the runs.
+	 */
+	private int [] merge() throws IOException
+	{
+		PriorityQueue<Run> queue;
+		List<Run> open = new ArrayList<Run>();
+		Run run;
+		int [] result;
+		int n = 0;
+
+		queue = new PriorityQueue<Run>(runs.size(), new Comparator<Run>() {
+				public int compare(Run a, Run b) {
+					return order.compare(a.current, b.current);
+				}
+			});
+		result = new int [count];
+
+		try {
+			for (File file : runs) {
+				run = new Run(file, ascending.length);
+				open.add(run);
+				if (run.next()) {
+					queue.add(run);
+				}
+			}
+
+			while (! queue.isEmpty()) {
+				run = queue.poll();
+				result[n++] = run.current.position;
+				if (run.next()) {
+					queue.add(run);
+				}
+			}
+		} finally {
+			for (Run r : open) {
+				r.close();
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Decoded values of the ORDER BY properties of a result.
+	 */
+	private static class Key {
+		/** position of the result, which also breaks ties */
+		final int position;
+		/** property types, <code>UNDEFINED</code> if missing */
+		final int [] types;
+		/** keys of the numeric, date and boolean values */
+		final long [] numbers;
+		/** keys of the other values */
+		final String [] strings;
+
+		Key(int position, int n)
+		{
+			this.position = position;
+			types = new int [n];
+			numbers = new long [n];
+			strings = new String [n];
+		}
+
+		void write(DataOutputStream out) throws IOException
+		{
+			byte [] bytes;
+
+			out.writeInt(position);
+			for (int i = 0; i < types.length; ++i) {
+				out.writeByte(types[i]);
+				if (types[i] == PropertyType.STRING) {
+					bytes = strings[i].getBytes("UTF-8");
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+				else if (types[i] != PropertyType.UNDEFINED) {
+					out.writeLong(numbers[i]);
+				}
+			}
+		}
+
+		static Key read(DataInputStream in, int n) throws IOException
+		{
+			Key key = new Key(in.readInt(), n);
+			byte [] bytes;
+
+			for (int i = 0; i < n; ++i) {
+				key.types[i] = in.readByte();
+				if (key.types[i] == PropertyType.STRING) {
+					bytes = new byte [in.readInt()];
+					in.readFully(bytes);
+					key.strings[i] = new String(bytes, "UTF-8");
+				}
+				else if (key.types[i] != PropertyType.UNDEFINED) {
+					key.numbers[i] = in.readLong();
+				}
+			}
+
+			return key;
+		}
+	}
+
+	/**
+	 * Compares keys property by property, then by position so that
+	 * the sort is stable. A descending property reverses the whole
+	 * comparison, missing values included.
+	 */
+	private class KeyOrder implements Comparator<Key> {
+		public int compare(Key a, Key b)
+		{
+			int compare;
+
+			for (int i = 0; i < ascending.length; ++i) {
+				if (a.types[i] != b.types[i]) {
+					// missing values lowest, then grouped by type
+					compare = a.types[i] < b.types[i] ? -1 : 1;
+				}
+				else if (a.types[i] == PropertyType.UNDEFINED) {
+					compare = 0;
+				}
+				else if (a.types[i] == PropertyType.STRING) {
+					compare = a.strings[i].compareTo(b.strings[i]);
+				}
+				else {
+					compare = a.numbers[i] < b.numbers[i] ? -1 :
+						(a.numbers[i] == b.numbers[i] ? 0 : 1);
+				}
+
+				if (compare != 0) {
+					return ascending[i] ? compare : -compare;
+				}
+			}
+
+			return a.position < b.position ? -1 :
+				(a.position == b.position ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Sorted run being merged.
+	 */
+	private static class Run {
+		private final DataInputStream in;
+		private final int n;
+		/** key at the head of the run */
+		Key current;
+
+		Run(File file, int n) throws IOException
+		{
+			this.in = new DataInputStream(new BufferedInputStream(
+											  new FileInputStream(file)));
+			this.n = n;
+		}
+
+		/**
+		 * Reads the next key.
+		 *
+		 * @return false at the end of the run
+		 */
+		boolean next() throws IOException
+		{
+			try {
+				current = Key.read(in, n);
+				return true;
+			} catch (EOFException e) {
+				current = null;
+				return false;
+			}
+		}
+
+		void close()
+		{
+			try {
+				in.close();
+			} catch (IOException e) {
+				log.warn("cannot close sort run", e);
+			}
+		}
+	}
+}
@@ -116,7 +116,8 @@ import org.apache.jackrabbit.core.TransientRepository;
  * queries since the "index" for XTF documents is maintained by
  * XTF repository.
  *
- * <p>ORDER BY clause is handled here by the {@link #sort} method. Other
+ * <p>ORDER BY clause is handled here by the {@link #sort} method, with
+ * a {@link ResultSorter} over the metadata of the documents. Other
  * than that this class is little more than a wrapper of query handling
  * classes.
  *
@@ -323,6 +324,14 @@ public class SearchIndex extends AbstractQueryHandler {
      */
     private int resultFetchSize = Integer.MAX_VALUE;
 
+    /**
+     * The number of results sorted in memory before the sort spills to
+     * temporary files.
+     * <p/>
+     * Default value is: {@link ResultSorter#DEFAULT_BUFFER_SIZE}.
+     */
+    private int sortBufferSize = ResultSorter.DEFAULT_BUFFER_SIZE;
+
     /**
      * If set to <code>true</code> the fulltext field is stored and and a term
      * vector is created with offset information.
@@ -466,125 +475,44 @@ public class SearchIndex extends AbstractQueryHandler {
 	 * Sorts the query results based on the value of the properties.
 	 * The ORDER BY clause is actually handled here.
 	 *
-	 * @param lines array of comma-separated full paths to the query results
-	 * @param valueMap maps pid to comma-separated values
+	 * @param docs the query results
+	 * @param orderProps name of the properties for sort order
 	 * @param orderSpecs true for ascending, false for descending
-	 * @return array of sorted results
+	 * @return array of sorted results, all of them since the access
+	 * check may still drop some
 	 */
-	private String [] sort(String [] lines, 
-						   final Map<String, String> valueMap,
-						   final boolean [] orderSpecs)
+	private XTFDoc [] sort(XTFDoc [] docs, 
+						   Name [] orderProps,
+						   boolean [] orderSpecs)
+		throws IOException
 	{
-		
-		Comparator<String> result_order = new Comparator<String> () {
-			public int compare(String line1, String line2) 
-			{
-				String pid1, pid2;
-				String valueList1, valueList2;
-				String [] parts;
-				String [] valueString1, valueString2;
-				String value1, value2;
-				Double double1, double2;
-				Long long1, long2;
-				Calendar calendar1, calendar2;
-				Boolean boolean1, boolean2;
-				int i;
-				int compare = 0;
-
-				// get pid of the last object in the list
-				parts = line1.split(",");
-				pid1 = parts[parts.length - 1];
-				parts = line2.split(",");
-				pid2 = parts[parts.length - 1];
-
-				// get comma-separated the value list
-				valueList1 = valueMap.get(pid1);
-				valueList2 = valueMap.get(pid2);
-
-				valueString1 = valueList1.split(",");
-				valueString2 = valueList2.split(",");
-
-				for (i = 0; i < valueString1.length; ++i) {
-					// loop over the values
-					value1 = valueString1[i];
-					parts = value1.split("%57");
-					value1 = parts[parts.length - 1];
-
-					value2 = valueString2[i];
-					parts = value2.split("%57");
-					value2 = parts[parts.length - 1];
-
-					switch (Integer.parseInt(parts[0])) {
-					case PropertyType.STRING:
-						if (orderSpecs[i]) {
-							compare = value1.compareTo(value2);
-						}
-						else {
-							compare = value2.compareTo(value1);
-						}
-						break;
-					case PropertyType.DOUBLE:
-						double1 = Double.parseDouble(value1);
-						double2 = Double.parseDouble(value2);
-						if (orderSpecs[i]) {
-							compare = double1.compareTo(double2);
-						}
-						else {
-							compare = double2.compareTo(double1);
-						}
-						break;
-					case PropertyType.LONG:
-						long1 = Long.parseLong(value1);
-						long2 = Long.parseLong(value2);
-						if (orderSpecs[i]) {
-							compare = long1.compareTo(long2);
-						}
-						else {
-							compare = long2.compareTo(long1);
-						}
-						break;
-					case PropertyType.DATE:
-						calendar1 = ISO8601.parse(value1);
-						calendar2 = ISO8601.parse(value2);
-						if (orderSpecs[i]) {
-							compare = calendar1.compareTo(calendar2);
-						}
-						else {
-							compare = calendar2.compareTo(calendar1);
-						}
-						break;
-					case PropertyType.BOOLEAN:
-						boolean1 = Boolean.valueOf(value1);
-						boolean2 = Boolean.valueOf(value2);
-						if (orderSpecs[i]) {
-							compare = boolean1.compareTo(boolean2);
-						}
-						else {
-							compare = boolean2.compareTo(boolean1);
-						}
-						break;
-						// not supported
-					case PropertyType.BINARY:
-					case PropertyType.REFERENCE:
-					case PropertyType.NAME:
-					case PropertyType.PATH:
-						compare = 0;
-					}
-
-					if (compare != 0) {
-						return compare;
-					}
-
-					// more comparison
+		ResultSorter sorter;
+		String [] values;
+		String [] value;
+		int [] positions;
+		XTFDoc [] result;
+
+		sorter = new ResultSorter(orderSpecs, 0, 0, sortBufferSize);
+
+		for (XTFDoc doc : docs) {
+			// first value of each property
+			values = new String [orderProps.length];
+			for (int i = 0; i < orderProps.length; ++i) {
+				value = doc.getProperty(orderProps[i].getLocalName());
+				if (value != null && value.length > 0) {
+					values[i] = value[0];
 				}
-
-				return compare;
 			}
-		};
+			sorter.add(values);
+		}
 
-		List<String> resultList = Arrays.asList(lines);
-		Collections.sort(resultList, result_order);
-		return resultList.toArray(new String[0]);
+		positions = sorter.sort();
+		result = new XTFDoc [positions.length];
+		for (int i = 0; i < positions.length; ++i) {
+			result[i] = docs[positions[i]];
+		}
+
+		return result;
 	}
 
 
@@ -640,69 +568,16 @@ public class SearchIndex extends AbstractQueryHandler {
 		int i, j;
 		String s;
 		String [] parts;
-		Map<String, String> valueMap = new HashMap<String, String>();
-		List<String> list = new ArrayList<String>();
 		// query has been executes and the result is available
 		docResult = query.getCurrentResult();
 
-		for (XTFDoc doc : docResult) {
-			list.add(doc.getID().replaceAll("/", ","));
-		}
-		result = list.toArray(new String[0]);
-
 		if (orderProps != null && orderProps.length > 0 &&
-			result.length > 0) {
+			docResult.length > 0) {
 			// do not bother if there is no result
-			String select = "$id";
-			String where = "$s <http://purl.org/dc/elements/1.1/identifier> $id .";
-			log.debug("order by properties: ");
-			for (i = 0; i < orderProps.length; ++i) {
-				String localName = orderProps[i].getLocalName();
-				String namespaceURI = orderProps[i].getNamespaceURI();
-				if (namespaceURI.equals("")) {
-					namespaceURI = "http://sling.apache.org/jcr/sling/1.0";
-				}
-
-				select += " $" + localName;
-				where += " $s <" + namespaceURI + "/" + localName + 
-					"> $" + localName + ".";
-				log.debug(localName);
-			}
-
-			where += " FILTER ( ";
-
-			for (i = 0; i < result.length; ++i) {
-				String line = result[i];
-				parts = line.split(",");
-				String id = parts[parts.length - 1];
-				if (i > 0) {
-					where += " || ";
-				}
-				where += "regex($id, '^" + id + "$')";
-			}
-
-			where += " )";
-
-			String sparql = "select " + select + " from <#ri> {" +
-				where + "}";
-			log.debug(sparql);
-
-			String [] resultWithProperty = null;
-			// FedoraPersistenceManager.fc.searchObjects(sparql, "sparql");
-
-			// creates value map
-			for (String line : resultWithProperty) {
-				int index = line.indexOf(",");
-				log.debug("putting " + line.substring(0, index));
-				valueMap.put(line.substring(0, index),
-							 line.substring(index + 1));
-				log.debug(line.substring(0, index) + ", " +
-								   line.substring(index + 1));
-			}
-
 			log.debug("sorting result list ...");
-			result = sort(result, valueMap, orderSpecs);
+			docResult = sort(docResult, orderProps, orderSpecs);
 		}
+		result = new String [docResult.length];
 
 		Session jcrSession = 
 			session.impersonate(new SimpleCredentials("superuser", 
@@ -771,6 +646,23 @@ public class SearchIndex extends AbstractQueryHandler {
 									QueryImpl.DEFAULT_SELECTOR_NAME);
     }
 
+    /**
+     * Sets the number of results sorted in memory before the sort
+     * spills to temporary files.
+     *
+     * @param size the number of results.
+     */
+    public void setSortBufferSize(int size) {
+        sortBufferSize = size;
+    }
+
+    /**
+     * @return the number of results sorted in memory.
+     */
+    public int getSortBufferSize() {
+        return sortBufferSize;
+    }
+
     /**
      * Returns the namespace mappings for the internal representation.
      * @return the namespace mappings for the internal representation.
@@ -135,7 +135,7 @@ class XTFQuery {
 		List<String> pathList;
 		String uuid;
 
-		XTFClient client = new XTFClient();
+		XTFClient client = XTFClient.getInstance();
 
 		result = null;
 		resultList = new ArrayList<String>();